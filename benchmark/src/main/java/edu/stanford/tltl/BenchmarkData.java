@@ -0,0 +1,98 @@
+package edu.stanford.tltl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Sample data for the benchmarks: three axis readings every millisecond that look like an
+ * accelerometer at rest (a value around gravity, a slow wave and a little noise), so the
+ * encoders see data that compresses like real recordings. Seeded, so every run gets the same
+ * samples.
+ *
+ * @author leehsueh
+ *
+ */
+public class BenchmarkData {
+	public static final int SENSOR_TYPE = 1;	// Sensor.TYPE_ACCELEROMETER
+	public static final int[] COMPONENTS = { 0, 1, 2 };
+	public static final long PERIOD_NANOS = 1000000L;	// 1 kHz
+	public static final long START_TIME = 1000000000000L;
+
+	private static final float[] OFFSETS = { 0.2f, 0.1f, 9.81f };
+
+	private final Random mRandom = new Random(42);
+	private final float[] mValues = new float[3];
+	private long mTime = START_TIME;
+
+	/** Time of the next sample. */
+	public long getTime() {
+		return mTime;
+	}
+
+	/** Values of the next sample and moves on to the one after; the array is reused. */
+	public float[] next() {
+		double phase = 2 * Math.PI * 0.5 * ((mTime - START_TIME) / 1e9);
+		for (int i = 0; i < mValues.length; i++) {
+			mValues[i] = (float) (OFFSETS[i] + 0.5 * Math.sin(phase + i) + 0.05 * mRandom.nextGaussian());
+		}
+		mTime += PERIOD_NANOS;
+		return mValues;
+	}
+
+	/** A full chunk of consecutive samples. */
+	public SampleChunk chunk(int sequence) {
+		SampleChunk chunk = new SampleChunk(SENSOR_TYPE, COMPONENTS, SensorSampleBuffer.CHUNK_SIZE);
+		chunk.reset(sequence);
+		while (!chunk.isFull()) {
+			long time = mTime;
+			chunk.append(time, next());
+		}
+		return chunk;
+	}
+
+	/** A recording of the given number of samples of each of the sensor types. */
+	public static SensorRecording recording(int[] sensorTypes, int samples) {
+		SensorRecording recording = new SensorRecording(START_TIME);
+		for (int type : sensorTypes) {
+			recording.addSensor(type, COMPONENTS);
+			BenchmarkData data = new BenchmarkData();
+			for (int i = 0; i < samples; i++) {
+				long time = data.getTime();
+				recording.append(type, time, data.next());
+			}
+		}
+		return recording;
+	}
+
+	/**
+	 * The samples of a chunk in the structure recordings were stored in before ChunkEncoder,
+	 * Java serialized: sensor type to component key to a list of values, with the time in
+	 * milliseconds since START_TIME (see SensorRecording.fromSensorDataMap()).
+	 */
+	public static HashMap<Integer, Map<String, List<Float>>> legacyMap(SampleChunk chunk) {
+		HashMap<String, List<Float>> columns = new HashMap<String, List<Float>>();
+		ArrayList<Float> times = new ArrayList<Float>(chunk.getCount());
+		for (int i = 0; i < chunk.getCount(); i++) {
+			times.add((chunk.getTimestamps()[i] - START_TIME) / 1000000.0f);
+		}
+		columns.put(SensorRecording.TIME_KEY, times);
+		for (int slot = 0; slot < chunk.getComponentCount(); slot++) {
+			ArrayList<Float> values = new ArrayList<Float>(chunk.getCount());
+			for (int i = 0; i < chunk.getCount(); i++) {
+				values.add(chunk.getValues(slot)[i]);
+			}
+			columns.put(SensorRecording.COMPONENT_KEYS[chunk.getComponentIndices()[slot]], values);
+		}
+		HashMap<Integer, Map<String, List<Float>>> sensorData = new HashMap<Integer, Map<String, List<Float>>>();
+		sensorData.put(chunk.getSensorType(), columns);
+		return sensorData;
+	}
+
+	/** Bytes of a sample in memory: its timestamp and the recorded components. */
+	public static int rawSampleSize(int componentCount) {
+		return 8 + 4 * componentCount;
+	}
+}
@@ -0,0 +1,26 @@
+package edu.stanford.tltl;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Bytes of samples a benchmark handled, reported by JMH as a rate (bytes/s) next to the score.
+ * The size counted is that of the samples in memory (see BenchmarkData.rawSampleSize()), so
+ * rates of different encodings can be compared.
+ *
+ * @author leehsueh
+ *
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class ByteCounter {
+	public long rawBytes;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		rawBytes = 0;
+	}
+}
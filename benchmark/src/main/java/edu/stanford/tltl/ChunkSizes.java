@@ -0,0 +1,40 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+
+/**
+ * Prints the stored size of the benchmark samples in bytes per sample for each ChunkEncoder
+ * level and for the Java serialized map they were stored as before, averaged over a number of
+ * chunks. Sizes do not depend on the machine, so this is not a JMH benchmark.
+ *
+ * Usage:
+ *
+ *   java -cp target/benchmarks.jar edu.stanford.tltl.ChunkSizes [chunks]
+ *
+ * @author leehsueh
+ *
+ */
+public class ChunkSizes {
+	static final int[] LEVELS = { 0, 1, 2, 6, 9 };
+
+	public static void main(String[] args) throws IOException {
+		int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		SampleChunk[] data = new SampleChunk[chunks];
+		BenchmarkData source = new BenchmarkData();
+		long samples = 0, serialized = 0;
+		for (int i = 0; i < chunks; i++) {
+			data[i] = source.chunk(i);
+			samples += data[i].getCount();
+			serialized += SerializationBenchmark.serialize(BenchmarkData.legacyMap(data[i])).length;
+		}
+		System.out.println(String.format("%-14s %6.2f B/sample", "serialized", (double) serialized / samples));
+		for (int level : LEVELS) {
+			ChunkEncoder encoder = new ChunkEncoder(level);
+			long bytes = 0;
+			for (SampleChunk chunk : data) {
+				bytes += encoder.encode(chunk).length;
+			}
+			System.out.println(String.format("%-14s %6.2f B/sample", "level " + level, (double) bytes / samples));
+		}
+	}
+}
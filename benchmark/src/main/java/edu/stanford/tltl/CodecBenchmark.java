@@ -0,0 +1,61 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding a chunk with ChunkEncoder at each compression level, as the recorder
+ * stores chunks and the detail screen and exports read them back. Scores are chunks of
+ * SensorSampleBuffer.CHUNK_SIZE three axis samples per second; the rawBytes counter gives the
+ * same in bytes per second (divide by 1e6 for MB/s).
+ *
+ * @author leehsueh
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	@Param({ "0", "1", "6" })
+	public int level;
+
+	private ChunkEncoder mEncoder;
+	private SampleChunk mChunk;
+	private byte[] mPayload;
+	private int mEncoding;
+	private SampleChunk mDecoded;
+	private long mChunkBytes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mEncoder = new ChunkEncoder(level);
+		mChunk = new BenchmarkData().chunk(0);
+		mPayload = mEncoder.encode(mChunk);
+		mEncoding = mEncoder.getEncoding();
+		mDecoded = new SampleChunk(BenchmarkData.SENSOR_TYPE, BenchmarkData.COMPONENTS, mChunk.getCapacity());
+		mChunkBytes = (long) mChunk.getCount() * BenchmarkData.rawSampleSize(mChunk.getComponentCount());
+	}
+
+	@Benchmark
+	public byte[] encodeChunk(ByteCounter bytes) {
+		bytes.rawBytes += mChunkBytes;
+		return mEncoder.encode(mChunk);
+	}
+
+	@Benchmark
+	public SampleChunk decodeChunk(ByteCounter bytes) throws IOException {
+		bytes.rawBytes += mChunkBytes;
+		ChunkEncoder.decode(mPayload, mEncoding, mChunk.getCount(), mDecoded);
+		return mDecoded;
+	}
+}
@@ -0,0 +1,177 @@
+package edu.stanford.tltl;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares benchmark results with the checked in baseline and fails if any got worse by more
+ * than a threshold. Both files are JMH results written with -rf csv; results are matched by
+ * benchmark name and parameters. Throughput scores (thrpt) are better higher, time scores
+ * (avgt, sample, ss) better lower; a score only counts as worse if its error interval does
+ * not overlap the baseline's either, so noisy results do not fail the comparison. With
+ * -prof gc the allocation per operation (gc.alloc.rate.norm) is compared too: it may grow by
+ * the threshold plus ALLOCATION_SLACK bytes, so going from none to some allocation fails.
+ * The other gc results depend on the throughput and are left out. A result that is only in
+ * one of the files fails the comparison too: a new benchmark has to be added to the baseline,
+ * and a missing one means the baseline or the run is out of date.
+ *
+ *   java -cp target/benchmarks.jar edu.stanford.tltl.CompareBaseline baseline.csv results.csv [percent]
+ *
+ * Exits with 1 if something regressed, is new or is missing, 2 on bad arguments.
+ *
+ * @author leehsueh
+ *
+ */
+public class CompareBaseline {
+	public static final double DEFAULT_THRESHOLD = 20;	// percent; short runs on shared machines are noisy
+	public static final double ALLOCATION_SLACK = 16;	// B/op
+	private static final String GC = ":gc.";
+	private static final String ALLOCATION = ":gc.alloc.rate.norm";
+
+	/** One row of a JMH csv result. */
+	private static class Result {
+		String mMode;
+		double mScore;
+		double mError;
+		String mUnit;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: CompareBaseline baseline.csv results.csv [threshold percent]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+		Map<String, Result> baseline = read(args[0]);
+		Map<String, Result> results = read(args[1]);
+		int regressions = 0, compared = 0, unmatched = 0;
+		for (Map.Entry<String, Result> entry : results.entrySet()) {
+			if (entry.getKey().contains(GC) && !entry.getKey().contains(ALLOCATION)) {
+				continue;
+			}
+			Result now = entry.getValue();
+			Result before = baseline.get(entry.getKey());
+			if (before == null) {
+				System.out.println("NEW        " + entry.getKey() + ": " + format(now));
+				unmatched++;
+				continue;
+			}
+			if (!before.mUnit.equals(now.mUnit)) {
+				System.out.println("SKIPPED    " + entry.getKey() + ": " + format(before) + " -> " + format(now));
+				continue;
+			}
+			compared++;
+			boolean regressed;
+			double change;	// positive when better, in percent of the baseline
+			if (entry.getKey().contains(ALLOCATION)) {
+				regressed = now.mScore > before.mScore * (1 + threshold / 100) + ALLOCATION_SLACK;
+				change = before.mScore > 0 ? -100 * (now.mScore - before.mScore) / before.mScore : 0;
+			} else {
+				boolean higherIsBetter = now.mMode.equals("thrpt");
+				change = before.mScore != 0 ? 100 * (now.mScore - before.mScore) / before.mScore : 0;
+				boolean apart = now.mScore + now.mError < before.mScore - before.mError
+						|| now.mScore - now.mError > before.mScore + before.mError;
+				if (!higherIsBetter) {
+					change = -change;
+				}
+				regressed = change < -threshold && apart;
+			}
+			if (regressed) {
+				regressions++;
+			}
+			System.out.println((regressed ? "REGRESSED  " : "ok         ") + entry.getKey() + ": " + format(before)
+					+ " -> " + format(now) + " (" + (change >= 0 ? "+" : "") + Math.round(change) + "%)");
+		}
+		for (String key : baseline.keySet()) {
+			if (!results.containsKey(key) && (!key.contains(GC) || key.contains(ALLOCATION))) {
+				System.out.println("MISSING    " + key);
+				unmatched++;
+			}
+		}
+		System.out.println(regressions + " of " + compared + " results worse than the baseline by more than "
+				+ threshold + "%, " + unmatched + " new or missing");
+		System.exit(regressions > 0 || unmatched > 0 ? 1 : 0);
+	}
+
+	private static String format(Result result) {
+		return String.format("%.4g +- %.2g %s", result.mScore, result.mError, result.mUnit);
+	}
+
+	/** Reads a JMH csv result file, keyed by benchmark name and "param=value" pairs. */
+	private static Map<String, Result> read(String path) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+		try {
+			List<String> header = split(in.readLine());
+			int benchmark = header.indexOf("Benchmark"), mode = header.indexOf("Mode"), score = header.indexOf("Score"),
+					error = header.indexOf("Score Error (99.9%)"), unit = header.indexOf("Unit");
+			if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+				throw new IOException("Not a JMH csv result: " + path);
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().length() == 0) {
+					continue;
+				}
+				List<String> fields = split(line);
+				StringBuilder key = new StringBuilder(fields.get(benchmark));
+				for (int i = 0; i < header.size() && i < fields.size(); i++) {
+					if (header.get(i).startsWith("Param: ") && fields.get(i).length() > 0) {
+						key.append(' ').append(header.get(i).substring(7)).append('=').append(fields.get(i));
+					}
+				}
+				Result result = new Result();
+				result.mMode = fields.get(mode);
+				result.mScore = parse(fields.get(score));
+				result.mError = error >= 0 ? parse(fields.get(error)) : 0;
+				result.mUnit = fields.get(unit);
+				results.put(key.toString(), result);
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	private static double parse(String number) {
+		return number.length() == 0 || number.equals("NaN") ? 0 : Double.parseDouble(number);
+	}
+
+	/** Splits a csv line; fields may be quoted, with "" for a quote. */
+	private static List<String> split(String line) {
+		List<String> fields = new ArrayList<String>();
+		if (line == null) {
+			return fields;
+		}
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+}
@@ -0,0 +1,108 @@
+package edu.stanford.tltl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Exporting a sensor's samples as ExportJob does: CsvExporter formatting rows into a channel
+ * that drops them, which measures the number formatting alone, and CsvExporter and NpyExporter
+ * writing files to a temporary directory. Scores are rows (samples) per second.
+ *
+ * @author leehsueh
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ExportBenchmark {
+	static final int ROWS = 100000;
+
+	private SensorSampleBuffer mBuffer;
+	private CsvExporter mCsv;
+	private NpyExporter mNpy;
+	private File mDir;
+	private WritableByteChannel mDiscard;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mBuffer = BenchmarkData.recording(new int[] { BenchmarkData.SENSOR_TYPE }, ROWS).getBuffer(BenchmarkData.SENSOR_TYPE);
+		mCsv = new CsvExporter();
+		mNpy = new NpyExporter();
+		mDir = File.createTempFile("export", "");
+		if (!mDir.delete() || !mDir.mkdir()) {
+			throw new IOException("Cannot create " + mDir);
+		}
+		mDiscard = new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				int n = src.remaining();
+				src.position(src.limit());
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long csvFormat() throws IOException {
+		mCsv.begin(mDiscard, "Accelerometer", BenchmarkData.COMPONENTS, BenchmarkData.START_TIME);
+		mCsv.writeBuffer(mBuffer);
+		return mCsv.finish();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long csvFile() throws IOException {
+		return export(mCsv, "accelerometer.csv");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long npyFile() throws IOException {
+		return export(mNpy, "accelerometer");
+	}
+
+	private long export(SampleExporter exporter, String baseName) throws IOException {
+		exporter.begin(mDir, baseName, "Accelerometer", BenchmarkData.COMPONENTS, BenchmarkData.START_TIME, ROWS);
+		try {
+			exporter.writeBuffer(mBuffer);
+			return exporter.finish();
+		} finally {
+			exporter.close();
+		}
+	}
+}
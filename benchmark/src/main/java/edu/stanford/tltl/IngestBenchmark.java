@@ -0,0 +1,97 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Recording a sensor event, the work done for every sample while recording: the sensor thread
+ * offering it to the SensorEventRing and the pump draining it, StreamingRecorder.append()
+ * (whose writer thread hands the full chunks to a sink that drops them), and appending to the
+ * in-memory SensorRecording that small recordings and exports use. Scores are events per
+ * second; run with -prof gc to see the allocation per event, which should be 0 for the ring
+ * and the recorder.
+ *
+ * @author leehsueh
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class IngestBenchmark {
+	static final int RING_BATCH = 64;	// events offered before draining, like a burst from the sensor thread
+	static final int RECORDING_SAMPLES = 1 << 16;	// samples per new SensorRecording
+
+	private final BenchmarkData mData = new BenchmarkData();
+	private final float[] mValues = mData.next().clone();
+	private long mTime;
+	private StreamingRecorder mRecorder;
+	private SensorEventRing mRing;
+	private SensorEventRing.Consumer mDrain;
+
+	@Setup(Level.Trial)
+	public void setUp(final Blackhole blackhole) {
+		mTime = BenchmarkData.START_TIME;
+		mRecorder = new StreamingRecorder(new SampleChunkSink() {
+			@Override
+			public void writeChunk(SampleChunk chunk) throws IOException {
+				blackhole.consume(chunk.getCount());
+			}
+		});
+		mRecorder.addSensor(BenchmarkData.SENSOR_TYPE, BenchmarkData.COMPONENTS);
+		mRecorder.start();
+		mRing = new SensorEventRing();
+		mDrain = new SensorEventRing.Consumer() {
+			@Override
+			public void onSensorEvent(int sensorType, long timestamp, float[] values) {
+				blackhole.consume(timestamp);
+				blackhole.consume(values[0]);
+			}
+		};
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mRecorder.stop();
+	}
+
+	@Benchmark
+	public void streamingRecorderAppend() {
+		mTime += BenchmarkData.PERIOD_NANOS;
+		mRecorder.append(BenchmarkData.SENSOR_TYPE, mTime, mValues);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RING_BATCH)
+	public int ringOfferDrain() {
+		for (int i = 0; i < RING_BATCH; i++) {
+			mTime += BenchmarkData.PERIOD_NANOS;
+			mRing.offer(BenchmarkData.SENSOR_TYPE, mTime, mValues);
+		}
+		return mRing.drain(mDrain);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDING_SAMPLES)
+	public SensorRecording sensorRecordingAppend() {
+		SensorRecording recording = new SensorRecording(BenchmarkData.START_TIME);
+		recording.addSensor(BenchmarkData.SENSOR_TYPE, BenchmarkData.COMPONENTS);
+		long time = BenchmarkData.START_TIME;
+		for (int i = 0; i < RECORDING_SAMPLES; i++) {
+			recording.append(BenchmarkData.SENSOR_TYPE, time, mValues);
+			time += BenchmarkData.PERIOD_NANOS;
+		}
+		return recording;
+	}
+}
@@ -0,0 +1,52 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding a whole SensorRecording with SensorRecordingCodec, as recordings are
+ * stored in the data column and loaded for replay: three sensors of 100 s at 1 kHz. Scores are
+ * recordings per second; the rawBytes counter gives bytes of samples per second.
+ *
+ * @author leehsueh
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class RecordingCodecBenchmark {
+	static final int SAMPLES = 100000;	// per sensor
+	static final int[] SENSOR_TYPES = { 1, 2, 4 };
+
+	private SensorRecording mRecording;
+	private byte[] mEncoded;
+	private long mRawBytes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mRecording = BenchmarkData.recording(SENSOR_TYPES, SAMPLES);
+		mEncoded = SensorRecordingCodec.encode(mRecording);
+		mRawBytes = (long) SENSOR_TYPES.length * SAMPLES * BenchmarkData.rawSampleSize(BenchmarkData.COMPONENTS.length);
+	}
+
+	@Benchmark
+	public byte[] encode(ByteCounter bytes) throws IOException {
+		bytes.rawBytes += mRawBytes;
+		return SensorRecordingCodec.encode(mRecording);
+	}
+
+	@Benchmark
+	public SensorRecording decode(ByteCounter bytes) throws IOException {
+		bytes.rawBytes += mRawBytes;
+		return SensorRecordingCodec.decode(mEncoded);
+	}
+}
@@ -0,0 +1,67 @@
+package edu.stanford.tltl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The same chunk as CodecBenchmark, Java serialized in the map structure recordings were
+ * stored in before ChunkEncoder (BenchmarkData.legacyMap()), for comparison with its scores:
+ * chunks per second, and bytes of samples per second in the rawBytes counter.
+ *
+ * @author leehsueh
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+	private Object mSensorData;
+	private byte[] mSerialized;
+	private long mChunkBytes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SampleChunk chunk = new BenchmarkData().chunk(0);
+		mSensorData = BenchmarkData.legacyMap(chunk);
+		mSerialized = serialize(mSensorData);
+		mChunkBytes = (long) chunk.getCount() * BenchmarkData.rawSampleSize(chunk.getComponentCount());
+	}
+
+	static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(o);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] serializeChunk(ByteCounter bytes) throws IOException {
+		bytes.rawBytes += mChunkBytes;
+		return serialize(mSensorData);
+	}
+
+	@Benchmark
+	public Object deserializeChunk(ByteCounter bytes) throws IOException, ClassNotFoundException {
+		bytes.rawBytes += mChunkBytes;
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(mSerialized));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package edu.stanford.tltl;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Storing and reading sample chunks the way SensorDataDB does, on SQLite through JDBC as a
+ * stand-in for android.database.sqlite: the same chunk table and index, a database file in
+ * WAL mode, and the same statements. Measures inserting chunks one transaction each versus a
+ * batch in one transaction with one compiled statement (SensorDataDB.insertChunks()), and
+ * reading a window of a long recording: the index seek, the window query and decoding the
+ * chunks (SensorDataDB.queryRange()). Scores are chunks per second, and windows per second
+ * for the query; payloads are encoded beforehand, see CodecBenchmark for that cost.
+ *
+ * @author leehsueh
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class StorageBenchmark {
+	static final int BATCH = 64;	// chunks per insert invocation
+	static final int STORED_CHUNKS = 3600;	// of the queried recording, about an hour at 1 kHz
+	static final long WINDOW_NANOS = 10000000000L;	// 10 s
+	static final long QUERY_RECORDING = 1, INSERT_RECORDING = 2;
+
+	/* the schema and statements of SensorDataDB */
+	private static final String CHUNK_TABLE_CREATE =
+		"create table sensorchunk (_id integer primary key autoincrement, recording_id integer not null, "
+				+ "sensor_type integer not null, seq integer not null, start_time integer not null, "
+				+ "end_time integer not null, sample_count integer not null, component_mask integer not null, "
+				+ "payload blob not null, encoding integer not null default 0)";
+	private static final String CHUNK_INDEX_CREATE =
+		"create index sensorchunk_time on sensorchunk (recording_id, sensor_type, start_time)";
+	private static final String CHUNK_INSERT =
+		"insert into sensorchunk (recording_id, sensor_type, seq, start_time, end_time, sample_count, "
+				+ "component_mask, payload, encoding) values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String SEEK_QUERY =
+		"select start_time from sensorchunk where recording_id=? and sensor_type=? and start_time<=? "
+				+ "order by start_time desc limit 1";
+	private static final String WINDOW_QUERY =
+		"select sample_count, component_mask, payload, encoding from sensorchunk "
+				+ "where recording_id=? and sensor_type=? and start_time>=? and start_time<? order by start_time";
+
+	private File mFile;
+	private Connection mConnection;
+	private PreparedStatement mInsert, mSeek, mWindow;
+	private SampleChunk[] mChunks;
+	private byte[][] mPayloads;
+	private int[] mEncodings;
+	private int mComponentMask;
+	private SampleChunk mDecoded;
+	private long mEndTime;
+	private final Random mRandom = new Random(42);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, SQLException {
+		mFile = File.createTempFile("storage", ".db");
+		mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getPath());
+		Statement statement = mConnection.createStatement();
+		try {
+			statement.execute("PRAGMA journal_mode=WAL");
+			statement.execute("PRAGMA synchronous=NORMAL");	// what Android uses with WAL
+			statement.execute(CHUNK_TABLE_CREATE);
+			statement.execute(CHUNK_INDEX_CREATE);
+		} finally {
+			statement.close();
+		}
+		mInsert = mConnection.prepareStatement(CHUNK_INSERT);
+		mSeek = mConnection.prepareStatement(SEEK_QUERY);
+		mWindow = mConnection.prepareStatement(WINDOW_QUERY);
+
+		BenchmarkData data = new BenchmarkData();
+		ChunkEncoder encoder = new ChunkEncoder(ChunkEncoder.DEFAULT_LEVEL);
+		mChunks = new SampleChunk[BATCH];
+		mPayloads = new byte[BATCH][];
+		mEncodings = new int[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			mChunks[i] = data.chunk(i);
+			mPayloads[i] = encoder.encode(mChunks[i]);
+			mEncodings[i] = encoder.getEncoding();
+		}
+		mComponentMask = componentMask(BenchmarkData.COMPONENTS);
+		mDecoded = new SampleChunk(BenchmarkData.SENSOR_TYPE, BenchmarkData.COMPONENTS, SensorSampleBuffer.CHUNK_SIZE);
+
+		// the recording that is queried: the chunks again and again, later each time
+		long batchNanos = mChunks[BATCH - 1].getEndTime() - mChunks[0].getStartTime() + BenchmarkData.PERIOD_NANOS;
+		mConnection.setAutoCommit(false);
+		for (int i = 0; i < STORED_CHUNKS; i++) {
+			insert(QUERY_RECORDING, mChunks[i % BATCH], i, (i / BATCH) * batchNanos, mPayloads[i % BATCH], mEncodings[i % BATCH]);
+		}
+		mConnection.commit();
+		mConnection.setAutoCommit(true);
+		mEndTime = BenchmarkData.START_TIME + (STORED_CHUNKS / BATCH) * batchNanos;
+	}
+
+	@Setup(Level.Iteration)
+	public void deleteInserted() throws SQLException {
+		Statement statement = mConnection.createStatement();
+		try {
+			statement.execute("delete from sensorchunk where recording_id=" + INSERT_RECORDING);
+		} finally {
+			statement.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		mInsert.close();
+		mSeek.close();
+		mWindow.close();
+		mConnection.close();
+		mFile.delete();
+		new File(mFile.getPath() + "-wal").delete();
+		new File(mFile.getPath() + "-shm").delete();
+	}
+
+	/** Each chunk in a transaction of its own, as when every chunk was stored with insert(). */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void insertEach() throws SQLException {
+		for (int i = 0; i < BATCH; i++) {
+			insert(INSERT_RECORDING, mChunks[i], i, 0, mPayloads[i], mEncodings[i]);
+		}
+	}
+
+	/** The whole batch in one transaction, as SensorDataDB.insertChunks(). */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void insertBatch() throws SQLException {
+		mConnection.setAutoCommit(false);
+		try {
+			for (int i = 0; i < BATCH; i++) {
+				insert(INSERT_RECORDING, mChunks[i], i, 0, mPayloads[i], mEncodings[i]);
+			}
+			mConnection.commit();
+		} finally {
+			mConnection.setAutoCommit(true);
+		}
+	}
+
+	/** Reads and decodes the chunks of a 10 s window at a random place in the recording. */
+	@Benchmark
+	public long queryWindow() throws SQLException, IOException {
+		long start = BenchmarkData.START_TIME + (long) (mRandom.nextDouble() * (mEndTime - BenchmarkData.START_TIME - WINDOW_NANOS));
+		long end = start + WINDOW_NANOS;
+		mSeek.setLong(1, QUERY_RECORDING);
+		mSeek.setInt(2, BenchmarkData.SENSOR_TYPE);
+		mSeek.setLong(3, start);
+		long seek = start;
+		ResultSet row = mSeek.executeQuery();
+		try {
+			if (row.next()) {
+				seek = row.getLong(1);
+			}
+		} finally {
+			row.close();
+		}
+		mWindow.setLong(1, QUERY_RECORDING);
+		mWindow.setInt(2, BenchmarkData.SENSOR_TYPE);
+		mWindow.setLong(3, seek);
+		mWindow.setLong(4, end);
+		long samples = 0;
+		ResultSet rows = mWindow.executeQuery();
+		try {
+			while (rows.next()) {
+				int count = rows.getInt(1);
+				if (rows.getInt(2) != mComponentMask) {
+					throw new IOException("Unexpected components");
+				}
+				ChunkEncoder.decode(rows.getBytes(3), rows.getInt(4), count, mDecoded);
+				samples += count;
+			}
+		} finally {
+			rows.close();
+		}
+		return samples;
+	}
+
+	/** Binds a chunk, moved later by offset, to CHUNK_INSERT and executes it. */
+	private void insert(long recordingId, SampleChunk chunk, int sequence, long offset, byte[] payload, int encoding) throws SQLException {
+		mInsert.setLong(1, recordingId);
+		mInsert.setInt(2, chunk.getSensorType());
+		mInsert.setInt(3, sequence);
+		mInsert.setLong(4, chunk.getStartTime() + offset);
+		mInsert.setLong(5, chunk.getEndTime() + offset);
+		mInsert.setInt(6, chunk.getCount());
+		mInsert.setInt(7, mComponentMask);
+		mInsert.setBytes(8, payload);
+		mInsert.setInt(9, encoding);
+		mInsert.executeUpdate();
+	}
+
+	private static int componentMask(int[] componentIndices) {
+		int mask = 0;
+		for (int i : componentIndices) {
+			mask |= 1 << i;
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,195 @@
+package edu.stanford.tltl;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * SensorSource for the sensor hardware. Events are delivered on a dedicated background
+ * HandlerThread instead of the main looper, so layout and other UI work cannot delay them.
+ *
+ * From Android 4.4 (API 19) on, sensors with a hardware FIFO can be registered with a
+ * maximum report latency: the sensor hub then collects events and hands them over in
+ * batches. flush() fetches what the FIFOs hold.
+ *
+ * Event timestamps are on SystemClock.elapsedRealtimeNanos() on most devices and on
+ * System.nanoTime() on some older ones; which one is decided by the first event (see now()).
+ *
+ * @author leehsueh
+ *
+ */
+public class AndroidSensorSource implements SensorSource, SensorEventListener {
+	private final SensorManager mSensorManager;
+	private final SensorEventRing.Consumer mConsumer;
+	private final SensorEventListener mListener;	// this, or a FlushListener where flush() exists
+	private final HandlerThread mSensorThread;
+	private final Handler mSensorHandler;
+	private volatile CountDownLatch mFlushLatch;
+	private final BitSet mBatchedTypes = new BitSet();	// bit t set if sensor type t is registered with a latency
+	private final BitSet mRegisteredTypes = new BitSet();
+	private boolean mClockKnown, mBootClock;	// sensor thread only
+
+	public AndroidSensorSource(SensorManager sensorManager, SensorEventRing.Consumer consumer) {
+		mSensorManager = sensorManager;
+		mConsumer = consumer;
+		mSensorThread = new HandlerThread("SensorAcquisition", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+		mSensorThread.start();
+		mSensorHandler = new Handler(mSensorThread.getLooper());
+		mListener = Build.VERSION.SDK_INT >= 19 ? new FlushListener() : this;	// KITKAT
+	}
+
+	@Override
+	public boolean hasSensor(int sensorType) {
+		return mSensorManager.getDefaultSensor(sensorType) != null;
+	}
+
+	@Override
+	public synchronized boolean register(int sensorType, int periodUs, int maxReportLatencyUs) {
+		Sensor s = mSensorManager.getDefaultSensor(sensorType);
+		if (s == null) {
+			return false;
+		}
+		if (mRegisteredTypes.get(sensorType)) {
+			mSensorManager.unregisterListener(mListener, s);
+		}
+		int rate = SensorAcquisitionService.toRegistrationRate(periodUs);
+		boolean registered;
+		boolean batched = false;
+		if (maxReportLatencyUs > 0 && Build.VERSION.SDK_INT >= 19 && s.getFifoMaxEventCount() > 0) {
+			Log.v(MainMenuActivity.LOG_TAG, "Batching " + s.getName() + " up to " + maxReportLatencyUs
+					+ " us, FIFO of " + s.getFifoMaxEventCount() + " events");
+			registered = mSensorManager.registerListener(mListener, s, rate, maxReportLatencyUs, mSensorHandler);
+			batched = true;
+		} else {
+			if (maxReportLatencyUs > 0) {
+				Log.v(MainMenuActivity.LOG_TAG, "Sensor " + s.getName() + " cannot batch.");
+			}
+			registered = mSensorManager.registerListener(mListener, s, rate, mSensorHandler);
+		}
+		mRegisteredTypes.set(sensorType, registered);
+		mBatchedTypes.set(sensorType, registered && batched);
+		return registered;
+	}
+
+	@Override
+	public synchronized void unregister(int sensorType) {
+		Sensor s = mSensorManager.getDefaultSensor(sensorType);
+		if (s != null) {
+			mSensorManager.unregisterListener(mListener, s);
+		}
+		mRegisteredTypes.clear(sensorType);
+		mBatchedTypes.clear(sensorType);
+	}
+
+	@Override
+	public synchronized boolean isBatching(int sensorType) {
+		return mBatchedTypes.get(sensorType);
+	}
+
+	/**
+	 * Number of events the hardware FIFOs of the given sensors can hold, i.e. the largest batch
+	 * they can deliver at once; 0 before Android 4.4.
+	 */
+	public static int getFifoCapacity(SensorManager sensorManager, int[] sensorTypes) {
+		if (Build.VERSION.SDK_INT < 19) {
+			return 0;
+		}
+		int capacity = 0;
+		for (int type : sensorTypes) {
+			Sensor s = sensorManager.getDefaultSensor(type);
+			if (s != null) {
+				capacity += s.getFifoMaxEventCount();
+			}
+		}
+		return capacity;
+	}
+
+	/** Returns right away if no sensor is batched. */
+	@Override
+	public synchronized boolean flush(long timeoutMillis) {
+		if (Build.VERSION.SDK_INT < 19 || mBatchedTypes.isEmpty()) {
+			return true;
+		}
+		// a flush completes once for every sensor of the listener, batched or not
+		CountDownLatch latch = new CountDownLatch(mRegisteredTypes.cardinality());
+		mFlushLatch = latch;
+		try {
+			return mSensorManager.flush(mListener) && latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			mFlushLatch = null;
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		mSensorManager.unregisterListener(mListener);
+		mRegisteredTypes.clear();
+		mBatchedTypes.clear();
+		mSensorThread.quit();
+	}
+
+	/* called on the sensor thread */
+
+	/** The clock of the timestamps: whichever of the two was closer to the first event's. */
+	@Override
+	public long now() {
+		return mBootClock ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+	}
+
+	private void chooseClock(long timestamp) {
+		if (Build.VERSION.SDK_INT >= 17) {	// JELLY_BEAN_MR1; older releases have only System.nanoTime() in ns
+			mBootClock = Math.abs(SystemClock.elapsedRealtimeNanos() - timestamp) < Math.abs(System.nanoTime() - timestamp);
+		}
+		mClockKnown = true;
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		if (!mClockKnown) {
+			chooseClock(event.timestamp);
+		}
+		mConsumer.onSensorEvent(event.sensor.getType(), event.timestamp, event.values);
+	}
+
+	/**
+	 * The listener registered from Android 4.4 on, which also hears when a flush() is done.
+	 * A class of its own so the source still loads where SensorEventListener2 does not exist.
+	 */
+	private class FlushListener implements SensorEventListener2 {
+		@Override
+		public void onSensorChanged(SensorEvent event) {
+			AndroidSensorSource.this.onSensorChanged(event);
+		}
+
+		@Override
+		public void onAccuracyChanged(Sensor sensor, int accuracy) {
+		}
+
+		@Override
+		public void onFlushCompleted(Sensor sensor) {
+			CountDownLatch latch = mFlushLatch;
+			if (latch != null) {
+				latch.countDown();
+			}
+		}
+	}
+}
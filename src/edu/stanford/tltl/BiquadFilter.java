@@ -0,0 +1,98 @@
+package edu.stanford.tltl;
+
+/**
+ * Second order IIR filter (biquad) in transposed direct form II, with its two state
+ * variables per channel in double precision so slow cutoffs, such as the gravity removal
+ * high-pass, stay stable. The state starts out as if the input had always been at the first
+ * sample, so a constant offset such as gravity does not ring through the filter. The low-
+ * and high-pass designs are the usual bilinear transform ones (R. Bristow-Johnson's
+ * cookbook) with a Butterworth Q, flat in the pass band.
+ *
+ * @author leehsueh
+ *
+ */
+public class BiquadFilter implements SampleFilter {
+	public static final double BUTTERWORTH_Q = Math.sqrt(0.5);
+
+	private final double mB0, mB1, mB2, mA1, mA2;	// normalized so a0 = 1
+	private final double[] mZ1, mZ2;	// by channel
+	private boolean mPrimed;
+
+	/** A filter with the given coefficients, normalized by a0. */
+	public BiquadFilter(double b0, double b1, double b2, double a0, double a1, double a2, int channels) {
+		mB0 = b0 / a0;
+		mB1 = b1 / a0;
+		mB2 = b2 / a0;
+		mA1 = a1 / a0;
+		mA2 = a2 / a0;
+		mZ1 = new double[channels];
+		mZ2 = new double[channels];
+	}
+
+	/**
+	 * Low-pass with a cutoff (-3 dB) frequency.
+	 * @param rateHz sampling rate
+	 * @param cutoffHz below rateHz / 2
+	 */
+	public static BiquadFilter lowPass(double rateHz, double cutoffHz, int channels) {
+		double w = 2 * Math.PI * checkCutoff(rateHz, cutoffHz) / rateHz;
+		double cos = Math.cos(w), alpha = Math.sin(w) / (2 * BUTTERWORTH_Q);
+		return new BiquadFilter((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha, channels);
+	}
+
+	/**
+	 * High-pass with a cutoff (-3 dB) frequency, e.g. about 0.3 Hz to remove gravity from
+	 * accelerometer samples.
+	 * @param rateHz sampling rate
+	 * @param cutoffHz below rateHz / 2
+	 */
+	public static BiquadFilter highPass(double rateHz, double cutoffHz, int channels) {
+		double w = 2 * Math.PI * checkCutoff(rateHz, cutoffHz) / rateHz;
+		double cos = Math.cos(w), alpha = Math.sin(w) / (2 * BUTTERWORTH_Q);
+		return new BiquadFilter((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha, channels);
+	}
+
+	private static double checkCutoff(double rateHz, double cutoffHz) {
+		if (!(cutoffHz > 0 && cutoffHz < rateHz / 2)) {
+			throw new IllegalArgumentException("Cutoff " + cutoffHz + " Hz is not between 0 and half the rate of " + rateHz + " Hz");
+		}
+		return cutoffHz;
+	}
+
+	@Override
+	public boolean filter(float[] values) {
+		if (!mPrimed) {
+			// the steady state for a constant input: output at the gain at 0 Hz
+			double gain = (mB0 + mB1 + mB2) / (1 + mA1 + mA2);
+			for (int ch = 0; ch < mZ1.length; ch++) {
+				double x = values[ch], y = gain * x;
+				mZ1[ch] = y - mB0 * x;
+				mZ2[ch] = mB2 * x - mA2 * y;
+			}
+			mPrimed = true;
+		}
+		for (int ch = 0; ch < mZ1.length; ch++) {
+			double x = values[ch];
+			double y = mB0 * x + mZ1[ch];
+			mZ1[ch] = mB1 * x - mA1 * y + mZ2[ch];
+			mZ2[ch] = mB2 * x - mA2 * y;
+			values[ch] = (float) y;
+		}
+		return true;
+	}
+
+	@Override
+	public double getDelay() {
+		return 0;
+	}
+
+	@Override
+	public int getDecimation() {
+		return 1;
+	}
+
+	@Override
+	public void reset() {
+		mPrimed = false;
+	}
+}
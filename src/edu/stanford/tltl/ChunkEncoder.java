@@ -0,0 +1,365 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the payload of sample chunks (see SensorDataDB.CHUNK_TABLE). Sensor data
+ * compresses well: timestamps are nearly regular and consecutive values of a component
+ * usually differ only in their low mantissa bits.
+ *
+ * Encodings, stored per chunk in SensorDataDB.KEY_CHUNK_ENCODING:
+ *   ENCODING_RAW          little endian arrays (SensorRecordingCodec.encodeChunk)
+ *   ENCODING_XOR          bit packed: delta-of-delta timestamps, and each value column
+ *                         XORed with its previous value, storing only the meaningful bits
+ *                         (as in Facebook's Gorilla time series database)
+ *   ENCODING_XOR_DEFLATE  ENCODING_XOR, then deflated
+ *
+ * The compression level picks the encoding: LEVEL_NONE is raw, LEVEL_FAST is XOR, and
+ * higher levels additionally deflate with that Deflater level. Whatever the level, a chunk
+ * that would not get smaller is stored raw. Compression is lossless.
+ *
+ * An encoder reuses its buffers, so use one per thread.
+ *
+ * @author leehsueh
+ *
+ */
+public class ChunkEncoder {
+	public static final int ENCODING_RAW = 0;
+	public static final int ENCODING_XOR = 1;
+	public static final int ENCODING_XOR_DEFLATE = 2;
+
+	public static final int LEVEL_NONE = 0;
+	public static final int LEVEL_FAST = 1;
+	public static final int LEVEL_MAX = 9;
+	public static final int DEFAULT_LEVEL = LEVEL_FAST;
+
+	private final int mLevel;
+	private final BitWriter mBits = new BitWriter();
+	private Deflater mDeflater;
+	private byte[] mDeflated = new byte[0];
+	private int mEncoding;
+
+	public ChunkEncoder(int level) {
+		mLevel = Math.max(LEVEL_NONE, Math.min(level, LEVEL_MAX));
+		if (mLevel > LEVEL_FAST) {
+			mDeflater = new Deflater(mLevel, true);
+		}
+	}
+
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/** Encoding of the payload last returned by encode(). */
+	public int getEncoding() {
+		return mEncoding;
+	}
+
+	/** Encodes the samples of a chunk; getEncoding() tells how. */
+	public byte[] encode(SampleChunk chunk) {
+		int rawSize = chunk.getCount() * (8 + 4 * chunk.getComponentCount());
+		if (mLevel == LEVEL_NONE) {
+			return raw(chunk);
+		}
+		mBits.reset();
+		writeXor(chunk, mBits);
+		if (mLevel == LEVEL_FAST) {
+			if (mBits.size() >= rawSize) {
+				return raw(chunk);
+			}
+			mEncoding = ENCODING_XOR;
+			return mBits.toByteArray();
+		}
+
+		mDeflater.reset();
+		mDeflater.setInput(mBits.buffer(), 0, mBits.size());
+		mDeflater.finish();
+		int size = 0;
+		while (!mDeflater.finished()) {
+			if (size == mDeflated.length) {
+				byte[] bigger = new byte[Math.max(256, mDeflated.length * 2)];
+				System.arraycopy(mDeflated, 0, bigger, 0, size);
+				mDeflated = bigger;
+			}
+			size += mDeflater.deflate(mDeflated, size, mDeflated.length - size);
+		}
+		if (size >= rawSize) {
+			return raw(chunk);
+		}
+		mEncoding = ENCODING_XOR_DEFLATE;
+		byte[] payload = new byte[size];
+		System.arraycopy(mDeflated, 0, payload, 0, size);
+		return payload;
+	}
+
+	private byte[] raw(SampleChunk chunk) {
+		mEncoding = ENCODING_RAW;
+		return SensorRecordingCodec.encodeChunk(chunk);
+	}
+
+	/**
+	 * Decodes a payload written with the given encoding into chunk, which must record the
+	 * chunk's components and have room for count samples.
+	 * @throws IOException if the payload is corrupt
+	 */
+	public static void decode(byte[] payload, int encoding, int count, SampleChunk chunk) throws IOException {
+		switch (encoding) {
+		case ENCODING_RAW:
+			SensorRecordingCodec.decodeChunk(payload, count, chunk);
+			return;
+		case ENCODING_XOR:
+			readXor(payload, payload.length, count, chunk);
+			return;
+		case ENCODING_XOR_DEFLATE:
+			Inflater inflater = new Inflater(true);
+			try {
+				// worst case XOR stream: 68 bits per timestamp and 44 bits per value
+				byte[] bits = new byte[count * (9 + 6 * chunk.getComponentCount()) + 16];
+				inflater.setInput(payload);
+				int size = 0;
+				while (!inflater.finished() && size < bits.length) {
+					int n = inflater.inflate(bits, size, bits.length - size);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					size += n;
+				}
+				readXor(bits, size, count, chunk);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt sample chunk: " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+			return;
+		default:
+			throw new IOException("Unknown sample chunk encoding " + encoding);
+		}
+	}
+
+	/* XOR encoding */
+
+	private static void writeXor(SampleChunk chunk, BitWriter out) {
+		int count = chunk.getCount();
+		if (count == 0) {
+			return;
+		}
+		long[] timestamps = chunk.getTimestamps();
+		out.write(timestamps[0], 64);
+		long previousDelta = 0;
+		for (int i = 1; i < count; i++) {
+			long delta = timestamps[i] - timestamps[i - 1];
+			long dod = delta - previousDelta;
+			previousDelta = delta;
+			if (dod == 0) {
+				out.write(0, 1);						// '0'
+			} else if (fits(dod, 16)) {
+				out.write(0x2, 2);						// '10'
+				out.write(dod, 16);
+			} else if (fits(dod, 24)) {
+				out.write(0x6, 3);						// '110'
+				out.write(dod, 24);
+			} else if (fits(dod, 32)) {
+				out.write(0xE, 4);						// '1110'
+				out.write(dod, 32);
+			} else {
+				out.write(0xF, 4);						// '1111'
+				out.write(dod, 64);
+			}
+		}
+
+		for (int slot = 0; slot < chunk.getComponentCount(); slot++) {
+			float[] values = chunk.getValues(slot);
+			int previous = Float.floatToRawIntBits(values[0]);
+			out.write(previous, 32);
+			int previousLeading = -1, previousTrailing = 0;
+			for (int i = 1; i < count; i++) {
+				int bits = Float.floatToRawIntBits(values[i]);
+				int xor = bits ^ previous;
+				previous = bits;
+				if (xor == 0) {
+					out.write(0, 1);					// '0': same value
+					continue;
+				}
+				int leading = Integer.numberOfLeadingZeros(xor);
+				int trailing = Integer.numberOfTrailingZeros(xor);
+				if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+					// '10': meaningful bits fit in the previous window
+					out.write(0x2, 2);
+					out.write(xor >>> previousTrailing, 32 - previousLeading - previousTrailing);
+				} else {
+					// '11', 5 bits leading zeros, 5 bits length - 1, meaningful bits
+					int length = 32 - leading - trailing;
+					out.write(0x3, 2);
+					out.write(leading, 5);
+					out.write(length - 1, 5);
+					out.write(xor >>> trailing, length);
+					previousLeading = leading;
+					previousTrailing = trailing;
+				}
+			}
+		}
+	}
+
+	private static void readXor(byte[] data, int size, int count, SampleChunk chunk) throws IOException {
+		if (count > chunk.getCapacity()) {
+			throw new IOException("Corrupt sample chunk");
+		}
+		if (count == 0) {
+			chunk.setCount(0);
+			return;
+		}
+		BitReader in = new BitReader(data, size);
+		long[] timestamps = chunk.getTimestamps();
+		timestamps[0] = in.read(64);
+		long delta = 0;
+		for (int i = 1; i < count; i++) {
+			long dod;
+			if (in.read(1) == 0) {
+				dod = 0;
+			} else if (in.read(1) == 0) {
+				dod = in.readSigned(16);
+			} else if (in.read(1) == 0) {
+				dod = in.readSigned(24);
+			} else if (in.read(1) == 0) {
+				dod = in.readSigned(32);
+			} else {
+				dod = in.read(64);
+			}
+			delta += dod;
+			timestamps[i] = timestamps[i - 1] + delta;
+		}
+
+		for (int slot = 0; slot < chunk.getComponentCount(); slot++) {
+			float[] values = chunk.getValues(slot);
+			int previous = (int) in.read(32);
+			values[0] = Float.intBitsToFloat(previous);
+			int leading = 0, trailing = 0;
+			for (int i = 1; i < count; i++) {
+				if (in.read(1) != 0) {
+					if (in.read(1) != 0) {
+						leading = (int) in.read(5);
+						trailing = 32 - leading - ((int) in.read(5) + 1);
+					}
+					int xor = (int) in.read(32 - leading - trailing) << trailing;
+					previous ^= xor;
+				}
+				values[i] = Float.intBitsToFloat(previous);
+			}
+		}
+		if (in.isOverrun()) {
+			throw new IOException("Corrupt sample chunk");
+		}
+		chunk.setCount(count);
+	}
+
+	private static boolean fits(long value, int bits) {
+		long limit = 1L << (bits - 1);
+		return value >= -limit && value < limit;
+	}
+
+	/** Appends bits, most significant first, to a growing byte array. */
+	static class BitWriter {
+		private byte[] mBuffer = new byte[1024];
+		private int mSize;	// whole bytes written
+		private long mAccumulator;
+		private int mBits;	// bits in mAccumulator, < 8 between calls
+
+		void reset() {
+			mSize = 0;
+			mAccumulator = 0;
+			mBits = 0;
+		}
+
+		/** Writes the low count bits of value, 1 <= count <= 64. */
+		void write(long value, int count) {
+			if (count > 32) {
+				write(value >>> 32, count - 32);
+				count = 32;
+			}
+			long bits = count == 64 ? value : value & ((1L << count) - 1);
+			mAccumulator = (mAccumulator << count) | bits;
+			mBits += count;
+			while (mBits >= 8) {
+				if (mSize == mBuffer.length) {
+					byte[] bigger = new byte[mBuffer.length * 2];
+					System.arraycopy(mBuffer, 0, bigger, 0, mSize);
+					mBuffer = bigger;
+				}
+				mBits -= 8;
+				mBuffer[mSize++] = (byte) (mAccumulator >>> mBits);
+			}
+		}
+
+		/** Number of bytes, counting a partly filled last byte. */
+		int size() {
+			flushPartialByte();
+			return mSize;
+		}
+
+		byte[] buffer() {
+			flushPartialByte();
+			return mBuffer;
+		}
+
+		byte[] toByteArray() {
+			flushPartialByte();
+			byte[] bytes = new byte[mSize];
+			System.arraycopy(mBuffer, 0, bytes, 0, mSize);
+			return bytes;
+		}
+
+		private void flushPartialByte() {
+			if (mBits > 0) {
+				write(0, 8 - mBits);
+			}
+		}
+	}
+
+	/** Reads bits written by BitWriter. Reading past the end yields zeros and sets isOverrun(). */
+	static class BitReader {
+		private final byte[] mData;
+		private final int mSize;
+		private int mPosition;	// next byte
+		private long mAccumulator;
+		private int mBits;
+		private boolean mOverrun;
+
+		BitReader(byte[] data, int size) {
+			mData = data;
+			mSize = size;
+		}
+
+		/** Reads count bits, 1 <= count <= 64, as an unsigned number. */
+		long read(int count) {
+			if (count > 32) {
+				long high = read(count - 32);
+				return (high << 32) | read(32);
+			}
+			while (mBits < count) {
+				int b = 0;
+				if (mPosition < mSize) {
+					b = mData[mPosition++] & 0xFF;
+				} else {
+					mOverrun = true;
+				}
+				mAccumulator = (mAccumulator << 8) | b;
+				mBits += 8;
+			}
+			mBits -= count;
+			return (mAccumulator >>> mBits) & ((1L << count) - 1);
+		}
+
+		/** Reads count bits as a two's complement number. */
+		long readSigned(int count) {
+			long value = read(count);
+			return (value << (64 - count)) >> (64 - count);
+		}
+
+		boolean isOverrun() {
+			return mOverrun;
+		}
+	}
+}
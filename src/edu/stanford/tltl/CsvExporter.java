@@ -0,0 +1,238 @@
+package edu.stanford.tltl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the samples of one sensor as a CSV file, streaming: rows are formatted straight
+ * from the primitive sample columns into a reused byte buffer, which is written to the
+ * channel whenever it fills up. Memory use does not depend on the length of the recording,
+ * and nothing is allocated per row.
+ *
+ * The file starts with a "Data from <sensor>" line and a header row. The first column is the
+ * time in milliseconds since the start of the recording (TIME_DECIMALS decimals), followed by
+ * one column per recorded component (VALUE_DECIMALS decimals), or per named column of a
+ * table; values that are not known, as in an aligned table, are written as NaN.
+ *
+ * Usage: begin(), then writeChunk() / writeBuffer() in time order, then finish(); see SampleExporter.
+ * The file can also be written to any channel with the begin(WritableByteChannel, ...) variant.
+ *
+ * @author leehsueh
+ *
+ */
+public class CsvExporter implements SampleExporter {
+	public static final int BUFFER_SIZE = 64 * 1024;
+	public static final int TIME_DECIMALS = 3;	// microseconds
+	public static final int VALUE_DECIMALS = 6;
+
+	private byte[] mBytes;
+	private ByteBuffer mBuffer;
+	private final char[] mNumber = new char[FloatFormat.MAX_LENGTH];
+	private int mMaxRowLength;
+	private int mPosition;
+
+	private WritableByteChannel mChannel;
+	private FileOutputStream mOut;	// if begun with a file
+	private File mFile;
+	private long mStartTime;
+	private long mRowsWritten;
+	private long mBytesWritten;
+
+	public CsvExporter() {
+		this(BUFFER_SIZE);
+	}
+
+	public CsvExporter(int bufferSize) {
+		mMaxRowLength = maxRowLength(SensorRecording.COMPONENT_KEYS.length);
+		mBytes = new byte[Math.max(bufferSize, mMaxRowLength)];
+		mBuffer = ByteBuffer.wrap(mBytes);
+	}
+
+	/** Starts the file dir/baseName and writes the header. */
+	@Override
+	public void begin(File dir, String baseName, String sensorName, int[] componentIndices,
+			long startTime, long expectedRows) throws IOException {
+		close();
+		mFile = new File(dir, baseName);
+		mOut = new FileOutputStream(mFile);
+		begin(mOut.getChannel(), sensorName, componentIndices, startTime);
+	}
+
+	/**
+	 * Starts a file and writes the header.
+	 * @param channel where the file goes, e.g. FileOutputStream.getChannel(); not closed here
+	 * @param sensorName written in the first line
+	 * @param componentIndices recorded SensorEvent.values indices, in ascending order
+	 * @param startTime nanosecond timestamp that is time 0 in the file
+	 */
+	public void begin(WritableByteChannel channel, String sensorName, int[] componentIndices, long startTime) throws IOException {
+		String[] columnNames = new String[componentIndices.length];
+		for (int slot = 0; slot < componentIndices.length; slot++) {
+			columnNames[slot] = SensorRecording.COMPONENT_KEYS[componentIndices[slot]];
+		}
+		beginTable(channel, sensorName, columnNames, startTime);
+	}
+
+	/** Starts the file dir/baseName of a table and writes the header. */
+	@Override
+	public void beginTable(File dir, String baseName, String title, String[] columnNames,
+			long startTime, long expectedRows) throws IOException {
+		close();
+		mFile = new File(dir, baseName);
+		mOut = new FileOutputStream(mFile);
+		beginTable(mOut.getChannel(), title, columnNames, startTime);
+	}
+
+	/**
+	 * Starts a file of a table and writes the header.
+	 * @param channel where the file goes; not closed here
+	 * @param title written in the first line
+	 * @param columnNames header of each column after the time
+	 * @param startTime nanosecond timestamp that is time 0 in the file
+	 */
+	public void beginTable(WritableByteChannel channel, String title, String[] columnNames, long startTime) throws IOException {
+		if (mOut == null) {
+			mFile = null;
+		}
+		mMaxRowLength = maxRowLength(columnNames.length);
+		if (mBytes.length < mMaxRowLength) {
+			mBytes = new byte[mMaxRowLength];
+			mBuffer = ByteBuffer.wrap(mBytes);
+		}
+		mChannel = channel;
+		mStartTime = startTime;
+		mPosition = 0;
+		mRowsWritten = 0;
+		mBytesWritten = 0;
+		putAscii("Data from " + title + "\n");
+		putAscii(SensorRecording.TIME_KEY);
+		for (String name : columnNames) {
+			putAscii("," + name);
+		}
+		putAscii("\n");
+	}
+
+	private static int maxRowLength(int columns) {
+		return (columns + 1) * (FloatFormat.MAX_LENGTH + 1);
+	}
+
+	/** Writes the rows of a chunk. */
+	@Override
+	public void writeChunk(SampleChunk chunk) throws IOException {
+		int count = chunk.getCount();
+		int componentCount = chunk.getComponentCount();
+		long[] timestamps = chunk.getTimestamps();
+		for (int i = 0; i < count; i++) {
+			beginRow(timestamps[i]);
+			for (int slot = 0; slot < componentCount; slot++) {
+				putValue(chunk.getValues(slot)[i]);
+			}
+			endRow();
+		}
+	}
+
+	/** Writes the rows of a whole sample buffer. */
+	@Override
+	public void writeBuffer(SensorSampleBuffer buffer) throws IOException {
+		int count = buffer.size();
+		int componentCount = buffer.getComponentCount();
+		for (int i = 0; i < count; i++) {
+			beginRow(buffer.getTimestamp(i));
+			for (int slot = 0; slot < componentCount; slot++) {
+				putValue(buffer.getValue(slot, i));
+			}
+			endRow();
+		}
+	}
+
+	/**
+	 * Writes out what is still buffered, and closes the file if begun with one.
+	 * @return number of bytes in the file
+	 */
+	@Override
+	public long finish() throws IOException {
+		flush();
+		mChannel = null;
+		if (mOut != null) {
+			FileOutputStream out = mOut;
+			mOut = null;
+			out.close();
+		}
+		return mBytesWritten;
+	}
+
+	@Override
+	public void close() {
+		mChannel = null;
+		if (mOut != null) {
+			try {
+				mOut.close();
+			} catch (IOException e) {
+				// nothing more to write
+			}
+			mOut = null;
+		}
+	}
+
+	@Override
+	public File[] getFiles() {
+		return mFile != null ? new File[] { mFile } : new File[0];
+	}
+
+	@Override
+	public long getRowsWritten() {
+		return mRowsWritten;
+	}
+
+	/** Bytes written to the channel so far; lags behind while rows are buffered. */
+	@Override
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	private void beginRow(long timestamp) throws IOException {
+		if (mPosition + mMaxRowLength > mBytes.length) {
+			flush();
+		}
+		// microseconds since the start, written as milliseconds with 3 decimals
+		putChars(FloatFormat.formatScaled((timestamp - mStartTime) / 1000, TIME_DECIMALS, mNumber, 0));
+	}
+
+	private void putValue(float value) {
+		mBytes[mPosition++] = ',';
+		putChars(FloatFormat.format(value, VALUE_DECIMALS, mNumber, 0));
+	}
+
+	private void endRow() {
+		mBytes[mPosition++] = '\n';
+		mRowsWritten++;
+	}
+
+	private void putChars(int length) {
+		for (int i = 0; i < length; i++) {
+			mBytes[mPosition++] = (byte) mNumber[i];
+		}
+	}
+
+	private void putAscii(String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			if (mPosition == mBytes.length) {
+				flush();
+			}
+			mBytes[mPosition++] = (byte) text.charAt(i);
+		}
+	}
+
+	private void flush() throws IOException {
+		mBuffer.clear();
+		mBuffer.limit(mPosition);
+		while (mBuffer.hasRemaining()) {
+			mChannel.write(mBuffer);
+		}
+		mBytesWritten += mPosition;
+		mPosition = 0;
+	}
+}
@@ -0,0 +1,122 @@
+package edu.stanford.tltl;
+
+/**
+ * One component of a sensor over a time range, at the resolution returned by
+ * SensorDataDB.queryDownsampled(): a point per sample (level 0, where min, max and mean
+ * are the sample value) or per pyramid bucket (level 1 and up, see SamplePyramid).
+ * Times are the nanosecond timestamps of the first sample of each point. A series with more
+ * points than wanted can be reduce()d further, merging neighbouring points.
+ *
+ * @author leehsueh
+ *
+ */
+public class DownsampledSeries {
+	private final int mLevel;
+	private long mSamplesPerPoint;
+	private long[] mTimes;
+	private float[] mMin, mMax, mMean;
+	private int mSize;
+
+	public DownsampledSeries(int level, int initialCapacity) {
+		this(level, (long) Math.pow(SamplePyramid.FACTOR, level), initialCapacity);
+	}
+
+	/** @param samplesPerPoint number of samples each point stands for, about */
+	public DownsampledSeries(int level, long samplesPerPoint, int initialCapacity) {
+		mLevel = level;
+		mSamplesPerPoint = samplesPerPoint;
+		int capacity = Math.max(initialCapacity, 16);
+		mTimes = new long[capacity];
+		mMin = new float[capacity];
+		mMax = new float[capacity];
+		mMean = new float[capacity];
+	}
+
+	public void add(long time, float min, float max, float mean) {
+		if (mSize == mTimes.length) {
+			grow();
+		}
+		mTimes[mSize] = time;
+		mMin[mSize] = min;
+		mMax[mSize] = max;
+		mMean[mSize] = mean;
+		mSize++;
+	}
+
+	private void grow() {
+		int capacity = mTimes.length * 2;
+		long[] times = new long[capacity];
+		System.arraycopy(mTimes, 0, times, 0, mSize);
+		mTimes = times;
+		mMin = copyOf(mMin, capacity);
+		mMax = copyOf(mMax, capacity);
+		mMean = copyOf(mMean, capacity);
+	}
+
+	private float[] copyOf(float[] array, int capacity) {
+		float[] copy = new float[capacity];
+		System.arraycopy(array, 0, copy, 0, mSize);
+		return copy;
+	}
+
+	/**
+	 * Merges runs of neighbouring points into one, so there are at most maxPoints: the min
+	 * and max of the run, and the mean of its means.
+	 */
+	public void reduce(int maxPoints) {
+		if (mSize <= maxPoints || maxPoints < 1) {
+			return;
+		}
+		int run = (mSize + maxPoints - 1) / maxPoints;
+		int size = 0;
+		for (int from = 0; from < mSize; from += run) {
+			int to = Math.min(mSize, from + run);
+			float min = mMin[from], max = mMax[from];
+			double sum = 0;
+			for (int i = from; i < to; i++) {
+				min = Math.min(min, mMin[i]);
+				max = Math.max(max, mMax[i]);
+				sum += mMean[i];
+			}
+			mTimes[size] = mTimes[from];
+			mMin[size] = min;
+			mMax[size] = max;
+			mMean[size] = (float) (sum / (to - from));
+			size++;
+		}
+		mSize = size;
+		mSamplesPerPoint *= run;
+	}
+
+	/** 0 for raw samples, otherwise the SamplePyramid level the points come from. */
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/** Number of samples a point stands for: 1 for raw samples, more if downsampled or reduced. */
+	public long getSamplesPerPoint() {
+		return mSamplesPerPoint;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/* columns; only the first size() entries are valid */
+
+	public long[] getTimes() {
+		return mTimes;
+	}
+
+	public float[] getMin() {
+		return mMin;
+	}
+
+	public float[] getMax() {
+		return mMax;
+	}
+
+	public float[] getMean() {
+		return mMean;
+	}
+}
@@ -0,0 +1,500 @@
+package edu.stanford.tltl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Exports a recording on a worker pool, off the UI thread, in one of the FORMAT_XXX formats
+ * (see the SampleExporter implementations). Each sensor is exported by its own task, so
+ * sensors are written in parallel. Progress can be polled per file from any thread.
+ * Alternatively all sensors are aligned on a common clock by a SampleAligner and written as
+ * one table, a column per component, by one task. The job can be cancelled, in which case
+ * (as when it fails) the files written so far are deleted.
+ *
+ * The job opens its own database connection, on a worker thread, with the application
+ * context, so it neither blocks nor keeps alive the activity that started it.
+ *
+ * @author leehsueh
+ *
+ */
+public class ExportJob {
+	/** CSV text, one file per sensor (CsvExporter). */
+	public static final int FORMAT_CSV = 0;
+	/** NumPy .npy, one file per sensor column (NpyExporter). */
+	public static final int FORMAT_NPY = 1;
+
+	/** Interpolation that writes each sensor to its own file(s) instead of one aligned table. */
+	public static final int ALIGN_NONE = -1;
+	/** Sensor type of the progress of an aligned table, which has every sensor. */
+	public static final int ALL_SENSORS = 0;
+	/** Appended to the base name of the file(s) of an aligned table. */
+	public static final String TABLE_SUFFIX = "_All";
+
+	/** Notified once all tasks are done; called on a worker thread. */
+	public interface Listener {
+		public void onExportFinished(ExportJob job);
+	}
+
+	/** Progress of the file(s) of one sensor. */
+	public static class FileProgress {
+		private final int mSensorType;
+		private final long mTotalRows;
+		private volatile File[] mFiles = new File[0];
+		private volatile long mRowsWritten;
+		private volatile long mBytesWritten;
+
+		FileProgress(int sensorType, long totalRows) {
+			mSensorType = sensorType;
+			mTotalRows = totalRows;
+		}
+
+		public int getSensorType() {
+			return mSensorType;
+		}
+
+		public long getTotalRows() {
+			return mTotalRows;
+		}
+
+		public long getRowsWritten() {
+			return mRowsWritten;
+		}
+
+		public long getBytesWritten() {
+			return mBytesWritten;
+		}
+
+		/** Files created for the sensor so far. */
+		public File[] getFiles() {
+			return mFiles;
+		}
+	}
+
+	private final SensorDataDB mDB;
+	private final long mRecordingId;
+	private final File mDir;
+	private final int mFormat;
+	private final int mInterpolation;
+	private final long mPeriodNanos;
+	private final Listener mListener;
+
+	private volatile FileProgress[] mFiles = new FileProgress[0];
+	private final AtomicInteger mRemainingTasks = new AtomicInteger();
+	private volatile boolean mCancelled;
+	private volatile Exception mFailure;
+	private volatile boolean mFinished;
+	private long mStartTime;
+	private volatile long mEndTime;
+
+	/**
+	 * @param context used to open the database
+	 * @param recordingId row id of the recording to export
+	 * @param dir directory the files are created in; must exist
+	 * @param format FORMAT_XXX constant
+	 * @param listener notified when the job is done, or null
+	 */
+	public ExportJob(Context context, long recordingId, File dir, int format, Listener listener) {
+		this(context, recordingId, dir, format, ALIGN_NONE, 0, listener);
+	}
+
+	/**
+	 * @param context used to open the database; only its application context is kept
+	 * @param recordingId row id of the recording to export
+	 * @param dir directory the files are created in; must exist
+	 * @param format FORMAT_XXX constant
+	 * @param interpolation SampleAligner.NEAREST, LINEAR or HOLD to write one table of all
+	 *   sensors, or ALIGN_NONE for a file per sensor
+	 * @param periodNanos interval between the rows of the table, 0 for a row at every timestamp
+	 * @param listener notified when the job is done, or null
+	 */
+	public ExportJob(Context context, long recordingId, File dir, int format, int interpolation, long periodNanos,
+			Listener listener) {
+		mDB = new SensorDataDB(context.getApplicationContext());
+		mRecordingId = recordingId;
+		mDir = dir;
+		mFormat = format;
+		mInterpolation = interpolation;
+		mPeriodNanos = periodNanos;
+		mListener = listener;
+	}
+	
+	/** Creates an exporter for a FORMAT_XXX constant. */
+	public static SampleExporter createExporter(int format) {
+		switch (format) {
+		case FORMAT_NPY:
+			return new NpyExporter();
+		default:
+			return new CsvExporter();
+		}
+	}
+
+	/**
+	 * Submits the job to executor. Its first task opens the database and reads which sensors
+	 * the recording has (chunk metadata only), then submits one export task per sensor, so
+	 * nothing of it runs on the calling (UI) thread. Recordings still stored as a data blob
+	 * are decoded and exported by a single task, as is an aligned table. A failure to read
+	 * the recording is reported like any other, through the listener.
+	 */
+	public void start(final ExecutorService executor) {
+		mStartTime = System.currentTimeMillis();
+		mRemainingTasks.set(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mDB.open();
+					submitTasks(executor);
+				} catch (Exception e) {
+					fail(e);
+				} finally {
+					taskDone();
+				}
+			}
+		});
+	}
+
+	/** Reads the recording's metadata and submits the export tasks; on the first task's thread. */
+	private void submitTasks(ExecutorService executor) {
+		Cursor row = mDB.query(mRecordingId);
+		try {
+			final String baseName = Long.toString(row.getLong(SensorDataDB.INDEX_TIMESTAMP));
+			if (mInterpolation != ALIGN_NONE) {
+				final boolean blob = !row.isNull(SensorDataDB.INDEX_DATA);
+				final long startTime = row.getLong(SensorDataDB.INDEX_START_TIME);
+				final long duration = row.getLong(SensorDataDB.INDEX_DURATION);
+				submit(executor, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							exportTable(baseName, blob, startTime, duration);
+						} catch (Exception e) {
+							fail(e);
+						}
+					}
+				});
+				return;
+			}
+			if (!row.isNull(SensorDataDB.INDEX_DATA)) {
+				submit(executor, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							exportBlob(baseName);
+						} catch (Exception e) {
+							fail(e);
+						}
+					}
+				});
+				return;
+			}
+
+			final long startTime = row.getLong(SensorDataDB.INDEX_START_TIME);
+			List<FileProgress> files = new ArrayList<FileProgress>();
+			List<int[]> components = new ArrayList<int[]>();
+			Cursor counts = mDB.querySampleCounts(mRecordingId);
+			try {
+				while (counts.moveToNext()) {
+					int sensorType = counts.getInt(0);
+					files.add(new FileProgress(sensorType, counts.getLong(2)));
+					components.add(SensorRecordingCodec.componentsFromMask(counts.getInt(1)));
+				}
+			} finally {
+				counts.close();
+			}
+			mFiles = files.toArray(new FileProgress[files.size()]);
+			for (int i = 0; i < files.size(); i++) {
+				final FileProgress file = files.get(i);
+				final int[] fileComponents = components.get(i);
+				submit(executor, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							exportChunks(file, baseName, fileComponents, startTime);
+						} catch (Exception e) {
+							fail(e);
+						}
+					}
+				});
+			}
+		} finally {
+			row.close();
+		}
+	}
+
+	/** Runs a task of the job on executor; the job is done once every task has run. */
+	private void submit(ExecutorService executor, final Runnable task) {
+		mRemainingTasks.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						taskDone();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			mRemainingTasks.decrementAndGet();	// never runs; the caller's task is still counted
+			throw e;
+		}
+	}
+
+	/** Stops the tasks after the chunk they are writing; the files are deleted. */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	private static String fileName(String baseName, int sensorType) {
+		return baseName + "_" + MainMenuActivity.getSensorTypeToName().get(sensorType);
+	}
+
+	private void exportChunks(FileProgress file, String baseName, int[] components, long startTime) throws IOException {
+		SampleExporter exporter = createExporter(mFormat);
+		try {
+			exporter.begin(mDir, fileName(baseName, file.mSensorType), MainMenuActivity.getSensorTypeToName().get(file.mSensorType),
+					components, startTime, file.mTotalRows);
+			file.mFiles = exporter.getFiles();
+			Cursor chunks = mDB.queryChunks(mRecordingId, file.mSensorType, Long.MIN_VALUE, Long.MAX_VALUE);
+			try {
+				SampleChunk chunk = null;
+				while (!mCancelled && chunks.moveToNext()) {
+					chunk = SensorDataDB.readChunk(chunks, chunk);
+					exporter.writeChunk(chunk);
+					file.mRowsWritten = exporter.getRowsWritten();
+				}
+			} finally {
+				chunks.close();
+			}
+			exporter.finish();
+			file.mBytesWritten = exporter.getBytesWritten();
+		} finally {
+			exporter.close();
+			file.mFiles = exporter.getFiles();
+		}
+	}
+
+	private void exportBlob(String baseName) throws IOException {
+		SensorRecording recording = mDB.readRecording(mRecordingId);
+		int[] sensorTypes = recording.getSensorTypes();
+		FileProgress[] files = new FileProgress[sensorTypes.length];
+		for (int i = 0; i < sensorTypes.length; i++) {
+			files[i] = new FileProgress(sensorTypes[i], recording.getBuffer(sensorTypes[i]).size());
+		}
+		mFiles = files;
+
+		SampleExporter exporter = createExporter(mFormat);
+		for (FileProgress file : files) {
+			if (mCancelled) {
+				return;
+			}
+			SensorSampleBuffer buffer = recording.getBuffer(file.mSensorType);
+			int[] components = SensorRecordingCodec.componentsFromMask(SensorRecordingCodec.componentMask(buffer));
+			try {
+				exporter.begin(mDir, fileName(baseName, file.mSensorType), MainMenuActivity.getSensorTypeToName().get(file.mSensorType),
+						components, recording.getStartTime(), file.mTotalRows);
+				exporter.writeBuffer(buffer);
+				exporter.finish();
+				file.mRowsWritten = exporter.getRowsWritten();
+				file.mBytesWritten = exporter.getBytesWritten();
+			} finally {
+				exporter.close();
+				file.mFiles = exporter.getFiles();
+			}
+		}
+	}
+
+	/**
+	 * Writes all sensors as one table, aligned by a SampleAligner that reads each sensor's
+	 * chunks, or the buffers of a data blob, as the rows are written.
+	 */
+	private void exportTable(String baseName, boolean blob, long startTime, long duration) throws IOException {
+		List<Integer> sensorTypes = new ArrayList<Integer>();
+		List<int[]> components = new ArrayList<int[]>();
+		List<SampleChunkSource> sources = new ArrayList<SampleChunkSource>();
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		long samples = 0;
+		SampleExporter exporter = createExporter(mFormat);
+		try {
+			if (blob) {
+				SensorRecording recording = mDB.readRecording(mRecordingId);
+				startTime = recording.getStartTime();
+				for (int sensorType : recording.getSensorTypes()) {
+					SensorSampleBuffer buffer = recording.getBuffer(sensorType);
+					sensorTypes.add(sensorType);
+					components.add(SensorRecordingCodec.componentsFromMask(SensorRecordingCodec.componentMask(buffer)));
+					sources.add(new SampleAligner.BufferSource(buffer));
+					samples += buffer.size();
+				}
+			} else {
+				Cursor counts = mDB.querySampleCounts(mRecordingId);
+				try {
+					while (counts.moveToNext()) {
+						sensorTypes.add(counts.getInt(0));
+						components.add(SensorRecordingCodec.componentsFromMask(counts.getInt(1)));
+						samples += counts.getLong(2);
+					}
+				} finally {
+					counts.close();
+				}
+				for (int sensorType : sensorTypes) {
+					final Cursor chunks = mDB.queryChunks(mRecordingId, sensorType, Long.MIN_VALUE, Long.MAX_VALUE);
+					cursors.add(chunks);
+					sources.add(new SampleChunkSource() {
+						@Override
+						public SampleChunk next(SampleChunk reuse) throws IOException {
+							return chunks.moveToNext() ? SensorDataDB.readChunk(chunks, reuse) : null;
+						}
+					});
+				}
+			}
+
+			int[] componentCounts = new int[sensorTypes.size()];
+			List<String> columnNames = new ArrayList<String>();
+			StringBuilder title = new StringBuilder();
+			for (int i = 0; i < componentCounts.length; i++) {
+				String sensorName = MainMenuActivity.getSensorTypeToName().get(sensorTypes.get(i));
+				componentCounts[i] = components.get(i).length;
+				for (int component : components.get(i)) {
+					columnNames.add(sensorName + " " + SensorRecording.COMPONENT_KEYS[component]);
+				}
+				title.append(i > 0 ? ", " : "").append(sensorName);
+			}
+			long rows = mPeriodNanos > 0 ? duration / mPeriodNanos + 1 : samples;
+			FileProgress file = new FileProgress(ALL_SENSORS, rows);
+			mFiles = new FileProgress[] { file };
+
+			SampleAligner aligner = new SampleAligner(sources.toArray(new SampleChunkSource[sources.size()]),
+					componentCounts, mInterpolation, startTime, mPeriodNanos);
+			SampleChunk chunk = aligner.createRows(SensorSampleBuffer.CHUNK_SIZE);
+			exporter.beginTable(mDir, baseName + TABLE_SUFFIX, title.toString(),
+					columnNames.toArray(new String[columnNames.size()]), startTime, rows);
+			file.mFiles = exporter.getFiles();
+			while (!mCancelled && aligner.read(chunk) > 0) {
+				exporter.writeChunk(chunk);
+				file.mRowsWritten = exporter.getRowsWritten();
+			}
+			exporter.finish();
+			file.mBytesWritten = exporter.getBytesWritten();
+		} finally {
+			exporter.close();
+			for (Cursor cursor : cursors) {
+				cursor.close();
+			}
+			for (FileProgress file : mFiles) {
+				file.mFiles = exporter.getFiles();
+			}
+		}
+	}
+
+	private void fail(Exception e) {
+		Log.v(MainMenuActivity.LOG_TAG, "Error exporting data! " + e.getMessage());
+		if (mFailure == null) {
+			mFailure = e;
+		}
+		mCancelled = true;	// no point in finishing the other files
+	}
+
+	private void taskDone() {
+		if (mRemainingTasks.decrementAndGet() > 0) {
+			return;
+		}
+		mDB.close();
+		if (mCancelled) {
+			for (FileProgress file : mFiles) {
+				for (File f : file.mFiles) {
+					f.delete();
+				}
+			}
+		}
+		mEndTime = System.currentTimeMillis();
+		mFinished = true;
+		Log.v(MainMenuActivity.LOG_TAG, "Export " + (isSucceeded() ? "finished" : "stopped") + ": " + getRowsWritten() + " rows, "
+				+ getBytesWritten() + " bytes in " + getElapsedTime() + " ms");
+		if (mListener != null) {
+			mListener.onExportFinished(this);
+		}
+	}
+
+	/* status; safe to read from any thread */
+
+	/** Files being written; empty until the recording has been read. */
+	public FileProgress[] getFiles() {
+		return mFiles;
+	}
+
+	public boolean isFinished() {
+		return mFinished;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled && mFailure == null;
+	}
+
+	/** True if the job finished and every file was written. */
+	public boolean isSucceeded() {
+		return mFinished && !mCancelled;
+	}
+
+	/** What made the job fail, or null. */
+	public Exception getFailure() {
+		return mFailure;
+	}
+
+	/** Number of files created. */
+	public int getFileCount() {
+		int count = 0;
+		for (FileProgress file : mFiles) {
+			count += file.mFiles.length;
+		}
+		return count;
+	}
+
+	public long getRowsWritten() {
+		long rows = 0;
+		for (FileProgress file : mFiles) {
+			rows += file.mRowsWritten;
+		}
+		return rows;
+	}
+
+	public long getTotalRows() {
+		long rows = 0;
+		for (FileProgress file : mFiles) {
+			rows += file.mTotalRows;
+		}
+		return rows;
+	}
+
+	public long getBytesWritten() {
+		long bytes = 0;
+		for (FileProgress file : mFiles) {
+			bytes += file.mBytesWritten;
+		}
+		return bytes;
+	}
+
+	/** Milliseconds the job has been running, or took. */
+	public long getElapsedTime() {
+		return (mFinished ? mEndTime : System.currentTimeMillis()) - mStartTime;
+	}
+
+	public float getRowsPerSecond() {
+		long elapsed = getElapsedTime();
+		return elapsed > 0 ? getRowsWritten() * 1000f / elapsed : 0;
+	}
+
+	public float getMegabytesPerSecond() {
+		long elapsed = getElapsedTime();
+		return elapsed > 0 ? getBytesWritten() * 1000f / (1024 * 1024) / elapsed : 0;
+	}
+}
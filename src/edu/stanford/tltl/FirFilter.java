@@ -0,0 +1,145 @@
+package edu.stanford.tltl;
+
+import java.util.Arrays;
+
+/**
+ * FIR filter with symmetric (linear phase) taps, so its output is delayed by (taps - 1) / 2
+ * samples and not distorted. The recent input of each channel is kept twice over in a ring
+ * of 2 * taps floats, so the convolution runs over one contiguous range without wrapping.
+ * The history starts out filled with the first sample, as if the input had been at that
+ * value before, so there is no ramp up from 0.
+ *
+ * With a decimation factor M only every Mth output is computed and passed on; the input is
+ * still taken in every sample. A decimator() is a low-pass below the new Nyquist frequency
+ * followed by keeping every Mth sample, so what is above it does not alias into the result.
+ *
+ * @author leehsueh
+ *
+ */
+public class FirFilter implements SampleFilter {
+	/** Cutoff of decimator() as a fraction of the Nyquist frequency after decimation. */
+	public static final double DECIMATOR_CUTOFF = 0.8;
+	/** Taps of decimator() per unit of the decimation factor. */
+	public static final int DECIMATOR_TAPS_PER_FACTOR = 8;
+
+	private final float[] mTaps;
+	private final float[] mHistory;	// [channel][2 * taps], each sample at i and i + taps
+	private final int mChannels;
+	private final int mDecimation;
+	private int mPosition;	// where the next sample goes
+	private int mPhase;	// samples since the last output
+	private boolean mPrimed;	// the history holds samples
+
+	/**
+	 * @param taps coefficients, symmetric for a constant delay
+	 * @param decimation 1, or M to pass on every Mth output only
+	 */
+	public FirFilter(float[] taps, int channels, int decimation) {
+		if (taps.length == 0 || decimation < 1) {
+			throw new IllegalArgumentException("Need taps and a decimation of at least 1");
+		}
+		mTaps = taps.clone();
+		mChannels = channels;
+		mDecimation = decimation;
+		mHistory = new float[channels * 2 * taps.length];
+	}
+
+	/** Mean of the last n samples. */
+	public static FirFilter movingAverage(int n, int channels) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Moving average of " + n + " samples");
+		}
+		float[] taps = new float[n];
+		Arrays.fill(taps, 1f / n);
+		return new FirFilter(taps, channels, 1);
+	}
+
+	/**
+	 * Windowed sinc low-pass.
+	 * @param cutoff as a fraction of the Nyquist frequency, 0 to 1
+	 * @param taps number of taps; odd gives a delay of whole samples
+	 */
+	public static FirFilter lowPass(double cutoff, int taps, int channels) {
+		return new FirFilter(lowPassTaps(cutoff, taps), channels, 1);
+	}
+
+	/** Anti-alias low-pass and decimation by factor. */
+	public static FirFilter decimator(int factor, int channels) {
+		if (factor < 1) {
+			throw new IllegalArgumentException("Decimation by " + factor);
+		}
+		if (factor == 1) {
+			return new FirFilter(new float[] { 1 }, channels, 1);
+		}
+		return new FirFilter(lowPassTaps(DECIMATOR_CUTOFF / factor, DECIMATOR_TAPS_PER_FACTOR * factor + 1), channels, factor);
+	}
+
+	/** Taps of a Hamming windowed sinc low-pass, normalized to unit gain at 0 Hz. */
+	static float[] lowPassTaps(double cutoff, int n) {
+		if (!(cutoff > 0 && cutoff <= 1) || n < 1) {
+			throw new IllegalArgumentException("Low-pass with cutoff " + cutoff + " and " + n + " taps");
+		}
+		double[] taps = new double[n];
+		double center = (n - 1) / 2.0, sum = 0;
+		for (int i = 0; i < n; i++) {
+			double x = i - center;
+			double sinc = x == 0 ? cutoff : Math.sin(Math.PI * cutoff * x) / (Math.PI * x);
+			double window = n > 1 ? 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (n - 1)) : 1;
+			taps[i] = sinc * window;
+			sum += taps[i];
+		}
+		float[] normalized = new float[n];
+		for (int i = 0; i < n; i++) {
+			normalized[i] = (float) (taps[i] / sum);
+		}
+		return normalized;
+	}
+
+	@Override
+	public boolean filter(float[] values) {
+		int n = mTaps.length;
+		if (!mPrimed) {
+			for (int ch = 0; ch < mChannels; ch++) {
+				Arrays.fill(mHistory, ch * 2 * n, (ch + 1) * 2 * n, values[ch]);
+			}
+			mPrimed = true;
+		}
+		for (int ch = 0; ch < mChannels; ch++) {
+			int base = ch * 2 * n;
+			mHistory[base + mPosition] = values[ch];
+			mHistory[base + mPosition + n] = values[ch];
+		}
+		mPosition = mPosition + 1 == n ? 0 : mPosition + 1;
+		if (++mPhase < mDecimation) {
+			return false;
+		}
+		mPhase = 0;
+		// oldest sample first at mPosition, newest at mPosition + n - 1
+		for (int ch = 0; ch < mChannels; ch++) {
+			int start = ch * 2 * n + mPosition;
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += mTaps[i] * mHistory[start + i];
+			}
+			values[ch] = (float) sum;
+		}
+		return true;
+	}
+
+	@Override
+	public double getDelay() {
+		return (mTaps.length - 1) / 2.0;
+	}
+
+	@Override
+	public int getDecimation() {
+		return mDecimation;
+	}
+
+	@Override
+	public void reset() {
+		mPosition = 0;
+		mPhase = 0;
+		mPrimed = false;
+	}
+}
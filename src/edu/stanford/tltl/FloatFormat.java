@@ -0,0 +1,101 @@
+package edu.stanford.tltl;
+
+/**
+ * Allocation free decimal formatting of floats into caller supplied char buffers, for
+ * places that format many numbers per second (live readouts, data export).
+ *
+ * Values are written in plain notation with a fixed number of decimals, rounded half up,
+ * e.g. format(-9.80665f, 3, ...) writes "-9.807". Values too large to scale into a long
+ * are written in Float.toString() form, which allocates.
+ *
+ * @author leehsueh
+ *
+ */
+public final class FloatFormat {
+	/** Largest number of decimals supported. */
+	public static final int MAX_DECIMALS = 9;
+	/** Enough room for any value written by format(). */
+	public static final int MAX_LENGTH = 32;
+
+	private static final long[] POWERS_OF_TEN = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+	private static final char[] NAN = "NaN".toCharArray();
+	private static final char[] INFINITY = "Infinity".toCharArray();
+	private static final double MAX_SCALED = 9.0e18;
+
+	private FloatFormat() {
+	}
+
+	/**
+	 * Writes value into dst starting at offset.
+	 * @param decimals digits after the decimal point, 0 to MAX_DECIMALS
+	 * @return the offset just past the last char written
+	 */
+	public static int format(float value, int decimals, char[] dst, int offset) {
+		if (value != value) {
+			return put(NAN, dst, offset);
+		}
+		boolean negative = value < 0;
+		double abs = negative ? -(double) value : value;
+		int pos = offset;
+		if (abs == Double.POSITIVE_INFINITY) {
+			if (negative) {
+				dst[pos++] = '-';
+			}
+			return put(INFINITY, dst, pos);
+		}
+		double scaled = abs * POWERS_OF_TEN[decimals] + 0.5;
+		if (scaled >= MAX_SCALED) {
+			return put(Float.toString(value).toCharArray(), dst, offset);
+		}
+		long units = (long) scaled;
+		return formatScaled(negative ? -units : units, decimals, dst, offset);
+	}
+
+	/**
+	 * Writes the fixed point number units / 10^decimals into dst starting at offset,
+	 * e.g. formatScaled(-12345, 3, ...) writes "-12.345". Exact; nothing is rounded.
+	 * units must be greater than Long.MIN_VALUE.
+	 * @param decimals digits after the decimal point, 0 to MAX_DECIMALS
+	 * @return the offset just past the last char written
+	 */
+	public static int formatScaled(long units, int decimals, char[] dst, int offset) {
+		int pos = offset;
+		long whole = units / POWERS_OF_TEN[decimals];
+		long fraction = units % POWERS_OF_TEN[decimals];
+		if (units < 0) {
+			dst[pos++] = '-';
+			whole = -whole;
+			fraction = -fraction;
+		}
+		pos = putDigits(whole, 1, dst, pos);
+		if (decimals > 0) {
+			dst[pos++] = '.';
+			pos = putDigits(fraction, decimals, dst, pos);
+		}
+		return pos;
+	}
+
+	/** Writes a non-negative number with at least minDigits digits, zero padded. */
+	private static int putDigits(long n, int minDigits, char[] dst, int offset) {
+		int digits = 1;
+		for (long rest = n / 10; rest != 0; rest /= 10) {
+			digits++;
+		}
+		if (digits < minDigits) {
+			digits = minDigits;
+		}
+		int pos = offset + digits;
+		for (int i = pos - 1; i >= offset; i--) {
+			dst[i] = (char) ('0' + (int) (n % 10));
+			n /= 10;
+		}
+		return pos;
+	}
+
+	private static int put(char[] chars, char[] dst, int offset) {
+		System.arraycopy(chars, 0, dst, offset, chars.length);
+		return offset + chars.length;
+	}
+}
@@ -0,0 +1,286 @@
+package edu.stanford.tltl;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Runs the recording pipeline of RecordingService on a plain JVM, fed by a SyntheticSensorSource
+ * or a ReplaySensorSource instead of the sensors, and prints what it achieved: events per
+ * second, ring overflows and dropped samples, the rate, jitter and delivery latency of each
+ * sensor (RecordingMetrics), how full the buffers got, and the bytes written. With -filter
+ * the samples go through a SensorFilterChain on the pump thread, as in RecordingService.
+ * Meant for load testing and profiling on a build machine; the pipeline is the same
+ * (SensorEventRing, SensorEventPump, StreamingRecorder and its writer thread, ChunkEncoder,
+ * SampleStatistics and SamplePyramid), only the database is left out: the encoded chunks
+ * are counted and thrown away.
+ *
+ * Only classes that do not use the Android API are needed, e.g. from the project directory:
+ *
+ *   javac -d /tmp/tltl $(grep -L "^import android" src/edu/stanford/tltl/*.java)
+ *   java -cp /tmp/tltl edu.stanford.tltl.HeadlessRecorder -sensors 1,2,4 -period 200 -seconds 10
+ *
+ * Options:
+ *   -sensors t,t,...  sensor types to record (default 1,2,4: accelerometer, magnetic field,
+ *                     gyroscope; for a replay, all recorded sensors)
+ *   -period us        sampling period of every sensor (default 1000); ignored by replays
+ *   -seconds s        how long to run (default 10); a replay without -loop stops at its end
+ *   -fast             do not wait for events to be due: measures the throughput of the pipeline
+ *   -level n          ChunkEncoder compression level (default ChunkEncoder.DEFAULT_LEVEL)
+ *   -replay file      play back a recording encoded by SensorRecordingCodec instead
+ *   -speed x          replay this much faster than recorded (default 1)
+ *   -loop             start the replay over at its end
+ *   -filter stages    filter every sensor through these SensorFilterChain stages, e.g. hp:0.3,dec:4
+ *
+ * @author leehsueh
+ *
+ */
+public class HeadlessRecorder {
+	private int[] mSensorTypes;	// null for the default
+	private int mPeriodUs = 1000;
+	private double mSeconds = 10;
+	private boolean mFast;
+	private int mLevel = ChunkEncoder.DEFAULT_LEVEL;
+	private String mReplayFile;
+	private double mSpeed = 1;
+	private boolean mLoop;
+	private String mFilter;
+	private double[] mRatesHz;	// nominal, by index in mSensorTypes, for the filters
+
+	private SensorEventRing mRing;
+	private RecordingMetrics mMetrics;
+	private StreamingRecorder mRecorder;
+	private SamplePyramid[] mPyramids;
+	private ScheduledSensorSource mSource;
+	private long mBytesWritten;
+	private long mRawBytes;
+	private long mPyramidBlocks;
+
+	public static void main(String[] args) throws Exception {
+		HeadlessRecorder runner = new HeadlessRecorder();
+		try {
+			runner.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: HeadlessRecorder [-sensors t,t,...] [-period us] [-seconds s] [-fast] [-level n]"
+					+ " [-replay file [-speed x] [-loop]] [-filter stages]");
+			System.exit(2);
+		}
+		try {
+			runner.run();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-fast")) {
+				mFast = true;
+			} else if (arg.equals("-loop")) {
+				mLoop = true;
+			} else if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value or unknown option: " + arg);
+			} else {
+				String value = args[++i];
+				if (arg.equals("-sensors")) {
+					String[] types = value.split(",");
+					mSensorTypes = new int[types.length];
+					for (int j = 0; j < types.length; j++) {
+						mSensorTypes[j] = Integer.parseInt(types[j].trim());
+					}
+				} else if (arg.equals("-period")) {
+					mPeriodUs = Integer.parseInt(value);
+				} else if (arg.equals("-seconds")) {
+					mSeconds = Double.parseDouble(value);
+				} else if (arg.equals("-level")) {
+					mLevel = Integer.parseInt(value);
+				} else if (arg.equals("-replay")) {
+					mReplayFile = value;
+				} else if (arg.equals("-speed")) {
+					mSpeed = Double.parseDouble(value);
+				} else if (arg.equals("-filter")) {
+					SensorFilterChain.parse(value, Double.MAX_VALUE, 1);	// any rate, to check the syntax
+					mFilter = value;
+				} else {
+					throw new IllegalArgumentException("Unknown option: " + arg);
+				}
+			}
+		}
+	}
+
+	private void run() throws IOException, InterruptedException {
+		SensorEventRing.Consumer offer = new SensorEventRing.Consumer() {
+			@Override
+			public void onSensorEvent(int sensorType, long timestamp, float[] values) {
+				if (mFast) {
+					// as fast as the pump takes them, without overflowing the ring
+					while (mRing.size() >= mRing.getCapacity()) {
+						Thread.yield();
+					}
+				}
+				boolean accepted = mRing.offer(sensorType, timestamp, values);
+				mMetrics.delivered(sensorType, timestamp, mSource.now(), accepted);
+			}
+		};
+		int[][] componentIndices;
+		if (mReplayFile != null) {
+			SensorRecording recording;
+			InputStream in = new FileInputStream(mReplayFile);
+			try {
+				recording = SensorRecordingCodec.decode(in);
+			} finally {
+				in.close();
+			}
+			if (mSensorTypes == null) {
+				mSensorTypes = recording.getSensorTypes();
+			}
+			componentIndices = new int[mSensorTypes.length][];
+			mRatesHz = new double[mSensorTypes.length];
+			for (int i = 0; i < mSensorTypes.length; i++) {
+				SensorSampleBuffer buffer = recording.getBuffer(mSensorTypes[i]);
+				if (buffer != null && buffer.size() > 1) {
+					// played back mSpeed times faster than recorded
+					mRatesHz[i] = mSpeed * (buffer.size() - 1) * 1e9 / (buffer.getTimestamp(buffer.size() - 1) - buffer.getTimestamp(0));
+				}
+				componentIndices[i] = new int[buffer != null ? buffer.getComponentCount() : 0];
+				for (int slot = 0; slot < componentIndices[i].length; slot++) {
+					componentIndices[i][slot] = buffer.getComponentIndex(slot);
+				}
+			}
+			mSource = new ReplaySensorSource(recording, mSpeed, mLoop, offer);
+		} else {
+			if (mSensorTypes == null) {
+				mSensorTypes = new int[] { 1, 2, 4 };
+			}
+			componentIndices = new int[mSensorTypes.length][];
+			mRatesHz = new double[mSensorTypes.length];
+			for (int i = 0; i < mSensorTypes.length; i++) {
+				mRatesHz[i] = mPeriodUs > 0 ? 1e6 / mPeriodUs : 0;	// 0: as fast as possible, not known
+				componentIndices[i] = new int[SyntheticSensorSource.getValueCount(mSensorTypes[i])];
+				for (int slot = 0; slot < componentIndices[i].length; slot++) {
+					componentIndices[i][slot] = slot;
+				}
+			}
+			mSource = new SyntheticSensorSource(offer);
+		}
+		mSource.setRealTime(!mFast);
+		// before any thread is started, so a chain that does not suit a rate ends the run cleanly
+		SampleFilter[][] stages = new SampleFilter[mSensorTypes.length][];
+		for (int i = 0; i < mSensorTypes.length; i++) {
+			if (componentIndices[i].length == 0) {
+				continue;	// not recorded
+			}
+			try {
+				stages[i] = SensorFilterChain.parse(mFilter, mRatesHz[i], componentIndices[i].length);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Cannot filter sensor " + mSensorTypes[i] + ": " + e.getMessage());
+			}
+		}
+
+		int maxType = 0;
+		for (int type : mSensorTypes) {
+			maxType = Math.max(maxType, type);
+		}
+		mPyramids = new SamplePyramid[maxType + 1];
+		SamplePyramid.Sink blocks = new SamplePyramid.Sink() {
+			@Override
+			public void writeBlock(PyramidBlock block) throws IOException {
+				mPyramidBlocks++;
+			}
+		};
+		final ChunkEncoder encoder = new ChunkEncoder(mLevel);
+		mRecorder = new StreamingRecorder(new SampleChunkSink() {
+			@Override
+			public void writeChunk(SampleChunk chunk) throws IOException {
+				byte[] payload = encoder.encode(chunk);
+				mBytesWritten += payload.length;
+				mRawBytes += chunk.getCount() * (8L + 4L * chunk.getComponentIndices().length);
+				mPyramids[chunk.getSensorType()].add(chunk);
+			}
+		});
+		for (int i = 0; i < mSensorTypes.length; i++) {
+			if (componentIndices[i].length == 0) {
+				continue;
+			}
+			mPyramids[mSensorTypes[i]] = new SamplePyramid(mSensorTypes[i], componentIndices[i], blocks);
+			mRecorder.addSensor(mSensorTypes[i], componentIndices[i]);
+		}
+		mRecorder.start();
+		mRing = new SensorEventRing();
+		SensorFilterChain filters = new SensorFilterChain(new SensorEventRing.Consumer() {
+			@Override
+			public void onSensorEvent(int sensorType, long timestamp, float[] values) {
+				mRecorder.append(sensorType, timestamp, values);
+			}
+		});
+		for (int i = 0; i < mSensorTypes.length; i++) {
+			if (componentIndices[i].length > 0) {
+				filters.addSensor(mSensorTypes[i], componentIndices[i], stages[i], mRatesHz[i]);
+			}
+		}
+		SensorEventPump pump = new SensorEventPump(mRing, filters);
+		pump.start();
+		mMetrics = new RecordingMetrics(mRecorder.getSensorTypes(), mRing, mRecorder);
+
+		long start = System.nanoTime();
+		for (int type : mRecorder.getSensorTypes()) {
+			if (!mSource.register(type, mPeriodUs, 0)) {
+				System.out.println("No sensor of type " + type);
+			}
+		}
+		if (mReplayFile != null && !mLoop) {
+			mSource.awaitEnd();
+		} else {
+			Thread.sleep((long) (mSeconds * 1000));
+		}
+		mSource.close();
+		long generated = System.nanoTime();
+		pump.quit();
+		mRecorder.stop();
+		for (SamplePyramid pyramid : mPyramids) {
+			if (pyramid != null) {
+				pyramid.finish();
+			}
+		}
+		long end = System.nanoTime();
+		report(generated - start, end - start);
+	}
+
+	private void report(long generatingNanos, long totalNanos) {
+		long events = mSource.getEventCount();
+		System.out.println((mReplayFile != null ? "Replay of " + mReplayFile + " at " + mSpeed + "x" : "Synthetic, every " + mPeriodUs + " us")
+				+ (mFast ? ", as fast as possible" : ", in real time") + ", compression level " + mLevel
+				+ (mFilter != null ? ", filtered through " + mFilter : ""));
+		System.out.println("Events: " + events + " in " + millis(generatingNanos) + " ms, "
+				+ Math.round(events * 1e9 / generatingNanos) + " events/s; all written after " + millis(totalNanos) + " ms");
+		System.out.println("Ring: " + mRing.getOverflowCount() + " overflows, high water mark "
+				+ mRing.getHighWaterMark() + "/" + mRing.getCapacity());
+		for (int type : mRecorder.getSensorTypes()) {
+			IntervalMeter meter = mRecorder.getIntervalMeter(type);
+			SampleStatistics statistics = mRecorder.getStatistics(type);
+			System.out.println("Sensor " + type + ": " + mRecorder.getSampleCount(type) + " samples, "
+					+ mRecorder.getDroppedCount(type) + " dropped, " + Math.round(statistics.getRate()) + " samples/s, jitter "
+					+ Math.round(Math.sqrt(statistics.getIntervalVariance()) / 1000) + " us overall, last second "
+					+ Math.round(meter.getRate()) + " samples/s, jitter " + Math.round(meter.getJitter() / 1000) + " us, "
+					+ statistics.getGapCount() + " gaps");
+			RecordingMetrics.Sensor sensor = mMetrics.getSensor(type);
+			MetricHistogram latency = sensor.getLatency();
+			System.out.println("  latency p50 " + latency.getPercentile(0.5) / 1000 + " us, p99 "
+					+ latency.getPercentile(0.99) / 1000 + " us, max " + latency.getMax() / 1000 + " us; "
+					+ sensor.getRingDropCount() + " lost in ring, " + sensor.getDuplicateCount() + " duplicate and "
+					+ sensor.getBackwardCount() + " backward timestamps");
+		}
+		System.out.println("Buffers: writer backlog high water " + mMetrics.getBacklogHighWaterMark() + " chunks, "
+				+ mMetrics.getBufferBytes() / 1024 + " KB, heap in use " + RecordingMetrics.getHeapUsed() / (1024 * 1024) + " MB");
+		System.out.println("Written: " + mRecorder.getChunksWritten() + " chunks, " + mBytesWritten + " bytes ("
+				+ (mRawBytes > 0 ? Math.round(100.0 * mBytesWritten / mRawBytes) : 0) + "% of raw), "
+				+ mPyramidBlocks + " pyramid blocks");
+	}
+
+	private static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+}
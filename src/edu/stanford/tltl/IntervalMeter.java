@@ -0,0 +1,94 @@
+package edu.stanford.tltl;
+
+/**
+ * Measures the rate and jitter a sensor actually delivers while it is recorded, from the
+ * timestamps of its events, so they can be compared with the sampling period asked for.
+ *
+ * The intervals between events are collected over windows of WINDOW_NANOS of sensor time,
+ * with their mean and standard deviation (the jitter) updated by Welford's algorithm. When a
+ * window is complete its results are published and a new one starts, so the figures follow
+ * changes such as another app asking for a faster rate. Intervals longer than GAP_NANOS
+ * (e.g. a paused sensor) end the window without being counted.
+ *
+ * add() must be called from one thread (the one appending samples); the getters can be
+ * called from any thread, though a rate and jitter read together may come from different
+ * windows.
+ *
+ * @author leehsueh
+ *
+ */
+public class IntervalMeter {
+	public static final long WINDOW_NANOS = 1000000000L;	// 1 s
+	public static final long GAP_NANOS = 5000000000L;	// 5 s
+
+	/* current window; add() thread only */
+	private long mLastTime;
+	private long mWindowStart;
+	private int mIntervals;
+	private double mMean, mM2;
+	private long mMax;
+
+	/* last complete window */
+	private volatile double mRate;
+	private volatile double mJitter;
+	private volatile long mMaxInterval;
+	private volatile long mCount;
+
+	/** Adds the timestamp (ns) of the next event. */
+	public void add(long timestamp) {
+		long count = mCount;
+		mCount = count + 1;
+		if (count == 0) {
+			startWindow(timestamp);
+			return;
+		}
+		long interval = timestamp - mLastTime;
+		if (interval > GAP_NANOS || interval < 0) {
+			startWindow(timestamp);
+			return;
+		}
+		mLastTime = timestamp;
+		mIntervals++;
+		double delta = interval - mMean;
+		mMean += delta / mIntervals;
+		mM2 += delta * (interval - mMean);
+		if (interval > mMax) {
+			mMax = interval;
+		}
+		if (timestamp - mWindowStart >= WINDOW_NANOS) {
+			mRate = mMean > 0 ? 1e9 / mMean : 0;
+			mJitter = Math.sqrt(mM2 / mIntervals);
+			mMaxInterval = mMax;
+			startWindow(timestamp);
+		}
+	}
+
+	private void startWindow(long timestamp) {
+		mLastTime = timestamp;
+		mWindowStart = timestamp;
+		mIntervals = 0;
+		mMean = 0;
+		mM2 = 0;
+		mMax = 0;
+	}
+
+	/** Number of events added. */
+	public long getCount() {
+		return mCount;
+	}
+
+	/** Events per second in the last complete window, 0 before the first one. */
+	public double getRate() {
+		return mRate;
+	}
+
+	/** Standard deviation of the intervals in the last complete window, ns. */
+	public double getJitter() {
+		return mJitter;
+	}
+
+	/** Longest interval in the last complete window, ns. */
+	public long getMaxInterval() {
+		return mMaxInterval;
+	}
+}
@@ -6,8 +6,10 @@ import java.util.Map;
 
 import android.app.ListActivity;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -34,7 +36,12 @@ import android.widget.TextView;
  * indexed by the REC_XXX_XXX keys.
  * 
  * There is also a sampling rate slider which has discrete values used by android to determine 
- * a sampling rate.
+ * a sampling rate (each sensor can override it with a sampling period of its own, stored under
+ * getPeriodKey() and set from SensorDetailActivity, as is the chain of filters its samples are
+ * recorded through, under getFilterKey()), and a choice of how long recorded events may be batched in the sensor
+ * hardware (BATCH_LATENCY; Android 4.4 and up). For trying the app without moving the device,
+ * the sensor input can be switched from the hardware to generated events or to a replay of a
+ * saved recording (SENSOR_SOURCE; the recording is picked in SensorDataListActivity).
  * 
  * @author leehsueh
  *
@@ -58,6 +65,18 @@ public class MainMenuActivity extends ListActivity {
 	public static final String REC_PRESSURE = "REC_PRESSURE";
 	public static final String REC_PROXIMITY = "REC_PROXIMITY";
 	public static final String REC_AMBIENT_LIGHT = "REC_AMBIENT_LIGHT";
+	public static final String COMPRESSION_LEVEL = "COMPRESSION_LEVEL";	// ChunkEncoder level for new recordings
+	public static final String BATCH_LATENCY = "BATCH_LATENCY";	// max report latency of recordings in us, 0 for none
+	public static final String REC_PERIOD = "REC_PERIOD_";	// + sensor type: sampling period in us, 0 for the rate slider
+	public static final String REC_FILTER = "REC_FILTER_";	// + sensor type: SensorFilterChain stages, empty for none
+	public static final String SENSOR_SOURCE = "SENSOR_SOURCE";	// SOURCE_XXX, where sensor events come from
+	public static final String REPLAY_RECORDING_ID = "REPLAY_RECORDING_ID";	// recording played back by SOURCE_REPLAY
+	
+	/* Possible sources of sensor events (see SensorAcquisitionService), and the radio buttons for them */
+	public static final int SOURCE_HARDWARE = 0;
+	public static final int SOURCE_SYNTHETIC = 1;
+	public static final int SOURCE_REPLAY = 2;
+	private static final int[] SOURCE_BUTTON_IDS = { R.id.sourceHardware, R.id.sourceSynthetic, R.id.sourceReplay };
 	
 	// directory where data files can be stored
 	public static final String DATA_DIR = "TLTL_Sensor_Data";
@@ -71,9 +90,15 @@ public class MainMenuActivity extends ListActivity {
 	};
 	private int mSampleRate = SAMPLE_RATES[0];
 	
+	/* Possible batch latencies in us, and the radio buttons for them */
+	public static final int[] BATCH_LATENCIES_US = { 0, 1000000, 10000000 };
+	private static final int[] BATCH_BUTTON_IDS = { R.id.batchOff, R.id.batch1s, R.id.batch10s };
+	
 	/* UI bindings */
 	ListView mSensorList;
 	RadioGroup mSampleRateRadioGroup;
+	RadioGroup mBatchRadioGroup;
+	RadioGroup mSourceRadioGroup;
 	SeekBar mSampleSlider;
 	Button mListOutputsButton, mRecordButton, mListDataButton;
 	
@@ -98,6 +123,16 @@ public class MainMenuActivity extends ListActivity {
 		return sensorTypesToNames;
 	}
 	
+	/** Preference key of the sampling period (us) of a sensor; 0 or missing means the rate slider applies. */
+	public static String getPeriodKey(int sensorType) {
+		return REC_PERIOD + sensorType;
+	}
+	
+	/** Preference key of the filter chain of a sensor (see SensorFilterChain.parse()); missing or empty means none. */
+	public static String getFilterKey(int sensorType) {
+		return REC_FILTER + sensorType;
+	}
+	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -152,6 +187,46 @@ public class MainMenuActivity extends ListActivity {
 			}
 		});
 		
+		// batching for recordings; kept in the preferences, where RecordingService reads it
+		final SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
+		mBatchRadioGroup = (RadioGroup) findViewById(R.id.batchGroup);
+		int latency = settings.getInt(BATCH_LATENCY, 0);
+		for (int i = 0; i < BATCH_LATENCIES_US.length; i++) {
+			if (BATCH_LATENCIES_US[i] == latency) {
+				mBatchRadioGroup.check(BATCH_BUTTON_IDS[i]);
+			}
+			if (Build.VERSION.SDK_INT < 19) {	// KITKAT
+				findViewById(BATCH_BUTTON_IDS[i]).setEnabled(false);
+			}
+		}
+		mBatchRadioGroup.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+			@Override
+			public void onCheckedChanged(RadioGroup group, int checkedId) {
+				for (int i = 0; i < BATCH_BUTTON_IDS.length; i++) {
+					if (BATCH_BUTTON_IDS[i] == checkedId) {
+						SharedPreferences.Editor editor = settings.edit();
+						editor.putInt(BATCH_LATENCY, BATCH_LATENCIES_US[i]);
+						editor.commit();
+					}
+				}
+			}
+		});
+		
+		// where sensor events come from; SensorAcquisitionService reads it
+		mSourceRadioGroup = (RadioGroup) findViewById(R.id.sourceGroup);
+		mSourceRadioGroup.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+			@Override
+			public void onCheckedChanged(RadioGroup group, int checkedId) {
+				for (int i = 0; i < SOURCE_BUTTON_IDS.length; i++) {
+					if (SOURCE_BUTTON_IDS[i] == checkedId) {
+						SharedPreferences.Editor editor = settings.edit();
+						editor.putInt(SENSOR_SOURCE, i);
+						editor.commit();
+					}
+				}
+			}
+		});
+		
 		// button for viewing saved recorded data
 		mListDataButton = (Button) findViewById(R.id.listDataButton);
 		mListDataButton.setOnClickListener(new OnClickListener() {
@@ -202,6 +277,18 @@ public class MainMenuActivity extends ListActivity {
 		startActivity(intent);
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		// a recording to replay may have been picked in the meantime
+		SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
+		int source = settings.getInt(SENSOR_SOURCE, SOURCE_HARDWARE);
+		if (source >= 0 && source < SOURCE_BUTTON_IDS.length) {
+			mSourceRadioGroup.check(SOURCE_BUTTON_IDS[source]);
+		}
+		findViewById(R.id.sourceReplay).setEnabled(settings.getLong(REPLAY_RECORDING_ID, -1) != -1);
+	}
+
 	/* Accessor methods */
 	
 	public int getmSampleRate() {
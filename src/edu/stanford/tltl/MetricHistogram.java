@@ -0,0 +1,123 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Histogram of durations in nanoseconds with buckets of doubling width, so it covers
+ * microseconds to seconds in BUCKETS counters and adding a value is a few instructions with
+ * no allocation. Bucket 0 holds values below 1024 ns; bucket b > 0 holds values from
+ * 1024 << (b - 1) up to 1024 << b ns, the last bucket everything above. Percentiles are
+ * therefore only known to within a factor of two, which is enough to tell a 1 ms delay from
+ * a 100 ms one.
+ *
+ * add() must be called from one thread; the getters can be called from any thread while it
+ * runs, though a reader may then see some buckets a value ahead of the count.
+ *
+ * @author leehsueh
+ *
+ */
+public class MetricHistogram {
+	public static final int BUCKETS = 27;	// the last starts at about 34 s
+	static final int SHIFT = 10;	// bucket 0 ends at 1024 ns
+
+	private final long[] mBuckets = new long[BUCKETS];
+	private long mSum;
+	private long mMax;
+	private volatile long mCount;	// written last, so a reader that reads it first sees the rest
+
+	/** Adds a value, ns; negative values count as 0. */
+	public void add(long nanos) {
+		long value = Math.max(nanos, 0);
+		mBuckets[bucketOf(value)]++;
+		mSum += value;
+		if (value > mMax) {
+			mMax = value;
+		}
+		mCount++;
+	}
+
+	static int bucketOf(long nanos) {
+		return Math.min(64 - Long.numberOfLeadingZeros(nanos >> SHIFT), BUCKETS - 1);
+	}
+
+	/** Upper limit of the values in a bucket, ns; Long.MAX_VALUE for the last. */
+	public static long getBucketLimit(int bucket) {
+		return bucket < BUCKETS - 1 ? 1L << (SHIFT + bucket) : Long.MAX_VALUE;
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getBucketCount(int bucket) {
+		return mCount > 0 ? mBuckets[bucket] : 0;
+	}
+
+	/** Mean of the values, ns; 0 if there are none. */
+	public double getMean() {
+		long count = mCount;
+		return count > 0 ? (double) mSum / count : 0;
+	}
+
+	/** Largest value, ns. */
+	public long getMax() {
+		return mCount > 0 ? mMax : 0;
+	}
+
+	/**
+	 * Value below which the given fraction of the values lie, ns: the upper limit of the
+	 * bucket it falls in, or the largest value if that is smaller. 0 if there are no values.
+	 */
+	public long getPercentile(double fraction) {
+		long max = getMax();
+		long total = 0;
+		for (long count : mBuckets) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += mBuckets[bucket];
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(getBucketLimit(bucket), max);
+			}
+		}
+		return max;
+	}
+
+	/** The counters as bytes, e.g. to store in a blob: count, sum, max and the buckets, little-endian. */
+	public byte[] encode() {
+		ByteBuffer bb = ByteBuffer.allocate(8 * (3 + BUCKETS)).order(ByteOrder.LITTLE_ENDIAN);
+		long count = mCount;
+		bb.putLong(count).putLong(mSum).putLong(mMax);
+		for (long bucketCount : mBuckets) {
+			bb.putLong(bucketCount);
+		}
+		return bb.array();
+	}
+
+	/**
+	 * Reads a histogram written by encode().
+	 * @throws IOException if the bytes are not one
+	 */
+	public static MetricHistogram decode(byte[] data) throws IOException {
+		if (data == null || data.length != 8 * (3 + BUCKETS)) {
+			throw new IOException("Not a histogram: " + (data == null ? "no data" : data.length + " bytes"));
+		}
+		ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		MetricHistogram histogram = new MetricHistogram();
+		long count = bb.getLong();
+		histogram.mSum = bb.getLong();
+		histogram.mMax = bb.getLong();
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			histogram.mBuckets[bucket] = bb.getLong();
+		}
+		histogram.mCount = count;
+		return histogram;
+	}
+}
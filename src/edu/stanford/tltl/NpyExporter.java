@@ -0,0 +1,246 @@
+package edu.stanford.tltl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the samples of one sensor as NumPy .npy files, one per column, which load with
+ * numpy.load(name) (or numpy.load(name, mmap_mode='r') to memory map them) without parsing:
+ *
+ *   <baseName>_time.npy      int64 ('<i8'), nanoseconds since the start of the recording
+ *   <baseName>_values<i>.npy float32 ('<f4'), component i of SensorEvent.values
+ *
+ * A table (beginTable()) has <baseName>_<column name>.npy files for its columns instead of
+ * the values files, the name reduced to letters, digits and underscores.
+ *
+ * All columns have the same length. Each column is written through its own reused little
+ * endian byte buffer. The header has room for any row count: it is written with
+ * expectedRows and rewritten in place by finish() if a different number of rows was written.
+ *
+ * @author leehsueh
+ *
+ */
+public class NpyExporter implements SampleExporter {
+	public static final int BUFFER_SIZE = 64 * 1024;
+	public static final String EXTENSION = ".npy";
+	public static final String TIME_SUFFIX = "_time";
+	public static final String VALUES_SUFFIX = "_values";
+
+	private static final byte[] MAGIC = { (byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0 };
+	private static final int HEADER_SIZE = 128;	// multiple of 64, as numpy writes them
+
+	private final int mBufferSize;
+	private final float[] mScratch = new float[SensorSampleBuffer.CHUNK_SIZE];
+	private final long[] mScratchTimes = new long[SensorSampleBuffer.CHUNK_SIZE];
+
+	private RandomAccessFile[] mFiles = new RandomAccessFile[0];
+	private FileChannel[] mChannels = new FileChannel[0];
+	private ByteBuffer[] mBuffers = new ByteBuffer[0];	// [0] time, [1 + slot] values
+	private String[] mDescriptors = new String[0];
+	private File[] mPaths = new File[0];
+	private long mStartTime;
+	private long mExpectedRows;
+	private long mRowsWritten;
+	private long mBytesWritten;
+
+	public NpyExporter() {
+		this(BUFFER_SIZE);
+	}
+
+	public NpyExporter(int bufferSize) {
+		mBufferSize = Math.max(bufferSize, SensorSampleBuffer.CHUNK_SIZE * 8);
+	}
+
+	@Override
+	public void begin(File dir, String baseName, String sensorName, int[] componentIndices,
+			long startTime, long expectedRows) throws IOException {
+		String[] names = new String[componentIndices.length];
+		for (int slot = 0; slot < componentIndices.length; slot++) {
+			names[slot] = baseName + VALUES_SUFFIX + componentIndices[slot];
+		}
+		open(dir, baseName, names, startTime, expectedRows);
+	}
+
+	@Override
+	public void beginTable(File dir, String baseName, String title, String[] columnNames,
+			long startTime, long expectedRows) throws IOException {
+		String[] names = new String[columnNames.length];
+		for (int i = 0; i < columnNames.length; i++) {
+			names[i] = baseName + "_" + fileName(columnNames[i]);
+		}
+		open(dir, baseName, names, startTime, expectedRows);
+	}
+
+	/** Creates the time file and a float32 file for each of valueNames. */
+	private void open(File dir, String baseName, String[] valueNames, long startTime, long expectedRows) throws IOException {
+		close();
+		int columns = valueNames.length + 1;
+		mPaths = new File[columns];
+		mDescriptors = new String[columns];
+		mPaths[0] = new File(dir, baseName + TIME_SUFFIX + EXTENSION);
+		mDescriptors[0] = "<i8";
+		for (int slot = 0; slot < valueNames.length; slot++) {
+			mPaths[slot + 1] = new File(dir, valueNames[slot] + EXTENSION);
+			mDescriptors[slot + 1] = "<f4";
+		}
+		if (mBuffers.length != columns) {
+			mBuffers = new ByteBuffer[columns];
+			for (int i = 0; i < columns; i++) {
+				mBuffers[i] = ByteBuffer.allocate(mBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		mFiles = new RandomAccessFile[columns];
+		mChannels = new FileChannel[columns];
+		mStartTime = startTime;
+		mExpectedRows = expectedRows;
+		mRowsWritten = 0;
+		mBytesWritten = 0;
+		for (int i = 0; i < columns; i++) {
+			mFiles[i] = new RandomAccessFile(mPaths[i], "rw");
+			mFiles[i].setLength(0);
+			mChannels[i] = mFiles[i].getChannel();
+			mBuffers[i].clear();
+			mBuffers[i].put(header(mDescriptors[i], expectedRows));
+		}
+	}
+
+	@Override
+	public void writeChunk(SampleChunk chunk) throws IOException {
+		int count = chunk.getCount();
+		putTimes(chunk.getTimestamps(), count);
+		for (int slot = 0; slot < chunk.getComponentCount(); slot++) {
+			putValues(slot, chunk.getValues(slot), count);
+		}
+		mRowsWritten += count;
+	}
+
+	@Override
+	public void writeBuffer(SensorSampleBuffer buffer) throws IOException {
+		int size = buffer.size();
+		for (int from = 0; from < size; from += mScratch.length) {
+			int count = Math.min(mScratch.length, size - from);
+			buffer.copyTimestamps(from, mScratchTimes, 0, count);
+			putTimes(mScratchTimes, count);
+			for (int slot = 0; slot < buffer.getComponentCount(); slot++) {
+				buffer.copyValues(slot, from, mScratch, 0, count);
+				putValues(slot, mScratch, count);
+			}
+			mRowsWritten += count;
+		}
+	}
+
+	private void putTimes(long[] timestamps, int count) throws IOException {
+		ByteBuffer bb = mBuffers[0];
+		if (bb.remaining() < count * 8) {
+			flush(0);
+		}
+		for (int i = 0; i < count; i++) {
+			bb.putLong(timestamps[i] - mStartTime);
+		}
+	}
+
+	private void putValues(int slot, float[] values, int count) throws IOException {
+		ByteBuffer bb = mBuffers[slot + 1];
+		if (bb.remaining() < count * 4) {
+			flush(slot + 1);
+		}
+		bb.asFloatBuffer().put(values, 0, count);
+		bb.position(bb.position() + count * 4);
+	}
+
+	private void flush(int column) throws IOException {
+		ByteBuffer bb = mBuffers[column];
+		bb.flip();
+		while (bb.hasRemaining()) {
+			mBytesWritten += mChannels[column].write(bb);
+		}
+		bb.clear();
+	}
+
+	@Override
+	public long finish() throws IOException {
+		for (int i = 0; i < mChannels.length; i++) {
+			flush(i);
+			if (mRowsWritten != mExpectedRows) {
+				ByteBuffer header = ByteBuffer.wrap(header(mDescriptors[i], mRowsWritten));
+				long position = 0;
+				while (header.hasRemaining()) {
+					position += mChannels[i].write(header, position);
+				}
+			}
+		}
+		close();
+		return mBytesWritten;
+	}
+
+	@Override
+	public void close() {
+		for (int i = 0; i < mFiles.length; i++) {
+			if (mFiles[i] != null) {
+				try {
+					mFiles[i].close();
+				} catch (IOException e) {
+					// nothing more to write
+				}
+				mFiles[i] = null;
+			}
+		}
+	}
+
+	/** A column name as part of a file name: runs of other characters become one underscore. */
+	static String fileName(String columnName) {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < columnName.length(); i++) {
+			char c = columnName.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				name.append(c);
+			} else if (name.length() > 0 && name.charAt(name.length() - 1) != '_') {
+				name.append('_');
+			}
+		}
+		if (name.length() > 0 && name.charAt(name.length() - 1) == '_') {
+			name.setLength(name.length() - 1);
+		}
+		return name.toString();
+	}
+
+	/** Builds a version 1.0 .npy header for a one dimensional array, padded to HEADER_SIZE. */
+	static byte[] header(String descriptor, long rows) {
+		StringBuilder dict = new StringBuilder();
+		dict.append("{'descr': '").append(descriptor).append("', 'fortran_order': False, 'shape': (")
+				.append(rows).append(",), }");
+		int length = HEADER_SIZE - MAGIC.length - 2;
+		while (dict.length() < length - 1) {
+			dict.append(' ');
+		}
+		dict.append('\n');
+		byte[] header = new byte[HEADER_SIZE];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		header[MAGIC.length] = (byte) length;
+		header[MAGIC.length + 1] = (byte) (length >> 8);
+		for (int i = 0; i < length; i++) {
+			header[MAGIC.length + 2 + i] = (byte) dict.charAt(i);
+		}
+		return header;
+	}
+
+	@Override
+	public File[] getFiles() {
+		return mPaths.clone();
+	}
+
+	@Override
+	public long getRowsWritten() {
+		return mRowsWritten;
+	}
+
+	/** Bytes written to the files so far; lags behind while samples are buffered. */
+	@Override
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+}
@@ -0,0 +1,137 @@
+package edu.stanford.tltl;
+
+import java.util.Arrays;
+
+/**
+ * A run of consecutive buckets of one level of a SamplePyramid, the unit that is stored in
+ * a row of the pyramid table (see SensorDataDB.PYRAMID_TABLE). Each bucket summarizes a
+ * number of consecutive samples: the timestamp of its first sample, the number of samples,
+ * and the min, max and mean of each recorded component, in ascending component index order.
+ *
+ * A block can be reused: fill it, store it, then fill it again.
+ *
+ * @author leehsueh
+ *
+ */
+public class PyramidBlock {
+	private final int mSensorType;
+	private final int[] mComponentIndices;
+	private final int mLevel;
+	private final long[] mStartTimes;
+	private final int[] mSampleCounts;
+	private final float[][] mMin, mMax, mMean;	// [slot][bucket]
+	private long mEndTime;	// timestamp of the last sample
+	private int mSequence;
+	private int mCount;
+
+	/**
+	 * @param sensorType android sensor type constant
+	 * @param componentIndices recorded SensorEvent.values indices
+	 * @param level pyramid level, 1 for buckets of SamplePyramid.FACTOR samples
+	 * @param capacity maximum number of buckets
+	 */
+	public PyramidBlock(int sensorType, int[] componentIndices, int level, int capacity) {
+		mSensorType = sensorType;
+		mComponentIndices = componentIndices.clone();
+		Arrays.sort(mComponentIndices);
+		mLevel = level;
+		mStartTimes = new long[capacity];
+		mSampleCounts = new int[capacity];
+		mMin = new float[componentIndices.length][capacity];
+		mMax = new float[componentIndices.length][capacity];
+		mMean = new float[componentIndices.length][capacity];
+	}
+
+	/** Appends one bucket; the block must not be full. */
+	public void append(long startTime, long endTime, int samples, float[] min, float[] max, double[] sum) {
+		mStartTimes[mCount] = startTime;
+		mSampleCounts[mCount] = samples;
+		for (int slot = 0; slot < mMin.length; slot++) {
+			mMin[slot][mCount] = min[slot];
+			mMax[slot][mCount] = max[slot];
+			mMean[slot][mCount] = (float) (sum[slot] / samples);
+		}
+		mEndTime = endTime;
+		mCount++;
+	}
+
+	public boolean isFull() {
+		return mCount == mStartTimes.length;
+	}
+
+	/** Empties the block so it can be filled again as the block with the given sequence. */
+	public void reset(int sequence) {
+		mCount = 0;
+		mSequence = sequence;
+	}
+
+	public int getSensorType() {
+		return mSensorType;
+	}
+
+	public int[] getComponentIndices() {
+		return mComponentIndices;
+	}
+
+	public int getComponentCount() {
+		return mComponentIndices.length;
+	}
+
+	public int getLevel() {
+		return mLevel;
+	}
+
+	public int getCapacity() {
+		return mStartTimes.length;
+	}
+
+	public int getSequence() {
+		return mSequence;
+	}
+
+	public void setSequence(int sequence) {
+		mSequence = sequence;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public void setCount(int count) {
+		mCount = count;
+	}
+
+	public long getStartTime() {
+		return mStartTimes[0];
+	}
+
+	public long getEndTime() {
+		return mEndTime;
+	}
+
+	public void setEndTime(long endTime) {
+		mEndTime = endTime;
+	}
+
+	/* columns; only the first getCount() entries are valid */
+
+	public long[] getStartTimes() {
+		return mStartTimes;
+	}
+
+	public int[] getSampleCounts() {
+		return mSampleCounts;
+	}
+
+	public float[] getMin(int slot) {
+		return mMin[slot];
+	}
+
+	public float[] getMax(int slot) {
+		return mMax[slot];
+	}
+
+	public float[] getMean(int slot) {
+		return mMean[slot];
+	}
+}
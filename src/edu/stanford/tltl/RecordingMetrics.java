@@ -0,0 +1,232 @@
+package edu.stanford.tltl;
+
+/**
+ * The metrics of one recording, to tell where samples were lost or delayed when a capture
+ * looks sparse: the sensor, the thread the events are delivered on, or the recorder.
+ *
+ * For each sensor, counted as its events are delivered (delivered(), on the source's thread):
+ * the events, those the SensorEventRing had no room for, timestamps equal to or earlier than
+ * the one before, a histogram of the intervals between timestamps, and one of the delivery
+ * latency, from the event's timestamp to its delivery (see SensorSource.now()); a latency
+ * that cannot be right, as when the sensor stamps its events with another clock, is only
+ * counted. From the recorder: the samples it dropped because its writer fell behind.
+ *
+ * For the whole pipeline: the ring's capacity, high water mark and overflows, the writer's
+ * largest backlog of chunks, the memory the ring and the recorder's chunks take, and the
+ * Java heap in use.
+ *
+ * report() hands every metric to a Reporter by name, e.g. to store them with the recording
+ * (SensorDataDB.METRICS_TABLE). Updating does not allocate; the getters can be called from any
+ * thread.
+ *
+ * @author leehsueh
+ *
+ */
+public class RecordingMetrics {
+	/** Sensor type under which the metrics of the whole pipeline are reported. */
+	public static final int PIPELINE = 0;
+	/** Latencies longer than this are taken to come from a sensor clock other than ours. */
+	public static final long MAX_LATENCY_NANOS = 60000000000L;	// 60 s
+
+	/* metric names, per sensor */
+	public static final String EVENTS = "events";
+	public static final String RING_DROPS = "ring_drops";
+	public static final String RECORDER_DROPS = "recorder_drops";
+	public static final String DUPLICATES = "duplicate_timestamps";
+	public static final String BACKWARDS = "backward_timestamps";
+	public static final String UNTIMED = "latency_unmeasured";
+	public static final String INTERVALS = "interval";	// histogram, ns
+	public static final String LATENCY = "latency";	// histogram, ns
+	/* and for the pipeline */
+	public static final String RING_CAPACITY = "ring_capacity";
+	public static final String RING_HIGH_WATER = "ring_high_water";
+	public static final String RING_OVERFLOWS = "ring_overflows";
+	public static final String BACKLOG_HIGH_WATER = "backlog_high_water";	// chunks
+	public static final String BUFFER_BYTES = "buffer_bytes";
+	public static final String HEAP_USED = "heap_used";	// bytes
+
+	/** Receives the metrics from report(). */
+	public interface Reporter {
+		public void value(int sensorType, String name, double value);
+		public void histogram(int sensorType, String name, MetricHistogram histogram);
+	}
+
+	/** Delivery metrics of one sensor; written on the source's thread only. */
+	public static class Sensor {
+		private final int mSensorType;
+		private final MetricHistogram mIntervals = new MetricHistogram();
+		private final MetricHistogram mLatency = new MetricHistogram();
+		private volatile long mEvents;
+		private volatile long mRingDrops;
+		private volatile long mDuplicates;
+		private volatile long mBackwards;
+		private volatile long mUntimed;
+		private long mLastTimestamp;
+
+		Sensor(int sensorType) {
+			mSensorType = sensorType;
+		}
+
+		void delivered(long timestamp, long now, boolean accepted) {
+			if (mEvents > 0) {
+				long interval = timestamp - mLastTimestamp;
+				if (interval == 0) {
+					mDuplicates++;
+				} else if (interval < 0) {
+					mBackwards++;
+				} else {
+					mIntervals.add(interval);
+				}
+			}
+			long latency = now - timestamp;
+			if (latency >= 0 && latency <= MAX_LATENCY_NANOS) {
+				mLatency.add(latency);
+			} else {
+				mUntimed++;
+			}
+			if (!accepted) {
+				mRingDrops++;
+			}
+			mLastTimestamp = timestamp;
+			mEvents++;
+		}
+
+		public int getSensorType() {
+			return mSensorType;
+		}
+
+		/** Number of events delivered, including dropped ones. */
+		public long getEventCount() {
+			return mEvents;
+		}
+
+		/** Number of events the ring had no room for. */
+		public long getRingDropCount() {
+			return mRingDrops;
+		}
+
+		/** Number of events with the same timestamp as the one before. */
+		public long getDuplicateCount() {
+			return mDuplicates;
+		}
+
+		/** Number of events with an earlier timestamp than the one before. */
+		public long getBackwardCount() {
+			return mBackwards;
+		}
+
+		/** Number of events whose latency could not be measured. */
+		public long getUntimedCount() {
+			return mUntimed;
+		}
+
+		/** Intervals between the timestamps of consecutive events, ns. */
+		public MetricHistogram getIntervals() {
+			return mIntervals;
+		}
+
+		/** Time from an event's timestamp to its delivery, ns. */
+		public MetricHistogram getLatency() {
+			return mLatency;
+		}
+	}
+
+	private final Sensor[] mSensors;	// by sensor type
+	private final int[] mSensorTypes;
+	private final SensorEventRing mRing;
+	private final StreamingRecorder mRecorder;
+
+	/**
+	 * @param sensorTypes sensors delivered to the ring
+	 * @param ring the ring the events are delivered to
+	 * @param recorder the recorder the ring is drained into, or null
+	 */
+	public RecordingMetrics(int[] sensorTypes, SensorEventRing ring, StreamingRecorder recorder) {
+		int maxType = 0;
+		for (int type : sensorTypes) {
+			maxType = Math.max(maxType, type);
+		}
+		mSensors = new Sensor[maxType + 1];
+		for (int type : sensorTypes) {
+			mSensors[type] = new Sensor(type);
+		}
+		mSensorTypes = sensorTypes.clone();
+		mRing = ring;
+		mRecorder = recorder;
+	}
+
+	/**
+	 * Counts an event delivered to the ring; called on the source's thread.
+	 * @param timestamp the event's timestamp
+	 * @param now the time of delivery, on the clock of the timestamps
+	 * @param accepted false if the ring had no room for it
+	 */
+	public void delivered(int sensorType, long timestamp, long now, boolean accepted) {
+		if (sensorType < mSensors.length && mSensors[sensorType] != null) {
+			mSensors[sensorType].delivered(timestamp, now, accepted);
+		}
+	}
+
+	public int[] getSensorTypes() {
+		return mSensorTypes.clone();
+	}
+
+	/** The metrics of a sensor, or null if it is not delivered. */
+	public Sensor getSensor(int sensorType) {
+		return sensorType >= 0 && sensorType < mSensors.length ? mSensors[sensorType] : null;
+	}
+
+	/** Number of samples of a sensor the recorder dropped because its writer fell behind. */
+	public long getRecorderDropCount(int sensorType) {
+		return mRecorder != null ? mRecorder.getDroppedCount(sensorType) : 0;
+	}
+
+	public int getRingCapacity() {
+		return mRing.getCapacity();
+	}
+
+	public int getRingHighWaterMark() {
+		return mRing.getHighWaterMark();
+	}
+
+	public long getRingOverflowCount() {
+		return mRing.getOverflowCount();
+	}
+
+	/** Largest number of full chunks that were waiting for the writer at once. */
+	public int getBacklogHighWaterMark() {
+		return mRecorder != null ? mRecorder.getBacklogHighWaterMark() : 0;
+	}
+
+	/** Bytes taken by the ring and the recorder's chunks. */
+	public long getBufferBytes() {
+		return mRing.getMemorySize() + (mRecorder != null ? mRecorder.getMemorySize() : 0);
+	}
+
+	/** Bytes of the Java heap in use, by everything. */
+	public static long getHeapUsed() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** Hands every metric to reporter: those of each sensor, then those of the pipeline. */
+	public void report(Reporter reporter) {
+		for (int type : mSensorTypes) {
+			Sensor sensor = mSensors[type];
+			reporter.value(type, EVENTS, sensor.getEventCount());
+			reporter.value(type, RING_DROPS, sensor.getRingDropCount());
+			reporter.value(type, RECORDER_DROPS, getRecorderDropCount(type));
+			reporter.value(type, DUPLICATES, sensor.getDuplicateCount());
+			reporter.value(type, BACKWARDS, sensor.getBackwardCount());
+			reporter.value(type, UNTIMED, sensor.getUntimedCount());
+			reporter.histogram(type, INTERVALS, sensor.getIntervals());
+			reporter.histogram(type, LATENCY, sensor.getLatency());
+		}
+		reporter.value(PIPELINE, RING_CAPACITY, getRingCapacity());
+		reporter.value(PIPELINE, RING_HIGH_WATER, getRingHighWaterMark());
+		reporter.value(PIPELINE, RING_OVERFLOWS, getRingOverflowCount());
+		reporter.value(PIPELINE, BACKLOG_HIGH_WATER, getBacklogHighWaterMark());
+		reporter.value(PIPELINE, BUFFER_BYTES, getBufferBytes());
+		reporter.value(PIPELINE, HEAP_USED, getHeapUsed());
+	}
+}
@@ -0,0 +1,623 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.database.SQLException;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Long running service that owns a recording session: the database row, the StreamingRecorder
+ * and its writer thread, and the SensorEventRing and SensorEventPump that feed it. Sensor
+ * events come from SensorAcquisitionService.
+ *
+ * The session is independent of any activity: the record screen starts it and binds to it
+ * for status, but pausing or recreating the screen (screen off, incoming call, rotation) does
+ * not interrupt the capture. While recording the service runs in the foreground with an
+ * ongoing notification, so it is not killed to reclaim memory, and holds a partial wake lock,
+ * so the CPU keeps taking the sensor events with the screen off. Any number of screens can
+ * bind and read the status of the same session.
+ *
+ * With a batch latency set (MainMenuActivity.BATCH_LATENCY) the sensors are batched in the
+ * hardware where it can; the ring is then sized for the largest batch, and the FIFOs are
+ * flushed into it before the recording stops.
+ *
+ * Each sensor is sampled at the period set for it (MainMenuActivity.getPeriodKey()), or else
+ * at the rate the recording was started with; the rate and jitter it actually delivers are
+ * measured as it is recorded (getAchievedRate(), getJitter()). If a sensor has a filter chain
+ * (MainMenuActivity.getFilterKey()), a SensorFilterChain between the pump and the recorder
+ * filters and decimates its samples before they are stored.
+ *
+ * Stopping waits for the sensor FIFOs and the writer, so screens stop, finish and discard a
+ * recording in the background (the methods that take a Listener). These run one after the
+ * other on a worker thread, which also closes the database when the service is destroyed.
+ *
+ * If the samples can no longer be written (getWriteError()), the notification says so at
+ * once, so a capture that is not being stored does not go on unnoticed.
+ *
+ * @author leehsueh
+ *
+ */
+public class RecordingService extends Service {
+	public static final int NOTIFICATION_ID = 1;
+	static final long FLUSH_TIMEOUT_MS = 1000;
+
+	/** Row id of the recording being captured, or -1; recovery must leave that row alone. */
+	private static volatile long sActiveRecordingId = -1;
+
+	/** Told on the main thread when an operation done in the background has completed. */
+	public interface Listener {
+		/** @param succeeded false if it failed; the error has been logged */
+		public void onDone(boolean succeeded);
+	}
+
+	/** Binder handed to activities in the same process. */
+	public class LocalBinder extends Binder {
+		public RecordingService getService() {
+			return RecordingService.this;
+		}
+	}
+
+	private final IBinder mBinder = new LocalBinder();
+	private final ExecutorService mWorker = Executors.newSingleThreadExecutor();	// stops, finishes and discards in order
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private SensorDataDB mDB;
+	private SensorAcquisitionService mAcquisition;
+	private SensorAcquisitionService.Subscription mSubscription;
+	private volatile SensorAcquisitionService.Subscription mDeliveries;	// last subscription, for its counters
+
+	/* session state */
+	private StreamingRecorder mRecorder;
+	private SamplePyramid[] mPyramids;	// by sensor type; fed by the writer thread
+	private SensorEventRing mEventRing;
+	private SensorEventPump mPump;
+	private SensorFilterChain mFilters;
+	private volatile RecordingMetrics mMetrics;
+	private long mRecordingId = -1;
+	private int[] mSensorTypes = new int[0];
+	private int mSampleRate;
+	private int[] mPeriodsUs = new int[0];	// for each of mSensorTypes
+	private String[] mFilterErrors = new String[0];	// for each of mSensorTypes, why it is recorded unfiltered
+	private int mMaxReportLatencyUs;
+	private long mStartTime, mStopTime;
+	private volatile boolean mRecording;
+	private volatile long mBytesWritten;
+	private volatile IOException mWriteError;
+	private PowerManager.WakeLock mWakeLock;	// held while recording
+
+	private final ServiceConnection mConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			mAcquisition = ((SensorAcquisitionService.LocalBinder) binder).getService();
+			if (mRecording && mSubscription == null) {
+				subscribe();
+			}
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mAcquisition = null;
+			mSubscription = null;
+		}
+	};
+
+	/** Row id of the recording currently being captured in this process, or -1. */
+	public static long getActiveRecordingId() {
+		return sActiveRecordingId;
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mDB = new SensorDataDB(this);
+		mDB.open();
+		PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+		mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "TLTL recording");
+		mWakeLock.setReferenceCounted(false);
+		bindService(new Intent(this, SensorAcquisitionService.class), mConnection, BIND_AUTO_CREATE);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// a restarted service has no session to continue; the row is recovered from the list screen
+		return START_NOT_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mBinder;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		unbindService(mConnection);
+		// after whatever screens have asked for, so the database stays open for it
+		mWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (mRecording) {
+					try {
+						stopRecording();
+					} catch (IOException ioe) {
+						Log.v(MainMenuActivity.LOG_TAG, "Error writing data!\n" + ioe.getMessage());
+					}
+				}
+				mDB.close();
+			}
+		});
+		mWorker.shutdown();
+	}
+
+	/**
+	 * Creates the database record for a recording and starts capturing into it.
+	 * The caller should have started the service with startService() so the capture
+	 * outlives its binding.
+	 * @param sensorTypes sensors to record
+	 * @param componentIndices for each sensor, the SensorEvent.values indices to record
+	 * @param sampleRate SensorManager.SENSOR_DELAY_XXX constant, for sensors without a period of their own
+	 * @return true if recording started
+	 */
+	public boolean startRecording(int[] sensorTypes, int[][] componentIndices, int sampleRate) {
+		if (mRecording) {
+			return false;
+		}
+		mStartTime = System.nanoTime();
+		mStopTime = 0;
+		mDeliveries = null;
+		try {
+			mRecordingId = mDB.createRow(mDB.createRecordingContentValues(System.currentTimeMillis(), mStartTime, sensorTypes));
+		} catch (SQLException sqle) {
+			Log.v(MainMenuActivity.LOG_TAG, "Error in database operations!\n" + sqle.getMessage());
+			mRecordingId = -1;
+		}
+		if (mRecordingId == -1) {
+			return false;
+		}
+
+		mBytesWritten = 0;
+		mWriteError = null;
+		SharedPreferences settings = getSharedPreferences(MainMenuActivity.PREFS_NAME, 0);
+		final int compressionLevel = settings.getInt(MainMenuActivity.COMPRESSION_LEVEL, ChunkEncoder.DEFAULT_LEVEL);
+		mMaxReportLatencyUs = settings.getInt(MainMenuActivity.BATCH_LATENCY, 0);
+		int[] periodsUs = new int[sensorTypes.length];
+		for (int i = 0; i < sensorTypes.length; i++) {
+			int periodUs = settings.getInt(MainMenuActivity.getPeriodKey(sensorTypes[i]), 0);
+			periodsUs[i] = periodUs > 0 ? periodUs : SensorAcquisitionService.toPeriodUs(sampleRate);
+		}
+		int maxType = 0;
+		for (int type : sensorTypes) {
+			maxType = Math.max(maxType, type);
+		}
+		final SamplePyramid[] pyramids = new SamplePyramid[maxType + 1];
+		for (int i = 0; i < sensorTypes.length; i++) {
+			pyramids[sensorTypes[i]] = new SamplePyramid(sensorTypes[i], componentIndices[i], mDB.pyramidSink(mRecordingId));
+		}
+		mPyramids = pyramids;
+		mRecorder = new StreamingRecorder(new SampleChunkSink() {
+			private final long mRowId = mRecordingId;
+			private final ChunkEncoder mEncoder = new ChunkEncoder(compressionLevel);	// only used on the writer thread
+			@Override
+			public void writeChunk(SampleChunk chunk) throws IOException {
+				byte[] payload = mEncoder.encode(chunk);
+				try {
+					mDB.insertChunk(mRowId, chunk, payload, mEncoder.getEncoding());
+				} catch (SQLException e) {
+					IOException error = new IOException("Could not insert chunk " + chunk.getSequence() + " of sensor " + chunk.getSensorType());
+					error.initCause(e);
+					throw error;
+				}
+				mBytesWritten += payload.length;
+				pyramids[chunk.getSensorType()].add(chunk);
+			}
+		});
+		for (int i = 0; i < sensorTypes.length; i++) {
+			mRecorder.addSensor(sensorTypes[i], componentIndices[i]);
+		}
+		mRecorder.setWriteErrorListener(new StreamingRecorder.WriteErrorListener() {
+			@Override
+			public void onWriteError(IOException e) {
+				Log.v(MainMenuActivity.LOG_TAG, "Error writing data!\n" + e.getMessage());
+				mWriteError = e;
+				if (mRecording) {
+					NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+					manager.notify(NOTIFICATION_ID, createNotification());
+				}
+			}
+		});
+		mRecorder.start();
+
+		// a whole batch can arrive at once, from every sensor; leave room for the pump to fall behind
+		SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+		int fifoCapacity = mMaxReportLatencyUs > 0 ? AndroidSensorSource.getFifoCapacity(sensorManager, sensorTypes) : 0;
+		mEventRing = new SensorEventRing(Math.max(SensorEventRing.DEFAULT_CAPACITY, 2 * fifoCapacity),
+				SensorEventRing.DEFAULT_MAX_VALUES);
+		SensorEventRing.Consumer recorder = new SensorEventRing.Consumer() {
+			@Override
+			public void onSensorEvent(int sensorType, long timestamp, float[] values) {
+				mRecorder.append(sensorType, timestamp, values);
+			}
+		};
+		// filtered sensors go through their chain on the pump thread
+		mFilters = new SensorFilterChain(recorder);
+		String[] filterErrors = new String[sensorTypes.length];
+		for (int i = 0; i < sensorTypes.length; i++) {
+			String spec = settings.getString(MainMenuActivity.getFilterKey(sensorTypes[i]), "");
+			if (spec.length() == 0) {
+				continue;
+			}
+			double rateHz = samplingRate(sensorManager, sensorTypes[i], periodsUs[i]);
+			try {
+				mFilters.addSensor(sensorTypes[i], componentIndices[i],
+						SensorFilterChain.parse(spec, rateHz, componentIndices[i].length), rateHz);
+			} catch (IllegalArgumentException e) {
+				Log.v(MainMenuActivity.LOG_TAG, "Recording sensor " + sensorTypes[i] + " unfiltered: " + e.getMessage());
+				filterErrors[i] = e.getMessage();
+			}
+		}
+		mPump = new SensorEventPump(mEventRing, mFilters.isFiltering() ? mFilters : recorder);
+		mPump.start();
+		mMetrics = new RecordingMetrics(sensorTypes, mEventRing, mRecorder);
+		mSensorTypes = sensorTypes.clone();
+		mSampleRate = sampleRate;
+		mPeriodsUs = periodsUs;
+		mFilterErrors = filterErrors;
+		mRecording = true;
+		sActiveRecordingId = mRecordingId;
+		if (mAcquisition != null) {
+			subscribe();
+		}
+		mWakeLock.acquire();
+		startForeground(NOTIFICATION_ID, createNotification());
+		return true;
+	}
+
+	/**
+	 * Stops capturing and waits until everything recorded is written. The record stays
+	 * unfinished until finishRecording() or discardRecording() is called.
+	 * @throws IOException if some of the data could not be written
+	 */
+	public void stopRecording() throws IOException {
+		if (!mRecording) {
+			return;
+		}
+		mRecording = false;
+		// events still held in the sensor hardware belong to the recording too
+		if (mAcquisition != null && mSubscription != null && !mAcquisition.flush(FLUSH_TIMEOUT_MS)) {
+			Log.v(MainMenuActivity.LOG_TAG, "Sensor flush did not complete");
+		}
+		unsubscribe();
+		stopForeground(true);
+		try {
+			// hand the queued events to the recorder, then wait for the writer to store them
+			mPump.quit();
+			mRecorder.stop();
+			// the writer has stopped, so its pyramids can be finished here
+			for (SamplePyramid pyramid : mPyramids) {
+				if (pyramid != null) {
+					pyramid.finish();
+				}
+			}
+		} finally {
+			mStopTime = System.nanoTime();
+			sActiveRecordingId = -1;
+			releaseWakeLock();
+			Log.v(MainMenuActivity.LOG_TAG, "Recording stopped. Ring overflows: " + mEventRing.getOverflowCount()
+					+ ", high water mark: " + mEventRing.getHighWaterMark() + "/" + mEventRing.getCapacity()
+					+ ", wakeups: " + getWakeupCount() + ", events per wakeup: " + getMeanBatchSize()
+					+ " (max " + getMaxBatchSize() + ")");
+			for (int type : mSensorTypes) {
+				RecordingMetrics.Sensor sensor = mMetrics.getSensor(type);
+				Log.v(MainMenuActivity.LOG_TAG, "Sensor " + type + ": " + sensor.getEventCount() + " events, latency p50 "
+						+ sensor.getLatency().getPercentile(0.5) / 1000 + " us, p99 " + sensor.getLatency().getPercentile(0.99) / 1000
+						+ " us, " + sensor.getDuplicateCount() + " duplicate and " + sensor.getBackwardCount() + " backward timestamps");
+			}
+		}
+	}
+
+	/** stopRecording() on the worker thread; listener is told on the main thread when it is done. */
+	public void stopRecording(final Listener listener) {
+		mWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean stopped = true;
+				try {
+					stopRecording();
+				} catch (IOException ioe) {
+					Log.v(MainMenuActivity.LOG_TAG, "Error writing data!\n" + ioe.getMessage());
+					stopped = false;
+				}
+				done(listener, stopped);
+			}
+		});
+	}
+
+	/** finishRecording() on the worker thread; listener is told on the main thread when it is done. */
+	public void finishRecording(final String title, final String notes, final Listener listener) {
+		mWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean finished = false;
+				try {
+					finished = finishRecording(title, notes);
+				} catch (SQLException sqle) {
+					Log.v(MainMenuActivity.LOG_TAG, "Error in database operations!\n" + sqle.getMessage());
+				} catch (IOException ioe) {
+					Log.v(MainMenuActivity.LOG_TAG, "Error writing data!\n" + ioe.getMessage());
+				}
+				done(listener, finished);
+			}
+		});
+	}
+
+	private void done(final Listener listener, final boolean succeeded) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				listener.onDone(succeeded);
+			}
+		});
+	}
+
+	/** Stops the recording if needed and gives it a title and notes; its statistics and metrics are stored with it. */
+	public boolean finishRecording(String title, String notes) throws IOException {
+		stopRecording();
+		SampleStatistics[] statistics = new SampleStatistics[mSensorTypes.length];
+		for (int i = 0; i < mSensorTypes.length; i++) {
+			statistics[i] = mRecorder.getStatistics(mSensorTypes[i]);
+		}
+		boolean finished = mDB.finishRecording(mRecordingId, title, notes, statistics, mMetrics);
+		mRecordingId = -1;
+		releaseWakeLock();
+		return finished;
+	}
+
+	/** Lets the CPU sleep again; harmless if the lock is not held. */
+	private void releaseWakeLock() {
+		if (mWakeLock != null && mWakeLock.isHeld()) {
+			mWakeLock.release();
+		}
+	}
+
+	/**
+	 * Nominal sampling rate of a sensor in Hz, for designing its filters: from its period, or
+	 * for the fastest rate, the shortest period the sensor reports; 0 if neither is known.
+	 * The filters are made before any sample arrives, so this is not the rate the sensor
+	 * delivers: the period is only a hint, and a sensor that delivers at another rate
+	 * (getAchievedRate()) shifts every filter frequency by the same factor.
+	 */
+	private static double samplingRate(SensorManager sensorManager, int sensorType, int periodUs) {
+		if (periodUs > 0) {
+			return 1e6 / periodUs;
+		}
+		Sensor sensor = sensorManager != null ? sensorManager.getDefaultSensor(sensorType) : null;
+		if (sensor != null && Build.VERSION.SDK_INT >= 9 && sensor.getMinDelay() > 0) {	// GINGERBREAD
+			return 1e6 / sensor.getMinDelay();
+		}
+		return 0;
+	}
+
+	/** Stops the recording if needed and deletes it, on the worker thread. */
+	public void discardRecordingInBackground() {
+		mWorker.execute(new Runnable() {
+			@Override
+			public void run() {
+				discardRecording();
+			}
+		});
+	}
+
+	/** Stops the recording if needed and deletes it. */
+	public void discardRecording() {
+		try {
+			stopRecording();
+		} catch (IOException ioe) {
+			// discarding anyway
+		}
+		if (mRecordingId != -1) {
+			mDB.deleteRow(mRecordingId);
+			mRecordingId = -1;
+		}
+		releaseWakeLock();
+	}
+
+	private void subscribe() {
+		mSubscription = mAcquisition.subscribe(mSensorTypes, mPeriodsUs, mMaxReportLatencyUs, mEventRing, mMetrics);
+		mDeliveries = mSubscription;
+	}
+
+	private void unsubscribe() {
+		if (mAcquisition != null && mSubscription != null) {
+			mAcquisition.unsubscribe(mSubscription);
+		}
+		mSubscription = null;
+	}
+
+	@SuppressWarnings("deprecation")
+	private Notification createNotification() {
+		IOException error = mWriteError;
+		String title = "Recording sensor data";
+		String text = error == null ? "Touch to return to the recording" : "Data is not being saved: " + error.getMessage();
+		Intent intent = new Intent(this, SensorRecordActivity.class);
+		intent.putExtra(MainMenuActivity.RATE_KEY, mSampleRate);
+		intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+		PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, 0);
+		if (Build.VERSION.SDK_INT >= 11) {	// HONEYCOMB
+			Notification.Builder builder = new Notification.Builder(this)
+					.setSmallIcon(R.drawable.icon)
+					.setTicker(title)
+					.setContentTitle(title)
+					.setContentText(text)
+					.setContentIntent(pendingIntent)
+					.setOngoing(true)
+					.setWhen(System.currentTimeMillis());
+			Notification notification = Build.VERSION.SDK_INT >= 16 ? builder.build() : builder.getNotification();	// JELLY_BEAN
+			notification.flags |= Notification.FLAG_NO_CLEAR;
+			return notification;
+		}
+		Notification notification = new Notification(R.drawable.icon, title, System.currentTimeMillis());
+		notification.flags |= Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+		notification.setLatestEventInfo(this, title, text, pendingIntent);
+		return notification;
+	}
+
+	/* status; safe to read from any thread */
+
+	public boolean isRecording() {
+		return mRecording;
+	}
+
+	/** Row id of the current (possibly stopped but unfinished) recording, or -1. */
+	public long getRecordingId() {
+		return mRecordingId;
+	}
+
+	public int[] getSensorTypes() {
+		return mSensorTypes.clone();
+	}
+
+	/** Number of samples recorded for a sensor. */
+	public int getSampleCount(int sensorType) {
+		return mRecorder != null ? mRecorder.getSampleCount(sensorType) : 0;
+	}
+
+	/** Number of samples of a sensor dropped because the writer fell behind. */
+	public int getDroppedCount(int sensorType) {
+		return mRecorder != null ? mRecorder.getDroppedCount(sensorType) : 0;
+	}
+
+	/** Number of events lost because the pump fell behind the sensor thread. */
+	public long getOverflowCount() {
+		return mEventRing != null ? mEventRing.getOverflowCount() : 0;
+	}
+
+	/** True if any recorded sensor is batched in the hardware. */
+	public boolean isBatching() {
+		SensorAcquisitionService acquisition = mAcquisition;
+		if (acquisition == null || mMaxReportLatencyUs == 0) {
+			return false;
+		}
+		for (int type : mSensorTypes) {
+			if (acquisition.isBatching(type)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Delivery, drop and buffer metrics of the current or last recording, or null before the first. */
+	public RecordingMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/** Number of times the sensor thread woke up to deliver events of the recording. */
+	public long getWakeupCount() {
+		SensorAcquisitionService.Subscription deliveries = mDeliveries;
+		return deliveries != null ? deliveries.getWakeupCount() : 0;
+	}
+
+	public double getMeanBatchSize() {
+		SensorAcquisitionService.Subscription deliveries = mDeliveries;
+		return deliveries != null ? deliveries.getMeanBatchSize() : 0;
+	}
+
+	public int getMaxBatchSize() {
+		SensorAcquisitionService.Subscription deliveries = mDeliveries;
+		return deliveries != null ? deliveries.getMaxBatchSize() : 0;
+	}
+
+	/** Nanoseconds recorded so far. */
+	public long getElapsedTime() {
+		if (mStartTime == 0) {
+			return 0;
+		}
+		return (mRecording ? System.nanoTime() : mStopTime) - mStartTime;
+	}
+
+	/** Sampling period asked for a sensor in us, 0 for as fast as possible, or -1 if it is not recorded. */
+	public int getRequestedPeriod(int sensorType) {
+		int[] types = mSensorTypes, periods = mPeriodsUs;
+		for (int i = 0; i < types.length && i < periods.length; i++) {
+			if (types[i] == sensorType) {
+				return periods[i];
+			}
+		}
+		return -1;
+	}
+
+	/** Why the filter chain of a sensor could not be used, so it is recorded unfiltered; null if it is filtered or has no chain. */
+	public String getFilterError(int sensorType) {
+		int[] types = mSensorTypes;
+		String[] errors = mFilterErrors;
+		for (int i = 0; i < types.length && i < errors.length; i++) {
+			if (types[i] == sensorType) {
+				return errors[i];
+			}
+		}
+		return null;
+	}
+
+	/** Number of samples of a sensor per sample recorded, by its filter chain; 1 if it is not decimated. */
+	public int getDecimation(int sensorType) {
+		SensorFilterChain filters = mFilters;
+		return filters != null ? filters.getDecimation(sensorType) : 1;
+	}
+
+	/**
+	 * Samples per second a sensor actually delivers, from the timestamps of its events over the
+	 * last IntervalMeter window; until the first window is complete, the samples recorded so far
+	 * over the time elapsed.
+	 */
+	public float getAchievedRate(int sensorType) {
+		IntervalMeter meter = getIntervalMeter(sensorType);
+		if (meter != null && meter.getRate() > 0) {
+			return (float) meter.getRate();
+		}
+		long elapsed = getElapsedTime();
+		return elapsed > 0 ? getSampleCount(sensorType) * 1e9f / elapsed : 0;
+	}
+
+	/** Standard deviation of the intervals between samples of a sensor over the last IntervalMeter window, ns. */
+	public double getJitter(int sensorType) {
+		IntervalMeter meter = getIntervalMeter(sensorType);
+		return meter != null ? meter.getJitter() : 0;
+	}
+
+	/** Longest interval between samples of a sensor over the last IntervalMeter window, ns. */
+	public long getMaxInterval(int sensorType) {
+		IntervalMeter meter = getIntervalMeter(sensorType);
+		return meter != null ? meter.getMaxInterval() : 0;
+	}
+
+	private IntervalMeter getIntervalMeter(int sensorType) {
+		StreamingRecorder recorder = mRecorder;
+		return recorder != null ? recorder.getIntervalMeter(sensorType) : null;
+	}
+
+	/** The error that stopped the samples of the recording from being written, or null. */
+	public IOException getWriteError() {
+		return mWriteError;
+	}
+
+	/** Number of sample payload bytes written to the database. */
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+}
@@ -0,0 +1,188 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+
+/**
+ * SensorSource that plays back a stored recording: each registered sensor that was recorded
+ * delivers its samples again with the intervals they were recorded at, divided by the speed,
+ * so e.g. a speed of 10 puts ten times the recorded load on the consumer. The period asked
+ * for is ignored, as real sensors deliver at their own rate too. The sensors stay in step
+ * with each other, and with looping on the recording starts over when it ends.
+ *
+ * Only the recorded components of an event have values; the others are 0. The samples are
+ * loaded by the source thread when the first sensor starts, not by the caller of register();
+ * if they cannot be, nothing is played back (getLoadError()).
+ *
+ * @author leehsueh
+ *
+ */
+public class ReplaySensorSource extends ScheduledSensorSource {
+	/** Where the samples come from; load() is called on the source thread. */
+	public interface Loader {
+		/** Types of the recorded sensors, without loading the samples. */
+		public int[] getSensorTypes();
+
+		public SensorRecording load() throws IOException;
+	}
+
+	private final Loader mLoader;
+	private final int[] mSensorTypes;
+	private final double mSpeed;
+	private final boolean mLoop;
+	// the rest is set up by the source thread when the first sensor starts
+	private SensorRecording mRecording;
+	private volatile Exception mLoadError;
+	private long mFirstTime;	// earliest sample of the recording
+	private long mDuration;	// from the earliest sample to one interval past the latest
+	private long mStartTime = -1;	// when playback of the first sample was due
+
+	/** Plays back a recording already in memory. */
+	public ReplaySensorSource(final SensorRecording recording, double speed, boolean loop, SensorEventRing.Consumer consumer) {
+		this(new Loader() {
+			@Override
+			public int[] getSensorTypes() {
+				return recording.getSensorTypes();
+			}
+
+			@Override
+			public SensorRecording load() {
+				return recording;
+			}
+		}, speed, loop, consumer);
+	}
+
+	/**
+	 * @param loader the samples to play back, loaded when the first sensor is registered
+	 * @param speed how much faster than recorded to play them back
+	 * @param loop start over at the end instead of stopping
+	 */
+	public ReplaySensorSource(Loader loader, double speed, boolean loop, SensorEventRing.Consumer consumer) {
+		super(consumer);
+		if (speed <= 0) {
+			throw new IllegalArgumentException("Speed must be positive: " + speed);
+		}
+		mLoader = loader;
+		mSensorTypes = loader.getSensorTypes();
+		mSpeed = speed;
+		mLoop = loop;
+	}
+
+	/** Why the recording could not be loaded, so nothing is played back; null if it could. */
+	public Exception getLoadError() {
+		return mLoadError;
+	}
+
+	@Override
+	public boolean hasSensor(int sensorType) {
+		for (int type : mSensorTypes) {
+			if (type == sensorType) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected Channel createChannel(int sensorType, int periodUs) {
+		if (!hasSensor(sensorType)) {
+			return null;
+		}
+		return new Player(sensorType);
+	}
+
+	/** Loads the recording once, on the source thread; false if it cannot be. */
+	private boolean load() {
+		if (mRecording != null) {
+			return true;
+		}
+		if (mLoadError != null) {
+			return false;
+		}
+		try {
+			mRecording = mLoader.load();
+		} catch (IOException e) {
+			mLoadError = e;
+			return false;
+		} catch (RuntimeException e) {
+			mLoadError = e;
+			return false;
+		}
+		long first = Long.MAX_VALUE, last = Long.MIN_VALUE, interval = 0;
+		for (int type : mRecording.getSensorTypes()) {
+			SensorSampleBuffer buffer = mRecording.getBuffer(type);
+			int size = buffer.size();
+			if (size > 0) {
+				first = Math.min(first, buffer.getTimestamp(0));
+				last = Math.max(last, buffer.getTimestamp(size - 1));
+				if (size > 1) {
+					interval = Math.max(interval, (buffer.getTimestamp(size - 1) - buffer.getTimestamp(0)) / (size - 1));
+				}
+			}
+		}
+		mFirstTime = first;
+		mDuration = last >= first ? last - first + Math.max(interval, 1) : 0;
+		return true;
+	}
+
+	/** Playback time of a recorded timestamp in the given pass through the recording. */
+	private long playbackTime(long timestamp, long pass) {
+		return mStartTime + (long) ((timestamp - mFirstTime + pass * mDuration) / mSpeed);
+	}
+
+	private class Player extends Channel {
+		private final int mSensorType;
+		private SensorSampleBuffer mBuffer;
+		private int mIndex;
+		private long mPass;
+
+		Player(int sensorType) {
+			super(sensorType, 0);
+			mSensorType = sensorType;
+		}
+
+		@Override
+		protected long start(long now) {
+			if (!load()) {
+				return -1;
+			}
+			mBuffer = mRecording.getBuffer(mSensorType);
+			if (mBuffer == null || mBuffer.size() == 0 || mBuffer.getComponentCount() == 0) {
+				return -1;
+			}
+			setValueCount(mBuffer.getComponentIndex(mBuffer.getComponentCount() - 1) + 1);
+			if (mStartTime < 0) {
+				mStartTime = now;
+			}
+			// join the playback where it is, so the sensors stay in step
+			long elapsed = (long) ((now - mStartTime) * mSpeed);
+			mPass = mLoop && mDuration > 0 ? elapsed / mDuration : 0;
+			long position = mFirstTime + elapsed - mPass * mDuration;
+			mIndex = 0;
+			while (mIndex < mBuffer.size() && mBuffer.getTimestamp(mIndex) < position) {
+				mIndex++;
+			}
+			return due();
+		}
+
+		@Override
+		protected long next(long time, float[] values) {
+			for (int slot = 0; slot < mBuffer.getComponentCount(); slot++) {
+				values[mBuffer.getComponentIndex(slot)] = mBuffer.getValue(slot, mIndex);
+			}
+			mIndex++;
+			return due();
+		}
+
+		/** Playback time of the sample at mIndex, moving on to the next pass at the end. */
+		private long due() {
+			if (mIndex >= mBuffer.size()) {
+				if (!mLoop || mDuration == 0) {
+					return -1;
+				}
+				mIndex = 0;
+				mPass++;
+			}
+			return playbackTime(mBuffer.getTimestamp(mIndex), mPass);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+
+/**
+ * Puts the samples of several sensors, each with its own timestamps, on a common clock: one
+ * row per point in time with a column for every recorded component of every sensor, the
+ * values at that time interpolated from the samples around it (NEAREST, LINEAR or HOLD, the
+ * last sample at or before it).
+ *
+ * The rows are either on a fixed-rate grid, every periodNanos from the recording's start
+ * time, or, with a period of 0, at every distinct timestamp of any of the sensors, which is
+ * a k-way merge of the sensors by timestamp. A sensor's columns are NaN before its first and
+ * after its last sample.
+ *
+ * The sensors are read from SampleChunkSources a chunk at a time, in step with the rows, so
+ * memory use does not depend on the length of the recording and a row costs no allocation.
+ * With the few sensors of a recording, the next timestamp of the merge is found by looking at
+ * each sensor's next sample.
+ *
+ * Usage: read() into a chunk from createRows() until it returns 0; the slots of the chunk are
+ * the columns, the sensors' components in the order the sources were given.
+ *
+ * @author leehsueh
+ *
+ */
+public class SampleAligner {
+	/** The value of the sample closest in time; the earlier one of two as close. */
+	public static final int NEAREST = 0;
+	/** Linear interpolation between the samples before and after. */
+	public static final int LINEAR = 1;
+	/** The value of the last sample at or before the time (zero-order hold). */
+	public static final int HOLD = 2;
+
+	/** Reads the samples of one sensor in step with the rows. */
+	private static class Track {
+		final SampleChunkSource mSource;
+		final int mFirstColumn;
+		final float[] mPrevious, mNext;
+		SampleChunk mChunk;
+		int mPosition;	// of the sample after mNext in mChunk
+		long mPreviousTime, mNextTime;
+		boolean mStarted;	// mPrevious holds a sample
+		boolean mExhausted;	// mNext holds none
+
+		Track(SampleChunkSource source, int firstColumn, int componentCount) {
+			mSource = source;
+			mFirstColumn = firstColumn;
+			mPrevious = new float[componentCount];
+			mNext = new float[componentCount];
+		}
+
+		/** Reads the sample after mNext into mNext. */
+		void load() throws IOException {
+			while (mChunk == null || mPosition >= mChunk.getCount()) {
+				SampleChunk chunk = mSource.next(mChunk);
+				if (chunk == null) {
+					mExhausted = true;
+					mNextTime = Long.MAX_VALUE;
+					return;
+				}
+				mChunk = chunk;
+				mPosition = 0;
+			}
+			mNextTime = mChunk.getTimestamps()[mPosition];
+			for (int slot = 0; slot < mNext.length; slot++) {
+				mNext[slot] = mChunk.getValues(slot)[mPosition];
+			}
+			mPosition++;
+		}
+
+		/** Moves on until mNext is the first sample after time. */
+		void advance(long time) throws IOException {
+			while (!mExhausted && mNextTime <= time) {
+				System.arraycopy(mNext, 0, mPrevious, 0, mNext.length);
+				mPreviousTime = mNextTime;
+				mStarted = true;
+				load();
+			}
+		}
+
+		/** False once time is past the last sample. */
+		boolean covers(long time) {
+			return !mExhausted || (mStarted && time <= mPreviousTime);
+		}
+
+		/** Writes the values at time into row i of the columns of rows; after advance(time). */
+		void interpolate(long time, int interpolation, SampleChunk rows, int i) {
+			boolean defined = mStarted && covers(time);
+			for (int slot = 0; slot < mPrevious.length; slot++) {
+				float value;
+				if (!defined) {
+					value = Float.NaN;
+				} else if (time == mPreviousTime || interpolation == HOLD) {
+					value = mPrevious[slot];
+				} else if (interpolation == NEAREST) {
+					value = time - mPreviousTime <= mNextTime - time ? mPrevious[slot] : mNext[slot];
+				} else {
+					double fraction = (double) (time - mPreviousTime) / (mNextTime - mPreviousTime);
+					value = (float) (mPrevious[slot] + (mNext[slot] - mPrevious[slot]) * fraction);
+				}
+				rows.getValues(mFirstColumn + slot)[i] = value;
+			}
+		}
+	}
+
+	private final Track[] mTracks;
+	private final int mColumnCount;
+	private final int mInterpolation;
+	private final long mStartTime;
+	private final long mPeriod;
+	private boolean mBegun, mDone;
+	private long mTime;	// of the next row
+	private long mRow;	// of the next row on the grid
+	private long mRowsRead;
+
+	/**
+	 * @param sources the samples of each sensor, in time order
+	 * @param componentCounts number of components (slots) of the chunks of each source
+	 * @param interpolation NEAREST, LINEAR or HOLD
+	 * @param startTime time of row 0 of the grid, e.g. the recording's start time
+	 * @param periodNanos interval between rows, or 0 for a row at every timestamp of any sensor
+	 */
+	public SampleAligner(SampleChunkSource[] sources, int[] componentCounts, int interpolation,
+			long startTime, long periodNanos) {
+		if (interpolation < NEAREST || interpolation > HOLD) {
+			throw new IllegalArgumentException("Unknown interpolation: " + interpolation);
+		}
+		if (periodNanos < 0) {
+			throw new IllegalArgumentException("Negative period: " + periodNanos);
+		}
+		mTracks = new Track[sources.length];
+		int columns = 0;
+		for (int i = 0; i < sources.length; i++) {
+			mTracks[i] = new Track(sources[i], columns, componentCounts[i]);
+			columns += componentCounts[i];
+		}
+		mColumnCount = columns;
+		mInterpolation = interpolation;
+		mStartTime = startTime;
+		mPeriod = periodNanos;
+	}
+
+	/** Number of value columns: the components of all sensors. */
+	public int getColumnCount() {
+		return mColumnCount;
+	}
+
+	public long getRowsRead() {
+		return mRowsRead;
+	}
+
+	/** Creates a chunk to read up to capacity rows into, with a slot per column. */
+	public SampleChunk createRows(int capacity) {
+		int[] columns = new int[mColumnCount];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = i;
+		}
+		return new SampleChunk(0, columns, capacity);
+	}
+
+	/**
+	 * Reads the next rows into a chunk from createRows(), as many as fit.
+	 * @return number of rows read, 0 after the last
+	 */
+	public int read(SampleChunk rows) throws IOException {
+		if (!mBegun) {
+			begin();
+		}
+		long[] timestamps = rows.getTimestamps();
+		int count = 0;
+		while (!mDone && count < rows.getCapacity()) {
+			boolean covered = false;
+			for (Track track : mTracks) {
+				track.advance(mTime);
+				covered |= track.covers(mTime);
+			}
+			if (!covered) {
+				mDone = true;
+				break;
+			}
+			timestamps[count] = mTime;
+			for (Track track : mTracks) {
+				track.interpolate(mTime, mInterpolation, rows, count);
+			}
+			count++;
+			if (mPeriod > 0) {
+				mRow++;
+				mTime = mStartTime + mRow * mPeriod;
+			} else {
+				mTime = nextTimestamp();
+				mDone = mTime == Long.MAX_VALUE;
+			}
+		}
+		rows.setCount(count);
+		mRowsRead += count;
+		return count;
+	}
+
+	/** Reads the first sample of each sensor and puts the first row at or after the earliest. */
+	private void begin() throws IOException {
+		mBegun = true;
+		for (Track track : mTracks) {
+			track.load();
+		}
+		long first = nextTimestamp();
+		if (first == Long.MAX_VALUE) {
+			mDone = true;
+		} else if (mPeriod > 0) {
+			// the first grid point at or after the first sample
+			long offset = first - mStartTime;
+			mRow = offset / mPeriod;
+			if (mRow * mPeriod < offset) {
+				mRow++;
+			}
+			mTime = mStartTime + mRow * mPeriod;
+		} else {
+			mTime = first;
+		}
+	}
+
+	/** Earliest timestamp still to come from any sensor, Long.MAX_VALUE if none. */
+	private long nextTimestamp() {
+		long next = Long.MAX_VALUE;
+		for (Track track : mTracks) {
+			next = Math.min(next, track.mNextTime);
+		}
+		return next;
+	}
+
+	/** Hands out the samples of a buffer a chunk at a time, e.g. of a recording stored as a data blob. */
+	public static class BufferSource implements SampleChunkSource {
+		private final SensorSampleBuffer mBuffer;
+		private int mPosition;
+		private int mSequence;
+
+		public BufferSource(SensorSampleBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public SampleChunk next(SampleChunk reuse) {
+			int count = Math.min(SensorSampleBuffer.CHUNK_SIZE, mBuffer.size() - mPosition);
+			if (count <= 0) {
+				return null;
+			}
+			SampleChunk chunk = reuse;
+			if (chunk == null) {
+				int[] components = new int[mBuffer.getComponentCount()];
+				for (int slot = 0; slot < components.length; slot++) {
+					components[slot] = mBuffer.getComponentIndex(slot);
+				}
+				chunk = new SampleChunk(mBuffer.getSensorType(), components, SensorSampleBuffer.CHUNK_SIZE);
+			}
+			chunk.copyFrom(mBuffer, mPosition, count, mSequence++);
+			mPosition += count;
+			return chunk;
+		}
+	}
+}
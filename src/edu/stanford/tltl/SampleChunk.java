@@ -0,0 +1,123 @@
+package edu.stanford.tltl;
+
+import java.util.Arrays;
+
+/**
+ * A block of consecutive samples of one sensor, the unit that is stored in a row of the
+ * sample chunk table (see SensorDataDB.CHUNK_TABLE). Holds the same columns as a
+ * SensorSampleBuffer: nanosecond timestamps plus one float column per recorded component,
+ * in ascending component index order.
+ *
+ * A chunk can be reused: fill it, store it, then fill it again.
+ *
+ * @author leehsueh
+ *
+ */
+public class SampleChunk {
+	private final int mSensorType;
+	private final int[] mComponentIndices;
+	private final long[] mTimestamps;
+	private final float[][] mValues;	// [slot][sample]
+	private int mSequence;	// position of this chunk within the sensor's samples
+	private int mCount;
+
+	/**
+	 * @param sensorType android sensor type constant
+	 * @param componentIndices recorded SensorEvent.values indices
+	 * @param capacity maximum number of samples
+	 */
+	public SampleChunk(int sensorType, int[] componentIndices, int capacity) {
+		mSensorType = sensorType;
+		mComponentIndices = componentIndices.clone();
+		Arrays.sort(mComponentIndices);
+		mTimestamps = new long[capacity];
+		mValues = new float[componentIndices.length][capacity];
+	}
+
+	/**
+	 * Appends one sample; values is the full SensorEvent.values array. The chunk must
+	 * not be full.
+	 */
+	public void append(long timestamp, float[] values) {
+		mTimestamps[mCount] = timestamp;
+		for (int slot = 0; slot < mValues.length; slot++) {
+			mValues[slot][mCount] = values[mComponentIndices[slot]];
+		}
+		mCount++;
+	}
+
+	public boolean isFull() {
+		return mCount == mTimestamps.length;
+	}
+
+	/** Empties the chunk so it can be filled again as the chunk with the given sequence. */
+	public void reset(int sequence) {
+		mCount = 0;
+		mSequence = sequence;
+	}
+
+	/** Fills this chunk with count samples of buffer starting at sample from. */
+	public void copyFrom(SensorSampleBuffer buffer, int from, int count, int sequence) {
+		buffer.copyTimestamps(from, mTimestamps, 0, count);
+		for (int slot = 0; slot < mValues.length; slot++) {
+			buffer.copyValues(slot, from, mValues[slot], 0, count);
+		}
+		mCount = count;
+		mSequence = sequence;
+	}
+
+	/** Appends this chunk's samples to buffer, which must record the same components. */
+	public void appendTo(SensorSampleBuffer buffer) {
+		buffer.appendBlock(mTimestamps, mValues, mCount);
+	}
+
+	public int getSensorType() {
+		return mSensorType;
+	}
+
+	public int[] getComponentIndices() {
+		return mComponentIndices;
+	}
+
+	public int getComponentCount() {
+		return mComponentIndices.length;
+	}
+
+	public int getCapacity() {
+		return mTimestamps.length;
+	}
+
+	public int getSequence() {
+		return mSequence;
+	}
+
+	public void setSequence(int sequence) {
+		mSequence = sequence;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public void setCount(int count) {
+		mCount = count;
+	}
+
+	/** Timestamp column; only the first getCount() entries are valid. */
+	public long[] getTimestamps() {
+		return mTimestamps;
+	}
+
+	/** Value column of a slot; only the first getCount() entries are valid. */
+	public float[] getValues(int slot) {
+		return mValues[slot];
+	}
+
+	public long getStartTime() {
+		return mTimestamps[0];
+	}
+
+	public long getEndTime() {
+		return mTimestamps[mCount - 1];
+	}
+}
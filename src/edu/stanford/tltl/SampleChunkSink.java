@@ -0,0 +1,15 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+
+/**
+ * Destination for the chunks of samples produced while recording, e.g. the chunk
+ * table of the database. Called from the StreamingRecorder writer thread; the chunk
+ * is reused after the call returns, so implementations must not keep a reference to it.
+ *
+ * @author leehsueh
+ *
+ */
+public interface SampleChunkSink {
+	public void writeChunk(SampleChunk chunk) throws IOException;
+}
@@ -0,0 +1,19 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+
+/**
+ * Supplier of the chunks of samples of one sensor, in time order, e.g. read from the chunk
+ * table of a recording; the reading counterpart of SampleChunkSink. Chunks are handed back
+ * for reuse, so reading a long recording does not allocate a chunk per call.
+ *
+ * @author leehsueh
+ *
+ */
+public interface SampleChunkSource {
+	/**
+	 * Returns the next chunk, filled into reuse if it fits, or null after the last one.
+	 * @param reuse the chunk returned by the previous call, which the caller is done with, or null
+	 */
+	public SampleChunk next(SampleChunk reuse) throws IOException;
+}
@@ -0,0 +1,66 @@
+package edu.stanford.tltl;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the samples of one sensor to file(s) in some export format, streaming: samples are
+ * handed over a chunk at a time, so memory use does not depend on the length of the recording.
+ * Can also write a table of several sensors aligned by SampleAligner (beginTable()).
+ *
+ * Usage: begin() or beginTable(), then writeChunk() / writeBuffer() in time order, then
+ * finish(). close() must be called in any case; it releases the files if finish() was not
+ * reached.
+ * An exporter can be reused for another sensor after close().
+ *
+ * @author leehsueh
+ *
+ */
+public interface SampleExporter {
+	/**
+	 * Starts the file(s) of a sensor.
+	 * @param dir directory the files are created in
+	 * @param baseName file name, or prefix of the file names if the format writes several files
+	 * @param sensorName human readable sensor name
+	 * @param componentIndices recorded SensorEvent.values indices, in ascending order
+	 * @param startTime nanosecond timestamp that is time 0 in the files
+	 * @param expectedRows number of samples that will probably be written
+	 */
+	public void begin(File dir, String baseName, String sensorName, int[] componentIndices,
+			long startTime, long expectedRows) throws IOException;
+
+	/**
+	 * Starts the file(s) of a table with named columns, e.g. the components of several sensors
+	 * on a common clock (SampleAligner.read()); the slots of the chunks written are the columns.
+	 * @param dir directory the files are created in
+	 * @param baseName file name, or prefix of the file names if the format writes several files
+	 * @param title human readable description of the table
+	 * @param columnNames human readable name of each column after the time
+	 * @param startTime nanosecond timestamp that is time 0 in the files
+	 * @param expectedRows number of rows that will probably be written
+	 */
+	public void beginTable(File dir, String baseName, String title, String[] columnNames,
+			long startTime, long expectedRows) throws IOException;
+
+	/** Writes the samples of a chunk. */
+	public void writeChunk(SampleChunk chunk) throws IOException;
+
+	/** Writes all samples of a buffer. */
+	public void writeBuffer(SensorSampleBuffer buffer) throws IOException;
+
+	/**
+	 * Completes the file(s).
+	 * @return number of bytes written
+	 */
+	public long finish() throws IOException;
+
+	/** Closes the file(s). Safe to call more than once. */
+	public void close();
+
+	/** Files created since begin(). */
+	public File[] getFiles();
+
+	public long getRowsWritten();
+
+	public long getBytesWritten();
+}
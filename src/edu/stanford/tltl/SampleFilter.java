@@ -0,0 +1,27 @@
+package edu.stanford.tltl;
+
+/**
+ * One stage of a SensorFilterChain: filters consecutive samples of a few channels (the
+ * recorded components of a sensor), keeping its state between calls in primitive arrays, so
+ * filtering a sample allocates nothing. A stage may drop samples, as a decimator does.
+ *
+ * @author leehsueh
+ *
+ */
+public interface SampleFilter {
+	/**
+	 * Filters the next sample of every channel, in place.
+	 * @param values one value per channel
+	 * @return false if the stage drops this sample; values is then undefined
+	 */
+	public boolean filter(float[] values);
+
+	/** Delay of the output behind the input in input samples, if constant (linear phase), else 0. */
+	public double getDelay();
+
+	/** Number of input samples per output sample. */
+	public int getDecimation();
+
+	/** Forgets the samples seen so far. */
+	public void reset();
+}
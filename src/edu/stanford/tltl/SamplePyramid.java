@@ -0,0 +1,161 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Builds the downsampled levels of one sensor while its samples are recorded, so a long
+ * recording can be plotted without reading every sample (see SensorDataDB.queryDownsampled()).
+ *
+ * Level 1 has a bucket per FACTOR samples, level 2 a bucket per FACTOR level 1 buckets, and
+ * so on up to LEVELS; each bucket keeps the min, max and mean of every component. Buckets go
+ * into a PyramidBlock per level, and full blocks are handed to a Sink (normally the pyramid
+ * table of the database). finish() writes the partly filled buckets and blocks at the end.
+ *
+ * Memory use is a block per level, whatever the length of the recording. Not thread safe;
+ * add() and finish() must not be called concurrently.
+ *
+ * @author leehsueh
+ *
+ */
+public class SamplePyramid {
+	public static final int FACTOR = 10;
+	public static final int LEVELS = 3;	// 10x, 100x, 1000x
+	public static final int BLOCK_SIZE = 1024;	// buckets per block
+
+	/** Destination for the blocks; the block is reused after the call returns. */
+	public interface Sink {
+		public void writeBlock(PyramidBlock block) throws IOException;
+	}
+
+	private final Sink mSink;
+	private final int mComponentCount;
+	private final PyramidBlock[] mBlocks;	// [level - 1]
+	private final int[] mNextSequence = new int[LEVELS];
+
+	/* the bucket being filled at each level, [level - 1] */
+	private final long[] mBucketStart = new long[LEVELS];
+	private final long[] mBucketEnd = new long[LEVELS];
+	private final int[] mBucketSamples = new int[LEVELS];
+	private final int[] mBucketParts = new int[LEVELS];	// samples or lower level buckets
+	private final float[][] mMin, mMax;
+	private final double[][] mSum;
+
+	public SamplePyramid(int sensorType, int[] componentIndices, Sink sink) {
+		this(sensorType, componentIndices, BLOCK_SIZE, sink);
+	}
+
+	/**
+	 * @param sensorType android sensor type constant
+	 * @param componentIndices recorded SensorEvent.values indices
+	 * @param blockSize buckets per block
+	 * @param sink where full blocks go
+	 */
+	public SamplePyramid(int sensorType, int[] componentIndices, int blockSize, Sink sink) {
+		mSink = sink;
+		mComponentCount = componentIndices.length;
+		mBlocks = new PyramidBlock[LEVELS];
+		for (int i = 0; i < LEVELS; i++) {
+			mBlocks[i] = new PyramidBlock(sensorType, componentIndices, i + 1, blockSize);
+			mBlocks[i].reset(mNextSequence[i]++);
+		}
+		mMin = new float[LEVELS][mComponentCount];
+		mMax = new float[LEVELS][mComponentCount];
+		mSum = new double[LEVELS][mComponentCount];
+		for (int i = 0; i < LEVELS; i++) {
+			resetBucket(i);
+		}
+	}
+
+	/** Adds the samples of a chunk, which must record the same components and follow the samples added so far. */
+	public void add(SampleChunk chunk) throws IOException {
+		long[] timestamps = chunk.getTimestamps();
+		int count = chunk.getCount();
+		float[] min = mMin[0], max = mMax[0];
+		double[] sum = mSum[0];
+		// a run of samples at a time that goes into the current level 1 bucket, column by column
+		for (int from = 0; from < count; ) {
+			int to = Math.min(count, from + FACTOR - mBucketParts[0]);
+			if (mBucketParts[0] == 0) {
+				mBucketStart[0] = timestamps[from];
+			}
+			for (int slot = 0; slot < mComponentCount; slot++) {
+				float[] values = chunk.getValues(slot);
+				float low = min[slot], high = max[slot];
+				double total = sum[slot];
+				for (int i = from; i < to; i++) {
+					float value = values[i];
+					if (value < low) {
+						low = value;
+					}
+					if (value > high) {
+						high = value;
+					}
+					total += value;
+				}
+				min[slot] = low;
+				max[slot] = high;
+				sum[slot] = total;
+			}
+			mBucketEnd[0] = timestamps[to - 1];
+			mBucketSamples[0] += to - from;
+			mBucketParts[0] += to - from;
+			if (mBucketParts[0] == FACTOR) {
+				completeBucket(0);
+			}
+			from = to;
+		}
+	}
+
+	/** Writes the partly filled buckets and all blocks that hold any buckets. */
+	public void finish() throws IOException {
+		for (int i = 0; i < LEVELS; i++) {
+			if (mBucketParts[i] > 0) {
+				completeBucket(i);
+			}
+		}
+		for (int i = 0; i < LEVELS; i++) {
+			if (mBlocks[i].getCount() > 0) {
+				mSink.writeBlock(mBlocks[i]);
+				mBlocks[i].reset(mNextSequence[i]++);
+			}
+		}
+	}
+
+	/** Stores the bucket of level index i, merges it into the next level and starts a new one. */
+	private void completeBucket(int i) throws IOException {
+		PyramidBlock block = mBlocks[i];
+		block.append(mBucketStart[i], mBucketEnd[i], mBucketSamples[i], mMin[i], mMax[i], mSum[i]);
+		if (block.isFull()) {
+			mSink.writeBlock(block);
+			block.reset(mNextSequence[i]++);
+		}
+		int next = i + 1;
+		if (next < LEVELS) {
+			if (mBucketParts[next] == 0) {
+				mBucketStart[next] = mBucketStart[i];
+			}
+			for (int slot = 0; slot < mComponentCount; slot++) {
+				mMin[next][slot] = Math.min(mMin[next][slot], mMin[i][slot]);
+				mMax[next][slot] = Math.max(mMax[next][slot], mMax[i][slot]);
+				mSum[next][slot] += mSum[i][slot];
+			}
+			mBucketEnd[next] = mBucketEnd[i];
+			mBucketSamples[next] += mBucketSamples[i];
+			resetBucket(i);
+			if (++mBucketParts[next] == FACTOR) {
+				completeBucket(next);
+			}
+		} else {
+			resetBucket(i);
+		}
+	}
+
+	private void resetBucket(int i) {
+		mBucketSamples[i] = 0;
+		mBucketParts[i] = 0;
+		Arrays.fill(mMin[i], Float.POSITIVE_INFINITY);
+		Arrays.fill(mMax[i], Float.NEGATIVE_INFINITY);
+		Arrays.fill(mSum[i], 0);
+	}
+}
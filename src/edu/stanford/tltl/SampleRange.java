@@ -0,0 +1,138 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.database.Cursor;
+
+/**
+ * Streams the samples of one sensor of a stored recording within a time window
+ * [startTime, endTime), a chunk at a time; see SensorDataDB.queryRange(). Only the chunks
+ * that overlap the window are read and decoded, into one reused SampleChunk, and the first
+ * and last of them are cut to the window by binary search on their timestamps.
+ *
+ * Each call to next() moves to the next slice: getLength() samples starting at getOffset()
+ * of getTimestamps() and getValues(i), where i is the position in the requested components.
+ * The arrays are only valid until the next call. Close the range when done.
+ *
+ * @author leehsueh
+ *
+ */
+public class SampleRange {
+	private final Cursor mChunks;
+	private final int[] mComponentIndices;
+	private final long mStartTime, mEndTime;
+	private final int[] mSlots;	// requested component -> slot in the chunk
+	private SampleChunk mChunk;
+	private int mOffset, mLength;
+	private long mSampleCount;
+
+	/**
+	 * @param chunks cursor over the chunk rows of the sensor in time order, closed by close()
+	 * @param componentIndices SensorEvent.values indices to read, or null for all recorded ones
+	 */
+	SampleRange(Cursor chunks, int[] componentIndices, long startTime, long endTime) {
+		mChunks = chunks;
+		mComponentIndices = componentIndices != null ? componentIndices.clone() : null;
+		mSlots = componentIndices != null ? new int[componentIndices.length] : null;
+		mStartTime = startTime;
+		mEndTime = endTime;
+	}
+
+	/**
+	 * Moves to the next non-empty slice.
+	 * @return false when there are no more samples in the window
+	 * @throws IOException if a chunk is corrupt
+	 * @throws IllegalArgumentException if a requested component was not recorded
+	 */
+	public boolean next() throws IOException {
+		while (mChunks.moveToNext()) {
+			SampleChunk previous = mChunk;
+			mChunk = SensorDataDB.readChunk(mChunks, mChunk);
+			if (mChunk != previous) {
+				mapSlots();
+			}
+			long[] timestamps = mChunk.getTimestamps();
+			int count = mChunk.getCount();
+			if (count == 0 || timestamps[count - 1] < mStartTime) {
+				continue;
+			}
+			if (timestamps[0] >= mEndTime) {
+				return false;	// chunks come in time order
+			}
+			int from = timestamps[0] >= mStartTime ? 0 : lowerBound(timestamps, count, mStartTime);
+			int to = timestamps[count - 1] < mEndTime ? count : lowerBound(timestamps, count, mEndTime);
+			if (to > from) {
+				mOffset = from;
+				mLength = to - from;
+				mSampleCount += mLength;
+				return true;
+			}
+		}
+		mLength = 0;
+		return false;
+	}
+
+	private void mapSlots() {
+		int[] recorded = mChunk.getComponentIndices();
+		if (mComponentIndices == null) {
+			return;
+		}
+		for (int i = 0; i < mComponentIndices.length; i++) {
+			mSlots[i] = Arrays.binarySearch(recorded, mComponentIndices[i]);
+			if (mSlots[i] < 0) {
+				throw new IllegalArgumentException("Component " + mComponentIndices[i] + " of sensor "
+						+ mChunk.getSensorType() + " was not recorded");
+			}
+		}
+	}
+
+	/** First index in [0, count) whose timestamp is >= time, or count. */
+	static int lowerBound(long[] timestamps, int count, long time) {
+		int low = 0, high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (timestamps[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** Timestamps of the current slice, from getOffset(). */
+	public long[] getTimestamps() {
+		return mChunk.getTimestamps();
+	}
+
+	/** Values of the i-th requested component (or slot, if all were requested) of the current slice. */
+	public float[] getValues(int i) {
+		return mChunk.getValues(mSlots != null ? mSlots[i] : i);
+	}
+
+	public int getOffset() {
+		return mOffset;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/** Components being read; before the first next() only known if they were requested. */
+	public int[] getComponentIndices() {
+		if (mComponentIndices != null) {
+			return mComponentIndices.clone();
+		}
+		return mChunk != null ? mChunk.getComponentIndices().clone() : new int[0];
+	}
+
+	/** Number of samples returned so far. */
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	public void close() {
+		mChunks.close();
+	}
+}
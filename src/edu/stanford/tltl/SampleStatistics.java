@@ -0,0 +1,184 @@
+package edu.stanford.tltl;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of the samples of one sensor, updated one chunk at a time as the
+ * samples are recorded, so they never need the whole recording in memory and can be
+ * stored with it (see SensorDataDB.STATS_TABLE) and shown without reading sample data.
+ *
+ * For each recorded component: count, min, max, mean and variance, with the mean and
+ * variance updated by Welford's online algorithm so they stay accurate over long recordings.
+ * For the timestamps: the same for the intervals between samples (in ns), the achieved
+ * sample rate, and the number of gaps, an interval more than GAP_FACTOR times the mean of
+ * the intervals before it (counted once MIN_INTERVALS intervals are known).
+ *
+ * Not thread safe; the StreamingRecorder writer thread owns it while recording.
+ *
+ * @author leehsueh
+ *
+ */
+public class SampleStatistics {
+	public static final double GAP_FACTOR = 2.0;
+	public static final int MIN_INTERVALS = 8;
+
+	private final int mSensorType;
+	private final int[] mComponentIndices;
+	private long mCount;
+	private long mFirstTime, mLastTime;
+
+	/* intervals between samples, ns */
+	private long mIntervalMin = Long.MAX_VALUE, mIntervalMax = Long.MIN_VALUE;
+	private double mIntervalMean, mIntervalM2;
+	private long mGapCount;
+
+	/* values, per slot */
+	private final float[] mMin, mMax;
+	private final double[] mMean, mM2;
+
+	/**
+	 * @param sensorType android sensor type constant
+	 * @param componentIndices recorded SensorEvent.values indices
+	 */
+	public SampleStatistics(int sensorType, int[] componentIndices) {
+		mSensorType = sensorType;
+		mComponentIndices = componentIndices.clone();
+		Arrays.sort(mComponentIndices);
+		int components = mComponentIndices.length;
+		mMin = new float[components];
+		mMax = new float[components];
+		mMean = new double[components];
+		mM2 = new double[components];
+		Arrays.fill(mMin, Float.POSITIVE_INFINITY);
+		Arrays.fill(mMax, Float.NEGATIVE_INFINITY);
+	}
+
+	/** Adds the samples of a chunk, which must record the same components and follow the samples added so far. */
+	public void add(SampleChunk chunk) {
+		int count = chunk.getCount();
+		if (count == 0) {
+			return;
+		}
+		long[] timestamps = chunk.getTimestamps();
+		long previous = mCount > 0 ? mLastTime : timestamps[0];
+		if (mCount == 0) {
+			mFirstTime = timestamps[0];
+		}
+		long intervals = mCount > 0 ? mCount - 1 : 0;
+		for (int i = mCount > 0 ? 0 : 1; i < count; i++) {
+			long interval = timestamps[i] - previous;
+			previous = timestamps[i];
+			if (intervals >= MIN_INTERVALS && interval > GAP_FACTOR * mIntervalMean) {
+				mGapCount++;
+			}
+			intervals++;
+			double delta = interval - mIntervalMean;
+			mIntervalMean += delta / intervals;
+			mIntervalM2 += delta * (interval - mIntervalMean);
+			if (interval < mIntervalMin) {
+				mIntervalMin = interval;
+			}
+			if (interval > mIntervalMax) {
+				mIntervalMax = interval;
+			}
+		}
+		mLastTime = previous;
+
+		for (int slot = 0; slot < mMin.length; slot++) {
+			float[] values = chunk.getValues(slot);
+			float min = mMin[slot], max = mMax[slot];
+			double mean = mMean[slot], m2 = mM2[slot];
+			long n = mCount;
+			for (int i = 0; i < count; i++) {
+				float value = values[i];
+				if (value < min) {
+					min = value;
+				}
+				if (value > max) {
+					max = value;
+				}
+				n++;
+				double delta = value - mean;
+				mean += delta / n;
+				m2 += delta * (value - mean);
+			}
+			mMin[slot] = min;
+			mMax[slot] = max;
+			mMean[slot] = mean;
+			mM2[slot] = m2;
+		}
+		mCount += count;
+	}
+
+	public int getSensorType() {
+		return mSensorType;
+	}
+
+	public int[] getComponentIndices() {
+		return mComponentIndices.clone();
+	}
+
+	public int getComponentCount() {
+		return mComponentIndices.length;
+	}
+
+	/** Number of samples added. */
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getFirstTime() {
+		return mFirstTime;
+	}
+
+	public long getLastTime() {
+		return mLastTime;
+	}
+
+	/** Samples per second from the first to the last sample, 0 with fewer than two samples. */
+	public double getRate() {
+		return mCount > 1 && mLastTime > mFirstTime ? (mCount - 1) * 1e9 / (mLastTime - mFirstTime) : 0;
+	}
+
+	public long getGapCount() {
+		return mGapCount;
+	}
+
+	/* intervals between samples in ns; 0 with fewer than two samples */
+
+	public long getIntervalMin() {
+		return mCount > 1 ? mIntervalMin : 0;
+	}
+
+	public long getIntervalMax() {
+		return mCount > 1 ? mIntervalMax : 0;
+	}
+
+	public double getIntervalMean() {
+		return mIntervalMean;
+	}
+
+	/** Population variance of the intervals, ns^2. */
+	public double getIntervalVariance() {
+		return mCount > 1 ? mIntervalM2 / (mCount - 1) : 0;
+	}
+
+	/* values of a slot (position in getComponentIndices()); min and max are NaN with no samples */
+
+	public float getMin(int slot) {
+		return mCount > 0 ? mMin[slot] : Float.NaN;
+	}
+
+	public float getMax(int slot) {
+		return mCount > 0 ? mMax[slot] : Float.NaN;
+	}
+
+	public double getMean(int slot) {
+		return mMean[slot];
+	}
+
+	/** Population variance of the values. */
+	public double getVariance(int slot) {
+		return mCount > 0 ? mM2[slot] / mCount : 0;
+	}
+}
@@ -0,0 +1,217 @@
+package edu.stanford.tltl;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base of the SensorSources that make up their events (SyntheticSensorSource,
+ * ReplaySensorSource). Each registered sensor is a Channel that produces its events one at
+ * a time, each with the time it is due; one thread hands them to the consumer in time order.
+ *
+ * In real time the thread waits until an event is due, so the consumer sees the load a
+ * device would put on it; if the consumer falls behind, the late events are delivered as
+ * fast as it takes them, keeping their timestamps. Otherwise (setRealTime(false)) time is
+ * only counted, not waited for: the events get the same timestamps but come as fast as the
+ * consumer can take them, which measures the throughput of the pipeline.
+ *
+ * Timestamps are on the System.nanoTime() clock, like SensorEvent.timestamp. Report latency
+ * is ignored, so nothing is ever batched. Plain Java, so the pipeline can be driven on a JVM.
+ *
+ * @author leehsueh
+ *
+ */
+public abstract class ScheduledSensorSource implements SensorSource {
+	/* an event due within this is delivered right away instead of waited for */
+	static final long SPIN_NANOS = 50000L;	// 50 us
+	static final long IDLE_WAIT_NANOS = 10000000L;	// 10 ms, with nothing registered
+
+	/** One registered sensor, used only by the source thread once registered. */
+	protected static abstract class Channel {
+		private final int mSensorType;
+		private float[] mValues;
+		private boolean mStarted;
+		private long mDue = -1;	// ns, -1 when there are no more events
+
+		protected Channel(int sensorType, int valueCount) {
+			mSensorType = sensorType;
+			mValues = new float[valueCount];
+		}
+
+		/** For a channel that only knows how many values its events have once started. */
+		protected void setValueCount(int valueCount) {
+			mValues = new float[valueCount];
+		}
+
+		/**
+		 * Called on the source thread before the first event, so it may do slow work such as
+		 * loading the samples.
+		 * @param now the time, on the source's clock (now())
+		 * @return the time of the first event, or -1 if there is none
+		 */
+		protected abstract long start(long now);
+
+		/**
+		 * Fills values with those of the event due at time.
+		 * @return the time of the next event, or -1 if there is none
+		 */
+		protected abstract long next(long time, float[] values);
+	}
+
+	private final SensorEventRing.Consumer mConsumer;
+	private volatile Channel[] mChannels = new Channel[0];	// copy-on-write
+	private volatile boolean mRealTime = true;
+	private volatile boolean mQuit;
+	private Thread mThread;
+	private long mEventCount;
+	private volatile long mVirtualOffset;	// how far virtual time is ahead of the clock; written by the source thread only
+
+	protected ScheduledSensorSource(SensorEventRing.Consumer consumer) {
+		mConsumer = consumer;
+	}
+
+	/** Creates the channel of a sensor, or returns null if there is no such sensor. */
+	protected abstract Channel createChannel(int sensorType, int periodUs);
+
+	/** Waits for events to be due if true (the default); delivers them as fast as possible if false. */
+	public void setRealTime(boolean realTime) {
+		mRealTime = realTime;
+	}
+
+	@Override
+	public synchronized boolean register(int sensorType, int periodUs, int maxReportLatencyUs) {
+		Channel channel = createChannel(sensorType, periodUs);
+		if (channel == null) {
+			return false;
+		}
+		replaceChannel(sensorType, channel);
+		if (mThread == null) {
+			mThread = new Thread("ScheduledSensorSource") {
+				@Override
+				public void run() {
+					deliver();
+				}
+			};
+			mThread.setPriority(Thread.MAX_PRIORITY);
+			mThread.start();
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void unregister(int sensorType) {
+		replaceChannel(sensorType, null);
+	}
+
+	private void replaceChannel(int sensorType, Channel channel) {
+		Channel[] old = mChannels;
+		int count = channel != null ? 1 : 0;
+		for (Channel c : old) {
+			if (c.mSensorType != sensorType) {
+				count++;
+			}
+		}
+		Channel[] channels = new Channel[count];
+		int i = 0;
+		for (Channel c : old) {
+			if (c.mSensorType != sensorType) {
+				channels[i++] = c;
+			}
+		}
+		if (channel != null) {
+			channels[i] = channel;
+		}
+		mChannels = channels;
+	}
+
+	@Override
+	public boolean isBatching(int sensorType) {
+		return false;
+	}
+
+	@Override
+	public boolean flush(long timeoutMillis) {
+		return true;	// nothing is held back
+	}
+
+	@Override
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			mChannels = new Channel[0];
+			mQuit = true;
+			thread = mThread;
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** System.nanoTime(), moved on by the time skipped when not in real time. */
+	@Override
+	public long now() {
+		return System.nanoTime() + mVirtualOffset;
+	}
+
+	/** Waits until close() is called or every channel has run out of events. */
+	public void awaitEnd() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = mThread;
+		}
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/** Number of events handed to the consumer. Only exact once the source thread has ended. */
+	public long getEventCount() {
+		return mEventCount;
+	}
+
+	/** The source thread: hands the events of all channels to the consumer in time order. */
+	private void deliver() {
+		while (!mQuit) {
+			Channel[] channels = mChannels;
+			Channel next = null;
+			boolean registered = channels.length > 0;
+			for (Channel c : channels) {
+				if (!c.mStarted) {
+					c.mDue = c.start(now());
+					c.mStarted = true;
+				}
+				if (c.mDue >= 0 && (next == null || c.mDue < next.mDue)) {
+					next = c;
+				}
+			}
+			if (next == null) {
+				if (registered) {
+					synchronized (this) {
+						if (mChannels == channels) {
+							mThread = null;	// all ran out; a register() starts a new thread
+							return;
+						}
+					}
+					continue;
+				}
+				LockSupport.parkNanos(IDLE_WAIT_NANOS);
+				continue;
+			}
+			long now = now();
+			long wait = next.mDue - now;
+			if (wait > SPIN_NANOS) {
+				if (mRealTime) {
+					LockSupport.parkNanos(wait);
+					continue;	// registrations may have changed meanwhile
+				}
+				mVirtualOffset += wait;
+			}
+			long time = next.mDue;
+			next.mDue = next.next(time, next.mValues);
+			mConsumer.onSensorEvent(next.mSensorType, time, next.mValues);
+			mEventCount++;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import android.app.Service;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.hardware.SensorManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Local service that owns the sensor listeners. Sensor events come from a SensorSource, on a
+ * thread of its own instead of the main looper, so layout, the chronometer and other UI work
+ * cannot delay them. The source is normally the sensor hardware (AndroidSensorSource); the
+ * MainMenuActivity.SENSOR_SOURCE preference can swap in generated or replayed events instead
+ * (SyntheticSensorSource, ReplaySensorSource) to try the app under a known load. It is chosen
+ * when the first subscriber arrives and closed when the last one leaves.
+ *
+ * Activities bind to the service and subscribe with the sensor types and rate they want and a
+ * SensorEventRing of their own. The source's thread is the single producer of every subscribed
+ * ring; each subscriber drains its ring on its own thread. A sensor is registered once, at the
+ * fastest rate any subscriber asked for.
+ *
+ * Rates are kept as sampling periods in microseconds, so a subscriber can ask for any period
+ * per sensor instead of one of the four SENSOR_DELAY_XXX presets (see toPeriodUs()). From
+ * Android 2.3 (API 9) the period is passed to the sensor manager as it is; before that the
+ * nearest preset at least as fast is used.
+ *
+ * From Android 4.4 (API 19) on, a subscriber can allow a maximum report latency: sensors with
+ * a hardware FIFO then collect events in the sensor hub and hand them over in batches, so the
+ * processor wakes once per batch instead of once per event. A sensor is only batched if every
+ * subscriber to it allows it, at the smallest latency allowed. flush() fetches what the FIFOs
+ * hold, e.g. before a recording stops. Each subscription counts the events it got and the
+ * wakeups (bursts of events) they came in, so the effect can be seen.
+ *
+ * A subscriber can also pass RecordingMetrics, which are then updated for every event it is
+ * delivered: whether its ring had room, the event's timestamp and how long after it the event
+ * arrived, on the source's clock (SensorSource.now()).
+ *
+ * @author leehsueh
+ *
+ */
+public class SensorAcquisitionService extends Service implements SensorEventRing.Consumer {
+
+	/** A subscriber's interest in a set of sensors; events are copied into its ring. */
+	public static class Subscription {
+		private final BitSet mTypes;	// bit t set if sensor type t is wanted; types go beyond 63
+		private final int[] mSensorTypes;
+		private final int[] mPeriodsUs;	// for each of mSensorTypes
+		private final int mMaxReportLatencyUs;
+		private final SensorEventRing mRing;
+		private final RecordingMetrics mMetrics;	// or null
+
+		/* delivery counters; written on the sensor thread only */
+		private volatile long mEventCount;
+		private volatile long mWakeupCount;
+		private volatile int mMaxBatchSize;
+		private int mBatchSize;
+		private long mLastDelivery;	// SensorSource.now()
+
+		private Subscription(int[] sensorTypes, int[] periodsUs, int maxReportLatencyUs, SensorEventRing ring,
+				RecordingMetrics metrics) {
+			mTypes = new BitSet();
+			for (int type : sensorTypes) {
+				mTypes.set(type);
+			}
+			mSensorTypes = sensorTypes.clone();
+			mPeriodsUs = periodsUs.clone();
+			mMaxReportLatencyUs = maxReportLatencyUs;
+			mRing = ring;
+			mMetrics = metrics;
+		}
+
+		/** Counts an event delivered at now; one that follows the previous closely is in the same batch. */
+		private void delivered(long now) {
+			if (now - mLastDelivery > WAKEUP_GAP_NANOS) {
+				mWakeupCount++;
+				mBatchSize = 0;
+			}
+			mLastDelivery = now;
+			if (++mBatchSize > mMaxBatchSize) {
+				mMaxBatchSize = mBatchSize;
+			}
+			mEventCount++;
+		}
+
+		public SensorEventRing getRing() {
+			return mRing;
+		}
+
+		/** The metrics updated for the subscription's events, or null. */
+		public RecordingMetrics getMetrics() {
+			return mMetrics;
+		}
+
+		/** Number of events delivered to the ring, including ones it dropped. */
+		public long getEventCount() {
+			return mEventCount;
+		}
+
+		/** Number of separate bursts the events came in, i.e. times the sensor thread woke up for them. */
+		public long getWakeupCount() {
+			return mWakeupCount;
+		}
+
+		public double getMeanBatchSize() {
+			long wakeups = mWakeupCount;
+			return wakeups > 0 ? (double) mEventCount / wakeups : 0;
+		}
+
+		public int getMaxBatchSize() {
+			return mMaxBatchSize;
+		}
+	}
+
+	/** Binder handed to activities in the same process. */
+	public class LocalBinder extends Binder {
+		public SensorAcquisitionService getService() {
+			return SensorAcquisitionService.this;
+		}
+	}
+
+	/* sampling periods the SENSOR_DELAY_XXX presets stand for, us */
+	static final int PERIOD_GAME_US = 20000;
+	static final int PERIOD_UI_US = 66667;
+	static final int PERIOD_NORMAL_US = 200000;
+
+	/* events closer together than this are counted as one delivery */
+	static final long WAKEUP_GAP_NANOS = 1000000L;	// 1 ms
+
+	private final IBinder mBinder = new LocalBinder();
+	private volatile SensorSource mSource;	// while there are subscribers
+
+	// copy-on-write so the sensor thread can iterate without locking or allocating
+	private volatile Subscription[] mSubscriptions = new Subscription[0];
+	private final List<Integer> mRegisteredTypes = new ArrayList<Integer>();
+	private final List<Integer> mRegisteredPeriods = new ArrayList<Integer>();	// us
+	private final List<Integer> mRegisteredLatencies = new ArrayList<Integer>();	// us, 0 if not batched
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mBinder;
+	}
+
+	@Override
+	public synchronized void onDestroy() {
+		super.onDestroy();
+		closeSource();
+	}
+
+	/** The source the preferences ask for; the sensor hardware if the recording to replay is not there. */
+	private SensorSource createSource() {
+		SharedPreferences settings = getSharedPreferences(MainMenuActivity.PREFS_NAME, 0);
+		int source = settings.getInt(MainMenuActivity.SENSOR_SOURCE, MainMenuActivity.SOURCE_HARDWARE);
+		if (source == MainMenuActivity.SOURCE_SYNTHETIC) {
+			Log.v(MainMenuActivity.LOG_TAG, "Using synthetic sensor events.");
+			return new SyntheticSensorSource(this);
+		} else if (source == MainMenuActivity.SOURCE_REPLAY) {
+			final long recordingId = settings.getLong(MainMenuActivity.REPLAY_RECORDING_ID, -1);
+			SensorDataDB db = new SensorDataDB(this);
+			try {
+				db.open();
+				// only the sensor types now; the samples are loaded on the source thread
+				final int[] sensorTypes = db.querySensorTypes(recordingId);
+				if (sensorTypes.length == 0) {
+					throw new IllegalStateException("no such recording");
+				}
+				Log.v(MainMenuActivity.LOG_TAG, "Replaying recording " + recordingId + " as sensor events.");
+				return new ReplaySensorSource(new ReplaySensorSource.Loader() {
+					@Override
+					public int[] getSensorTypes() {
+						return sensorTypes;
+					}
+
+					@Override
+					public SensorRecording load() throws IOException {
+						SensorDataDB db = new SensorDataDB(SensorAcquisitionService.this);
+						try {
+							db.open();
+							return db.readRecording(recordingId);
+						} catch (IOException ioe) {
+							Log.v(MainMenuActivity.LOG_TAG, "Could not load recording " + recordingId + " for replay: " + ioe.getMessage());
+							throw ioe;
+						} catch (RuntimeException e) {
+							Log.v(MainMenuActivity.LOG_TAG, "Could not load recording " + recordingId + " for replay: " + e.getMessage());
+							throw e;
+						} finally {
+							db.close();
+						}
+					}
+				}, 1, true, this);
+			} catch (RuntimeException e) {
+				Log.v(MainMenuActivity.LOG_TAG, "Could not read recording " + recordingId + " for replay: " + e.getMessage());
+			} finally {
+				db.close();
+			}
+		}
+		return new AndroidSensorSource((SensorManager) getSystemService(SENSOR_SERVICE), this);
+	}
+
+	private void closeSource() {
+		if (mSource != null) {
+			mSource.close();
+			mSource = null;
+		}
+		mRegisteredTypes.clear();
+		mRegisteredPeriods.clear();
+		mRegisteredLatencies.clear();
+	}
+
+	/**
+	 * Same as subscribe(int[], int[], int, SensorEventRing) at one rate for all sensors, without batching.
+	 * @param rate SensorManager.SENSOR_DELAY_XXX constant
+	 */
+	public Subscription subscribe(int[] sensorTypes, int rate, SensorEventRing ring) {
+		int[] periodsUs = new int[sensorTypes.length];
+		Arrays.fill(periodsUs, toPeriodUs(rate));
+		return subscribe(sensorTypes, periodsUs, 0, ring);
+	}
+
+	/** Same as subscribe(int[], int[], int, SensorEventRing, RecordingMetrics) without metrics. */
+	public Subscription subscribe(int[] sensorTypes, int[] periodsUs, int maxReportLatencyUs, SensorEventRing ring) {
+		return subscribe(sensorTypes, periodsUs, maxReportLatencyUs, ring, null);
+	}
+
+	/**
+	 * Starts delivering events of the given sensor types into ring.
+	 * @param sensorTypes android sensor type constants
+	 * @param periodsUs for each sensor, the sampling period asked for in us, 0 for as fast as
+	 *  possible; only a hint, the sensor may deliver faster or slower
+	 * @param maxReportLatencyUs how long events may be held in the sensor hardware, 0 for
+	 *  immediate delivery; ignored before Android 4.4 and for sensors without a FIFO
+	 * @param ring ring the events are copied into; the caller must be its only consumer, and
+	 *  with batching it should hold at least AndroidSensorSource.getFifoCapacity() events
+	 * @param metrics updated for every event delivered to ring, or null
+	 * @return the subscription, to pass to unsubscribe()
+	 */
+	public synchronized Subscription subscribe(int[] sensorTypes, int[] periodsUs, int maxReportLatencyUs, SensorEventRing ring,
+			RecordingMetrics metrics) {
+		Subscription subscription = new Subscription(sensorTypes, periodsUs, maxReportLatencyUs, ring, metrics);
+		Subscription[] subscriptions = new Subscription[mSubscriptions.length + 1];
+		System.arraycopy(mSubscriptions, 0, subscriptions, 0, mSubscriptions.length);
+		subscriptions[mSubscriptions.length] = subscription;
+		mSubscriptions = subscriptions;
+		updateRegistrations();
+		return subscription;
+	}
+
+	/** Stops delivering events to a subscription. Safe to call more than once. */
+	public synchronized void unsubscribe(Subscription subscription) {
+		List<Subscription> remaining = new ArrayList<Subscription>();
+		for (Subscription s : mSubscriptions) {
+			if (s != subscription) {
+				remaining.add(s);
+			}
+		}
+		mSubscriptions = remaining.toArray(new Subscription[remaining.size()]);
+		updateRegistrations();
+	}
+
+	/**
+	 * Registers each wanted sensor at the shortest period and smallest report latency requested
+	 * and unregisters unwanted ones.
+	 */
+	private void updateRegistrations() {
+		List<Integer> types = new ArrayList<Integer>();
+		List<Integer> periods = new ArrayList<Integer>();
+		List<Integer> latencies = new ArrayList<Integer>();
+		for (Subscription s : mSubscriptions) {
+			for (int k = 0; k < s.mSensorTypes.length; k++) {
+				int type = s.mSensorTypes[k];
+				int i = types.indexOf(type);
+				if (i < 0) {
+					types.add(type);
+					periods.add(s.mPeriodsUs[k]);
+					latencies.add(s.mMaxReportLatencyUs);
+				} else {
+					if (s.mPeriodsUs[k] < periods.get(i)) {
+						periods.set(i, s.mPeriodsUs[k]);
+					}
+					if (s.mMaxReportLatencyUs < latencies.get(i)) {
+						latencies.set(i, s.mMaxReportLatencyUs);
+					}
+				}
+			}
+		}
+
+		if (types.isEmpty()) {
+			closeSource();
+			return;
+		}
+		if (mSource == null) {
+			mSource = createSource();
+		}
+		for (int i = 0; i < mRegisteredTypes.size(); i++) {
+			if (types.indexOf(mRegisteredTypes.get(i)) < 0) {
+				mSource.unregister(mRegisteredTypes.get(i));
+			}
+		}
+		for (int j = 0; j < types.size(); j++) {
+			int i = mRegisteredTypes.indexOf(types.get(j));
+			if (i < 0 || !periods.get(j).equals(mRegisteredPeriods.get(i))
+					|| !latencies.get(j).equals(mRegisteredLatencies.get(i))) {
+				if (mSource.register(types.get(j), periods.get(j), latencies.get(j))) {
+					Log.v(MainMenuActivity.LOG_TAG, "Sensor " + types.get(j) + " registered every " + periods.get(j) + " us.");
+				}
+			}
+		}
+		mRegisteredTypes.clear();
+		mRegisteredTypes.addAll(types);
+		mRegisteredPeriods.clear();
+		mRegisteredPeriods.addAll(periods);
+		mRegisteredLatencies.clear();
+		mRegisteredLatencies.addAll(latencies);
+	}
+
+	/**
+	 * The sampling period in us a SensorManager.SENSOR_DELAY_XXX constant stands for, as the
+	 * sensor manager converts it; 0 for SENSOR_DELAY_FASTEST.
+	 */
+	public static int toPeriodUs(int rate) {
+		switch (rate) {
+		case SensorManager.SENSOR_DELAY_FASTEST:
+			return 0;
+		case SensorManager.SENSOR_DELAY_GAME:
+			return PERIOD_GAME_US;
+		case SensorManager.SENSOR_DELAY_UI:
+			return PERIOD_UI_US;
+		default:
+			return PERIOD_NORMAL_US;
+		}
+	}
+
+	/**
+	 * The rate argument of registerListener() for a sampling period: the period itself from
+	 * Android 2.3 on, except that periods that could be mistaken for SENSOR_DELAY_XXX
+	 * constants (0 to 3 us) mean the fastest rate; before that, the nearest preset at least
+	 * as fast.
+	 */
+	static int toRegistrationRate(int periodUs) {
+		if (periodUs <= SensorManager.SENSOR_DELAY_NORMAL) {
+			return SensorManager.SENSOR_DELAY_FASTEST;
+		}
+		if (Build.VERSION.SDK_INT >= 9) {	// GINGERBREAD
+			return periodUs;
+		}
+		if (periodUs < PERIOD_GAME_US) {
+			return SensorManager.SENSOR_DELAY_FASTEST;
+		} else if (periodUs < PERIOD_UI_US) {
+			return SensorManager.SENSOR_DELAY_GAME;
+		} else if (periodUs < PERIOD_NORMAL_US) {
+			return SensorManager.SENSOR_DELAY_UI;
+		}
+		return SensorManager.SENSOR_DELAY_NORMAL;
+	}
+
+	/** Sampling period in us a sensor is registered at, 0 for the fastest, or -1 if it is not registered. */
+	public synchronized int getRegisteredPeriod(int sensorType) {
+		int i = mRegisteredTypes.indexOf(sensorType);
+		return i < 0 ? -1 : mRegisteredPeriods.get(i);
+	}
+
+	/** True if the sensor is registered with batching in the hardware. */
+	public synchronized boolean isBatching(int sensorType) {
+		return mSource != null && mRegisteredTypes.contains(sensorType) && mSource.isBatching(sensorType);
+	}
+
+	/**
+	 * Has the source hand over the events it holds for batching and waits up to timeoutMillis
+	 * until they are in the rings. Returns right away if no sensor is batched.
+	 * @return false if the flush did not complete in time
+	 */
+	public synchronized boolean flush(long timeoutMillis) {
+		return mSource == null || mSource.flush(timeoutMillis);
+	}
+
+	/* called on the source's thread */
+
+	@Override
+	public void onSensorEvent(int sensorType, long timestamp, float[] values) {
+		SensorSource source = mSource;
+		long now = source != null ? source.now() : System.nanoTime();
+		Subscription[] subscriptions = mSubscriptions;
+		for (int i = 0; i < subscriptions.length; i++) {
+			Subscription s = subscriptions[i];
+			if (s.mTypes.get(sensorType)) {
+				boolean accepted = s.mRing.offer(sensorType, timestamp, values);
+				s.delivered(now);
+				if (s.mMetrics != null) {
+					s.mMetrics.delivered(sensorType, timestamp, now, accepted);
+				}
+			}
+		}
+	}
+}
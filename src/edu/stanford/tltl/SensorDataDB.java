@@ -1,21 +1,22 @@
 package edu.stanford.tltl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
 
 /**
  * This class manages a connection to the database, providing
@@ -32,9 +33,22 @@ import android.database.sqlite.SQLiteOpenHelper;
  *
  */
 public class SensorDataDB {
-	public static final int DATABASE_VERSION = 1;
+	public static final int DATABASE_VERSION = 9;	// 2: binary recording format; 3: sample chunk table; 4: recording state; 5: chunk encoding; 6: summary columns; 7: statistics table; 8: pyramid table; 9: metrics table
 	public static final String DATABASE_NAME = "sensordatadb";
 	public static final String DATABASE_TABLE = "sensordata";
+	public static final String DATABASE_INDEX = "sensordata_time";	// for paging through the list by timestamp
+	public static final String CHUNK_TABLE = "sensorchunk";	// samples of a recording, CHUNK_SIZE per row
+	public static final String CHUNK_INDEX = "sensorchunk_time";
+	public static final String STATS_TABLE = "sensorstats";	// SampleStatistics of a recording, one row per sensor component
+	public static final String STATS_INDEX = "sensorstats_recording";
+	public static final String PYRAMID_TABLE = "sensorpyramid";	// downsampled levels of a recording, see SamplePyramid
+	public static final String PYRAMID_INDEX = "sensorpyramid_time";
+	public static final String METRICS_TABLE = "recordingmetrics";	// RecordingMetrics of a recording, one row per metric
+	public static final String METRICS_INDEX = "recordingmetrics_recording";
+	public static final int CHUNK_SIZE = SensorSampleBuffer.CHUNK_SIZE;
+	/** Times an insert is tried while another connection holds the lock. */
+	public static final int INSERT_ATTEMPTS = 5;
+	static final long RETRY_DELAY_MS = 20;	// doubled after each attempt
 
 	// Field names -- use the KEY_XXX constants here and in
 	// client code, so it's all consistent and checked at compile-time.
@@ -51,6 +65,25 @@ public class SensorDataDB {
 	public static final int INDEX_DATA = 4;
 	public static final String KEY_SENSOR_TYPES = "sensor_types";
 	public static final int INDEX_SENSOR_TYPES = 5;
+	public static final String KEY_START_TIME = "start_time";	// ns, same clock as the sample timestamps
+	public static final int INDEX_START_TIME = 6;
+	public static final String KEY_STATE = "state";	// one of the STATE_XXX constants
+	public static final int INDEX_STATE = 7;
+	// Summary columns, computed from the chunk metadata when a recording is saved or recovered
+	public static final String KEY_DURATION = "duration";	// ns from the first to the last sample
+	public static final int INDEX_DURATION = 8;
+	public static final String KEY_SAMPLE_COUNT = "total_samples";	// samples of all sensors
+	public static final int INDEX_SAMPLE_COUNT = 9;
+	public static final String KEY_SAMPLE_COUNTS = "sensor_samples";	// "type:count" per sensor, space separated
+	public static final int INDEX_SAMPLE_COUNTS = 10;
+	
+	// Recording states. A recording is created in STATE_RECORDING when capture starts and
+	// its chunks are written while recording; it becomes STATE_COMPLETE when saved. A row
+	// still in STATE_RECORDING on the next launch was cut off, and becomes STATE_RECOVERED.
+	public static final int STATE_COMPLETE = 0;
+	public static final int STATE_RECORDING = 1;
+	public static final int STATE_RECOVERED = 2;
+	public static final String RECOVERED_TITLE = "Recovered recording";
 	
 	public static final String[] KEYS_ALL = {
 		SensorDataDB.KEY_ROWID, 
@@ -58,8 +91,200 @@ public class SensorDataDB {
 		SensorDataDB.KEY_NOTES, 
 		SensorDataDB.KEY_TIMESTAMP, 
 		SensorDataDB.KEY_DATA,
-		SensorDataDB.KEY_SENSOR_TYPES
+		SensorDataDB.KEY_SENSOR_TYPES,
+		SensorDataDB.KEY_START_TIME,
+		SensorDataDB.KEY_STATE,
+		SensorDataDB.KEY_DURATION,
+		SensorDataDB.KEY_SAMPLE_COUNT,
+		SensorDataDB.KEY_SAMPLE_COUNTS
+	};
+	
+	// Projection for listing recordings: no sample data. The first four columns are at their
+	// INDEX_XXX positions, the others at the INDEX_LIST_XXX positions.
+	public static final String[] LIST_KEYS = {
+		SensorDataDB.KEY_ROWID, 
+		SensorDataDB.KEY_TITLE, 
+		SensorDataDB.KEY_NOTES, 
+		SensorDataDB.KEY_TIMESTAMP, 
+		SensorDataDB.KEY_SENSOR_TYPES,
+		SensorDataDB.KEY_STATE,
+		SensorDataDB.KEY_DURATION,
+		SensorDataDB.KEY_SAMPLE_COUNT
+	};
+	public static final int INDEX_LIST_SENSOR_TYPES = 4;
+	public static final int INDEX_LIST_STATE = 5;
+	public static final int INDEX_LIST_DURATION = 6;
+	public static final int INDEX_LIST_SAMPLE_COUNT = 7;
+	
+	// Field names of the sample chunk table. The data of a recording is stored
+	// there, unless the recording predates that table and is still in KEY_DATA.
+	
+	public static final String KEY_CHUNK_RECORDING = "recording_id";
+	public static final int INDEX_CHUNK_RECORDING = 1;
+	public static final String KEY_CHUNK_SENSOR_TYPE = "sensor_type";
+	public static final int INDEX_CHUNK_SENSOR_TYPE = 2;
+	public static final String KEY_CHUNK_SEQUENCE = "seq";
+	public static final int INDEX_CHUNK_SEQUENCE = 3;
+	public static final String KEY_CHUNK_START_TIME = "start_time";
+	public static final int INDEX_CHUNK_START_TIME = 4;
+	public static final String KEY_CHUNK_END_TIME = "end_time";
+	public static final int INDEX_CHUNK_END_TIME = 5;
+	public static final String KEY_CHUNK_COUNT = "sample_count";
+	public static final int INDEX_CHUNK_COUNT = 6;
+	public static final String KEY_CHUNK_COMPONENTS = "component_mask";
+	public static final int INDEX_CHUNK_COMPONENTS = 7;
+	public static final String KEY_CHUNK_PAYLOAD = "payload";
+	public static final int INDEX_CHUNK_PAYLOAD = 8;
+	public static final String KEY_CHUNK_ENCODING = "encoding";	// one of the ChunkEncoder.ENCODING_XXX constants
+	public static final int INDEX_CHUNK_ENCODING = 9;
+	
+	public static final String[] CHUNK_KEYS_ALL = {
+		SensorDataDB.KEY_ROWID,
+		SensorDataDB.KEY_CHUNK_RECORDING,
+		SensorDataDB.KEY_CHUNK_SENSOR_TYPE,
+		SensorDataDB.KEY_CHUNK_SEQUENCE,
+		SensorDataDB.KEY_CHUNK_START_TIME,
+		SensorDataDB.KEY_CHUNK_END_TIME,
+		SensorDataDB.KEY_CHUNK_COUNT,
+		SensorDataDB.KEY_CHUNK_COMPONENTS,
+		SensorDataDB.KEY_CHUNK_PAYLOAD,
+		SensorDataDB.KEY_CHUNK_ENCODING
+	};
+	
+	// Field names of the statistics table. Each sensor of a recording has a row per recorded
+	// component, with the statistics of its values, and a STATS_COMPONENT_TIME row with the
+	// statistics of the intervals between samples in ns. Rate and gap count are per sensor
+	// and repeated in each of its rows.
+	
+	public static final int STATS_COMPONENT_TIME = -1;
+	public static final String KEY_STATS_RECORDING = "recording_id";
+	public static final int INDEX_STATS_RECORDING = 1;
+	public static final String KEY_STATS_SENSOR_TYPE = "sensor_type";
+	public static final int INDEX_STATS_SENSOR_TYPE = 2;
+	public static final String KEY_STATS_COMPONENT = "component";	// SensorEvent.values index or STATS_COMPONENT_TIME
+	public static final int INDEX_STATS_COMPONENT = 3;
+	public static final String KEY_STATS_COUNT = "sample_count";
+	public static final int INDEX_STATS_COUNT = 4;
+	public static final String KEY_STATS_MIN = "min_value";
+	public static final int INDEX_STATS_MIN = 5;
+	public static final String KEY_STATS_MAX = "max_value";
+	public static final int INDEX_STATS_MAX = 6;
+	public static final String KEY_STATS_MEAN = "mean";
+	public static final int INDEX_STATS_MEAN = 7;
+	public static final String KEY_STATS_VARIANCE = "variance";	// population variance
+	public static final int INDEX_STATS_VARIANCE = 8;
+	public static final String KEY_STATS_RATE = "rate";	// samples per second
+	public static final int INDEX_STATS_RATE = 9;
+	public static final String KEY_STATS_GAPS = "gap_count";
+	public static final int INDEX_STATS_GAPS = 10;
+	
+	public static final String[] STATS_KEYS_ALL = {
+		SensorDataDB.KEY_ROWID,
+		SensorDataDB.KEY_STATS_RECORDING,
+		SensorDataDB.KEY_STATS_SENSOR_TYPE,
+		SensorDataDB.KEY_STATS_COMPONENT,
+		SensorDataDB.KEY_STATS_COUNT,
+		SensorDataDB.KEY_STATS_MIN,
+		SensorDataDB.KEY_STATS_MAX,
+		SensorDataDB.KEY_STATS_MEAN,
+		SensorDataDB.KEY_STATS_VARIANCE,
+		SensorDataDB.KEY_STATS_RATE,
+		SensorDataDB.KEY_STATS_GAPS
+	};
+	
+	// Field names of the pyramid table: the blocks of buckets of each SamplePyramid level,
+	// laid out like the chunk table.
+	
+	public static final String KEY_PYRAMID_RECORDING = "recording_id";
+	public static final int INDEX_PYRAMID_RECORDING = 1;
+	public static final String KEY_PYRAMID_SENSOR_TYPE = "sensor_type";
+	public static final int INDEX_PYRAMID_SENSOR_TYPE = 2;
+	public static final String KEY_PYRAMID_LEVEL = "level";
+	public static final int INDEX_PYRAMID_LEVEL = 3;
+	public static final String KEY_PYRAMID_SEQUENCE = "seq";
+	public static final int INDEX_PYRAMID_SEQUENCE = 4;
+	public static final String KEY_PYRAMID_START_TIME = "start_time";
+	public static final int INDEX_PYRAMID_START_TIME = 5;
+	public static final String KEY_PYRAMID_END_TIME = "end_time";
+	public static final int INDEX_PYRAMID_END_TIME = 6;
+	public static final String KEY_PYRAMID_COUNT = "bucket_count";
+	public static final int INDEX_PYRAMID_COUNT = 7;
+	public static final String KEY_PYRAMID_COMPONENTS = "component_mask";
+	public static final int INDEX_PYRAMID_COMPONENTS = 8;
+	public static final String KEY_PYRAMID_PAYLOAD = "payload";
+	public static final int INDEX_PYRAMID_PAYLOAD = 9;
+	
+	public static final String[] PYRAMID_KEYS_ALL = {
+		SensorDataDB.KEY_ROWID,
+		SensorDataDB.KEY_PYRAMID_RECORDING,
+		SensorDataDB.KEY_PYRAMID_SENSOR_TYPE,
+		SensorDataDB.KEY_PYRAMID_LEVEL,
+		SensorDataDB.KEY_PYRAMID_SEQUENCE,
+		SensorDataDB.KEY_PYRAMID_START_TIME,
+		SensorDataDB.KEY_PYRAMID_END_TIME,
+		SensorDataDB.KEY_PYRAMID_COUNT,
+		SensorDataDB.KEY_PYRAMID_COMPONENTS,
+		SensorDataDB.KEY_PYRAMID_PAYLOAD
+	};
+	
+	// Field names of the metrics table: one row per metric of RecordingMetrics, by sensor
+	// (RecordingMetrics.PIPELINE for those of the whole recording) and name. A histogram
+	// has its MetricHistogram.encode() bytes and its number of values as the value.
+	
+	public static final String KEY_METRICS_RECORDING = "recording_id";
+	public static final int INDEX_METRICS_RECORDING = 1;
+	public static final String KEY_METRICS_SENSOR_TYPE = "sensor_type";
+	public static final int INDEX_METRICS_SENSOR_TYPE = 2;
+	public static final String KEY_METRICS_NAME = "name";	// one of the RecordingMetrics names
+	public static final int INDEX_METRICS_NAME = 3;
+	public static final String KEY_METRICS_VALUE = "value";
+	public static final int INDEX_METRICS_VALUE = 4;
+	public static final String KEY_METRICS_HISTOGRAM = "histogram";	// null unless a histogram
+	public static final int INDEX_METRICS_HISTOGRAM = 5;
+	
+	public static final String[] METRICS_KEYS_ALL = {
+		SensorDataDB.KEY_ROWID,
+		SensorDataDB.KEY_METRICS_RECORDING,
+		SensorDataDB.KEY_METRICS_SENSOR_TYPE,
+		SensorDataDB.KEY_METRICS_NAME,
+		SensorDataDB.KEY_METRICS_VALUE,
+		SensorDataDB.KEY_METRICS_HISTOGRAM
+	};
+	
+	// Statements compiled once per batch (insertChunks(), deleteRows(), writeRecording())
+	// and then only bound and executed for each row
+	private static final String CHUNK_INSERT =
+		"insert into " + CHUNK_TABLE + " (" +
+				KEY_CHUNK_RECORDING + ", " + KEY_CHUNK_SENSOR_TYPE + ", " + KEY_CHUNK_SEQUENCE + ", " +
+				KEY_CHUNK_START_TIME + ", " + KEY_CHUNK_END_TIME + ", " + KEY_CHUNK_COUNT + ", " +
+				KEY_CHUNK_COMPONENTS + ", " + KEY_CHUNK_PAYLOAD + ", " + KEY_CHUNK_ENCODING +
+		") values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
+	private static final String PYRAMID_INSERT =
+		"insert into " + PYRAMID_TABLE + " (" +
+				KEY_PYRAMID_RECORDING + ", " + KEY_PYRAMID_SENSOR_TYPE + ", " + KEY_PYRAMID_LEVEL + ", " +
+				KEY_PYRAMID_SEQUENCE + ", " + KEY_PYRAMID_START_TIME + ", " + KEY_PYRAMID_END_TIME + ", " +
+				KEY_PYRAMID_COUNT + ", " + KEY_PYRAMID_COMPONENTS + ", " + KEY_PYRAMID_PAYLOAD +
+		") values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
+	/* a recording and the rows that belong to it; the recording row goes last, see deleteRows() */
+	/* selections of the chunks of a sensor (recording, sensor type) and of those in a window (and start time bounds) */
+	private static final String CHUNK_SERIES = KEY_CHUNK_RECORDING + "=? AND " + KEY_CHUNK_SENSOR_TYPE + "=?";
+	private static final String CHUNK_WINDOW = CHUNK_SERIES + " AND " + KEY_CHUNK_START_TIME + ">=? AND " + KEY_CHUNK_START_TIME + "<?";
+	
+	private static final String[] RECORDING_DELETES = {
+		"delete from " + CHUNK_TABLE + " where " + KEY_CHUNK_RECORDING + "=?",
+		"delete from " + STATS_TABLE + " where " + KEY_STATS_RECORDING + "=?",
+		"delete from " + PYRAMID_TABLE + " where " + KEY_PYRAMID_RECORDING + "=?",
+		"delete from " + METRICS_TABLE + " where " + KEY_METRICS_RECORDING + "=?",
+		"delete from " + DATABASE_TABLE + " where " + KEY_ROWID + "=?"
 	};
+	
+	/* PRAGMA auto_vacuum mode in which reclaimSpace() can free a few pages at a time */
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+	
+	/* rows changed by the last insert, update or delete; executeUpdateDelete() is API 11 */
+	private static final String CHANGES_QUERY = "select changes()";
 
 
 	private Context mContext;
@@ -79,7 +304,9 @@ public class SensorDataDB {
 
 	/** Closes the database connection. Operations are not valid after this. */
 	public void close() {
-		mHelper.close();
+		if (mHelper != null) {	// open() may have failed
+			mHelper.close();
+		}
 		mHelper = null;
 		mDatabase = null;
 	}
@@ -99,35 +326,1020 @@ public class SensorDataDB {
 	 Returns true if there was a change (i.e. the rowid was valid).
 	 */
 	public boolean updateRow(long rowId, ContentValues values) {
-		return mDatabase.update(DATABASE_TABLE, values,
-				SensorDataDB.KEY_ROWID + "=" + rowId, null) > 0;
+		return updateRows(new long[] { rowId }, values) > 0;
+	}
+	
+	/**
+	 Updates each of the given rowids with the same values, in one transaction and with one
+	 compiled statement. Returns the number of rows changed.
+	 */
+	public int updateRows(long[] rowIds, ContentValues values) {
+		StringBuilder sql = new StringBuilder("update " + DATABASE_TABLE + " set ");
+		List<Object> arguments = new ArrayList<Object>(values.size());
+		for (Map.Entry<String, Object> value : values.valueSet()) {
+			if (!arguments.isEmpty()) {
+				sql.append(", ");
+			}
+			sql.append(value.getKey()).append("=?");
+			arguments.add(value.getValue());
+		}
+		sql.append(" where " + KEY_ROWID + "=?");
+		
+		long started = System.nanoTime();
+		int changed = 0;
+		mDatabase.beginTransaction();
+		SQLiteStatement update = mDatabase.compileStatement(sql.toString());
+		SQLiteStatement changes = mDatabase.compileStatement(CHANGES_QUERY);
+		try {
+			for (int i = 0; i < arguments.size(); i++) {
+				DatabaseUtils.bindObjectToProgram(update, i + 1, arguments.get(i));
+			}
+			for (long rowId : rowIds) {
+				update.bindLong(arguments.size() + 1, rowId);
+				update.execute();
+				changed += changes.simpleQueryForLong();
+			}
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			update.close();
+			changes.close();
+			mDatabase.endTransaction();
+		}
+		logBatch("Updated", rowIds.length, "recordings", started);
+		return changed;
 	}
 
 	/**
-	 Deletes the given rowid.
+	 Deletes the given rowid, along with its sample chunks, statistics and pyramid.
 	 Returns true if any rows were deleted (i.e. the id was valid).
 	*/
 	public boolean deleteRow(long rowId) {
-		return mDatabase.delete(DATABASE_TABLE,
-				SensorDataDB.KEY_ROWID + "=" + rowId, null) > 0;
+		return deleteRows(new long[] { rowId }) > 0;
+	}
+	
+	/**
+	 Deletes the given rowids with their chunks, statistics and pyramids, in one transaction
+	 and with one compiled statement per table. Returns the number of recordings deleted.
+	 */
+	public int deleteRows(long[] rowIds) {
+		long started = System.nanoTime();
+		int deleted = 0;
+		SQLiteStatement[] deletes = new SQLiteStatement[RECORDING_DELETES.length];
+		mDatabase.beginTransaction();
+		SQLiteStatement changes = mDatabase.compileStatement(CHANGES_QUERY);
+		try {
+			for (int i = 0; i < deletes.length; i++) {
+				deletes[i] = mDatabase.compileStatement(RECORDING_DELETES[i]);
+			}
+			for (long rowId : rowIds) {
+				for (SQLiteStatement delete : deletes) {
+					delete.bindLong(1, rowId);
+					delete.execute();
+				}
+				deleted += changes.simpleQueryForLong();	// of the recording row
+			}
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			for (SQLiteStatement delete : deletes) {
+				if (delete != null) {
+					delete.close();
+				}
+			}
+			changes.close();
+			mDatabase.endTransaction();
+		}
+		logBatch("Deleted", rowIds.length, "recordings", started);
+		return deleted;
+	}
+	
+	/** Number of bytes in free pages of the database file, e.g. left behind by deleted recordings. */
+	public long getFreeBytes() {
+		return pragma(mDatabase, "freelist_count") * pragma(mDatabase, "page_size");
+	}
+	
+	/**
+	 * Returns up to maxPages free pages to the file system, shrinking the database file, and
+	 * returns the number of bytes freed. A database created before incremental vacuum was
+	 * switched on is converted with a full VACUUM the first time, which frees all its free pages
+	 * at once and can take a while. Writes on other connections wait for a step, so call this
+	 * off the UI thread, on a connection of its own, in small steps and not while recording.
+	 * Must not be called within a transaction.
+	 */
+	public long reclaimSpace(int maxPages) {
+		long pageSize = pragma(mDatabase, "page_size");
+		long pageCount = pragma(mDatabase, "page_count");
+		if (pragma(mDatabase, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+			// the mode of a database with tables only changes with a VACUUM
+			mDatabase.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+			mDatabase.execSQL("VACUUM");
+		} else {
+			// frees a page per step, so it has to be read to the end
+			Cursor cursor = mDatabase.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+			try {
+				while (cursor.moveToNext()) {
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		return (pageCount - pragma(mDatabase, "page_count")) * pageSize;
+	}
+	
+	/** Value of a numeric PRAGMA. */
+	private static long pragma(SQLiteDatabase database, String name) {
+		return DatabaseUtils.longForQuery(database, "PRAGMA " + name, null);
+	}
+	
+	/** Logs how long a batch that started at the given System.nanoTime() took, and its rate. */
+	private static void logBatch(String operation, int rows, String what, long started) {
+		long elapsed = System.nanoTime() - started;
+		Log.v(MainMenuActivity.LOG_TAG, operation + " " + rows + " " + what + " in " + elapsed / 1000 + " us ("
+				+ (elapsed > 0 ? rows * 1000000000L / elapsed : 0) + "/s)");
+	}
+	
+	/**
+	 Creates a recording row from the given values and stores the recording's samples
+	 in the chunk table, in one transaction.
+	 Returns the rowid of the new row, or -1 on error.
+	 */
+	public long createRecording(ContentValues values, SensorRecording recording) {
+		mDatabase.beginTransaction();
+		try {
+			long rowId = mDatabase.insert(DATABASE_TABLE, null, values);
+			if (rowId != -1) {
+				writeRecording(mDatabase, rowId, recording);
+				updateSummary(mDatabase, rowId);
+				mDatabase.setTransactionSuccessful();
+			}
+			return rowId;
+		} finally {
+			mDatabase.endTransaction();
+		}
+	}
+	
+	/**
+	 Marks a recording that was being written while recording as complete, sets its
+	 title and notes and stores its summary. Returns true if the rowid was valid.
+	 */
+	public boolean finishRecording(long rowId, String title, String notes) {
+		return finishRecording(rowId, title, notes, new SampleStatistics[0]);
+	}
+	
+	/**
+	 Same as finishRecording(long, String, String), also storing the statistics of each
+	 sensor, as computed while recording (see StreamingRecorder.getStatistics()).
+	 */
+	public boolean finishRecording(long rowId, String title, String notes, SampleStatistics[] statistics) {
+		return finishRecording(rowId, title, notes, statistics, null);
+	}
+	
+	/**
+	 Same as finishRecording(long, String, String, SampleStatistics[]), also storing the
+	 metrics of the recording pipeline if not null.
+	 */
+	public boolean finishRecording(long rowId, String title, String notes, SampleStatistics[] statistics,
+			RecordingMetrics metrics) {
+		ContentValues values = createContentValues(title, notes);
+		values.put(SensorDataDB.KEY_STATE, STATE_COMPLETE);
+		mDatabase.beginTransaction();
+		try {
+			boolean updated = updateRow(rowId, values) && updateSummary(mDatabase, rowId);
+			if (updated) {
+				mDatabase.delete(STATS_TABLE, KEY_STATS_RECORDING + "=?", args(rowId));
+				for (SampleStatistics sensorStatistics : statistics) {
+					insertStatistics(mDatabase, rowId, sensorStatistics);
+				}
+				mDatabase.delete(METRICS_TABLE, KEY_METRICS_RECORDING + "=?", args(rowId));
+				if (metrics != null) {
+					insertMetrics(mDatabase, rowId, metrics);
+				}
+			}
+			mDatabase.setTransactionSuccessful();
+			return updated;
+		} finally {
+			mDatabase.endTransaction();
+		}
+	}
+	
+	/**
+	 Stores the summary columns of a recording (duration, sample counts), computed from the
+	 metadata of its chunks without reading any samples. Returns true if the rowid was valid.
+	 */
+	private static boolean updateSummary(SQLiteDatabase database, long rowId) {
+		Cursor cursor = database.query(CHUNK_TABLE,
+				new String[] { KEY_CHUNK_SENSOR_TYPE, "SUM(" + KEY_CHUNK_COUNT + ")",
+						"MIN(" + KEY_CHUNK_START_TIME + ")", "MAX(" + KEY_CHUNK_END_TIME + ")" },
+				KEY_CHUNK_RECORDING + "=?",
+				args(rowId), KEY_CHUNK_SENSOR_TYPE, null, KEY_CHUNK_SENSOR_TYPE);
+		long total = 0;
+		long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+		StringBuilder counts = new StringBuilder();
+		try {
+			while (cursor.moveToNext()) {
+				long count = cursor.getLong(1);
+				if (counts.length() > 0) {
+					counts.append(' ');
+				}
+				counts.append(cursor.getInt(0)).append(':').append(count);
+				total += count;
+				first = Math.min(first, cursor.getLong(2));
+				last = Math.max(last, cursor.getLong(3));
+			}
+		} finally {
+			cursor.close();
+		}
+		ContentValues values = new ContentValues();
+		values.put(SensorDataDB.KEY_DURATION, total > 0 ? last - first : 0);
+		values.put(SensorDataDB.KEY_SAMPLE_COUNT, total);
+		values.put(SensorDataDB.KEY_SAMPLE_COUNTS, counts.toString());
+		return database.update(DATABASE_TABLE, values, KEY_ROWID + "=?", args(rowId)) > 0;
+	}
+	
+	/**
+	 Turns recordings that were left in STATE_RECORDING (i.e. the app died while recording)
+	 into STATE_RECOVERED entries, giving untitled ones a title. The recording that is
+	 still being captured, activeRecordingId (-1 if none), is left alone.
+	 Returns the number of recovered recordings.
+	 */
+	public int recoverUnfinishedRecordings(long activeRecordingId) {
+		String unfinished = SensorDataDB.KEY_STATE + "=? AND " + SensorDataDB.KEY_ROWID + "<>?";
+		String[] unfinishedArgs = args(STATE_RECORDING, activeRecordingId);
+		ContentValues values = new ContentValues();
+		values.put(SensorDataDB.KEY_STATE, STATE_RECOVERED);
+		ContentValues untitledValues = new ContentValues();
+		untitledValues.put(SensorDataDB.KEY_STATE, STATE_RECOVERED);
+		untitledValues.put(SensorDataDB.KEY_TITLE, RECOVERED_TITLE);
+		
+		mDatabase.beginTransaction();
+		try {
+			Cursor ids = mDatabase.query(DATABASE_TABLE, new String[] { KEY_ROWID },
+					unfinished, unfinishedArgs, null, null, null);
+			try {
+				while (ids.moveToNext()) {
+					updateSummary(mDatabase, ids.getLong(0));
+					// the last pyramid blocks were never written; buildMissingPyramids() rebuilds it
+					mDatabase.delete(PYRAMID_TABLE, KEY_PYRAMID_RECORDING + "=?", args(ids.getLong(0)));
+				}
+			} finally {
+				ids.close();
+			}
+			int recovered = mDatabase.update(DATABASE_TABLE, untitledValues,
+					unfinished + " AND " + SensorDataDB.KEY_TITLE + "=''", unfinishedArgs);
+			recovered += mDatabase.update(DATABASE_TABLE, values, unfinished, unfinishedArgs);
+			mDatabase.setTransactionSuccessful();
+			return recovered;
+		} finally {
+			mDatabase.endTransaction();
+		}
+	}
+	
+	/**
+	 * Stores one chunk of samples of the given recording, waiting a little for the lock if
+	 * another connection holds it (insertWaiting()). Returns the chunk's rowid.
+	 * @throws SQLException if the chunk could not be stored
+	 */
+	public long insertChunk(long recordingId, SampleChunk chunk) {
+		ChunkEncoder encoder = new ChunkEncoder(ChunkEncoder.DEFAULT_LEVEL);
+		return insertChunk(mDatabase, recordingId, chunk, encoder.encode(chunk), encoder.getEncoding());
+	}
+	
+	/**
+	 * Same as insertChunk(long, SampleChunk), with the chunk already encoded, e.g. by a ChunkEncoder.
+	 * @param encoding ChunkEncoder.ENCODING_XXX constant of the payload
+	 */
+	public long insertChunk(long recordingId, SampleChunk chunk, byte[] payload, int encoding) {
+		return insertChunk(mDatabase, recordingId, chunk, payload, encoding);
+	}
+	
+	private static long insertChunk(SQLiteDatabase database, long recordingId, SampleChunk chunk, byte[] payload, int encoding) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_CHUNK_RECORDING, recordingId);
+		values.put(KEY_CHUNK_SENSOR_TYPE, chunk.getSensorType());
+		values.put(KEY_CHUNK_SEQUENCE, chunk.getSequence());
+		values.put(KEY_CHUNK_START_TIME, chunk.getStartTime());
+		values.put(KEY_CHUNK_END_TIME, chunk.getEndTime());
+		values.put(KEY_CHUNK_COUNT, chunk.getCount());
+		values.put(KEY_CHUNK_COMPONENTS, componentMask(chunk.getComponentIndices()));
+		values.put(KEY_CHUNK_PAYLOAD, payload);
+		values.put(KEY_CHUNK_ENCODING, encoding);
+		return insertWaiting(database, CHUNK_TABLE, values);
+	}
+	
+	/**
+	 * Encodes chunks of samples of the given recording at a ChunkEncoder level and stores
+	 * them in one transaction, with one compiled statement; all or none are stored.
+	 * Returns the number of chunks stored.
+	 * @throws SQLException if a chunk could not be stored
+	 */
+	public int insertChunks(long recordingId, List<SampleChunk> chunks, int compressionLevel) {
+		long started = System.nanoTime();
+		ChunkEncoder encoder = new ChunkEncoder(compressionLevel);
+		mDatabase.beginTransaction();
+		SQLiteStatement insert = mDatabase.compileStatement(CHUNK_INSERT);
+		try {
+			for (SampleChunk chunk : chunks) {
+				byte[] payload = encoder.encode(chunk);
+				insertChunk(insert, recordingId, chunk, payload, encoder.getEncoding());
+			}
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			insert.close();
+			mDatabase.endTransaction();
+		}
+		logBatch("Inserted", chunks.size(), "chunks", started);
+		return chunks.size();
+	}
+	
+	/** Binds a chunk to a compiled CHUNK_INSERT and executes it. Returns the chunk's rowid. */
+	private static long insertChunk(SQLiteStatement insert, long recordingId, SampleChunk chunk, byte[] payload, int encoding) {
+		insert.bindLong(1, recordingId);
+		insert.bindLong(2, chunk.getSensorType());
+		insert.bindLong(3, chunk.getSequence());
+		insert.bindLong(4, chunk.getStartTime());
+		insert.bindLong(5, chunk.getEndTime());
+		insert.bindLong(6, chunk.getCount());
+		insert.bindLong(7, componentMask(chunk.getComponentIndices()));
+		insert.bindBlob(8, payload);
+		insert.bindLong(9, encoding);
+		long rowId = insert.executeInsert();
+		if (rowId == -1) {
+			throw new SQLException("Could not insert chunk " + chunk.getSequence() + " of sensor " + chunk.getSensorType());
+		}
+		return rowId;
+	}
+	
+	/** Stores all samples of a recording as chunks of the given recording row, in one transaction. */
+	public void writeRecording(long recordingId, SensorRecording recording) {
+		mDatabase.beginTransaction();
+		try {
+			writeRecording(mDatabase, recordingId, recording);
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			mDatabase.endTransaction();
+		}
+	}
+	
+	private static void writeRecording(SQLiteDatabase database, long recordingId, SensorRecording recording) {
+		ChunkEncoder encoder = new ChunkEncoder(ChunkEncoder.DEFAULT_LEVEL);
+		SQLiteStatement chunkInsert = database.compileStatement(CHUNK_INSERT);
+		SQLiteStatement pyramidInsert = database.compileStatement(PYRAMID_INSERT);
+		try {
+			for (int sensorType : recording.getSensorTypes()) {
+				SensorSampleBuffer buffer = recording.getBuffer(sensorType);
+				SampleChunk chunk = new SampleChunk(sensorType, componentIndices(buffer), CHUNK_SIZE);
+				SampleStatistics statistics = new SampleStatistics(sensorType, chunk.getComponentIndices());
+				SamplePyramid pyramid = new SamplePyramid(sensorType, chunk.getComponentIndices(),
+						pyramidSink(pyramidInsert, recordingId));
+				try {
+					for (int from = 0, seq = 0; from < buffer.size(); from += CHUNK_SIZE, seq++) {
+						chunk.copyFrom(buffer, from, Math.min(CHUNK_SIZE, buffer.size() - from), seq);
+						byte[] payload = encoder.encode(chunk);
+						insertChunk(chunkInsert, recordingId, chunk, payload, encoder.getEncoding());
+						statistics.add(chunk);
+						pyramid.add(chunk);
+					}
+					pyramid.finish();
+				} catch (IOException e) {
+					throw new SQLException("Could not store pyramid: " + e.getMessage());
+				}
+				insertStatistics(database, recordingId, statistics);
+			}
+		} finally {
+			chunkInsert.close();
+			pyramidInsert.close();
+		}
+	}
+	
+	/**
+	 * Stores one block of a recording's pyramid, waiting a little for the lock like
+	 * insertChunk(). Returns the block's rowid.
+	 * @throws SQLException if the block could not be stored
+	 */
+	public long insertPyramidBlock(long recordingId, PyramidBlock block) {
+		return insertPyramidBlock(mDatabase, recordingId, block);
+	}
+	
+	private static long insertPyramidBlock(SQLiteDatabase database, long recordingId, PyramidBlock block) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_PYRAMID_RECORDING, recordingId);
+		values.put(KEY_PYRAMID_SENSOR_TYPE, block.getSensorType());
+		values.put(KEY_PYRAMID_LEVEL, block.getLevel());
+		values.put(KEY_PYRAMID_SEQUENCE, block.getSequence());
+		values.put(KEY_PYRAMID_START_TIME, block.getStartTime());
+		values.put(KEY_PYRAMID_END_TIME, block.getEndTime());
+		values.put(KEY_PYRAMID_COUNT, block.getCount());
+		values.put(KEY_PYRAMID_COMPONENTS, componentMask(block.getComponentIndices()));
+		values.put(KEY_PYRAMID_PAYLOAD, SensorRecordingCodec.encodePyramidBlock(block));
+		return insertWaiting(database, PYRAMID_TABLE, values);
+	}
+	
+	/**
+	 * Inserts a row, throwing if it cannot be. While another connection holds the lock, e.g.
+	 * one deleting or vacuuming, the insert alone is tried again (INSERT_ATTEMPTS), so a
+	 * recording is not lost to a short conflict. Before Android 3.0 a lock is not told apart
+	 * from other errors and is not waited for.
+	 */
+	private static long insertWaiting(SQLiteDatabase database, String table, ContentValues values) {
+		if (Build.VERSION.SDK_INT >= 11) {	// HONEYCOMB
+			return LockWaiter.insert(database, table, values);
+		}
+		return database.insertOrThrow(table, null, values);
+	}
+	
+	/** Kept apart so SQLiteDatabaseLockedException (API 11) is only loaded where it exists. */
+	private static class LockWaiter {
+		static long insert(SQLiteDatabase database, String table, ContentValues values) {
+			long delay = RETRY_DELAY_MS;
+			for (int attempt = 1; ; attempt++) {
+				try {
+					return database.insertOrThrow(table, null, values);
+				} catch (SQLiteDatabaseLockedException e) {
+					if (attempt == INSERT_ATTEMPTS) {
+						throw e;
+					}
+				}
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted waiting for the database lock");
+				}
+				delay *= 2;
+			}
+		}
+	}
+	
+	/** A SamplePyramid.Sink that stores the blocks as pyramid rows of the given recording. */
+	public SamplePyramid.Sink pyramidSink(long recordingId) {
+		return pyramidSink(mDatabase, recordingId);
+	}
+	
+	private static SamplePyramid.Sink pyramidSink(final SQLiteDatabase database, final long recordingId) {
+		return new SamplePyramid.Sink() {
+			@Override
+			public void writeBlock(PyramidBlock block) throws IOException {
+				try {
+					insertPyramidBlock(database, recordingId, block);
+				} catch (SQLException e) {
+					IOException error = blockError(block);
+					error.initCause(e);
+					throw error;
+				}
+			}
+		};
+	}
+	
+	/** Same as pyramidSink(long), for a batch: binds the blocks to a compiled PYRAMID_INSERT. */
+	private static SamplePyramid.Sink pyramidSink(final SQLiteStatement insert, final long recordingId) {
+		return new SamplePyramid.Sink() {
+			@Override
+			public void writeBlock(PyramidBlock block) throws IOException {
+				insert.bindLong(1, recordingId);
+				insert.bindLong(2, block.getSensorType());
+				insert.bindLong(3, block.getLevel());
+				insert.bindLong(4, block.getSequence());
+				insert.bindLong(5, block.getStartTime());
+				insert.bindLong(6, block.getEndTime());
+				insert.bindLong(7, block.getCount());
+				insert.bindLong(8, componentMask(block.getComponentIndices()));
+				insert.bindBlob(9, SensorRecordingCodec.encodePyramidBlock(block));
+				if (insert.executeInsert() == -1) {
+					throw blockError(block);
+				}
+			}
+		};
+	}
+	
+	private static IOException blockError(PyramidBlock block) {
+		return new IOException("Could not insert level " + block.getLevel() + " block " + block.getSequence()
+				+ " of sensor " + block.getSensorType());
+	}
+	
+	/**
+	 * Builds the pyramids of the recordings that have samples but none, e.g. ones stored before
+	 * the pyramid table existed or recovered ones whose pyramid was cut off, each in its own
+	 * transaction. Reads every sample of them, so call it off the UI thread. Recordings still
+	 * in STATE_RECORDING are left alone, since a writer may be adding to them.
+	 * @return number of recordings that got a pyramid
+	 */
+	public int buildMissingPyramids() throws IOException {
+		Cursor ids = mDatabase.rawQuery("SELECT DISTINCT " + KEY_CHUNK_RECORDING + " FROM " + CHUNK_TABLE
+				+ " WHERE " + KEY_CHUNK_RECORDING + " NOT IN (SELECT " + KEY_PYRAMID_RECORDING + " FROM " + PYRAMID_TABLE + ")", null);
+		long[] recordingIds;
+		try {
+			recordingIds = new long[ids.getCount()];
+			for (int i = 0; ids.moveToNext(); i++) {
+				recordingIds[i] = ids.getLong(0);
+			}
+		} finally {
+			ids.close();
+		}
+		int built = 0;
+		for (long recordingId : recordingIds) {
+			if (buildPyramid(recordingId)) {
+				built++;
+			}
+		}
+		return built;
+	}
+	
+	/**
+	 * (Re)builds the pyramid of a recording from its chunks, one chunk in memory at a time,
+	 * in one transaction. For recordings stored before the pyramid table existed, or
+	 * recovered ones whose pyramid was cut off. A recording in STATE_RECORDING is not
+	 * touched, since its writer may still be adding chunks and pyramid blocks.
+	 * @return false if the recording is being recorded or does not exist
+	 */
+	public boolean buildPyramid(long recordingId) throws IOException {
+		mDatabase.beginTransaction();
+		SQLiteStatement insert = mDatabase.compileStatement(PYRAMID_INSERT);
+		try {
+			Cursor row = mDatabase.query(DATABASE_TABLE, new String[] { KEY_STATE },
+					KEY_ROWID + "=?", args(recordingId), null, null, null);
+			try {
+				if (!row.moveToFirst() || row.getInt(0) == STATE_RECORDING) {
+					return false;
+				}
+			} finally {
+				row.close();
+			}
+			mDatabase.delete(PYRAMID_TABLE, KEY_PYRAMID_RECORDING + "=?", args(recordingId));
+			Cursor chunks = mDatabase.query(CHUNK_TABLE, CHUNK_KEYS_ALL,
+					KEY_CHUNK_RECORDING + "=?",
+					args(recordingId), null, null,
+					KEY_CHUNK_SENSOR_TYPE + "," + KEY_CHUNK_SEQUENCE);
+			try {
+				SampleChunk chunk = null;
+				SamplePyramid pyramid = null;
+				while (chunks.moveToNext()) {
+					int sensorType = chunks.getInt(INDEX_CHUNK_SENSOR_TYPE);
+					if (chunk == null || chunk.getSensorType() != sensorType) {
+						if (pyramid != null) {
+							pyramid.finish();
+						}
+						chunk = readChunk(chunks, null);
+						pyramid = new SamplePyramid(sensorType, chunk.getComponentIndices(), pyramidSink(insert, recordingId));
+					} else {
+						chunk = readChunk(chunks, chunk);
+					}
+					pyramid.add(chunk);
+				}
+				if (pyramid != null) {
+					pyramid.finish();
+				}
+			} finally {
+				chunks.close();
+			}
+			mDatabase.setTransactionSuccessful();
+			return true;
+		} finally {
+			insert.close();
+			mDatabase.endTransaction();
+		}
+	}
+	
+	/** Stores the statistics of one sensor of a recording: a time row and a row per component. */
+	private static void insertStatistics(SQLiteDatabase database, long recordingId, SampleStatistics statistics) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_STATS_RECORDING, recordingId);
+		values.put(KEY_STATS_SENSOR_TYPE, statistics.getSensorType());
+		values.put(KEY_STATS_COUNT, statistics.getCount());
+		values.put(KEY_STATS_RATE, statistics.getRate());
+		values.put(KEY_STATS_GAPS, statistics.getGapCount());
+		
+		values.put(KEY_STATS_COMPONENT, STATS_COMPONENT_TIME);
+		values.put(KEY_STATS_MIN, statistics.getIntervalMin());
+		values.put(KEY_STATS_MAX, statistics.getIntervalMax());
+		values.put(KEY_STATS_MEAN, statistics.getIntervalMean());
+		values.put(KEY_STATS_VARIANCE, statistics.getIntervalVariance());
+		database.insert(STATS_TABLE, null, values);
+		
+		int[] componentIndices = statistics.getComponentIndices();
+		for (int slot = 0; slot < componentIndices.length; slot++) {
+			values.put(KEY_STATS_COMPONENT, componentIndices[slot]);
+			values.put(KEY_STATS_MIN, statistics.getMin(slot));
+			values.put(KEY_STATS_MAX, statistics.getMax(slot));
+			values.put(KEY_STATS_MEAN, statistics.getMean(slot));
+			values.put(KEY_STATS_VARIANCE, statistics.getVariance(slot));
+			database.insert(STATS_TABLE, null, values);
+		}
 	}
 
 	
-	/** Returns a cursor for all the rows. Caller should close or manage the cursor. */
+	/** Stores the metrics of a recording, a row each. */
+	private static void insertMetrics(final SQLiteDatabase database, final long recordingId, RecordingMetrics metrics) {
+		final ContentValues values = new ContentValues();
+		values.put(KEY_METRICS_RECORDING, recordingId);
+		metrics.report(new RecordingMetrics.Reporter() {
+			@Override
+			public void value(int sensorType, String name, double value) {
+				values.put(KEY_METRICS_SENSOR_TYPE, sensorType);
+				values.put(KEY_METRICS_NAME, name);
+				values.put(KEY_METRICS_VALUE, value);
+				values.putNull(KEY_METRICS_HISTOGRAM);
+				database.insert(METRICS_TABLE, null, values);
+			}
+			
+			@Override
+			public void histogram(int sensorType, String name, MetricHistogram histogram) {
+				values.put(KEY_METRICS_SENSOR_TYPE, sensorType);
+				values.put(KEY_METRICS_NAME, name);
+				values.put(KEY_METRICS_VALUE, histogram.getCount());
+				values.put(KEY_METRICS_HISTOGRAM, histogram.encode());
+				database.insert(METRICS_TABLE, null, values);
+			}
+		});
+	}
+	
+	/**
+	 * Returns a cursor for all the rows, with the LIST_KEYS columns (no sample data).
+	 * Caller should close or manage the cursor.
+	 */
 	public Cursor queryAll() {
 		return mDatabase.query(DATABASE_TABLE,
-			KEYS_ALL,  // i.e. return all 4 columns 
+			LIST_KEYS,
 			null, null, null, null,
 			SensorDataDB.KEY_TIMESTAMP + " DESC"  // order-by, "DESC" for descending
 		);
 	}
+	
+	/**
+	 * Returns a cursor over at most limit recordings that come after the given one in the
+	 * list order (newest first), with the LIST_KEYS columns. Pass Long.MAX_VALUE for both to
+	 * get the first page, then the timestamp and rowid of the last row for the next page.
+	 * This walks the timestamp index from the given position, so every page costs the same
+	 * however far down the list it is. Caller should close or manage the cursor.
+	 */
+	public Cursor queryPage(long afterTimestamp, long afterRowId, int limit) {
+		return mDatabase.query(DATABASE_TABLE,
+			LIST_KEYS,
+			KEY_TIMESTAMP + "<=? AND (" + KEY_TIMESTAMP + "<? OR " + KEY_ROWID + "<?)",
+			args(afterTimestamp, afterTimestamp, afterRowId), null, null,
+			KEY_TIMESTAMP + " DESC, " + KEY_ROWID + " DESC",
+			Integer.toString(limit));
+	}
+
+	/**
+	 * Returns a cursor over the chunks of one sensor of a recording that overlap the
+	 * time window [startTime, endTime), in time order; the first one may end just before
+	 * the window. Uses the (recording, sensor, start time) index, so the cost does not
+	 * depend on where the window is in the recording. Caller should close or manage the cursor.
+	 */
+	public Cursor queryChunks(long recordingId, int sensorType, long startTime, long endTime) {
+		return mDatabase.query(CHUNK_TABLE, CHUNK_KEYS_ALL,
+			CHUNK_WINDOW, chunkWindowArgs(recordingId, sensorType, startTime, endTime),
+			null, null,
+			KEY_CHUNK_START_TIME);
+	}
+	
+	/**
+	 * Returns the samples of one sensor of a recording in the time window [startTime, endTime)
+	 * as a SampleRange that streams them a chunk at a time. Caller must close the range.
+	 * @param componentIndices SensorEvent.values indices to read, or null for all recorded ones
+	 */
+	public SampleRange queryRange(long recordingId, int sensorType, int[] componentIndices,
+			long startTime, long endTime) {
+		return new SampleRange(queryChunks(recordingId, sensorType, startTime, endTime),
+				componentIndices, startTime, endTime);
+	}
+	
+	/**
+	 * Reads the samples of one sensor of a recording in the time window [startTime, endTime)
+	 * into a SensorSampleBuffer, whose columns can be copied out as primitive arrays.
+	 * @param componentIndices SensorEvent.values indices to read, or null for all recorded ones
+	 */
+	public SensorSampleBuffer readRange(long recordingId, int sensorType, int[] componentIndices,
+			long startTime, long endTime) throws IOException {
+		SampleRange range = queryRange(recordingId, sensorType, componentIndices, startTime, endTime);
+		try {
+			SensorSampleBuffer buffer = null;
+			long[] times = new long[CHUNK_SIZE];
+			float[][] columns = new float[0][];
+			while (range.next()) {
+				if (buffer == null) {
+					buffer = new SensorSampleBuffer(sensorType, range.getComponentIndices());
+					columns = new float[buffer.getComponentCount()][CHUNK_SIZE];
+				}
+				for (int done = 0; done < range.getLength(); done += CHUNK_SIZE) {
+					int n = Math.min(CHUNK_SIZE, range.getLength() - done);
+					System.arraycopy(range.getTimestamps(), range.getOffset() + done, times, 0, n);
+					for (int i = 0; i < columns.length; i++) {
+						System.arraycopy(range.getValues(i), range.getOffset() + done, columns[i], 0, n);
+					}
+					buffer.appendBlock(times, columns, n);
+				}
+			}
+			if (buffer == null) {
+				buffer = new SensorSampleBuffer(sensorType, componentIndices != null ? componentIndices : new int[0]);
+			}
+			return buffer;
+		} finally {
+			range.close();
+		}
+	}
+	
+	/**
+	 * Returns a cursor with one row per sensor of a recording: sensor type, component mask
+	 * and total number of samples. Only reads chunk metadata, not sample data.
+	 */
+	public Cursor querySampleCounts(long recordingId) {
+		return mDatabase.query(CHUNK_TABLE,
+			new String[] { KEY_CHUNK_SENSOR_TYPE, KEY_CHUNK_COMPONENTS, "SUM(" + KEY_CHUNK_COUNT + ")" },
+			KEY_CHUNK_RECORDING + "=?",
+			args(recordingId), KEY_CHUNK_SENSOR_TYPE + "," + KEY_CHUNK_COMPONENTS, null,
+			KEY_CHUNK_SENSOR_TYPE);
+	}
+	
+	/**
+	 * Returns a cursor over the statistics rows of a recording (STATS_KEYS_ALL), by sensor and
+	 * component, the STATS_COMPONENT_TIME row first. Empty if the recording has no statistics,
+	 * e.g. it was recovered. Caller should close or manage the cursor.
+	 */
+	public Cursor queryStatistics(long recordingId) {
+		return mDatabase.query(STATS_TABLE, STATS_KEYS_ALL,
+			KEY_STATS_RECORDING + "=?",
+			args(recordingId), null, null,
+			KEY_STATS_SENSOR_TYPE + "," + KEY_STATS_COMPONENT);
+	}
+	
+	/**
+	 * Returns a cursor over the metrics rows of a recording (METRICS_KEYS_ALL), by sensor,
+	 * RecordingMetrics.PIPELINE first. Empty if the recording has none, e.g. it was recorded
+	 * before they were kept. Caller should close or manage the cursor.
+	 */
+	public Cursor queryMetrics(long recordingId) {
+		return mDatabase.query(METRICS_TABLE, METRICS_KEYS_ALL,
+			KEY_METRICS_RECORDING + "=?",
+			args(recordingId), null, null,
+			KEY_METRICS_SENSOR_TYPE + "," + KEY_ROWID);
+	}
+	
+	/**
+	 * Returns one component of a sensor over the time window [startTime, endTime) with about
+	 * targetPoints points or fewer, e.g. one per pixel of a plot: the raw samples if there
+	 * are few enough, otherwise the finest SamplePyramid level that has at most targetPoints
+	 * buckets in the window. If even the coarsest level has more, its buckets are merged down
+	 * to targetPoints (DownsampledSeries.reduce()). The level is picked from the chunk
+	 * metadata, so the work depends on targetPoints, not on the length of the recording.
+	 *
+	 * A sensor without a pyramid (not built yet, see buildMissingPyramids(), or still being
+	 * recorded) is downsampled from its samples instead, which reads all of them in the
+	 * window; nothing is written. Call this off the UI thread.
+	 * @param component SensorEvent.values index
+	 * @return the points, empty if the component was not recorded
+	 */
+	public DownsampledSeries queryDownsampled(long recordingId, int sensorType, int component,
+			long startTime, long endTime, int targetPoints) throws IOException {
+		long samples = 0;
+		Cursor counts = mDatabase.query(CHUNK_TABLE, new String[] { "SUM(" + KEY_CHUNK_COUNT + ")" },
+				CHUNK_WINDOW, chunkWindowArgs(recordingId, sensorType, startTime, endTime), null, null, null);
+		try {
+			if (counts.moveToFirst()) {
+				samples = counts.getLong(0);
+			}
+		} finally {
+			counts.close();
+		}
+		int level = 0;
+		for (long points = samples; level < SamplePyramid.LEVELS && points > targetPoints; level++) {
+			points /= SamplePyramid.FACTOR;
+		}
+		if (level == 0) {
+			return readRawSeries(recordingId, sensorType, component, startTime, endTime, (int) samples, 1);
+		}
+		if (!hasPyramid(recordingId, sensorType)) {
+			int perPoint = (int) Math.min(Integer.MAX_VALUE, (samples + targetPoints - 1) / targetPoints);
+			return readRawSeries(recordingId, sensorType, component, startTime, endTime, targetPoints, perPoint);
+		}
+		DownsampledSeries series = new DownsampledSeries(level, targetPoints);
+		String levelRows = KEY_PYRAMID_RECORDING + "=? AND " + KEY_PYRAMID_SENSOR_TYPE + "=? AND " + KEY_PYRAMID_LEVEL + "=?";
+		String[] levelArgs = args(recordingId, sensorType, level);
+		Cursor blocks = mDatabase.query(PYRAMID_TABLE, PYRAMID_KEYS_ALL,
+				levelRows + " AND " + KEY_PYRAMID_START_TIME + ">=? AND " + KEY_PYRAMID_START_TIME + "<?",
+				args(recordingId, sensorType, level, seekStartTime(PYRAMID_TABLE, levelRows, levelArgs, startTime), endTime),
+				null, null,
+				KEY_PYRAMID_START_TIME);
+		try {
+			PyramidBlock block = null;
+			while (blocks.moveToNext()) {
+				block = readPyramidBlock(blocks, block);
+				int slot = Arrays.binarySearch(block.getComponentIndices(), component);
+				if (slot < 0) {
+					break;
+				}
+				long[] times = block.getStartTimes();
+				float[] min = block.getMin(slot), max = block.getMax(slot), mean = block.getMean(slot);
+				for (int i = 0; i < block.getCount(); i++) {
+					if (times[i] >= startTime && times[i] < endTime) {
+						series.add(times[i], min[i], max[i], mean[i]);
+					}
+				}
+			}
+		} finally {
+			blocks.close();
+		}
+		series.reduce(targetPoints);
+		return series;
+	}
+	
+	/** The samples in the window, or with perPoint above 1 the min, max and mean of every perPoint of them. */
+	private DownsampledSeries readRawSeries(long recordingId, int sensorType, int component,
+			long startTime, long endTime, int points, int perPoint) throws IOException {
+		DownsampledSeries series = new DownsampledSeries(0, perPoint, points);
+		SampleRange range = queryRange(recordingId, sensorType, new int[] { component }, startTime, endTime);
+		long bucketStart = 0;
+		float min = 0, max = 0;
+		double sum = 0;
+		int inBucket = 0;
+		try {
+			while (range.next()) {
+				long[] times = range.getTimestamps();
+				float[] values = range.getValues(0);
+				for (int i = range.getOffset(); i < range.getOffset() + range.getLength(); i++) {
+					if (perPoint == 1) {
+						series.add(times[i], values[i], values[i], values[i]);
+						continue;
+					}
+					if (inBucket == 0) {
+						bucketStart = times[i];
+						min = max = values[i];
+						sum = 0;
+					}
+					min = Math.min(min, values[i]);
+					max = Math.max(max, values[i]);
+					sum += values[i];
+					if (++inBucket == perPoint) {
+						series.add(bucketStart, min, max, (float) (sum / inBucket));
+						inBucket = 0;
+					}
+				}
+			}
+			if (inBucket > 0) {
+				series.add(bucketStart, min, max, (float) (sum / inBucket));
+			}
+		} catch (IllegalArgumentException e) {
+			// component not recorded
+		} finally {
+			range.close();
+		}
+		return series;
+	}
+	
+	private boolean hasPyramid(long recordingId, int sensorType) {
+		Cursor cursor = mDatabase.query(PYRAMID_TABLE, new String[] { KEY_ROWID },
+				KEY_PYRAMID_RECORDING + "=? AND " + KEY_PYRAMID_SENSOR_TYPE + "=?",
+				args(recordingId, sensorType), null, null, null, "1");
+		try {
+			return cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/** Bind arguments of CHUNK_WINDOW for the chunks of a sensor that overlap [startTime, endTime), see queryChunks(). */
+	private String[] chunkWindowArgs(long recordingId, int sensorType, long startTime, long endTime) {
+		String[] series = args(recordingId, sensorType);
+		return args(recordingId, sensorType, seekStartTime(CHUNK_TABLE, CHUNK_SERIES, series, startTime), endTime);
+	}
+	
+	/** Bind arguments for a selection with ? placeholders, in order. */
+	private static String[] args(long... values) {
+		String[] args = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			args[i] = Long.toString(values[i]);
+		}
+		return args;
+	}
+	
+	/**
+	 * Binary search over the time index of a chunk or pyramid table: returns the start time of
+	 * the last row of the series (rows selected by series and its seriesArgs) that starts at or before time, or
+	 * time if there is none. Rows of a series follow each other without overlapping, so the
+	 * rows that overlap a window starting at time are those starting from the returned time.
+	 * One index seek; the rows are not read.
+	 */
+	private long seekStartTime(String table, String series, String[] seriesArgs, long time) {
+		String[] args = new String[seriesArgs.length + 1];
+		System.arraycopy(seriesArgs, 0, args, 0, seriesArgs.length);
+		args[seriesArgs.length] = Long.toString(time);
+		// both tables name the column KEY_CHUNK_START_TIME
+		Cursor cursor = mDatabase.query(table, new String[] { KEY_CHUNK_START_TIME },
+				series + " AND " + KEY_CHUNK_START_TIME + "<=?",
+				args, null, null,
+				KEY_CHUNK_START_TIME + " DESC", "1");
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : time;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Decodes the buckets of the pyramid row the cursor is on into reuse if it has the same
+	 * sensor, level, components and enough room, otherwise into a new block.
+	 */
+	public static PyramidBlock readPyramidBlock(Cursor cursor, PyramidBlock reuse) throws IOException {
+		int sensorType = cursor.getInt(INDEX_PYRAMID_SENSOR_TYPE);
+		int level = cursor.getInt(INDEX_PYRAMID_LEVEL);
+		int componentMask = cursor.getInt(INDEX_PYRAMID_COMPONENTS);
+		int count = cursor.getInt(INDEX_PYRAMID_COUNT);
+		PyramidBlock block = reuse;
+		if (block == null || block.getSensorType() != sensorType || block.getLevel() != level
+				|| block.getCapacity() < count || componentMask(block.getComponentIndices()) != componentMask) {
+			int[] components = SensorRecordingCodec.componentsFromMask(componentMask);
+			block = new PyramidBlock(sensorType, components, level, Math.max(count, SamplePyramid.BLOCK_SIZE));
+		}
+		SensorRecordingCodec.decodePyramidBlock(cursor.getBlob(INDEX_PYRAMID_PAYLOAD), count, block);
+		block.setSequence(cursor.getInt(INDEX_PYRAMID_SEQUENCE));
+		block.setEndTime(cursor.getLong(INDEX_PYRAMID_END_TIME));
+		return block;
+	}
+	
+	/** Decodes the samples of the chunk row the cursor is on. */
+	public static SampleChunk readChunk(Cursor cursor) throws IOException {
+		return readChunk(cursor, null);
+	}
+	
+	/**
+	 * Decodes the samples of the chunk row the cursor is on into reuse if it has the same sensor,
+	 * components and enough room, otherwise into a new chunk. Returns the chunk that was filled.
+	 */
+	public static SampleChunk readChunk(Cursor cursor, SampleChunk reuse) throws IOException {
+		int sensorType = cursor.getInt(INDEX_CHUNK_SENSOR_TYPE);
+		int componentMask = cursor.getInt(INDEX_CHUNK_COMPONENTS);
+		int count = cursor.getInt(INDEX_CHUNK_COUNT);
+		SampleChunk chunk = reuse;
+		if (chunk == null || chunk.getSensorType() != sensorType || chunk.getCapacity() < count
+				|| componentMask(chunk.getComponentIndices()) != componentMask) {
+			int[] components = SensorRecordingCodec.componentsFromMask(componentMask);
+			chunk = new SampleChunk(sensorType, components, Math.max(count, CHUNK_SIZE));
+		}
+		ChunkEncoder.decode(cursor.getBlob(INDEX_CHUNK_PAYLOAD), cursor.getInt(INDEX_CHUNK_ENCODING), count, chunk);
+		chunk.setSequence(cursor.getInt(INDEX_CHUNK_SEQUENCE));
+		return chunk;
+	}
+	
+	/**
+	 * Loads all samples of a recording, from its chunks or, for recordings stored before
+	 * the chunk table existed, from the data blob.
+	 */
+	public SensorRecording readRecording(long recordingId) throws IOException {
+		Cursor row = query(recordingId);
+		try {
+			if (!row.isNull(INDEX_DATA)) {
+				return SensorRecordingCodec.decode(row.getBlob(INDEX_DATA));
+			}
+			SensorRecording recording = new SensorRecording(row.getLong(INDEX_START_TIME));
+			Cursor chunks = mDatabase.query(CHUNK_TABLE, CHUNK_KEYS_ALL,
+					KEY_CHUNK_RECORDING + "=?",
+					args(recordingId), null, null,
+					KEY_CHUNK_SENSOR_TYPE + "," + KEY_CHUNK_SEQUENCE);
+			try {
+				while (chunks.moveToNext()) {
+					SampleChunk chunk = readChunk(chunks);
+					SensorSampleBuffer buffer = recording.getBuffer(chunk.getSensorType());
+					if (buffer == null) {
+						buffer = recording.addSensor(chunk.getSensorType(), chunk.getComponentIndices());
+					}
+					chunk.appendTo(buffer);
+				}
+			} finally {
+				chunks.close();
+			}
+			return recording;
+		} finally {
+			row.close();
+		}
+	}
+
+	/**
+	 * Returns the sensor types of a recording, from its row and without reading any samples;
+	 * empty if there is no such recording.
+	 */
+	public int[] querySensorTypes(long recordingId) {
+		Cursor row = mDatabase.query(DATABASE_TABLE, new String[] { KEY_SENSOR_TYPES },
+				KEY_ROWID + "=?", args(recordingId), null, null, null);
+		try {
+			if (!row.moveToFirst() || row.isNull(0) || row.getString(0).trim().length() == 0) {
+				return new int[0];
+			}
+			String[] types = row.getString(0).trim().split(" +");
+			int[] sensorTypes = new int[types.length];
+			for (int i = 0; i < types.length; i++) {
+				sensorTypes[i] = Integer.parseInt(types[i]);
+			}
+			return sensorTypes;
+		} finally {
+			row.close();
+		}
+	}
 
 	/** Returns a cursor for the given row id. Caller should close or manage the cursor. */
 	public Cursor query(long rowId) throws SQLException {
 		Cursor cursor = mDatabase.query(true, DATABASE_TABLE,
 			KEYS_ALL,
-			KEY_ROWID + "=" + rowId,  // select the one row we care about
-			null, null, null, null, null);
+			KEY_ROWID + "=?",  // select the one row we care about
+			args(rowId), null, null, null, null);
 		
 		// cursor starts before first -- move it to the row itself.
 		cursor.moveToFirst();
@@ -135,48 +1347,18 @@ public class SensorDataDB {
 	}
 	
 	/**
-	 * Converts any serializable object, namely sensorData data structure, into a byte array
-	 * so it can be stored in the sqlite database.
-	 * @param obj
-	 * @return byte array of the serialized sensorData object
-	 * @throws IOException
-	 */
-	public byte[] serializableObjectToByteArray(Serializable obj) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	    ObjectOutputStream oos = new ObjectOutputStream(bos);
-	    oos.writeObject(obj);
-	    byte[] byteArray = bos.toByteArray();
-	    oos.close();
-	    return byteArray;
-	}
-	
-	/**
-	 * Gets the sensorData data structure back from byte array stored in the database
-	 * @param byteArray
-	 * @return recovered sensorData data structure
-	 * @throws IOException
-	 * @throws ClassNotFoundException
+	 * Creates a ContentValues hash for a recording whose samples are stored in the chunk table.
+	 * Pass in to create/update.
 	 */
-	public Map<Integer, Map<String, List<Float> > > byteArrayToSensorDataMap(byte[] byteArray) throws IOException, ClassNotFoundException {
-	    ByteArrayInputStream bis;
-	    ObjectInputStream ois;
-		bis = new ByteArrayInputStream(byteArray);
-	    ois = new ObjectInputStream(bis);
-	    Map<Integer, Map<String, List<Float> > > recoveredSensorData = (Map<Integer, Map<String, List<Float> > >) ois.readObject();
-	    ois.close();
-	    return recoveredSensorData;
-	}
-
-	/** Creates a ContentValues hash for our data. Pass in to create/update. */
-	public ContentValues createContentValues(String title, String notes, long timestamp, byte[] data, Set<Integer> sensorTypes) {
+	public ContentValues createContentValues(String title, String notes, long timestamp, long startTime, int[] sensorTypes) {
 		ContentValues values = new ContentValues();
 		values.put(SensorDataDB.KEY_TITLE, title);
 		values.put(SensorDataDB.KEY_NOTES, notes);
 		values.put(SensorDataDB.KEY_TIMESTAMP, timestamp);
-		values.put(SensorDataDB.KEY_DATA, data);
+		values.put(SensorDataDB.KEY_START_TIME, startTime);
 		
 		String sensorTypesList = "";
-		for (Integer type : sensorTypes) {
+		for (int type : sensorTypes) {
 			sensorTypesList += type + " ";
 		}
 		sensorTypesList = sensorTypesList.trim();
@@ -185,6 +1367,32 @@ public class SensorDataDB {
 		return values;
 	}
 	
+	private static int componentMask(int[] componentIndices) {
+		int mask = 0;
+		for (int i : componentIndices) {
+			mask |= 1 << i;
+		}
+		return mask;
+	}
+	
+	private static int[] componentIndices(SensorSampleBuffer buffer) {
+		int[] indices = new int[buffer.getComponentCount()];
+		for (int slot = 0; slot < indices.length; slot++) {
+			indices[slot] = buffer.getComponentIndex(slot);
+		}
+		return indices;
+	}
+	
+	/**
+	 * Creates a ContentValues hash for a recording that is starting; it is untitled and in
+	 * STATE_RECORDING until finishRecording(). Pass in to create.
+	 */
+	public ContentValues createRecordingContentValues(long timestamp, long startTime, int[] sensorTypes) {
+		ContentValues values = createContentValues("", "", timestamp, startTime, sensorTypes);
+		values.put(SensorDataDB.KEY_STATE, STATE_RECORDING);
+		return values;
+	}
+	
 	/** Creates a ContentValues hash for updating name and notes. Pass in to create/update. */
 	public ContentValues createContentValues(String title, String notes) {
 		ContentValues values = new ContentValues();
@@ -197,6 +1405,8 @@ public class SensorDataDB {
 	// Helper for database open, create, upgrade.
 	// Here written as a private inner class.
 	private static class SensorDataDBHelper extends SQLiteOpenHelper {
+		private static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024;	// bytes
+		
 		// SQL text to create table
 		private static final String DATABASE_CREATE =
 			"create table " + DATABASE_TABLE + " (" +
@@ -205,25 +1415,252 @@ public class SensorDataDB {
 					SensorDataDB.KEY_NOTES + " text," +
 					SensorDataDB.KEY_TIMESTAMP + " integer not null," +
 					SensorDataDB.KEY_DATA + " blob, " +
-					SensorDataDB.KEY_SENSOR_TYPES + " text not null " +
+					SensorDataDB.KEY_SENSOR_TYPES + " text not null, " +
+					SensorDataDB.KEY_START_TIME + " integer not null default 0, " +
+					SensorDataDB.KEY_STATE + " integer not null default " + STATE_COMPLETE + ", " +
+					SensorDataDB.KEY_DURATION + " integer not null default 0, " +
+					SensorDataDB.KEY_SAMPLE_COUNT + " integer not null default 0, " +
+					SensorDataDB.KEY_SAMPLE_COUNTS + " text not null default ''" +
+			");";
+		
+		private static final String DATABASE_INDEX_CREATE =
+			"create index " + DATABASE_INDEX + " on " + DATABASE_TABLE + " (" +
+					SensorDataDB.KEY_TIMESTAMP +
+			");";
+		
+		private static final String CHUNK_TABLE_CREATE =
+			"create table " + CHUNK_TABLE + " (" +
+					SensorDataDB.KEY_ROWID + " integer primary key autoincrement, " +
+					SensorDataDB.KEY_CHUNK_RECORDING + " integer not null, " +
+					SensorDataDB.KEY_CHUNK_SENSOR_TYPE + " integer not null, " +
+					SensorDataDB.KEY_CHUNK_SEQUENCE + " integer not null, " +
+					SensorDataDB.KEY_CHUNK_START_TIME + " integer not null, " +
+					SensorDataDB.KEY_CHUNK_END_TIME + " integer not null, " +
+					SensorDataDB.KEY_CHUNK_COUNT + " integer not null, " +
+					SensorDataDB.KEY_CHUNK_COMPONENTS + " integer not null, " +
+					SensorDataDB.KEY_CHUNK_PAYLOAD + " blob not null, " +
+					SensorDataDB.KEY_CHUNK_ENCODING + " integer not null default " + ChunkEncoder.ENCODING_RAW +
+			");";
+		
+		private static final String CHUNK_INDEX_CREATE =
+			"create index " + CHUNK_INDEX + " on " + CHUNK_TABLE + " (" +
+					SensorDataDB.KEY_CHUNK_RECORDING + ", " +
+					SensorDataDB.KEY_CHUNK_SENSOR_TYPE + ", " +
+					SensorDataDB.KEY_CHUNK_START_TIME +
+			");";
+		
+		private static final String STATS_TABLE_CREATE =
+			"create table " + STATS_TABLE + " (" +
+					SensorDataDB.KEY_ROWID + " integer primary key autoincrement, " +
+					SensorDataDB.KEY_STATS_RECORDING + " integer not null, " +
+					SensorDataDB.KEY_STATS_SENSOR_TYPE + " integer not null, " +
+					SensorDataDB.KEY_STATS_COMPONENT + " integer not null, " +
+					SensorDataDB.KEY_STATS_COUNT + " integer not null, " +
+					SensorDataDB.KEY_STATS_MIN + " real, " +
+					SensorDataDB.KEY_STATS_MAX + " real, " +
+					SensorDataDB.KEY_STATS_MEAN + " real, " +
+					SensorDataDB.KEY_STATS_VARIANCE + " real, " +
+					SensorDataDB.KEY_STATS_RATE + " real, " +
+					SensorDataDB.KEY_STATS_GAPS + " integer not null" +
+			");";
+		
+		private static final String STATS_INDEX_CREATE =
+			"create index " + STATS_INDEX + " on " + STATS_TABLE + " (" +
+					SensorDataDB.KEY_STATS_RECORDING +
+			");";
+		
+		private static final String PYRAMID_TABLE_CREATE =
+			"create table " + PYRAMID_TABLE + " (" +
+					SensorDataDB.KEY_ROWID + " integer primary key autoincrement, " +
+					SensorDataDB.KEY_PYRAMID_RECORDING + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_SENSOR_TYPE + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_LEVEL + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_SEQUENCE + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_START_TIME + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_END_TIME + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_COUNT + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_COMPONENTS + " integer not null, " +
+					SensorDataDB.KEY_PYRAMID_PAYLOAD + " blob not null" +
+			");";
+		
+		private static final String PYRAMID_INDEX_CREATE =
+			"create index " + PYRAMID_INDEX + " on " + PYRAMID_TABLE + " (" +
+					SensorDataDB.KEY_PYRAMID_RECORDING + ", " +
+					SensorDataDB.KEY_PYRAMID_SENSOR_TYPE + ", " +
+					SensorDataDB.KEY_PYRAMID_LEVEL + ", " +
+					SensorDataDB.KEY_PYRAMID_START_TIME +
+			");";
+		
+		private static final String METRICS_TABLE_CREATE =
+			"create table " + METRICS_TABLE + " (" +
+					SensorDataDB.KEY_ROWID + " integer primary key autoincrement, " +
+					SensorDataDB.KEY_METRICS_RECORDING + " integer not null, " +
+					SensorDataDB.KEY_METRICS_SENSOR_TYPE + " integer not null, " +
+					SensorDataDB.KEY_METRICS_NAME + " text not null, " +
+					SensorDataDB.KEY_METRICS_VALUE + " real, " +
+					SensorDataDB.KEY_METRICS_HISTOGRAM + " blob" +
+			");";
+		
+		private static final String METRICS_INDEX_CREATE =
+			"create index " + METRICS_INDEX + " on " + METRICS_TABLE + " (" +
+					SensorDataDB.KEY_METRICS_RECORDING +
 			");";
 		
 		public SensorDataDBHelper(Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+			if (Build.VERSION.SDK_INT >= 16) {	// JELLY_BEAN
+				// the helper turns it on as it opens the database, before any transaction
+				setWriteAheadLoggingEnabled(true);
+			}
 		}
 
 		/** Creates the initial (empty) database. */
 		@Override
 		public void onCreate(SQLiteDatabase database) {
 			database.execSQL(DATABASE_CREATE);
+			database.execSQL(DATABASE_INDEX_CREATE);
+			database.execSQL(CHUNK_TABLE_CREATE);
+			database.execSQL(CHUNK_INDEX_CREATE);
+			database.execSQL(STATS_TABLE_CREATE);
+			database.execSQL(STATS_INDEX_CREATE);
+			database.execSQL(PYRAMID_TABLE_CREATE);
+			database.execSQL(PYRAMID_INDEX_CREATE);
+			database.execSQL(METRICS_TABLE_CREATE);
+			database.execSQL(METRICS_INDEX_CREATE);
+		}
+		
+		/**
+		 * Switches the database to write-ahead logging where its SQLite supports it (Android 3.0
+		 * and up): a commit then appends to the log instead of creating, syncing and deleting a
+		 * rollback journal, which makes the small transactions of recording (a chunk each) and
+		 * of the batches cheaper. It goes through the framework, so it knows the mode and lets
+		 * reads of other threads run on their own connections while a write is going on: from
+		 * Android 4.1 the helper enables it itself (setWriteAheadLoggingEnabled() in the
+		 * constructor); before that, enableWriteAheadLogging() is called here, where no
+		 * transaction is open yet. The log is cut back to WAL_SIZE_LIMIT after a checkpoint, so
+		 * it does not keep the space a VACUUM or a large delete wrote to it.
+		 */
+		@Override
+		public void onOpen(SQLiteDatabase database) {
+			super.onOpen(database);
+			if (Build.VERSION.SDK_INT >= 11 && !database.isReadOnly()) {	// HONEYCOMB
+				if (Build.VERSION.SDK_INT < 16) {	// JELLY_BEAN
+					Log.v(MainMenuActivity.LOG_TAG, "Write-ahead logging: " + database.enableWriteAheadLogging());
+				}
+				setPragma(database, "journal_size_limit=" + WAL_SIZE_LIMIT);
+			}
+		}
+		
+		/** Runs a PRAGMA that returns its new value; these cannot go through execSQL(). */
+		private static String setPragma(SQLiteDatabase database, String pragma) {
+			Cursor cursor = database.rawQuery("PRAGMA " + pragma, null);
+			try {
+				return cursor.moveToFirst() ? cursor.getString(0) : null;
+			} finally {
+				cursor.close();
+			}
 		}
 
 		
-		/** Called at version upgrade time, in case we want to change/migrate
-		 the database structure. Here we just do nothing. */
+		/** Called at version upgrade time, to migrate the database structure and data. */
 		@Override
 		public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
-			// we do nothing for this case
+			// first the tables that migrateBlobsToChunks() below writes to
+			if (oldVersion < 7) {
+				database.execSQL(STATS_TABLE_CREATE);
+				database.execSQL(STATS_INDEX_CREATE);
+			}
+			if (oldVersion < 8) {	// pyramids of existing recordings are built later, see buildMissingPyramids()
+				database.execSQL(PYRAMID_TABLE_CREATE);
+				database.execSQL(PYRAMID_INDEX_CREATE);
+			}
+			if (oldVersion < 9) {	// recordings made before have no metrics
+				database.execSQL(METRICS_TABLE_CREATE);
+				database.execSQL(METRICS_INDEX_CREATE);
+			}
+			if (oldVersion < 3) {
+				database.execSQL("alter table " + DATABASE_TABLE + " add column " +
+						SensorDataDB.KEY_START_TIME + " integer not null default 0");
+				database.execSQL(CHUNK_TABLE_CREATE);
+				database.execSQL(CHUNK_INDEX_CREATE);
+				migrateBlobsToChunks(database);
+			}
+			if (oldVersion < 4) {
+				database.execSQL("alter table " + DATABASE_TABLE + " add column " +
+						SensorDataDB.KEY_STATE + " integer not null default " + STATE_COMPLETE);
+			}
+			if (oldVersion >= 3 && oldVersion < 5) {	// a chunk table created above already has the column
+				database.execSQL("alter table " + CHUNK_TABLE + " add column " +
+						SensorDataDB.KEY_CHUNK_ENCODING + " integer not null default " + ChunkEncoder.ENCODING_RAW);
+			}
+			if (oldVersion < 6) {
+				database.execSQL("alter table " + DATABASE_TABLE + " add column " +
+						SensorDataDB.KEY_DURATION + " integer not null default 0");
+				database.execSQL("alter table " + DATABASE_TABLE + " add column " +
+						SensorDataDB.KEY_SAMPLE_COUNT + " integer not null default 0");
+				database.execSQL("alter table " + DATABASE_TABLE + " add column " +
+						SensorDataDB.KEY_SAMPLE_COUNTS + " text not null default ''");
+				database.execSQL(DATABASE_INDEX_CREATE);
+				summarizeAll(database);
+			}
+		}
+		
+		/** Computes the summary columns of every recording; only chunk metadata is read. */
+		private void summarizeAll(SQLiteDatabase database) {
+			Cursor ids = database.query(DATABASE_TABLE, new String[] { KEY_ROWID },
+					null, null, null, null, null);
+			try {
+				while (ids.moveToNext()) {
+					updateSummary(database, ids.getLong(0));
+				}
+			} finally {
+				ids.close();
+			}
+		}
+		
+		/**
+		 * Moves the data blob of every recording (binary or Java serialized) into the chunk table.
+		 * Rows are converted one at a time so only one recording is in memory at once.
+		 * A row that fails to convert for any reason keeps its blob, and nothing of it is left in
+		 * the chunk table; readRecording() still reads it from there.
+		 */
+		private void migrateBlobsToChunks(SQLiteDatabase database) {
+			Cursor ids = database.query(DATABASE_TABLE, new String[] { KEY_ROWID },
+					null, null, null, null, null);
+			try {
+				while (ids.moveToNext()) {
+					long rowId = ids.getLong(0);
+					Cursor row = database.query(DATABASE_TABLE, new String[] { KEY_DATA },
+							KEY_ROWID + "=?", args(rowId), null, null, null);
+					try {
+						if (row.moveToFirst() && !row.isNull(0)) {
+							SensorRecording recording = SensorRecordingCodec.decode(row.getBlob(0));
+							writeRecording(database, rowId, recording);
+							ContentValues values = new ContentValues();
+							values.putNull(KEY_DATA);
+							values.put(KEY_START_TIME, recording.getStartTime());
+							database.update(DATABASE_TABLE, values, KEY_ROWID + "=?", args(rowId));
+						}
+					} catch (IOException e) {
+						discardMigration(database, rowId, e);
+					} catch (RuntimeException e) {
+						// e.g. an SQLiteException reading the blob or a ClassCastException decoding a serialized map
+						discardMigration(database, rowId, e);
+					} finally {
+						row.close();
+					}
+				}
+			} finally {
+				ids.close();
+			}
+		}
+		
+		/** Removes what was written of a row that failed to migrate, so only its blob is left. */
+		private void discardMigration(SQLiteDatabase database, long rowId, Exception e) {
+			Log.v(MainMenuActivity.LOG_TAG, "Could not migrate data of row " + rowId + ": " + e);
+			database.delete(CHUNK_TABLE, KEY_CHUNK_RECORDING + "=?", args(rowId));
+			database.delete(STATS_TABLE, KEY_STATS_RECORDING + "=?", args(rowId));
+			database.delete(PYRAMID_TABLE, KEY_PYRAMID_RECORDING + "=?", args(rowId));
 		}
 	}
 }
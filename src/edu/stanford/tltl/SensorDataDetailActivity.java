@@ -1,31 +1,39 @@
 package edu.stanford.tltl;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.RadioGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * This activity describes the screen where a recorded data set is viewed.
  * Currently it serves to allow the user to edit the title and notes of a data set.
- * It also allows the user to generate CSV files of the data set, which
+ * It also allows the user to generate CSV or NumPy (.npy) files of the data set, which
  * are created in a directory MainMenuActivity.DATA_DIR in the root directory.
  * This directory can be accessed via a computer through USB mounting.
+ * The files are written by an ExportJob on a worker pool, one task per sensor, while a
+ * progress dialog shows how far each file is and lets the user cancel. With Align on, all
+ * sensors go into one table instead, resampled at the rate of the fastest sensor.
+ * The plot is read on a database thread, so a long recording does not hold up the screen.
  * 
  * @author leehsueh
  *
@@ -42,7 +50,28 @@ public class SensorDataDetailActivity extends Activity {
 	/* UI widget stuff */
 	private EditText mNameEditText, mNotesEditText;
 	private TextView mDataSensorsTextView;
+	private SeriesPlotView mPlotView;
 	private Button mWriteToFileButton;
+	private RadioGroup mExportFormatGroup;
+	private RadioGroup mAlignGroup;
+	private ProgressDialog mProgressDialog;
+	
+	/* export stuff */
+	static final int EXPORT_THREADS = 4;
+	static final long PROGRESS_INTERVAL_MS = 250;
+	private ExecutorService mExportExecutor;
+	private ExecutorService mDBExecutor;	// plot queries; closes the database at the end
+	private volatile boolean mDestroyed;
+	private ExportJob mExportJob;
+	private String mExportSummary;
+	private final Handler mHandler = new Handler();
+	private final Runnable mProgressRunnable = new Runnable() {
+		@Override
+		public void run() {
+			updateExportProgress();
+			mHandler.postDelayed(this, PROGRESS_INTERVAL_MS);
+		}
+	};
 
 	@Override
 	protected void onCreate(Bundle bundle) {
@@ -53,7 +82,10 @@ public class SensorDataDetailActivity extends Activity {
 		mNameEditText = (EditText) findViewById(R.id.editName);
 		mNotesEditText = (EditText) findViewById(R.id.editNotes);
 		mDataSensorsTextView = (TextView) findViewById(R.id.dataComponents);
+		mPlotView = (SeriesPlotView) findViewById(R.id.dataPlot);
 		mWriteToFileButton = (Button) findViewById(R.id.writeToFileButton);
+		mExportFormatGroup = (RadioGroup) findViewById(R.id.exportFormatGroup);
+		mAlignGroup = (RadioGroup) findViewById(R.id.alignGroup);
 
 		// get the row id of the data set that we want to view/edit
 		// should be passed in by SensorDataListActivity when user
@@ -72,37 +104,26 @@ public class SensorDataDetailActivity extends Activity {
 		// setup and open the database
 		mDB = new SensorDataDB(this);
 		mDB.open();
+		mExportExecutor = Executors.newFixedThreadPool(
+				Math.min(EXPORT_THREADS, Runtime.getRuntime().availableProcessors()));
+		mDBExecutor = Executors.newSingleThreadExecutor();
 		
 		// populate the UI widgets with the database record
 		dbToUI();
+		// the plot needs its width to pick a resolution, so wait for the layout
+		mPlotView.post(new Runnable() {
+			@Override
+			public void run() {
+				plotFirstComponent();
+			}
+		});
 
-		// set up the button that allows users to create CSV files of the data
+		// set up the button that allows users to create CSV or .npy files of the data
 		mWriteToFileButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				if (mRowId != null) {
-					Cursor cursor = mDB.query(mRowId);
-					byte[] sensorData = cursor.getBlob(SensorDataDB.INDEX_DATA);
-					try {
-						Map<Integer, Map<String, List<Float>>> recoveredSensorData = mDB
-								.byteArrayToSensorDataMap(sensorData);
-						
-						// test out the generated string
-						for (Integer sensorType : recoveredSensorData.keySet()) {
-							//System.out.println(generateTextDataForSensor(sensorType, recoveredSensorData.get(sensorType)));
-							boolean success = writeDataToFile(sensorType, recoveredSensorData.get(sensorType), cursor.getLong(SensorDataDB.INDEX_TIMESTAMP));
-							if (!success) {
-								showDialog(DIALOG_SAVE_ERROR_ID);
-								cursor.close();
-								return;
-							}
-						}
-						showDialog(DIALOG_SAVE_ID);
-					} catch (Exception e) {
-						showDialog(DIALOG_SAVE_ERROR_ID);
-					} finally {
-						cursor.close();
-					}
+				if (mRowId != null && mExportJob == null) {
+					startExport(mRowId);
 				}
 			}
 		});
@@ -122,7 +143,19 @@ public class SensorDataDetailActivity extends Activity {
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
-		mDB.close();
+		mHandler.removeCallbacks(mProgressRunnable);
+		if (mExportJob != null) {
+			mExportJob.cancel();
+		}
+		mExportExecutor.shutdown();
+		mDestroyed = true;
+		// close once a plot query still running is done
+		mDBExecutor.execute(new Runnable() {
+			public void run() {
+				mDB.close();
+			}
+		});
+		mDBExecutor.shutdown();
 	}
 
 	// Copies database state up to the UI.
@@ -136,82 +169,296 @@ public class SensorDataDetailActivity extends Activity {
 			// for each column name. Here use INDEX_ consts from TodoDB.
 			mNameEditText.setText(cursor.getString(SensorDataDB.INDEX_TITLE));
 			mNotesEditText.setText(cursor.getString(SensorDataDB.INDEX_NOTES));
-			byte[] sensorData = cursor.getBlob(SensorDataDB.INDEX_DATA);
+			boolean hasDataBlob = !cursor.isNull(SensorDataDB.INDEX_DATA);
 
+			// display the statistics stored with the recording, or else the number
+			// of data points for each sensor component; the counts come from the
+			// chunk metadata, so no sample data is read unless the recording is
+			// still a data blob
+			Cursor statistics = mDB.queryStatistics(mRowId);
+			Cursor counts = mDB.querySampleCounts(mRowId);
+			Cursor metrics = mDB.queryMetrics(mRowId);
 			try {
-				Map<Integer, Map<String, List<Float>>> recoveredSensorData = mDB
-						.byteArrayToSensorDataMap(sensorData);
-
-				// display number of data points for recorded for each sensor
-				// component
-				mDataSensorsTextView.setText("");
-				for (Map.Entry<Integer, Map<String, List<Float>>> e : recoveredSensorData
-						.entrySet()) {
-					for (Map.Entry<String, List<Float>> component : e
-							.getValue().entrySet()) {
-						String text = mDataSensorsTextView.getText().toString();
-						text += "\n"
-								+ MainMenuActivity.getSensorTypeToName().get(
-										e.getKey()) + " " + component.getKey()
-								+ ": " + component.getValue().size()
-								+ " points";
-						mDataSensorsTextView.setText(text);
+				StringBuilder text = new StringBuilder();
+				if (statistics.getCount() > 0) {
+					while (statistics.moveToNext()) {
+						appendStatistics(text, statistics);
+					}
+				} else if (hasDataBlob) {
+					SensorRecording recording = mDB.readRecording(mRowId);
+					for (int sensorType : recording.getSensorTypes()) {
+						SensorSampleBuffer buffer = recording.getBuffer(sensorType);
+						appendPointCounts(text, sensorType, buffer.size(), SensorRecordingCodec.componentMask(buffer));
+					}
+				} else {
+					while (counts.moveToNext()) {
+						appendPointCounts(text, counts.getInt(0), counts.getInt(2), counts.getInt(1));
 					}
 				}
+				while (metrics.moveToNext()) {
+					appendMetric(text, metrics);
+				}
+				mDataSensorsTextView.setText(text);
 				
 			} catch (Exception e) {
 				mDataSensorsTextView
 						.setText("Error retrieving sensor data components");
 				
 			} finally {
+				statistics.close();
+				counts.close();
+				metrics.close();
 				cursor.close();
 			}
 		}
 	}
-
+	
 	/**
-	 * Generates a CSV string of data from a sensor and its components
-	 * @param sensorType
-	 * @param dataForSensor
-	 * @return CSV string of the data, which can be used as input to a text file
+	 * Plots the first recorded component of the first sensor over the whole recording, at
+	 * about one point per pixel. The points are read on the database thread.
 	 */
-	public String generateTextDataForSensor(int sensorType,
-			Map<String, List<Float>> dataForSensor) {
-		// start to generate text of data with column names
-		StringBuffer sensorDataString = new StringBuffer();
-		sensorDataString
-				.append("Data from "
-						+ MainMenuActivity.getSensorTypeToName()
-								.get(sensorType) + "\n");
-		int numberOfPoints = 0;
-		for (String componentName : dataForSensor.keySet()) {
-			numberOfPoints = dataForSensor.get(componentName).size();
-			sensorDataString.append(componentName + ",");
+	private void plotFirstComponent() {
+		if (mRowId == null || mPlotView.getWidth() == 0) {
+			return;
+		}
+		final long rowId = mRowId;
+		final int width = mPlotView.getWidth();
+		mDBExecutor.execute(new Runnable() {
+			public void run() {
+				if (mDestroyed) {
+					return;
+				}
+				Cursor counts = mDB.querySampleCounts(rowId);
+				try {
+					if (!counts.moveToFirst()) {
+						return;
+					}
+					int sensorType = counts.getInt(0);
+					int component = SensorRecordingCodec.componentsFromMask(counts.getInt(1))[0];
+					final DownsampledSeries series = mDB.queryDownsampled(rowId, sensorType, component,
+							Long.MIN_VALUE, Long.MAX_VALUE, width);
+					final String label = MainMenuActivity.getSensorTypeToName().get(sensorType) + " "
+							+ SensorRecording.COMPONENT_KEYS[component]
+							+ (series.getSamplesPerPoint() > 1 ? " (1:" + series.getSamplesPerPoint() + ")" : "");
+					mHandler.post(new Runnable() {
+						public void run() {
+							if (!mDestroyed) {
+								mPlotView.setSeries(series, label);
+							}
+						}
+					});
+				} catch (Exception e) {
+					Log.v(MainMenuActivity.LOG_TAG, "Error reading data! " + e.getMessage());
+				} finally {
+					counts.close();
+				}
+			}
+		});
+	}
+	
+	private void appendPointCounts(StringBuilder text, int sensorType, int points, int componentMask) {
+		String sensorName = MainMenuActivity.getSensorTypeToName().get(sensorType);
+		text.append("\n" + sensorName + " " + SensorRecording.TIME_KEY
+				+ ": " + points + " points");
+		for (int i : SensorRecordingCodec.componentsFromMask(componentMask)) {
+			text.append("\n" + sensorName + " " + SensorRecording.COMPONENT_KEYS[i]
+					+ ": " + points + " points");
 		}
-		// remove last comma
-		sensorDataString.deleteCharAt(sensorDataString.length() - 1);
-		sensorDataString.append("\n");
+	}
+
+	/** Appends one row of SensorDataDB.queryStatistics(). */
+	private void appendStatistics(StringBuilder text, Cursor statistics) {
+		String sensorName = MainMenuActivity.getSensorTypeToName().get(statistics.getInt(SensorDataDB.INDEX_STATS_SENSOR_TYPE));
+		int component = statistics.getInt(SensorDataDB.INDEX_STATS_COMPONENT);
+		double mean = statistics.getDouble(SensorDataDB.INDEX_STATS_MEAN);
+		double sd = Math.sqrt(statistics.getDouble(SensorDataDB.INDEX_STATS_VARIANCE));
+		if (component == SensorDataDB.STATS_COMPONENT_TIME) {
+			// intervals are in ns, shown in ms
+			text.append("\n" + sensorName + ": " + statistics.getLong(SensorDataDB.INDEX_STATS_COUNT) + " points, "
+					+ String.format("%.1f", statistics.getDouble(SensorDataDB.INDEX_STATS_RATE)) + " samples/s, "
+					+ statistics.getLong(SensorDataDB.INDEX_STATS_GAPS) + " gaps");
+			text.append("\n" + sensorName + " interval: "
+					+ String.format("mean %.2f ms, sd %.2f ms, max %.2f ms", mean / 1e6, sd / 1e6,
+							statistics.getDouble(SensorDataDB.INDEX_STATS_MAX) / 1e6));
+		} else {
+			text.append("\n" + sensorName + " " + SensorRecording.COMPONENT_KEYS[component] + ": "
+					+ String.format("min %.4g, max %.4g, mean %.4g, sd %.4g",
+							statistics.getDouble(SensorDataDB.INDEX_STATS_MIN),
+							statistics.getDouble(SensorDataDB.INDEX_STATS_MAX), mean, sd));
+		}
+	}
 
-		for (int i = 0; i < numberOfPoints; i++) {
-			for (String componentName : dataForSensor.keySet()) {
-				List<Float> data = dataForSensor.get(componentName);
-				sensorDataString.append(data.get(i) + ",");
+	/**
+	 * Appends a row of the recording's metrics: the delivery latency of a sensor, its lost and
+	 * out of order events if there were any, and how full the buffers got. The other metrics
+	 * are only stored.
+	 */
+	private void appendMetric(StringBuilder text, Cursor metrics) {
+		int sensorType = metrics.getInt(SensorDataDB.INDEX_METRICS_SENSOR_TYPE);
+		String name = metrics.getString(SensorDataDB.INDEX_METRICS_NAME);
+		long value = Math.round(metrics.getDouble(SensorDataDB.INDEX_METRICS_VALUE));
+		String sensorName = MainMenuActivity.getSensorTypeToName().get(sensorType);
+		if (RecordingMetrics.LATENCY.equals(name) && value > 0) {
+			try {
+				MetricHistogram latency = MetricHistogram.decode(metrics.getBlob(SensorDataDB.INDEX_METRICS_HISTOGRAM));
+				text.append("\n" + sensorName + " latency: "
+						+ String.format("median %.1f ms, p99 %.1f ms, max %.1f ms", latency.getPercentile(0.5) / 1e6,
+								latency.getPercentile(0.99) / 1e6, latency.getMax() / 1e6));
+			} catch (IOException e) {
+				Log.v(MainMenuActivity.LOG_TAG, "Bad latency histogram of sensor " + sensorType + ": " + e.getMessage());
 			}
-			sensorDataString.deleteCharAt(sensorDataString.length() - 1);
-			sensorDataString.append("\n");
+		} else if ((RecordingMetrics.RING_DROPS.equals(name) || RecordingMetrics.RECORDER_DROPS.equals(name)
+				|| RecordingMetrics.DUPLICATES.equals(name) || RecordingMetrics.BACKWARDS.equals(name)) && value > 0) {
+			text.append("\n" + sensorName + ": " + value + " " + name.replace('_', ' '));
+		} else if (RecordingMetrics.RING_HIGH_WATER.equals(name)) {
+			text.append("\nQueue high water: " + value + " events");
+		} else if (RecordingMetrics.BACKLOG_HIGH_WATER.equals(name)) {
+			text.append("\nWriter backlog high water: " + value + " chunks");
+		} else if (RecordingMetrics.BUFFER_BYTES.equals(name)) {
+			text.append("\nBuffers: " + value / 1024 + " KB");
 		}
+	}
 
-		return sensorDataString.toString();
+	/**
+	 * Starts exporting a recording to CSV files in the background and shows the progress dialog.
+	 * @param rowId
+	 */
+	private void startExport(long rowId) {
+		File dir = getDataDirectory();
+		if (dir == null) {
+			showDialog(DIALOG_SAVE_ERROR_ID);
+			return;
+		}
+		int format = mExportFormatGroup.getCheckedRadioButtonId() == R.id.exportFormatNpy
+				? ExportJob.FORMAT_NPY : ExportJob.FORMAT_CSV;
+		int interpolation;
+		switch (mAlignGroup.getCheckedRadioButtonId()) {
+		case R.id.alignLinear:
+			interpolation = SampleAligner.LINEAR;
+			break;
+		case R.id.alignNearest:
+			interpolation = SampleAligner.NEAREST;
+			break;
+		case R.id.alignHold:
+			interpolation = SampleAligner.HOLD;
+			break;
+		default:
+			interpolation = ExportJob.ALIGN_NONE;
+		}
+		long period = interpolation != ExportJob.ALIGN_NONE ? alignmentPeriod(rowId) : 0;
+		mExportJob = new ExportJob(this, rowId, dir, format, interpolation, period, new ExportJob.Listener() {
+			@Override
+			public void onExportFinished(final ExportJob job) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						exportFinished(job);
+					}
+				});
+			}
+		});
+		try {
+			mExportJob.start(mExportExecutor);
+		} catch (Exception e) {
+			Log.v(MainMenuActivity.LOG_TAG, "Error reading data! " + e.getMessage());
+			mExportJob = null;
+			showDialog(DIALOG_SAVE_ERROR_ID);
+			return;
+		}
+		
+		mProgressDialog = new ProgressDialog(this);
+		mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		mProgressDialog.setTitle("Creating files");
+		mProgressDialog.setMessage("Reading data...");
+		mProgressDialog.setMax(100);
+		mProgressDialog.setCancelable(false);
+		mProgressDialog.setButton("Cancel", new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				if (mExportJob != null) {
+					mExportJob.cancel();
+				}
+			}
+		});
+		mProgressDialog.show();
+		mHandler.post(mProgressRunnable);
+	}
+	
+	/**
+	 * Interval between the rows of an aligned table: the mean sampling interval of the fastest
+	 * sensor, in whole microseconds, from the statistics stored with the recording. 0, a row at
+	 * every timestamp, if it has none.
+	 */
+	private long alignmentPeriod(long rowId) {
+		double rate = 0;
+		Cursor statistics = mDB.queryStatistics(rowId);
+		try {
+			while (statistics.moveToNext()) {
+				if (statistics.getInt(SensorDataDB.INDEX_STATS_COMPONENT) == SensorDataDB.STATS_COMPONENT_TIME) {
+					rate = Math.max(rate, statistics.getDouble(SensorDataDB.INDEX_STATS_RATE));
+				}
+			}
+		} finally {
+			statistics.close();
+		}
+		return rate > 0 ? Math.max(Math.round(1e6 / rate), 1) * 1000 : 0;
+	}
+	
+	/** Shows the overall percentage and the percentage of each file. */
+	private void updateExportProgress() {
+		if (mExportJob == null || mProgressDialog == null) {
+			return;
+		}
+		ExportJob.FileProgress[] files = mExportJob.getFiles();
+		if (files.length == 0) {
+			return;
+		}
+		StringBuilder text = new StringBuilder();
+		for (ExportJob.FileProgress file : files) {
+			if (text.length() > 0) {
+				text.append('\n');
+			}
+			text.append(file.getSensorType() == ExportJob.ALL_SENSORS ? "All sensors"
+					: MainMenuActivity.getSensorTypeToName().get(file.getSensorType())).append(": ")
+					.append(percent(file.getRowsWritten(), file.getTotalRows())).append('%');
+		}
+		mProgressDialog.setMessage(text);
+		mProgressDialog.setProgress(percent(mExportJob.getRowsWritten(), mExportJob.getTotalRows()));
+	}
+	
+	private static int percent(long done, long total) {
+		return total > 0 ? (int) (done * 100 / total) : 100;
+	}
+	
+	/** Called on the UI thread when the export job is done. */
+	private void exportFinished(ExportJob job) {
+		mHandler.removeCallbacks(mProgressRunnable);
+		if (mProgressDialog != null) {
+			mProgressDialog.dismiss();
+			mProgressDialog = null;
+		}
+		mExportJob = null;
+		if (isFinishing()) {
+			return;
+		}
+		if (job.isSucceeded()) {
+			mExportSummary = job.getFileCount() + " file(s), " + job.getRowsWritten() + " rows in "
+					+ (job.getElapsedTime() / 1000f) + " s ("
+					+ Math.round(job.getRowsPerSecond()) + " rows/s, "
+					+ Math.round(job.getMegabytesPerSecond() * 10) / 10f + " MB/s)";
+			showDialog(DIALOG_SAVE_ID);
+		} else if (job.isCancelled()) {
+			Toast.makeText(this, "File creation cancelled", Toast.LENGTH_SHORT).show();
+		} else {
+			showDialog(DIALOG_SAVE_ERROR_ID);
+		}
 	}
 	
 	/**
-	 * Method that writes sensor data to file
-	 * @param sensorType
-	 * @param dataForSensor
-	 * @param timestamp
-	 * @return true if successful, otherwise false
+	 * Returns the directory the files are written to, creating it if needed.
+	 * @return the directory, or null if external storage is not writable
 	 */
-	private boolean writeDataToFile(int sensorType, Map<String, List<Float>> dataForSensor, long timestamp) {
+	private File getDataDirectory() {
 		boolean mExternalStorageAvailable = false;
 		boolean mExternalStorageWriteable = false;
 		String state = Environment.getExternalStorageState();
@@ -228,38 +475,23 @@ public class SensorDataDetailActivity extends Activity {
 		    //  to know is we can neither read nor write
 		    mExternalStorageAvailable = mExternalStorageWriteable = false;
 		}
-				
-		if (mExternalStorageWriteable) {
-			String csvData = generateTextDataForSensor(sensorType, dataForSensor);
-			
-			// generate filename based on time stamp and sensor
-			String fileName = timestamp + "_" + MainMenuActivity.getSensorTypeToName().get(sensorType);
-			
-			// get filepath of where to write the file, creating a dir if needed
-			String filePath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/" + MainMenuActivity.DATA_DIR + "/";
-			File dir = new File(filePath);
-			if (!dir.exists()) {
-				boolean success = dir.mkdir();
-				if (!success) {
-					Log.v(MainMenuActivity.LOG_TAG, "Could not create directiory " + dir.getPath());
-					return false;
-				}
-			}
-			Log.v(MainMenuActivity.LOG_TAG, filePath);
-			
-			// write the file
-		    try {
-		    	FileOutputStream out = new FileOutputStream(filePath + fileName);
-		    	out.write(csvData.getBytes());
-		    	out.close();
-		    	Log.v(MainMenuActivity.LOG_TAG, "File saved in " + filePath + fileName);
-		    	return true;
-		    } catch (Exception e) {
-		    	Log.v(MainMenuActivity.LOG_TAG, "Error writing data! " + e.getMessage());
-		    }
+		
+		if (!mExternalStorageWriteable) {
+			return null;
 		}
 		
-		return false;
+		// get filepath of where to write the file, creating a dir if needed
+		String filePath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/" + MainMenuActivity.DATA_DIR + "/";
+		File dir = new File(filePath);
+		if (!dir.exists()) {
+			boolean success = dir.mkdir();
+			if (!success) {
+				Log.v(MainMenuActivity.LOG_TAG, "Could not create directiory " + dir.getPath());
+				return null;
+			}
+		}
+		Log.v(MainMenuActivity.LOG_TAG, filePath);
+		return dir;
 	}
 
 	@Override
@@ -332,4 +564,12 @@ public class SensorDataDetailActivity extends Activity {
 		
 		return alertDialog;
 	}
+	
+	@Override
+	protected void onPrepareDialog(int id, Dialog dialog) {
+		super.onPrepareDialog(id, dialog);
+		if (id == DIALOG_SAVE_ID && mExportSummary != null) {
+			((AlertDialog) dialog).setMessage("File(s) created in " + MainMenuActivity.DATA_DIR + "!\n" + mExportSummary);
+		}
+	}
 }
@@ -1,33 +1,86 @@
 package edu.stanford.tltl;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.ListActivity;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 
 /**
  * This class describes the screen that lists the saved recorded sensor data that is
  * stored in the database. When an item in the list is long-pressed, a context menu
  * appears which gives the user the option to view or delete the data set.
+ * Recordings that were cut off while recording (e.g. the app was killed) are turned
+ * into recovered entries when this screen opens.
+ *
+ * The list is loaded a page at a time, more pages as the user scrolls toward the end,
+ * and only reads the LIST_KEYS columns, so it opens just as fast with thousands of
+ * recordings. Rows show the summary stored with each recording (sensors, duration,
+ * samples); no sample data is read. Recordings that have no pyramid to plot from, e.g.
+ * recovered ones, get it built on the database thread.
+ *
+ * Recordings can be selected with the check box of their row and deleted together. Deletes
+ * run in one transaction on a database thread, and afterwards, once the UI is idle, the
+ * space they leave in the database file is given back to the file system there, on a
+ * connection of its own so the list can still be read meanwhile. Not while a recording is
+ * being captured, though: the writer must not wait for the database then. The
+ * recording RecordingService is capturing cannot be selected or deleted; its samples are
+ * still being written.
  * @author leehsueh
  *
  */
 public class SensorDataListActivity extends ListActivity{
+	public static final int PAGE_SIZE = 50;
+	public static final int RECLAIM_STEP_PAGES = 256;	// free pages given back per database transaction
+	
 	/* database stuff */
 	private SensorDataDB mDB;
-	private SimpleCursorAdapter mCursorAdapter;
+	private RecordingListAdapter mAdapter;
+	private ExecutorService mDBExecutor;	// deletes, pyramids and space reclamation, one at a time
+	private volatile boolean mDestroyed;
+	private boolean mReclaimScheduled;
+	private final Handler mHandler = new Handler();
+	private Button mDeleteButton;
+	
+	/** One row of the list, read from the LIST_KEYS columns. */
+	private static class Entry {
+		long rowId;
+		String title;
+		String notes;
+		long timestamp;
+		int sensorCount;
+		long duration;	// ns
+		long sampleCount;
+	}
 	
 	@Override
     public void onCreate(Bundle savedInstanceState) {
@@ -37,40 +90,61 @@ public class SensorDataListActivity extends ListActivity{
         // Start up DB connection (closed in onDestroy).
         mDB = new SensorDataDB(this);
         mDB.open();
+        mDBExecutor = Executors.newSingleThreadExecutor();
+        
+        // recordings still marked as in progress were cut off; keep what was written
+        int recovered = mDB.recoverUnfinishedRecordings(RecordingService.getActiveRecordingId());
+        if (recovered > 0) {
+        	Toast.makeText(this, recovered + " unfinished recording(s) recovered", Toast.LENGTH_LONG).show();
+        }
+        // recovered and migrated recordings have no pyramid to plot from yet
+        mDBExecutor.execute(mPyramidRunnable);
 
-        // Get the "all rows" cursor. startManagingCursor() is built in for the common case,
-        // takes care of closing etc. the cursor.
-		Cursor cursor = mDB.queryAll(); 
-		startManagingCursor(cursor);
-
-		// Adapter: maps cursor keys, to R.id.XXX fields in the row layout.
-		String[] from = new String[] { SensorDataDB.KEY_TITLE, SensorDataDB.KEY_TIMESTAMP, SensorDataDB.KEY_NOTES };
-		int[] to = new int[] { R.id.dataTitle, R.id.dataTimestamp, R.id.dataNotes };
-		mCursorAdapter = new SimpleCursorAdapter(this, R.layout.sensor_saved_data_list_row, cursor, from, to);
-		
-		// Map timestamp value to formatted date string
-		mCursorAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
-			public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-				if (columnIndex == SensorDataDB.INDEX_TIMESTAMP) {
-					long timestamp = cursor.getLong(SensorDataDB.INDEX_TIMESTAMP);
-					SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-					String dateText = sdf.format(new Date(timestamp));
-					TextView formattedDateView = (TextView)view;
-					formattedDateView.setText(dateText);
-					return true;  // i.e. we handled it
-			    }
-			    return false;  // i.e. the system should handle it
+		mAdapter = new RecordingListAdapter();
+		mAdapter.loadMore(PAGE_SIZE);
+		setListAdapter(mAdapter);
+		getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+			public void onScroll(AbsListView view, int firstVisible, int visibleCount, int totalCount) {
+				// keep a page ahead of the visible rows
+				if (firstVisible + visibleCount > totalCount - PAGE_SIZE / 2) {
+					mAdapter.loadMore(PAGE_SIZE);
+				}
+			}
+			
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
 			}
 		});
-		
-		setListAdapter(mCursorAdapter);
 		registerForContextMenu(getListView());
+		
+		mDeleteButton = (Button) findViewById(R.id.deleteSelectedButton);
+		mDeleteButton.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				deleteRecordings(mAdapter.getSelectedIds());
+			}
+		});
+		updateDeleteButton();
+		// space left by earlier deletes, e.g. discarded recordings
+		scheduleReclaim();
     }
 	
+	@Override
+	protected void onRestart() {
+		super.onRestart();
+		// titles and notes may have been edited, or recordings added
+		mAdapter.reload();
+	}
+	
 	@Override
  	protected void onDestroy() {
  		super.onDestroy();
- 		mDB.close();
+ 		mDestroyed = true;
+ 		// close once the running and queued database work is done
+ 		mDBExecutor.execute(new Runnable() {
+ 			public void run() {
+ 				mDB.close();
+ 			}
+ 		});
+ 		mDBExecutor.shutdown();
  	}
 	
 	@Override
@@ -100,6 +174,9 @@ public class SensorDataListActivity extends ListActivity{
 		super.onCreateContextMenu(menu, v, menuInfo);
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.sensor_saved_data_list_menu, menu);
+		if (((AdapterContextMenuInfo) menuInfo).id == RecordingService.getActiveRecordingId()) {
+			menu.findItem(R.id.menu_delete).setEnabled(false);
+		}
 	}
     
     // Context menu item-select.
@@ -112,18 +189,310 @@ public class SensorDataListActivity extends ListActivity{
 				return true;
 				
 			case R.id.menu_delete:
-				remove(info.id);
-				return true;				
+				deleteRecordings(new long[] { info.id });
+				return true;
+				
+			case R.id.menu_replay:
+				replayAsSensorInput(info.id);
+				return true;
 			default:
 				return super.onContextItemSelected(item);
 		}
 	}
 	
-	// Removes the given rowId from the database, updates the UI.
-    public void remove(long rowId) {
-		mDB.deleteRow(rowId);
-		//mCursorAdapter.notifyDataSetChanged();  // confusingly, this does not work
-		mCursorAdapter.getCursor().requery();  // need this
+	/** Makes the recording the input of the live outputs and record screens, in place of the sensors. */
+	private void replayAsSensorInput(long rowId) {
+		SharedPreferences settings = getSharedPreferences(MainMenuActivity.PREFS_NAME, 0);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putLong(MainMenuActivity.REPLAY_RECORDING_ID, rowId);
+		editor.putInt(MainMenuActivity.SENSOR_SOURCE, MainMenuActivity.SOURCE_REPLAY);
+		editor.commit();
+		Toast.makeText(this, "Sensor input now replays this recording", Toast.LENGTH_SHORT).show();
+	}
+	
+	/**
+	 * Takes the given recordings off the list and deletes them from the database, in one
+	 * transaction on the database thread. The recording being captured is left alone.
+	 */
+	public void deleteRecordings(long[] ids) {
+		long active = RecordingService.getActiveRecordingId();
+		int count = 0;
+		for (long rowId : ids) {
+			if (rowId != active) {
+				count++;
+			}
+		}
+		final long[] rowIds = new long[count];
+		count = 0;
+		for (long rowId : ids) {
+			if (rowId != active) {
+				rowIds[count++] = rowId;
+			}
+		}
+		if (rowIds.length == 0) {
+			return;
+		}
+		for (long rowId : rowIds) {
+			mAdapter.remove(rowId);
+		}
+		updateDeleteButton();
+		mDBExecutor.execute(new Runnable() {
+			public void run() {
+				int deleted;
+				try {
+					deleted = mDB.deleteRows(rowIds);
+				} catch (SQLException e) {
+					Log.v(MainMenuActivity.LOG_TAG, "Could not delete recordings: " + e.getMessage());
+					deleted = -1;
+				}
+				final int result = deleted;
+				mHandler.post(new Runnable() {
+					public void run() {
+						deleteFinished(result);
+					}
+				});
+			}
+		});
+	}
+	
+	/** Called on the UI thread with the number of deleted recordings, or -1 if the delete failed. */
+	private void deleteFinished(int deleted) {
+		if (mDestroyed) {
+			return;
+		}
+		if (deleted < 0) {
+			Toast.makeText(this, "Could not delete the recordings", Toast.LENGTH_LONG).show();
+			mAdapter.reload();	// brings them back
+			return;
+		}
+		Toast.makeText(this, deleted + " recording(s) deleted", Toast.LENGTH_SHORT).show();
+		scheduleReclaim();
+	}
+	
+	/**
+	 * Gives the free space of the database file back to the file system on the database thread,
+	 * starting the next time the UI thread runs out of work, so scrolling and the list updates
+	 * of a delete come first.
+	 */
+	private void scheduleReclaim() {
+		if (mReclaimScheduled) {
+			return;
+		}
+		mReclaimScheduled = true;
+		Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+			public boolean queueIdle() {
+				if (!mDestroyed) {
+					mDBExecutor.execute(mReclaimRunnable);
+				}
+				return false;
+			}
+		});
+	}
+	
+	/** Builds the pyramids recordings are missing, one recording per transaction. */
+	private final Runnable mPyramidRunnable = new Runnable() {
+		public void run() {
+			try {
+				int built = mDB.buildMissingPyramids();
+				if (built > 0) {
+					Log.v(MainMenuActivity.LOG_TAG, "Built the pyramids of " + built + " recording(s)");
+				}
+			} catch (IOException e) {
+				Log.v(MainMenuActivity.LOG_TAG, "Could not build pyramids: " + e.getMessage());
+			} catch (SQLException e) {
+				Log.v(MainMenuActivity.LOG_TAG, "Could not build pyramids: " + e.getMessage());
+			}
+		}
+	};
+	
+	/**
+	 * Reclaims RECLAIM_STEP_PAGES at a time, so other database work can get in between, and
+	 * stops as soon as a recording is going on; the space is reclaimed another time.
+	 */
+	private final Runnable mReclaimRunnable = new Runnable() {
+		public void run() {
+			long freed = 0;
+			SensorDataDB db = null;
+			try {
+				if (!isRecording()) {
+					db = new SensorDataDB(SensorDataListActivity.this);
+					db.open();
+				}
+				while (db != null && !mDestroyed && !isRecording() && db.getFreeBytes() > 0) {
+					long step = db.reclaimSpace(RECLAIM_STEP_PAGES);
+					if (step <= 0) {
+						break;
+					}
+					freed += step;
+				}
+			} catch (SQLException e) {
+				Log.v(MainMenuActivity.LOG_TAG, "Could not reclaim space: " + e.getMessage());
+			} finally {
+				if (db != null) {
+					db.close();
+				}
+			}
+			Log.v(MainMenuActivity.LOG_TAG, "Reclaimed " + freed + " bytes");
+			final long total = freed;
+			mHandler.post(new Runnable() {
+				public void run() {
+					mReclaimScheduled = false;
+					if (!mDestroyed && total > 0) {
+						Toast.makeText(SensorDataListActivity.this,
+								Formatter.formatFileSize(SensorDataListActivity.this, total) + " freed",
+								Toast.LENGTH_SHORT).show();
+					}
+				}
+			});
+		}
+	};
+	
+	private static boolean isRecording() {
+		return RecordingService.getActiveRecordingId() != -1;
+	}
+	
+	/** Shows the delete button, with the number of recordings it deletes, while any are selected. */
+	private void updateDeleteButton() {
+		int selected = mAdapter.getSelectedCount();
+		mDeleteButton.setVisibility(selected > 0 ? View.VISIBLE : View.GONE);
+		mDeleteButton.setText(getString(R.string.delete_selected_button_text) + " (" + selected + ")");
+	}
+    
+    /**
+     * Adapter over the recordings loaded so far. Pages are read with SensorDataDB.queryPage(),
+     * continuing after the last loaded row, and copied out so no cursor is kept open.
+     */
+    private class RecordingListAdapter extends BaseAdapter {
+    	private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    	private final HashSet<Long> mSelected = new HashSet<Long>();
+    	private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    	private boolean mComplete;	// no more rows in the database
+    	
+    	/** Loads up to count more recordings, unless all are loaded. */
+    	void loadMore(int count) {
+    		if (mComplete) {
+    			return;
+    		}
+    		long afterTimestamp = Long.MAX_VALUE, afterRowId = Long.MAX_VALUE;
+    		if (!mEntries.isEmpty()) {
+    			Entry last = mEntries.get(mEntries.size() - 1);
+    			afterTimestamp = last.timestamp;
+    			afterRowId = last.rowId;
+    		}
+    		Cursor cursor = mDB.queryPage(afterTimestamp, afterRowId, count);
+    		try {
+    			while (cursor.moveToNext()) {
+    				Entry entry = new Entry();
+    				entry.rowId = cursor.getLong(SensorDataDB.INDEX_ROWID);
+    				entry.title = cursor.getString(SensorDataDB.INDEX_TITLE);
+    				entry.notes = cursor.getString(SensorDataDB.INDEX_NOTES);
+    				entry.timestamp = cursor.getLong(SensorDataDB.INDEX_TIMESTAMP);
+    				String sensorTypes = cursor.getString(SensorDataDB.INDEX_LIST_SENSOR_TYPES).trim();
+    				entry.sensorCount = sensorTypes.length() == 0 ? 0 : sensorTypes.split(" ").length;
+    				entry.duration = cursor.getLong(SensorDataDB.INDEX_LIST_DURATION);
+    				entry.sampleCount = cursor.getLong(SensorDataDB.INDEX_LIST_SAMPLE_COUNT);
+    				mEntries.add(entry);
+    			}
+    			mComplete = cursor.getCount() < count;
+    		} finally {
+    			cursor.close();
+    		}
+    		notifyDataSetChanged();
+    	}
+    	
+    	/** Reads the loaded rows again, at least a page. */
+    	void reload() {
+    		int count = Math.max(PAGE_SIZE, mEntries.size());
+    		mEntries.clear();
+    		mComplete = false;
+    		loadMore(count);
+    		// forget recordings that were deleted elsewhere
+    		HashSet<Long> loaded = new HashSet<Long>();
+    		for (Entry entry : mEntries) {
+    			loaded.add(entry.rowId);
+    		}
+    		mSelected.retainAll(loaded);
+    		updateDeleteButton();
+    	}
+    	
+    	void remove(long rowId) {
+    		mSelected.remove(rowId);
+    		for (int i = 0; i < mEntries.size(); i++) {
+    			if (mEntries.get(i).rowId == rowId) {
+    				mEntries.remove(i);
+    				notifyDataSetChanged();
+    				return;
+    			}
+    		}
+    	}
+    	
+    	int getSelectedCount() {
+    		return mSelected.size();
+    	}
+    	
+    	long[] getSelectedIds() {
+    		long[] ids = new long[mSelected.size()];
+    		int i = 0;
+    		for (long rowId : mSelected) {
+    			ids[i++] = rowId;
+    		}
+    		return ids;
+    	}
+    	
+    	private final View.OnClickListener mCheckListener = new View.OnClickListener() {
+    		public void onClick(View v) {
+    			Long rowId = (Long) v.getTag();
+    			if (((CheckBox) v).isChecked()) {
+    				mSelected.add(rowId);
+    			} else {
+    				mSelected.remove(rowId);
+    			}
+    			updateDeleteButton();
+    		}
+    	};
+    	
+    	public int getCount() {
+    		return mEntries.size();
+    	}
+    	
+    	public Object getItem(int position) {
+    		return mEntries.get(position);
+    	}
+    	
+    	public long getItemId(int position) {
+    		return mEntries.get(position).rowId;
+    	}
+    	
+    	@Override
+    	public boolean hasStableIds() {
+    		return true;
+    	}
+    	
+    	public View getView(int position, View convertView, ViewGroup parent) {
+    		View view = convertView;
+    		if (view == null) {
+    			view = getLayoutInflater().inflate(R.layout.sensor_saved_data_list_row, parent, false);
+    		}
+    		Entry entry = mEntries.get(position);
+    		boolean recording = entry.rowId == RecordingService.getActiveRecordingId();
+    		CheckBox check = (CheckBox) view.findViewById(R.id.dataSelected);
+    		check.setTag(entry.rowId);
+    		check.setChecked(!recording && mSelected.contains(entry.rowId));
+    		check.setEnabled(!recording);
+    		check.setOnClickListener(mCheckListener);
+    		((TextView) view.findViewById(R.id.dataTitle)).setText(entry.title);
+    		((TextView) view.findViewById(R.id.dataTimestamp)).setText(mDateFormat.format(new Date(entry.timestamp)));
+    		((TextView) view.findViewById(R.id.dataNotes)).setText(entry.notes);
+    		String summary = entry.sensorCount + (entry.sensorCount == 1 ? " sensor" : " sensors");
+    		if (recording) {
+    			summary += ", recording now";
+    		} else if (entry.sampleCount > 0) {
+    			summary += ", " + DateUtils.formatElapsedTime(entry.duration / 1000000000L)
+    					+ ", " + entry.sampleCount + " samples";
+    		}
+    		((TextView) view.findViewById(R.id.dataSummary)).setText(summary);
+    		return view;
+    	}
     }
 
 }
@@ -8,6 +8,8 @@ import java.util.Map;
 import android.app.ListActivity;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -15,12 +17,16 @@ import android.widget.TextView;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.SimpleAdapter;
+import android.widget.Toast;
 
 /**
  * This class describes a drill down view for each sensor, allowing the user to mark
- * which components of the sensor they want to record in record mode.
+ * which components of the sensor they want to record in record mode, and the sampling
+ * period to record it at in microseconds (left empty, the rate slider of the main menu applies),
+ * and the filters to record it through (see SensorFilterChain; left empty, none).
  * @author leehsueh
  *
  */
@@ -65,6 +71,10 @@ public class SensorDetailActivity extends ListActivity {
 	private String mSensorName;
 	private int mSensorType;
 	
+	/* UI bindings */
+	private EditText mPeriodEdit;
+	private EditText mFilterEdit;
+	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -88,16 +98,106 @@ public class SensorDetailActivity extends ListActivity {
 		SimpleAdapter simpleAdapter = new SimpleAdapter(this, valuesList, R.layout.sensor_component_list_item, from, to);
 		setListAdapter(simpleAdapter);
 		
+		// show the sampling period, and what the sensor can do
+		SharedPreferences settings = getSharedPreferences(MainMenuActivity.PREFS_NAME, 0);
+		int periodUs = settings.getInt(MainMenuActivity.getPeriodKey(mSensorType), 0);
+		mPeriodEdit = (EditText) findViewById(R.id.periodEdit);
+		if (periodUs > 0) {
+			mPeriodEdit.setText(Integer.toString(periodUs));
+		}
+		mFilterEdit = (EditText) findViewById(R.id.filterEdit);
+		mFilterEdit.setText(settings.getString(MainMenuActivity.getFilterKey(mSensorType), ""));
+		Sensor sensor = ((SensorManager) getSystemService(SENSOR_SERVICE)).getDefaultSensor(mSensorType);
+		if (sensor != null && Build.VERSION.SDK_INT >= 9 && sensor.getMinDelay() > 0) {	// GINGERBREAD
+			TextView info = (TextView) findViewById(R.id.periodInfo);
+			info.setText("Shortest period " + sensor.getMinDelay() + " us (" + Math.round(1e6 / sensor.getMinDelay()) + " Hz)");
+		}
+		
 		// configure the Done button
 		Button doneButton = (Button) findViewById(R.id.doneButton);	// save and go back
 		doneButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
+				String error = checkFilter();
+				if (error != null) {
+					mFilterEdit.setError(error);
+					return;
+				}
 				finish();
 			}
 		});
 	}
 	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		savePeriod();
+		saveFilter();
+	}
+	
+	/**
+	 * Checks the filter chain entered: its syntax, and if a sampling period is entered, its
+	 * frequencies against that rate; otherwise they are only checked when recording starts.
+	 * @return why the chain cannot be used, or null if it can
+	 */
+	private String checkFilter() {
+		String spec = mFilterEdit.getText().toString().trim();
+		double rateHz = Double.MAX_VALUE;	// any rate, to check the syntax only
+		try {
+			int periodUs = Integer.parseInt(mPeriodEdit.getText().toString().trim());
+			if (periodUs > 0) {
+				rateHz = 1e6 / periodUs;
+			}
+		} catch (NumberFormatException nfe) {
+			// no period of its own
+		}
+		try {
+			SensorFilterChain.parse(spec, rateHz, 1);
+			return null;
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	/** Stores the filter chain entered, or removes it if the field is empty; a chain that cannot be used is not stored. */
+	private void saveFilter() {
+		String spec = mFilterEdit.getText().toString().trim();
+		String error = checkFilter();
+		if (error != null) {
+			Log.v(MainMenuActivity.LOG_TAG, "Invalid filter: " + error);
+			Toast.makeText(this, "Filter not saved: " + error, Toast.LENGTH_LONG).show();
+			return;
+		}
+		SharedPreferences settings = getSharedPreferences(MainMenuActivity.PREFS_NAME, 0);
+		SharedPreferences.Editor editor = settings.edit();
+		if (spec.length() > 0) {
+			editor.putString(MainMenuActivity.getFilterKey(mSensorType), spec);
+		} else {
+			editor.remove(MainMenuActivity.getFilterKey(mSensorType));
+		}
+		editor.commit();
+	}
+	
+	/** Stores the sampling period entered, or removes it if the field is empty or 0. */
+	private void savePeriod() {
+		String text = mPeriodEdit.getText().toString().trim();
+		int periodUs = 0;
+		try {
+			periodUs = text.length() > 0 ? Integer.parseInt(text) : 0;
+		} catch (NumberFormatException nfe) {
+			Log.v(MainMenuActivity.LOG_TAG, "Invalid sampling period: " + text);
+			return;
+		}
+		SharedPreferences settings = getSharedPreferences(MainMenuActivity.PREFS_NAME, 0);
+		SharedPreferences.Editor editor = settings.edit();
+		if (periodUs > 0) {
+			editor.putInt(MainMenuActivity.getPeriodKey(mSensorType), periodUs);
+		} else {
+			editor.remove(MainMenuActivity.getPeriodKey(mSensorType));
+		}
+		editor.commit();
+	}
+	
 	@Override
 	/**
 	 * When clicked on, the component should be toggled record/not record, 
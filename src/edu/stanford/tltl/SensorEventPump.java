@@ -0,0 +1,56 @@
+package edu.stanford.tltl;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumer thread for a SensorEventRing: drains the ring into a SensorEventRing.Consumer
+ * (e.g. the StreamingRecorder), so the consumer's work never runs on the sensor callback
+ * thread. When the ring is empty the thread parks until the producer offers the next event
+ * (SensorEventRing.await()), so an idle or batched capture does not wake it up to poll;
+ * MAX_IDLE_WAIT_NANOS only bounds a wakeup missed in a race.
+ *
+ * @author leehsueh
+ *
+ */
+public class SensorEventPump extends Thread {
+	private static final long MAX_IDLE_WAIT_NANOS = 100000000L;	// 100 ms
+	private static final int MAX_BATCH = 256;
+
+	private final SensorEventRing mRing;
+	private final SensorEventRing.Consumer mConsumer;
+	private volatile boolean mQuit;
+
+	public SensorEventPump(SensorEventRing ring, SensorEventRing.Consumer consumer) {
+		super("SensorEventPump");
+		mRing = ring;
+		mConsumer = consumer;
+	}
+
+	@Override
+	public void run() {
+		while (!mQuit) {
+			if (mRing.drain(mConsumer, MAX_BATCH) == 0) {
+				mRing.await(MAX_IDLE_WAIT_NANOS);
+			}
+		}
+		// hand over whatever was queued before quit()
+		mRing.drain(mConsumer);
+	}
+
+	/**
+	 * Stops the thread after it has drained the events queued so far, and waits for it.
+	 * Once this returns the consumer is no longer called, so it can be used from the
+	 * calling thread. Safe to call more than once.
+	 */
+	public void quit() {
+		mQuit = true;
+		LockSupport.unpark(this);	// it may be waiting for events
+		if (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
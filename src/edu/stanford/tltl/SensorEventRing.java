@@ -0,0 +1,186 @@
+package edu.stanford.tltl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of sensor events.
+ *
+ * The sensor callback (the one producer thread) copies each event into a preallocated
+ * slot (sensor type, timestamp, up to maxValues floats and how many) without blocking or allocating,
+ * and one consumer thread drains the slots in order. Slots are published through ordered
+ * writes of the head/tail counters, so no locks are needed as long as there is exactly
+ * one producer thread and one consumer thread.
+ *
+ * When the ring is full the new event is dropped and counted in getOverflowCount(),
+ * so the consumer can tell how many samples it never saw.
+ *
+ * A consumer with nothing to do can park in await() until the producer offers an event,
+ * so it wakes up once per burst (e.g. a batch from the sensor FIFO) instead of polling.
+ * The producer pays one volatile read per event for it, and an unpark only when the
+ * consumer is parked.
+ *
+ * @author leehsueh
+ *
+ */
+public class SensorEventRing {
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final int DEFAULT_MAX_VALUES = 3;
+
+	/**
+	 * Receives drained events. values is reused; copy what you need before returning. Entries
+	 * past those the event had are 0.
+	 */
+	public interface Consumer {
+		public void onSensorEvent(int sensorType, long timestamp, float[] values);
+	}
+
+	private final int mMask;
+	private final int mMaxValues;
+	private final int[] mTypes;
+	private final long[] mTimestamps;
+	private final float[] mValues;	// mMaxValues floats per slot
+	private final int[] mValueCounts;	// floats of each slot that hold the event's values
+	private final float[] mDrainValues;	// handed to the consumer
+
+	private final AtomicLong mHead = new AtomicLong();	// next slot to write; written by the producer
+	private final AtomicLong mTail = new AtomicLong();	// next slot to read; written by the consumer
+	private long mCachedTail;	// producer's last view of mTail
+	private final AtomicReference<Thread> mWaiter = new AtomicReference<Thread>();	// consumer parked in await()
+
+	/* producer side counters */
+	private volatile long mOverflowCount;
+	private volatile int mHighWaterMark;
+
+	public SensorEventRing() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_VALUES);
+	}
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 * @param maxValues number of SensorEvent.values entries kept per event
+	 */
+	public SensorEventRing(int capacity, int maxValues) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mMask = size - 1;
+		mMaxValues = maxValues;
+		mTypes = new int[size];
+		mTimestamps = new long[size];
+		mValues = new float[size * maxValues];
+		mValueCounts = new int[size];
+		mDrainValues = new float[maxValues];
+	}
+
+	/**
+	 * Producer side: copies an event into the ring. Never blocks.
+	 * @return false if the ring was full and the event was dropped
+	 */
+	public boolean offer(int sensorType, long timestamp, float[] values) {
+		long head = mHead.get();
+		int capacity = mMask + 1;
+		if (head - mCachedTail >= capacity) {
+			mCachedTail = mTail.get();
+			if (head - mCachedTail >= capacity) {
+				mOverflowCount++;
+				return false;
+			}
+		}
+		int slot = (int) head & mMask;
+		mTypes[slot] = sensorType;
+		mTimestamps[slot] = timestamp;
+		int n = Math.min(values.length, mMaxValues);
+		System.arraycopy(values, 0, mValues, slot * mMaxValues, n);
+		mValueCounts[slot] = n;
+		mHead.lazySet(head + 1);	// publish the slot
+
+		// the cached tail may be stale; only look at the real one when the mark would rise
+		int used = (int) (head + 1 - mCachedTail);
+		if (used > mHighWaterMark) {
+			mCachedTail = mTail.get();
+			used = (int) (head + 1 - mCachedTail);
+			if (used > mHighWaterMark) {
+				mHighWaterMark = used;
+			}
+		}
+		if (mWaiter.get() != null) {
+			Thread waiter = mWaiter.getAndSet(null);
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Consumer side: parks the calling thread until offer() publishes an event, or for at
+	 * most maxWaitNanos. The head is published with an ordered write, so a wakeup can be
+	 * missed when the two race; the next offer() or the time limit wakes the consumer then.
+	 */
+	public void await(long maxWaitNanos) {
+		Thread current = Thread.currentThread();
+		mWaiter.set(current);
+		if (size() == 0) {
+			LockSupport.parkNanos(maxWaitNanos);
+		}
+		mWaiter.compareAndSet(current, null);
+	}
+
+	/**
+	 * Consumer side: hands up to maxEvents queued events to consumer, oldest first.
+	 * @return number of events drained
+	 */
+	public int drain(Consumer consumer, int maxEvents) {
+		long tail = mTail.get();
+		long available = mHead.get() - tail;
+		int n = (int) Math.min(available, maxEvents);
+		for (int i = 0; i < n; i++) {
+			int slot = (int) (tail + i) & mMask;
+			int count = mValueCounts[slot];
+			System.arraycopy(mValues, slot * mMaxValues, mDrainValues, 0, count);
+			// a shorter event than the last must not pass on the slot's older values
+			for (int v = count; v < mMaxValues; v++) {
+				mDrainValues[v] = 0;
+			}
+			consumer.onSensorEvent(mTypes[slot], mTimestamps[slot], mDrainValues);
+			mTail.lazySet(tail + i + 1);	// free the slot
+		}
+		return n;
+	}
+
+	/** Hands every queued event to consumer. */
+	public int drain(Consumer consumer) {
+		return drain(consumer, Integer.MAX_VALUE);
+	}
+
+	/* status; safe to read from any thread */
+
+	public int getCapacity() {
+		return mMask + 1;
+	}
+
+	/** Number of events waiting to be drained. */
+	public int size() {
+		return (int) (mHead.get() - mTail.get());
+	}
+
+	/** Number of events dropped because the ring was full. */
+	public long getOverflowCount() {
+		return mOverflowCount;
+	}
+
+	/** Largest number of events that were waiting at once. */
+	public int getHighWaterMark() {
+		return mHighWaterMark;
+	}
+
+	/** Bytes taken by the slots. */
+	public long getMemorySize() {
+		return (long) (mMask + 1) * (4 + 8 + 4 + 4 * mMaxValues);
+	}
+
+	/** Total number of events accepted by offer(). */
+	public long getOfferedCount() {
+		return mHead.get();
+	}
+}
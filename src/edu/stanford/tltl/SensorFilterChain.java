@@ -0,0 +1,174 @@
+package edu.stanford.tltl;
+
+/**
+ * Filters the recorded components of each sensor on their way from the SensorEventPump to
+ * the recorder, so a recording can hold filtered and decimated samples instead of raw ones.
+ * Each sensor has its own chain of SampleFilter stages, applied in order; a stage that drops
+ * a sample (decimation) ends the chain for it. Components that are not recorded and sensors
+ * without stages are passed on as they are. Runs on the pump thread and allocates nothing
+ * per event.
+ *
+ * A chain is written as stages separated by commas (parse()), each a name and its
+ * parameters separated by colons:
+ *
+ *   lp:hz        BiquadFilter.lowPass() at hz
+ *   hp:hz        BiquadFilter.highPass() at hz, e.g. hp:0.3 to remove gravity
+ *   ma:n         FirFilter.movingAverage() of n samples
+ *   fir:hz:taps  FirFilter.lowPass() at hz, with taps taps
+ *   dec:m        FirFilter.decimator(): anti-alias low-pass and every mth sample
+ *
+ * e.g. "hp:0.3,dec:4,ma:5". Frequencies are of the rate at that point in the chain, which
+ * each dec divides. The timestamps are moved back by the constant delay of the FIR stages,
+ * so they stay aligned with other sensors; the delay of the biquads depends on the
+ * frequency and is left alone.
+ *
+ * @author leehsueh
+ *
+ */
+public class SensorFilterChain implements SensorEventRing.Consumer {
+	public static final String LOW_PASS = "lp";
+	public static final String HIGH_PASS = "hp";
+	public static final String MOVING_AVERAGE = "ma";
+	public static final String FIR_LOW_PASS = "fir";
+	public static final String DECIMATE = "dec";
+
+	/** The stages of one sensor and their scratch values. */
+	private static class Chain {
+		final int[] mComponentIndices;
+		final SampleFilter[] mStages;
+		final float[] mWork;	// a value per recorded component
+		final long mDelayNanos;
+		final int mDecimation;
+
+		Chain(int[] componentIndices, SampleFilter[] stages, double rateHz) {
+			mComponentIndices = componentIndices.clone();
+			mStages = stages.clone();
+			mWork = new float[componentIndices.length];
+			double delay = 0, period = rateHz > 0 ? 1e9 / rateHz : 0;	// ns, of the samples entering the stage
+			int decimation = 1;
+			for (SampleFilter stage : stages) {
+				delay += stage.getDelay() * period;
+				period *= stage.getDecimation();
+				decimation *= stage.getDecimation();
+			}
+			mDelayNanos = Math.round(delay);
+			mDecimation = decimation;
+		}
+	}
+
+	private final SensorEventRing.Consumer mConsumer;
+	private Chain[] mChains = new Chain[0];	// by sensor type
+
+	/** @param consumer gets the filtered events, e.g. the recorder */
+	public SensorFilterChain(SensorEventRing.Consumer consumer) {
+		mConsumer = consumer;
+	}
+
+	/**
+	 * Filters a sensor's components with the given stages, which must have a channel per
+	 * component. Must be called before events arrive.
+	 * @param componentIndices recorded SensorEvent.values indices
+	 * @param rateHz sampling rate, to move the timestamps back by the delay; 0 if not known
+	 */
+	public void addSensor(int sensorType, int[] componentIndices, SampleFilter[] stages, double rateHz) {
+		if (sensorType >= mChains.length) {
+			Chain[] chains = new Chain[sensorType + 1];
+			System.arraycopy(mChains, 0, chains, 0, mChains.length);
+			mChains = chains;
+		}
+		mChains[sensorType] = stages.length > 0 ? new Chain(componentIndices, stages, rateHz) : null;
+	}
+
+	/** True if any sensor is filtered. */
+	public boolean isFiltering() {
+		for (Chain chain : mChains) {
+			if (chain != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Number of events of a sensor per event passed on. */
+	public int getDecimation(int sensorType) {
+		Chain chain = sensorType < mChains.length ? mChains[sensorType] : null;
+		return chain != null ? chain.mDecimation : 1;
+	}
+
+	/** Nanoseconds the timestamps of a sensor are moved back by. */
+	public long getDelay(int sensorType) {
+		Chain chain = sensorType < mChains.length ? mChains[sensorType] : null;
+		return chain != null ? chain.mDelayNanos : 0;
+	}
+
+	@Override
+	public void onSensorEvent(int sensorType, long timestamp, float[] values) {
+		Chain chain = sensorType < mChains.length ? mChains[sensorType] : null;
+		if (chain == null) {
+			mConsumer.onSensorEvent(sensorType, timestamp, values);
+			return;
+		}
+		int[] indices = chain.mComponentIndices;
+		float[] work = chain.mWork;
+		for (int i = 0; i < indices.length; i++) {
+			work[i] = values[indices[i]];
+		}
+		for (SampleFilter stage : chain.mStages) {
+			if (!stage.filter(work)) {
+				return;
+			}
+		}
+		// values is the ring's scratch copy, so it can carry the result
+		for (int i = 0; i < indices.length; i++) {
+			values[indices[i]] = work[i];
+		}
+		mConsumer.onSensorEvent(sensorType, timestamp - chain.mDelayNanos, values);
+	}
+
+	/**
+	 * Builds the stages of a chain written as described above.
+	 * @param spec the stages; null or empty for none
+	 * @param rateHz sampling rate of the sensor; may be 0 if no stage needs it
+	 * @param channels number of components filtered
+	 * @throws IllegalArgumentException if spec cannot be read, or a stage needs the rate and it is not known
+	 */
+	public static SampleFilter[] parse(String spec, double rateHz, int channels) {
+		if (spec == null || spec.trim().length() == 0) {
+			return new SampleFilter[0];
+		}
+		String[] stages = spec.split(",");
+		SampleFilter[] filters = new SampleFilter[stages.length];
+		double rate = rateHz;
+		for (int i = 0; i < stages.length; i++) {
+			String[] parts = stages[i].trim().split(":");
+			String name = parts[0].trim();
+			try {
+				if (name.equals(LOW_PASS) && parts.length == 2) {
+					filters[i] = BiquadFilter.lowPass(requireRate(rate, stages[i]), Double.parseDouble(parts[1]), channels);
+				} else if (name.equals(HIGH_PASS) && parts.length == 2) {
+					filters[i] = BiquadFilter.highPass(requireRate(rate, stages[i]), Double.parseDouble(parts[1]), channels);
+				} else if (name.equals(MOVING_AVERAGE) && parts.length == 2) {
+					filters[i] = FirFilter.movingAverage(Integer.parseInt(parts[1].trim()), channels);
+				} else if (name.equals(FIR_LOW_PASS) && parts.length == 3) {
+					double cutoff = Double.parseDouble(parts[1]) / (requireRate(rate, stages[i]) / 2);
+					filters[i] = FirFilter.lowPass(cutoff, Integer.parseInt(parts[2].trim()), channels);
+				} else if (name.equals(DECIMATE) && parts.length == 2) {
+					filters[i] = FirFilter.decimator(Integer.parseInt(parts[1].trim()), channels);
+				} else {
+					throw new IllegalArgumentException("Unknown filter: " + stages[i]);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad number in filter: " + stages[i]);
+			}
+			rate /= filters[i].getDecimation();
+		}
+		return filters;
+	}
+
+	private static double requireRate(double rateHz, String stage) {
+		if (!(rateHz > 0)) {
+			throw new IllegalArgumentException("Sampling rate not known for filter: " + stage);
+		}
+		return rateHz;
+	}
+}
@@ -2,7 +2,6 @@ package edu.stanford.tltl;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import android.app.Activity;
@@ -12,11 +11,12 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.CountDownTimer;
+import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -29,53 +29,49 @@ import android.widget.Chronometer.OnChronometerTickListener;
 import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 
 /**
  * This class describes the record mode activity view.
  * When the view is first initiated, a countdown is shown to give a few seconds to prep.
  * Once the countdown is finished, recording begins until the user presses the Stop button.
- * Data is recorded into an object sensorData, which is a map of maps (refer to SensorDataJavaStructre.pdf under doc/resources).
+ * The recording itself runs in RecordingService, which writes the data into the sqlite database while recording;
+ * this screen only starts and stops it and shows its status, so the capture goes on if the screen is paused or recreated.
  * 
  * When user presses Stop, a save button appears. If save is pressed, a dialog pops up prompting for a title and notes for
- *  the data set. When that is complete, a record is inserted into the sqlite database.
+ *  the data set. When that is complete, the record is marked complete. Leaving while recording leaves the capture running;
+ *  leaving a stopped recording asks whether to save or discard it, and only an explicit discard deletes the record.
+ *  Coming back to the screen shows the recording the service holds instead of starting a new one.
  * @author leehsueh
  *
  */
-public class SensorRecordActivity extends Activity implements SensorEventListener  {
-	public static final String TIME_KEY = "Time";
-	public static final String[] COMPONENT_KEYS = {"Values[0]", "Values[1]", "Values[2]"};
+public class SensorRecordActivity extends Activity {
+	public static final String TIME_KEY = SensorRecording.TIME_KEY;
+	public static final String[] COMPONENT_KEYS = SensorRecording.COMPONENT_KEYS;
 	public static final int DIALOG_SAVE_ID = 1;
 	public static final int DIALOG_SAVE_ERROR_ID = 2;
+	public static final int DIALOG_LEAVE_ID = 3;
 	
 	//private ListView mParamsToRecord;
-	private Map<Integer, Map<String, List<Float> > > sensorData;	// sensor type maps to another map where "Time" -> time values; "SensorComponent" -> sensor values
+	private RecordingService mService;	// owns the recording session
+	private boolean mSaved, mDiscarded;
+	private boolean mCountDownStarted;
 	private Map<Integer, ArrayList<Integer>> componentsToRecord;	// sensor type maps to list of components of the sensor to record
 	
-	private long mStartTime, mStopTime;
-	private boolean mRecording;
-	private SensorManager mSensorManager;
 	private int mSampleRate;
 	
 	/* UI widget stuff */
 	private Button mStopButton, mSaveButton;
 	private TextView mCountDown;
 	private Chronometer mChronometer;
-	
-	/* database for saving the data if desired */
-	private SensorDataDB mDB;
+	private CountDownTimer mCountDownTimer;
 	
 	/**
 	 * Set up the sensors and initial data structures for data to be recorded
 	 */
 	private void setup() {
-		mSensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
 		Map<Integer, String[]> sensorPrefKeys = new HashMap<Integer, String[]>();
 		sensorPrefKeys.put(Sensor.TYPE_ACCELEROMETER, 
 				new String[] {MainMenuActivity.REC_ACCELEROMETER_X,
@@ -111,7 +107,6 @@ public class SensorRecordActivity extends Activity implements SensorEventListene
 		
 		// iterate through the SharedPreferences using the sensorPrefKeys to determine which components for which sensors to record.
 		componentsToRecord = new HashMap<Integer, ArrayList<Integer>>();
-		sensorData = new HashMap<Integer, Map<String, List<Float> >>();
 		for (int sensorType : sensorTypes) {
 			// look through pref to see if this sensor needs to be recorded
 			boolean sensorNeeded = false;
@@ -125,33 +120,40 @@ public class SensorRecordActivity extends Activity implements SensorEventListene
 					valueIndices.add(i);
 				}
 			}
-			// register this as sensor listener
+			// sensors are subscribed to when recording starts
 			if (sensorNeeded) {
-				ArrayList<Float> timeValues = new ArrayList<Float>();
 				componentsToRecord.put(sensorType, valueIndices);
-				
-				// instantiate data structure to store data points
-				// map contains sets of data indexed by a key; each set of sensor data includes time, so put that in first
-				HashMap<String, List<Float>> m = new HashMap<String, List<Float>>();
-				m.put(TIME_KEY, timeValues);
-				for (Integer i : valueIndices) {
-					m.put(COMPONENT_KEYS[i], new ArrayList<Float>());
-				}
-				sensorData.put(sensorType, m);
-				
-				Sensor s = mSensorManager.getDefaultSensor(sensorType);
-				if (s != null) {
-					boolean registerSuccess = mSensorManager.registerListener(this,s, mSampleRate);
-					if (registerSuccess) {
-						Log.v(MainMenuActivity.LOG_TAG, "Sensor " + s.getName() + " registered.");
-					}
-				} else {
-					//TODO: handle this scenario (should never happen in theory)
-				}
 			}
 		}
+		
+		// start the recording service so it outlives this screen, and bind to it for status (unbound in onDestroy)
+		Intent service = new Intent(this, RecordingService.class);
+		startService(service);
+		bindService(service, mConnection, BIND_AUTO_CREATE);
 	}
 	
+	private final ServiceConnection mConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			mService = ((RecordingService.LocalBinder) binder).getService();
+			if (mService.isRecording()) {
+				// a recording started earlier is still going (e.g. the screen was recreated): show it
+				showRecording();
+			} else if (hasUnsavedRecording()) {
+				// stopped but not saved yet: offer to save it rather than orphan its row with a new one
+				showStopped();
+			} else if (!mCountDownStarted) {
+				mCountDownStarted = true;
+				mCountDownTimer.start();
+			}
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mService = null;
+		}
+	};
+	
 	/* Activity lifecycle */
 	
 	@Override
@@ -162,19 +164,10 @@ public class SensorRecordActivity extends Activity implements SensorEventListene
 		// get the sampling rate saved from the home screen
 		Bundle extras = getIntent().getExtras();
 		mSampleRate = extras.getInt(MainMenuActivity.RATE_KEY);
-		setup();
 		
 		// set up UI
 		TextView tv = (TextView) findViewById(R.id.textView2);
 		tv.setText("");
-		for (Map.Entry<Integer, ArrayList<Integer>> e : componentsToRecord.entrySet()) {
-			for (Integer i : e.getValue()) {
-				Log.v(MainMenuActivity.LOG_TAG, MainMenuActivity.getSensorTypeToName().get(e.getKey()) + " " + COMPONENT_KEYS[i]);
-				String text = tv.getText().toString();
-				text += "\n" + MainMenuActivity.getSensorTypeToName().get(e.getKey()) + " " + COMPONENT_KEYS[i];
-				tv.setText(text);
-			}
-		}
 		
 		// set up the save button
 		mSaveButton = (Button) findViewById(R.id.saveButton);
@@ -193,70 +186,199 @@ public class SensorRecordActivity extends Activity implements SensorEventListene
 			
 			@Override
 			public void onClick(View v) {
-				// stop recording
-				mRecording = false;
-				
-				// unregister sensors
-				mSensorManager.unregisterListener(SensorRecordActivity.this);
-				
-				Log.v(MainMenuActivity.LOG_TAG, "Recording stopped.");
-				
-				mCountDown.setText("Done.");
-				mChronometer.stop();
-				mStopTime = System.nanoTime();
-				
-				// display number of data points for recorded for each sensor component
-				TextView tv = (TextView) findViewById(R.id.textView2);
-				tv.setText("");
-				for (Map.Entry<Integer, ArrayList<Integer>> e : componentsToRecord.entrySet()) {
-					for (Integer i : e.getValue()) {
-						Log.v(MainMenuActivity.LOG_TAG, MainMenuActivity.getSensorTypeToName().get(e.getKey()) + " " + COMPONENT_KEYS[i]);
-						String text = tv.getText().toString();
-						text += "\n" + MainMenuActivity.getSensorTypeToName().get(e.getKey()) + " " + COMPONENT_KEYS[i] + ": " + sensorData.get(e.getKey()).get(COMPONENT_KEYS[i]).size() + " points";
-						tv.setText(text);
-					}
+				if (mService == null) {
+					return;
 				}
-				
-				// hide the stop button; show the save button
-				mStopButton.setVisibility(Button.INVISIBLE);
-				mSaveButton.setVisibility(Button.VISIBLE);
+				// stop recording in the service; it tells us once everything is written
+				mStopButton.setEnabled(false);
+				mCountDown.setText("Stopping...");
+				mService.stopRecording(new RecordingService.Listener() {
+					@Override
+					public void onDone(boolean succeeded) {
+						if (isFinishing() || mService == null) {
+							return;
+						}
+						if (!succeeded) {
+							showDialog(DIALOG_SAVE_ERROR_ID);
+						}
+						showStopped();
+					}
+				});
 			}
 		});		
 		
 		// start countdown timer and chronometer timer
 		mChronometer = (Chronometer) findViewById(R.id.chronometer1);
+		mChronometer.setOnChronometerTickListener(new OnChronometerTickListener() {
+			@Override
+			public void onChronometerTick(Chronometer chronometer) {
+				if (mService != null && mService.isRecording()) {
+					showStatus();
+				}
+			}
+		});
 		mCountDown = (TextView) findViewById(R.id.countDown);
-		new CountDownTimer(5000, 1000) {
+		mCountDownTimer = new CountDownTimer(5000, 1000) {
 
 		     public void onTick(long millisUntilFinished) {
 		         mCountDown.setText("" + (millisUntilFinished / 1000 - 1));
 		     }
 
 		     public void onFinish() {
-		    	 mCountDown.setText("Recording");
-		    	 mStopButton.setVisibility(View.VISIBLE);
-		    	 mRecording = true;
-		    	 mStartTime = System.nanoTime();
-		    	 
-		    	 // set up chronometer for recording time
-//		         mChronometer.setOnChronometerTickListener(new OnChronometerTickListener(){
-//		             @Override
-//		             public void onChronometerTick(Chronometer arg0) {
-//		                 long countUp = (SystemClock.elapsedRealtime() - arg0.getBase()) / 1000;
-//		                 String asText = (countUp / 60) + ":" + (countUp % 60); 
-//		             }
-//		         });
-		         mChronometer.setBase(SystemClock.elapsedRealtime());
-		         mChronometer.start();
+		    	 if (!startRecording()) {
+		    		 showDialog(DIALOG_SAVE_ERROR_ID);
+		    		 return;
+		    	 }
+		    	 showRecording();
 		     }
-		}.start();
+		};
+		
+		setup();
+		for (Map.Entry<Integer, ArrayList<Integer>> e : componentsToRecord.entrySet()) {
+			for (Integer i : e.getValue()) {
+				Log.v(MainMenuActivity.LOG_TAG, MainMenuActivity.getSensorTypeToName().get(e.getKey()) + " " + COMPONENT_KEYS[i]);
+				String text = tv.getText().toString();
+				text += "\n" + MainMenuActivity.getSensorTypeToName().get(e.getKey()) + " " + COMPONENT_KEYS[i];
+				tv.setText(text);
+			}
+		}
+	}
+	
+	/** True if the service holds a recording that is stopped but neither saved nor discarded. */
+	private boolean hasUnsavedRecording() {
+		return mService != null && !mService.isRecording() && mService.getRecordingId() != -1;
 	}
 	
 	@Override
-	protected void onPause() {
-		super.onPause();
-		// unregister sensors
-		mSensorManager.unregisterListener(SensorRecordActivity.this);
+	public void onBackPressed() {
+		if (hasUnsavedRecording() && !mSaved) {
+			showDialog(DIALOG_LEAVE_ID);
+			return;
+		}
+		// while recording, the capture goes on in the service; the notification leads back here
+		super.onBackPressed();
+	}
+	
+	/**
+	 * Asks the service to create the database record for the recording and start recording into it.
+	 * @return true if recording started
+	 */
+	private boolean startRecording() {
+		if (mService == null) {
+			return false;
+		}
+		int[] sensorTypes = new int[componentsToRecord.size()];
+		int[][] componentIndices = new int[sensorTypes.length][];
+		int n = 0;
+		for (Map.Entry<Integer, ArrayList<Integer>> e : componentsToRecord.entrySet()) {
+			sensorTypes[n] = e.getKey();
+			componentIndices[n] = new int[e.getValue().size()];
+			for (int i = 0; i < componentIndices[n].length; i++) {
+				componentIndices[n][i] = e.getValue().get(i);
+			}
+			n++;
+		}
+		return mService.startRecording(sensorTypes, componentIndices, mSampleRate);
+	}
+	
+	/** Switches the UI to the stopped state: the counts recorded and the save button. */
+	private void showStopped() {
+		mCountDown.setText("Done.");
+		mChronometer.stop();
+		
+		// display number of data points for recorded for each sensor component
+		showStatus();
+		
+		// hide the stop button; show the save button
+		mStopButton.setVisibility(Button.INVISIBLE);
+		mSaveButton.setVisibility(Button.VISIBLE);
+	}
+	
+	/** Switches the UI to the recording state. */
+	private void showRecording() {
+		mCountDown.setText("Recording");
+		mStopButton.setVisibility(View.VISIBLE);
+		
+		// set up chronometer for recording time
+		mChronometer.setBase(SystemClock.elapsedRealtime() - mService.getElapsedTime() / 1000000);
+		mChronometer.start();
+	}
+	
+	/**
+	 * Shows the number of points recorded for each sensor component, the achieved rates, the
+	 * delivery latency and lost or out of order events, how the events were delivered (wakeups
+	 * and batch sizes), how full the buffers got and the bytes written; first, if the data can no
+	 * longer be written, the error. A sensor whose filter chain could not be used says so.
+	 */
+	private void showStatus() {
+		TextView tv = (TextView) findViewById(R.id.textView2);
+		RecordingMetrics metrics = mService.getMetrics();
+		StringBuilder text = new StringBuilder();
+		IOException writeError = mService.getWriteError();
+		if (writeError != null) {
+			text.append("\nData is not being saved: ").append(writeError.getMessage());
+		}
+		for (Map.Entry<Integer, ArrayList<Integer>> e : componentsToRecord.entrySet()) {
+			int sensorType = e.getKey();
+			for (Integer i : e.getValue()) {
+				text.append("\n").append(MainMenuActivity.getSensorTypeToName().get(sensorType)).append(" ").append(COMPONENT_KEYS[i])
+						.append(": ").append(mService.getSampleCount(sensorType)).append(" points");
+				if (mService.getDroppedCount(sensorType) > 0) {
+					text.append(" (").append(mService.getDroppedCount(sensorType)).append(" dropped)");
+				}
+			}
+			text.append("\n  ").append(Math.round(mService.getAchievedRate(sensorType))).append(" samples/s");
+			int periodUs = mService.getRequestedPeriod(sensorType);
+			if (periodUs > 0) {
+				text.append(" of ").append(Math.round(1e6 / periodUs / mService.getDecimation(sensorType)));
+			}
+			text.append(", jitter ").append(Math.round(mService.getJitter(sensorType) / 1000)).append(" us (max interval ")
+					.append(mService.getMaxInterval(sensorType) / 1000).append(" us)");
+			String filterError = mService.getFilterError(sensorType);
+			if (filterError != null) {
+				text.append("\n  unfiltered: ").append(filterError);
+			}
+			RecordingMetrics.Sensor sensor = metrics != null ? metrics.getSensor(sensorType) : null;
+			if (sensor != null) {
+				MetricHistogram latency = sensor.getLatency();
+				if (latency.getCount() > 0) {
+					text.append("\n  latency ").append(String.format("%.1f", latency.getPercentile(0.5) / 1e6))
+							.append(" ms (p99 ").append(String.format("%.1f", latency.getPercentile(0.99) / 1e6)).append(" ms)");
+				} else {
+					text.append("\n  latency unknown");
+				}
+				text.append(", ").append(sensor.getRingDropCount()).append(" lost in queue, ")
+						.append(metrics.getRecorderDropCount(sensorType)).append(" by writer");
+				if (sensor.getDuplicateCount() > 0 || sensor.getBackwardCount() > 0) {
+					text.append(", ").append(sensor.getDuplicateCount()).append(" duplicate and ")
+							.append(sensor.getBackwardCount()).append(" backward timestamps");
+				}
+			}
+		}
+		text.append("\n").append(mService.getWakeupCount()).append(" wakeups, ")
+				.append(Math.round(mService.getMeanBatchSize())).append(" events each (max ")
+				.append(mService.getMaxBatchSize()).append(")")
+				.append(mService.isBatching() ? ", batched in hardware" : "");
+		if (metrics != null) {
+			text.append("\nQueue high water ").append(metrics.getRingHighWaterMark()).append("/").append(metrics.getRingCapacity())
+					.append(", writer backlog ").append(metrics.getBacklogHighWaterMark()).append(" chunks, buffers ")
+					.append(metrics.getBufferBytes() / 1024).append(" KB, heap ")
+					.append(RecordingMetrics.getHeapUsed() / (1024 * 1024)).append(" MB");
+		}
+		text.append("\n").append(mService.getBytesWritten() / 1024).append(" KB written");
+		tv.setText(text);
+	}
+	
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mCountDownTimer.cancel();
+		// the service is only stopped once it holds nothing: a recording is discarded by the user's choice alone
+		if (isFinishing() && mService != null && !mService.isRecording()
+				&& (mSaved || mDiscarded || mService.getRecordingId() == -1)) {
+			stopService(new Intent(this, RecordingService.class));
+		}
+		unbindService(mConnection);
 	}
 	
 	/* dialog stuff */
@@ -291,36 +413,51 @@ public class SensorRecordActivity extends Activity implements SensorEventListene
 					EditText nameField = (EditText) ad.findViewById(R.id.saveName);
 					EditText notesField = (EditText) ad.findViewById(R.id.saveNotes);
 
-					// save data
+					// save data; the samples are already in the database
 					Log.v(MainMenuActivity.LOG_TAG, "Save with name " + nameField.getText() + "!");
-					long timestamp = System.currentTimeMillis();
 					String title = nameField.getText().toString();
 					String notes = notesField.getText().toString();
 				    
-					try {
-					    // set up and open the database
-					    mDB = new SensorDataDB(SensorRecordActivity.this);
-					    
-						// serialize sensor data into bytes
-						byte[] byteArray = mDB.serializableObjectToByteArray((Serializable)sensorData);
-					    
-					    mDB.open();
-					    
-					    // add row
-					    mDB.createRow(mDB.createContentValues(title, notes, timestamp, byteArray, sensorData.keySet()));
-					    mDB.close();
-	
-					} catch (IOException ioe) {
-						Log.v(MainMenuActivity.LOG_TAG, "Error in byte operations!\n" + ioe.getMessage());
-						showDialog(DIALOG_SAVE_ERROR_ID);
-					} finally {
+					if (mService == null) {
 						finish();
+						return;
 					}
+					// finished on the worker thread; the service is stopped once this screen is gone
+					mSaved = true;
+					mService.finishRecording(title, notes, new RecordingService.Listener() {
+						@Override
+						public void onDone(boolean succeeded) {
+							if (!succeeded) {
+								Toast.makeText(getApplicationContext(), "There was an error saving data!", Toast.LENGTH_LONG).show();
+							}
+						}
+					});
+					finish();
 				}
 			});
 			alertDialog = builder.create();
 
 			break;
+	    case DIALOG_LEAVE_ID:
+	    	builder.setMessage("This recording has not been saved.");
+	    	builder.setPositiveButton("Save", new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					showDialog(DIALOG_SAVE_ID);
+				}
+			});
+	    	builder.setNegativeButton("Discard", new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					if (mService != null) {
+						mService.discardRecordingInBackground();
+						mDiscarded = true;
+					}
+					finish();
+				}
+			});
+	    	alertDialog = builder.create();
+	    	break;
 	    case DIALOG_SAVE_ERROR_ID:
 	    	builder.setMessage("There was an error saving data!");
 	    	builder.setNeutralButton(android.R.string.ok, new DialogInterface.OnClickListener() {
@@ -337,33 +474,4 @@ public class SensorRecordActivity extends Activity implements SensorEventListene
 		
 		return alertDialog;
 	}
-	
-	/* Sensor stuff */
-	
-	@Override
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// TODO Auto-generated method stub
-		
-	}
-	@Override
-	/**
-	 * onSensorChanged override for the hardware event listener
-	 */
-	public void onSensorChanged(SensorEvent event) {
-		synchronized (this) {
-			if (mRecording) {
-				int sensorType = event.sensor.getType();
-				recordPoint(sensorType, event.values, event.timestamp);
-			}
-		}
-		
-	}
-	
-	private void recordPoint(int sensorType, float[] values, long timestamp) {
-		ArrayList<Integer> valueIndices = componentsToRecord.get(sensorType);
-		sensorData.get(sensorType).get(TIME_KEY).add(Long.valueOf((timestamp - mStartTime)).floatValue()/1000000.0f);
-		for (Integer i : valueIndices) {
-			sensorData.get(sensorType).get(COMPONENT_KEYS[i]).add(values[i]);
-		}
-	}
 }
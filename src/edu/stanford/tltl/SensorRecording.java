@@ -0,0 +1,126 @@
+package edu.stanford.tltl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data recorded in one record mode session: a SensorSampleBuffer per recorded sensor.
+ *
+ * Buffers are looked up by sensor type through a plain array so that the per-event path
+ * in SensorRecordActivity does no hashing or boxing.
+ *
+ * The legacy representation (a map of sensor type -> map of "Time"/"Values[i]" -> list of floats,
+ * see doc/SensorDataJavaStructure.pdf) can still be converted to and from this class, so older
+ * recordings stored in the database remain readable.
+ *
+ * @author leehsueh
+ *
+ */
+public class SensorRecording {
+	public static final String TIME_KEY = "Time";
+	public static final String[] COMPONENT_KEYS = {"Values[0]", "Values[1]", "Values[2]"};
+
+	private SensorSampleBuffer[] mBuffersByType = new SensorSampleBuffer[16];
+	private int[] mSensorTypes = new int[0];	// in the order they were added
+	private long mStartTime;	// nanoseconds, same clock as the stored timestamps
+
+	public SensorRecording() {
+	}
+
+	public SensorRecording(long startTime) {
+		mStartTime = startTime;
+	}
+
+	/**
+	 * Adds a sensor to be recorded.
+	 * @param sensorType android sensor type constant
+	 * @param componentIndices indices into SensorEvent.values to record
+	 * @return the buffer holding the sensor's samples
+	 */
+	public SensorSampleBuffer addSensor(int sensorType, int[] componentIndices) {
+		if (sensorType >= mBuffersByType.length) {
+			SensorSampleBuffer[] buffers = new SensorSampleBuffer[sensorType + 1];
+			System.arraycopy(mBuffersByType, 0, buffers, 0, mBuffersByType.length);
+			mBuffersByType = buffers;
+		}
+		SensorSampleBuffer buffer = new SensorSampleBuffer(sensorType, componentIndices);
+		if (mBuffersByType[sensorType] == null) {
+			int[] types = new int[mSensorTypes.length + 1];
+			System.arraycopy(mSensorTypes, 0, types, 0, mSensorTypes.length);
+			types[mSensorTypes.length] = sensorType;
+			mSensorTypes = types;
+		}
+		mBuffersByType[sensorType] = buffer;
+		return buffer;
+	}
+
+	/** Records one sensor event. Events from sensors that were not added are ignored. */
+	public void append(int sensorType, long timestamp, float[] values) {
+		if (sensorType < mBuffersByType.length) {
+			SensorSampleBuffer buffer = mBuffersByType[sensorType];
+			if (buffer != null) {
+				buffer.append(timestamp, values);
+			}
+		}
+	}
+
+	/* Read API */
+
+	/** Sensor types in this recording, in the order they were added. */
+	public int[] getSensorTypes() {
+		return mSensorTypes.clone();
+	}
+
+	/** Returns the buffer for a sensor type, or null if it was not recorded. */
+	public SensorSampleBuffer getBuffer(int sensorType) {
+		if (sensorType < 0 || sensorType >= mBuffersByType.length) {
+			return null;
+		}
+		return mBuffersByType[sensorType];
+	}
+
+	public long getStartTime() {
+		return mStartTime;
+	}
+
+	public void setStartTime(long startTime) {
+		mStartTime = startTime;
+	}
+
+	/* Conversion from the legacy map of maps structure */
+
+	/**
+	 * Builds a recording from the legacy sensorData structure. The legacy time column is
+	 * milliseconds relative to the start of the recording, so the start time is 0.
+	 */
+	public static SensorRecording fromSensorDataMap(Map<Integer, Map<String, List<Float>>> sensorData) {
+		SensorRecording recording = new SensorRecording(0);
+		for (Map.Entry<Integer, Map<String, List<Float>>> e : sensorData.entrySet()) {
+			Map<String, List<Float>> dataForSensor = e.getValue();
+			List<Integer> indices = new ArrayList<Integer>();
+			for (int i = 0; i < COMPONENT_KEYS.length; i++) {
+				if (dataForSensor.containsKey(COMPONENT_KEYS[i])) {
+					indices.add(i);
+				}
+			}
+			int[] componentIndices = new int[indices.size()];
+			for (int i = 0; i < componentIndices.length; i++) {
+				componentIndices[i] = indices.get(i);
+			}
+			recording.addSensor(e.getKey(), componentIndices);
+
+			List<Float> times = dataForSensor.get(TIME_KEY);
+			int numberOfPoints = times == null ? 0 : times.size();
+			float[] values = new float[COMPONENT_KEYS.length];
+			for (int p = 0; p < numberOfPoints; p++) {
+				for (int i : componentIndices) {
+					values[i] = dataForSensor.get(COMPONENT_KEYS[i]).get(p);
+				}
+				long timestamp = (long) (times.get(p) * 1000000.0);
+				recording.append(e.getKey(), timestamp, values);
+			}
+		}
+		return recording;
+	}
+}
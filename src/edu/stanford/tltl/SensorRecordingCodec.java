@@ -0,0 +1,296 @@
+package edu.stanford.tltl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes a SensorRecording to/from the compact binary recording format
+ * that is stored in the database.
+ *
+ * All numbers are little-endian. Layout (version 1):
+ *
+ *   header:  int32 magic "TLSR", int16 version, int16 sensor count, int32 block size,
+ *            int64 start time (ns)
+ *   sensors: per sensor, int32 sensor type, int32 component mask (bit i set if
+ *            SensorEvent.values[i] was recorded), int32 sample count
+ *   data:    per sensor in header order, blocks of up to block size samples; each block
+ *            is int64[n] timestamps followed by float32[n] for each component in
+ *            ascending component index order
+ *
+ * Both directions stream through a small reused ByteBuffer, so neither side needs a second
+ * copy of the recording. Blobs written by the old Java serialization code (a serialized
+ * map of maps) are recognized by the serialization stream magic and decoded as well.
+ *
+ * A single SampleChunk is stored as the payload of a chunk table row using the same packed
+ * block layout (int64[n] timestamps, then float32[n] per component); sample count, sensor
+ * type and component mask are kept in the row's columns.
+ *
+ * A PyramidBlock is stored in a pyramid table row the same way: int64[n] bucket start times,
+ * int32[n] sample counts, then float32[n] min, max and mean for each component.
+ *
+ * @author leehsueh
+ *
+ */
+public class SensorRecordingCodec {
+	public static final int MAGIC = 0x52534c54;	// "TLSR" when read as little-endian bytes
+	public static final int VERSION = 1;
+	public static final int BLOCK_SIZE = SensorSampleBuffer.CHUNK_SIZE;
+
+	private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 8;
+	private static final int SENSOR_HEADER_SIZE = 4 + 4 + 4;
+	private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+	/** Encodes the recording into a new byte array. */
+	public static byte[] encode(SensorRecording recording) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(encodedSize(recording));
+		encode(recording, bos);
+		return bos.toByteArray();
+	}
+
+	/** Number of bytes encode() produces for the recording. */
+	public static int encodedSize(SensorRecording recording) {
+		int size = HEADER_SIZE;
+		for (int sensorType : recording.getSensorTypes()) {
+			SensorSampleBuffer buffer = recording.getBuffer(sensorType);
+			size += SENSOR_HEADER_SIZE + buffer.size() * (8 + 4 * buffer.getComponentCount());
+		}
+		return size;
+	}
+
+	/** Streams the encoded recording to out. Does not close out. */
+	public static void encode(SensorRecording recording, OutputStream out) throws IOException {
+		int[] sensorTypes = recording.getSensorTypes();
+		ByteBuffer bb = ByteBuffer.allocate(BLOCK_SIZE * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+		bb.putInt(MAGIC);
+		bb.putShort((short) VERSION);
+		bb.putShort((short) sensorTypes.length);
+		bb.putInt(BLOCK_SIZE);
+		bb.putLong(recording.getStartTime());
+		for (int sensorType : sensorTypes) {
+			SensorSampleBuffer buffer = recording.getBuffer(sensorType);
+			bb.putInt(sensorType);
+			bb.putInt(componentMask(buffer));
+			bb.putInt(buffer.size());
+		}
+		out.write(bb.array(), 0, bb.position());
+
+		long[] times = new long[BLOCK_SIZE];
+		float[] values = new float[BLOCK_SIZE];
+		for (int sensorType : sensorTypes) {
+			SensorSampleBuffer buffer = recording.getBuffer(sensorType);
+			int componentCount = buffer.getComponentCount();
+			int size = buffer.size();
+			for (int from = 0; from < size; from += BLOCK_SIZE) {
+				int n = Math.min(BLOCK_SIZE, size - from);
+				bb.clear();
+				buffer.copyTimestamps(from, times, 0, n);
+				bb.asLongBuffer().put(times, 0, n);
+				out.write(bb.array(), 0, n * 8);
+				for (int slot = 0; slot < componentCount; slot++) {
+					bb.clear();
+					buffer.copyValues(slot, from, values, 0, n);
+					bb.asFloatBuffer().put(values, 0, n);
+					out.write(bb.array(), 0, n * 4);
+				}
+			}
+		}
+	}
+
+	/** Decodes a stored recording blob, in either the binary or the legacy serialized format. */
+	public static SensorRecording decode(byte[] data) throws IOException {
+		return decode(new ByteArrayInputStream(data));
+	}
+
+	/** Decodes a recording from a stream, in either the binary or the legacy serialized format. */
+	public static SensorRecording decode(InputStream in) throws IOException {
+		if (!in.markSupported()) {
+			in = new BufferedInputStream(in);
+		}
+		in.mark(2);
+		int b0 = in.read();
+		int b1 = in.read();
+		in.reset();
+		if (b0 < 0 || b1 < 0) {
+			throw new EOFException("Empty recording data");
+		}
+		if (((b0 << 8) | b1) == JAVA_SERIALIZATION_MAGIC) {
+			return decodeLegacy(in);
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(BLOCK_SIZE * 8).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(in, bb, HEADER_SIZE);
+		if (bb.getInt() != MAGIC) {
+			throw new IOException("Not a recording");
+		}
+		int version = bb.getShort();
+		if (version != VERSION) {
+			throw new IOException("Unsupported recording version " + version);
+		}
+		int sensorCount = bb.getShort();
+		int blockSize = bb.getInt();
+		SensorRecording recording = new SensorRecording(bb.getLong());
+		if (sensorCount < 0 || blockSize <= 0) {
+			throw new IOException("Corrupt recording header");
+		}
+		int bufferSize = Math.max(blockSize * 8, sensorCount * SENSOR_HEADER_SIZE);
+		if (bufferSize > bb.capacity()) {
+			bb = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		int[] types = new int[sensorCount];
+		int[] counts = new int[sensorCount];
+		int maxComponents = 0;
+		readFully(in, bb, sensorCount * SENSOR_HEADER_SIZE);
+		for (int s = 0; s < sensorCount; s++) {
+			types[s] = bb.getInt();
+			int[] components = componentsFromMask(bb.getInt());
+			recording.addSensor(types[s], components);
+			counts[s] = bb.getInt();
+			maxComponents = Math.max(maxComponents, components.length);
+		}
+
+		long[] times = new long[blockSize];
+		float[][] columns = new float[maxComponents][blockSize];
+		for (int s = 0; s < sensorCount; s++) {
+			SensorSampleBuffer buffer = recording.getBuffer(types[s]);
+			int componentCount = buffer.getComponentCount();
+			for (int from = 0; from < counts[s]; from += blockSize) {
+				int n = Math.min(blockSize, counts[s] - from);
+				readFully(in, bb, n * 8);
+				bb.asLongBuffer().get(times, 0, n);
+				// components are stored in ascending index order, which is also slot order
+				for (int slot = 0; slot < componentCount; slot++) {
+					readFully(in, bb, n * 4);
+					bb.asFloatBuffer().get(columns[slot], 0, n);
+				}
+				buffer.appendBlock(times, columns, n);
+			}
+		}
+		return recording;
+	}
+
+	/** Packs the samples of a chunk into a chunk table payload. */
+	public static byte[] encodeChunk(SampleChunk chunk) {
+		int n = chunk.getCount();
+		ByteBuffer bb = ByteBuffer.allocate(n * (8 + 4 * chunk.getComponentCount())).order(ByteOrder.LITTLE_ENDIAN);
+		bb.asLongBuffer().put(chunk.getTimestamps(), 0, n);
+		bb.position(n * 8);
+		for (int slot = 0; slot < chunk.getComponentCount(); slot++) {
+			bb.asFloatBuffer().put(chunk.getValues(slot), 0, n);
+			bb.position(bb.position() + n * 4);
+		}
+		return bb.array();
+	}
+
+	/**
+	 * Unpacks a chunk table payload holding count samples into chunk, which must have
+	 * the row's components and enough capacity.
+	 */
+	public static void decodeChunk(byte[] payload, int count, SampleChunk chunk) throws IOException {
+		if (payload.length != count * (8 + 4 * chunk.getComponentCount()) || count > chunk.getCapacity()) {
+			throw new IOException("Corrupt sample chunk");
+		}
+		ByteBuffer bb = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+		bb.asLongBuffer().get(chunk.getTimestamps(), 0, count);
+		bb.position(count * 8);
+		for (int slot = 0; slot < chunk.getComponentCount(); slot++) {
+			bb.asFloatBuffer().get(chunk.getValues(slot), 0, count);
+			bb.position(bb.position() + count * 4);
+		}
+		chunk.setCount(count);
+	}
+
+	/** Packs the buckets of a pyramid block into a pyramid table payload. */
+	public static byte[] encodePyramidBlock(PyramidBlock block) {
+		int n = block.getCount();
+		ByteBuffer bb = ByteBuffer.allocate(n * (8 + 4 + 12 * block.getComponentCount())).order(ByteOrder.LITTLE_ENDIAN);
+		bb.asLongBuffer().put(block.getStartTimes(), 0, n);
+		bb.position(n * 8);
+		bb.asIntBuffer().put(block.getSampleCounts(), 0, n);
+		bb.position(n * 12);
+		for (int slot = 0; slot < block.getComponentCount(); slot++) {
+			bb.asFloatBuffer().put(block.getMin(slot), 0, n).put(block.getMax(slot), 0, n).put(block.getMean(slot), 0, n);
+			bb.position(bb.position() + n * 12);
+		}
+		return bb.array();
+	}
+
+	/**
+	 * Unpacks a pyramid table payload holding count buckets into block, which must have
+	 * the row's components and enough capacity.
+	 */
+	public static void decodePyramidBlock(byte[] payload, int count, PyramidBlock block) throws IOException {
+		if (payload.length != count * (8 + 4 + 12 * block.getComponentCount()) || count > block.getCapacity()) {
+			throw new IOException("Corrupt pyramid block");
+		}
+		ByteBuffer bb = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+		bb.asLongBuffer().get(block.getStartTimes(), 0, count);
+		bb.position(count * 8);
+		bb.asIntBuffer().get(block.getSampleCounts(), 0, count);
+		bb.position(count * 12);
+		for (int slot = 0; slot < block.getComponentCount(); slot++) {
+			bb.asFloatBuffer().get(block.getMin(slot), 0, count).get(block.getMax(slot), 0, count).get(block.getMean(slot), 0, count);
+			bb.position(bb.position() + count * 12);
+		}
+		block.setCount(count);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SensorRecording decodeLegacy(InputStream in) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(in);
+		try {
+			Map<Integer, Map<String, List<Float>>> sensorData = (Map<Integer, Map<String, List<Float>>>) ois.readObject();
+			return SensorRecording.fromSensorDataMap(sensorData);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unreadable legacy recording: " + e.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+
+	/* helpers */
+
+	private static void readFully(InputStream in, ByteBuffer bb, int length) throws IOException {
+		bb.clear();
+		byte[] array = bb.array();
+		int read = 0;
+		while (read < length) {
+			int n = in.read(array, read, length - read);
+			if (n < 0) {
+				throw new EOFException("Truncated recording data");
+			}
+			read += n;
+		}
+		bb.limit(length);
+	}
+
+	static int componentMask(SensorSampleBuffer buffer) {
+		int mask = 0;
+		for (int slot = 0; slot < buffer.getComponentCount(); slot++) {
+			mask |= 1 << buffer.getComponentIndex(slot);
+		}
+		return mask;
+	}
+
+	static int[] componentsFromMask(int mask) {
+		int[] components = new int[Integer.bitCount(mask)];
+		int n = 0;
+		for (int i = 0; i < 32; i++) {
+			if ((mask & (1 << i)) != 0) {
+				components[n++] = i;
+			}
+		}
+		return components;
+	}
+}
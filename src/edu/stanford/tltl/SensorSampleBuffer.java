@@ -0,0 +1,169 @@
+package edu.stanford.tltl;
+
+import java.util.Arrays;
+
+/**
+ * Column storage for the samples of a single sensor during a recording.
+ *
+ * Timestamps are kept as raw nanosecond longs (SensorEvent.timestamp) and each recorded
+ * component gets its own float column. Columns are split into fixed size chunks so that
+ * growing the buffer never copies existing samples, and appending a sample never boxes
+ * values or does any map lookups. A new chunk is only allocated once every CHUNK_SIZE samples.
+ *
+ * A component "slot" is the column index inside this buffer; the component index is the
+ * index into the SensorEvent.values array that the slot was recorded from. Slots are always
+ * in ascending component index order.
+ *
+ * @author leehsueh
+ *
+ */
+public class SensorSampleBuffer {
+	public static final int CHUNK_SHIFT = 10;
+	public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;	// samples per chunk
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int INITIAL_CHUNK_SLOTS = 8;
+
+	private final int mSensorType;
+	private final int[] mComponentIndices;	// slot -> index into SensorEvent.values
+
+	private long[][] mTimeChunks;
+	private float[][][] mValueChunks;	// [slot][chunk][sample in chunk]
+	private int mChunkCount;	// number of chunks allocated so far
+	private int mSize;	// number of samples appended
+
+	/**
+	 * @param sensorType the android sensor type constant
+	 * @param componentIndices indices into SensorEvent.values to record, one per column
+	 */
+	public SensorSampleBuffer(int sensorType, int[] componentIndices) {
+		mSensorType = sensorType;
+		mComponentIndices = componentIndices.clone();
+		Arrays.sort(mComponentIndices);
+		mTimeChunks = new long[INITIAL_CHUNK_SLOTS][];
+		mValueChunks = new float[mComponentIndices.length][INITIAL_CHUNK_SLOTS][];
+	}
+
+	/**
+	 * Appends one sample. values is the full SensorEvent.values array; only the
+	 * components this buffer was created with are copied.
+	 */
+	public void append(long timestamp, float[] values) {
+		int chunk = mSize >>> CHUNK_SHIFT;
+		int offset = mSize & CHUNK_MASK;
+		if (chunk == mChunkCount) {
+			addChunk();
+		}
+		mTimeChunks[chunk][offset] = timestamp;
+		for (int slot = 0; slot < mComponentIndices.length; slot++) {
+			mValueChunks[slot][chunk][offset] = values[mComponentIndices[slot]];
+		}
+		mSize++;
+	}
+
+	/**
+	 * Appends count samples given as columns: timestamps[i] and columns[slot][i]
+	 * for i in [0, count). Used when loading stored recordings.
+	 */
+	public void appendBlock(long[] timestamps, float[][] columns, int count) {
+		int done = 0;
+		while (done < count) {
+			int chunk = mSize >>> CHUNK_SHIFT;
+			int offset = mSize & CHUNK_MASK;
+			if (chunk == mChunkCount) {
+				addChunk();
+			}
+			int n = Math.min(count - done, CHUNK_SIZE - offset);
+			System.arraycopy(timestamps, done, mTimeChunks[chunk], offset, n);
+			for (int slot = 0; slot < mComponentIndices.length; slot++) {
+				System.arraycopy(columns[slot], done, mValueChunks[slot][chunk], offset, n);
+			}
+			mSize += n;
+			done += n;
+		}
+	}
+
+	private void addChunk() {
+		if (mChunkCount == mTimeChunks.length) {
+			int newLength = mTimeChunks.length * 2;
+			long[][] timeChunks = new long[newLength][];
+			System.arraycopy(mTimeChunks, 0, timeChunks, 0, mChunkCount);
+			mTimeChunks = timeChunks;
+			for (int slot = 0; slot < mValueChunks.length; slot++) {
+				float[][] valueChunks = new float[newLength][];
+				System.arraycopy(mValueChunks[slot], 0, valueChunks, 0, mChunkCount);
+				mValueChunks[slot] = valueChunks;
+			}
+		}
+		mTimeChunks[mChunkCount] = new long[CHUNK_SIZE];
+		for (int slot = 0; slot < mValueChunks.length; slot++) {
+			mValueChunks[slot][mChunkCount] = new float[CHUNK_SIZE];
+		}
+		mChunkCount++;
+	}
+
+	/* Read API */
+
+	public int getSensorType() {
+		return mSensorType;
+	}
+
+	/** Number of samples recorded. */
+	public int size() {
+		return mSize;
+	}
+
+	/** Number of recorded components (float columns). */
+	public int getComponentCount() {
+		return mComponentIndices.length;
+	}
+
+	/** Index into SensorEvent.values that the given slot was recorded from. */
+	public int getComponentIndex(int slot) {
+		return mComponentIndices[slot];
+	}
+
+	/** Returns the slot that holds the given SensorEvent.values index, or -1 if not recorded. */
+	public int getSlotForComponent(int componentIndex) {
+		for (int slot = 0; slot < mComponentIndices.length; slot++) {
+			if (mComponentIndices[slot] == componentIndex) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/** Raw SensorEvent timestamp (nanoseconds) of the i-th sample. */
+	public long getTimestamp(int i) {
+		return mTimeChunks[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/** Value of the i-th sample in the given component slot. */
+	public float getValue(int slot, int i) {
+		return mValueChunks[slot][i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/** Bulk copy of count timestamps starting at sample from. */
+	public void copyTimestamps(int from, long[] dst, int dstOffset, int count) {
+		while (count > 0) {
+			int offset = from & CHUNK_MASK;
+			int n = Math.min(count, CHUNK_SIZE - offset);
+			System.arraycopy(mTimeChunks[from >>> CHUNK_SHIFT], offset, dst, dstOffset, n);
+			from += n;
+			dstOffset += n;
+			count -= n;
+		}
+	}
+
+	/** Bulk copy of count values of one slot starting at sample from. */
+	public void copyValues(int slot, int from, float[] dst, int dstOffset, int count) {
+		float[][] chunks = mValueChunks[slot];
+		while (count > 0) {
+			int offset = from & CHUNK_MASK;
+			int n = Math.min(count, CHUNK_SIZE - offset);
+			System.arraycopy(chunks[from >>> CHUNK_SHIFT], offset, dst, dstOffset, n);
+			from += n;
+			dstOffset += n;
+			count -= n;
+		}
+	}
+}
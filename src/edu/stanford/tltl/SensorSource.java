@@ -0,0 +1,50 @@
+package edu.stanford.tltl;
+
+/**
+ * Where sensor events come from: the sensor hardware (AndroidSensorSource), or a generator
+ * or stored recording (SyntheticSensorSource, ReplaySensorSource) so the recording pipeline
+ * can be driven with a known load without a device.
+ *
+ * A source delivers the events of the sensors registered with it to the
+ * SensorEventRing.Consumer it was created with, on a thread of its own; that thread is the
+ * only one calling the consumer. register() and unregister() can be called from any thread.
+ *
+ * @author leehsueh
+ *
+ */
+public interface SensorSource {
+	/** True if the source can deliver events of the sensor type. */
+	public boolean hasSensor(int sensorType);
+
+	/**
+	 * Starts delivering events of a sensor, or changes its period and latency if it is
+	 * already registered.
+	 * @param sensorType android sensor type constant
+	 * @param periodUs sampling period asked for in us, 0 for as fast as possible; only a hint
+	 * @param maxReportLatencyUs how long events may be held before delivery, 0 for immediate
+	 * @return false if the source has no such sensor
+	 */
+	public boolean register(int sensorType, int periodUs, int maxReportLatencyUs);
+
+	/** Stops delivering events of a sensor. */
+	public void unregister(int sensorType);
+
+	/** True if events of the sensor are collected and delivered in batches. */
+	public boolean isBatching(int sensorType);
+
+	/**
+	 * Delivers the events held for batching and waits up to timeoutMillis until they are
+	 * handed to the consumer.
+	 * @return false if that did not complete in time
+	 */
+	public boolean flush(long timeoutMillis);
+
+	/**
+	 * The current time on the clock the event timestamps are on, so the delay of an event can
+	 * be measured. Called on the source's thread.
+	 */
+	public long now();
+
+	/** Unregisters all sensors and stops the source's thread; the consumer is not called afterwards. */
+	public void close();
+}
@@ -0,0 +1,108 @@
+package edu.stanford.tltl;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Plots a DownsampledSeries: a vertical min-max line per point, so short spikes stay visible
+ * at any zoom level, and the mean as a line on top. Points are spread evenly over the width;
+ * ask SensorDataDB.queryDownsampled() for about getWidth() points and drawing stays cheap
+ * however long the recording is. The line coordinates are computed once per series and
+ * size, not in onDraw().
+ *
+ * @author leehsueh
+ *
+ */
+public class SeriesPlotView extends View {
+	private final Paint mRangePaint = new Paint();
+	private final Paint mMeanPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private DownsampledSeries mSeries;
+	private String mLabel = "";
+	private float[] mRangeLines = new float[0];
+	private float[] mMeanLines = new float[0];
+	private int mPoints;
+
+	public SeriesPlotView(Context context) {
+		super(context);
+		init();
+	}
+
+	public SeriesPlotView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	private void init() {
+		mRangePaint.setColor(Color.DKGRAY);
+		mMeanPaint.setColor(Color.CYAN);
+		mMeanPaint.setStrokeWidth(2);
+		mLabelPaint.setColor(Color.LTGRAY);
+		mLabelPaint.setTextSize(14);
+	}
+
+	/** Shows a series, or nothing if null. */
+	public void setSeries(DownsampledSeries series, String label) {
+		mSeries = series;
+		mLabel = label;
+		layoutLines(getWidth(), getHeight());
+		invalidate();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		layoutLines(w, h);
+	}
+
+	private void layoutLines(int width, int height) {
+		mPoints = mSeries != null ? mSeries.size() : 0;
+		if (mPoints == 0 || width == 0 || height == 0) {
+			mPoints = 0;
+			return;
+		}
+		float[] min = mSeries.getMin(), max = mSeries.getMax(), mean = mSeries.getMean();
+		float low = Float.POSITIVE_INFINITY, high = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < mPoints; i++) {
+			low = Math.min(low, min[i]);
+			high = Math.max(high, max[i]);
+		}
+		float scale = high > low ? (height - 1) / (high - low) : 0;
+		float step = mPoints > 1 ? (float) (width - 1) / (mPoints - 1) : 0;
+		if (mRangeLines.length < mPoints * 4) {
+			mRangeLines = new float[mPoints * 4];
+			mMeanLines = new float[mPoints * 4];
+		}
+		for (int i = 0; i < mPoints; i++) {
+			float x = i * step;
+			mRangeLines[4 * i] = x;
+			mRangeLines[4 * i + 1] = height - 1 - (min[i] - low) * scale;
+			mRangeLines[4 * i + 2] = x;
+			mRangeLines[4 * i + 3] = height - 1 - (max[i] - low) * scale;
+			if (i > 0) {
+				// segment from the previous mean to this one
+				mMeanLines[4 * i] = mMeanLines[4 * i - 2];
+				mMeanLines[4 * i + 1] = mMeanLines[4 * i - 1];
+			} else {
+				mMeanLines[0] = x;
+				mMeanLines[1] = height - 1 - (mean[0] - low) * scale;
+			}
+			mMeanLines[4 * i + 2] = x;
+			mMeanLines[4 * i + 3] = height - 1 - (mean[i] - low) * scale;
+		}
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if (mPoints > 0) {
+			canvas.drawLines(mRangeLines, 0, mPoints * 4, mRangePaint);
+			canvas.drawLines(mMeanLines, 0, mPoints * 4, mMeanPaint);
+		}
+		canvas.drawText(mLabel, 4, 16, mLabelPaint);
+	}
+}
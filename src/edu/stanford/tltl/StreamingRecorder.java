@@ -0,0 +1,317 @@
+package edu.stanford.tltl;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records sensor samples straight into chunks that a background writer thread hands to a
+ * SampleChunkSink (normally the chunk table of the database) while recording is going on,
+ * so a recording never has to fit in memory and is on disk if the process dies.
+ *
+ * Each sensor fills one chunk at a time. A full chunk is queued for the writer and replaced
+ * by an empty one from the sensor's pool of preallocated chunks; the writer returns chunks to
+ * the pool once they are written, so appending does not allocate. The queue is bounded by
+ * the pool size: if the writer falls so far behind that a sensor has no empty chunk left,
+ * that sensor's samples are dropped (and counted) until one is returned.
+ *
+ * The writer also keeps SampleStatistics of each sensor over the chunks it writes, off the
+ * pump thread, so they are ready to be stored with the recording when it stops. While
+ * recording, an IntervalMeter per sensor measures the rate and jitter of the events appended,
+ * and the largest backlog of full chunks waiting for the writer is kept.
+ *
+ * A failure of the sink stops the writing (a sink that can wait out a busy database, such
+ * as SensorDataDB's inserts, does so itself): the chunks after it are discarded, stop()
+ * throws the error, and a WriteErrorListener hears about it as soon as it happens so the
+ * user can be told while recording.
+ *
+ * append() and flush() must be called from one thread at a time (the pump thread).
+ *
+ * @author leehsueh
+ *
+ */
+public class StreamingRecorder {
+	public static final int DEFAULT_CHUNKS_PER_SENSOR = 8;
+
+	/** Told on the writer thread when writing fails; nothing is written after that. */
+	public interface WriteErrorListener {
+		public void onWriteError(IOException e);
+	}
+
+	/** The empty chunks of one sensor. */
+	private static class ChunkPool extends ArrayBlockingQueue<SampleChunk> {
+		private static final long serialVersionUID = 1L;
+
+		ChunkPool(int capacity) {
+			super(capacity);
+		}
+	}
+
+	private final SampleChunkSink mSink;
+	private final int mChunkSize;
+	private final int mChunksPerSensor;
+	private BlockingQueue<SampleChunk> mFilledChunks;	// sized to hold every chunk, so adding never blocks
+	private final WriterThread mWriter;
+
+	/* per sensor state, indexed by sensor type */
+	private SampleChunk[] mCurrentChunks = new SampleChunk[16];
+	private ChunkPool[] mFreeChunks = new ChunkPool[16];
+	private int[] mNextSequence = new int[16];
+	private int[] mSampleCounts = new int[16];
+	private int[] mDroppedCounts = new int[16];
+	private SampleStatistics[] mStatistics = new SampleStatistics[16];	// written by the writer thread
+	private IntervalMeter[] mMeters = new IntervalMeter[16];
+	private int[] mSensorTypes = new int[0];
+
+	private volatile IOException mWriteError;
+	private WriteErrorListener mErrorListener;
+	private volatile long mChunksWritten;
+	private volatile int mBacklogHighWater;
+	private long mMemorySize;	// of the preallocated chunks
+	private boolean mStarted;
+
+	public StreamingRecorder(SampleChunkSink sink) {
+		this(sink, SensorSampleBuffer.CHUNK_SIZE, DEFAULT_CHUNKS_PER_SENSOR);
+	}
+
+	/**
+	 * @param sink where written chunks go
+	 * @param chunkSize samples per chunk
+	 * @param chunksPerSensor preallocated chunks per sensor; bounds the writer backlog
+	 */
+	public StreamingRecorder(SampleChunkSink sink, int chunkSize, int chunksPerSensor) {
+		mSink = sink;
+		mChunkSize = chunkSize;
+		mChunksPerSensor = chunksPerSensor;
+		mWriter = new WriterThread();
+	}
+
+	/** Sets who is told when writing fails. Must be called before start(). */
+	public void setWriteErrorListener(WriteErrorListener listener) {
+		mErrorListener = listener;
+	}
+
+	/** Adds a sensor to be recorded. Must be called before start(). */
+	public void addSensor(int sensorType, int[] componentIndices) {
+		if (mStarted) {
+			throw new IllegalStateException("Recorder already started");
+		}
+		if (sensorType >= mCurrentChunks.length) {
+			int length = sensorType + 1;
+			SampleChunk[] current = new SampleChunk[length];
+			System.arraycopy(mCurrentChunks, 0, current, 0, mCurrentChunks.length);
+			mCurrentChunks = current;
+			ChunkPool[] free = new ChunkPool[length];
+			System.arraycopy(mFreeChunks, 0, free, 0, mFreeChunks.length);
+			mFreeChunks = free;
+			int[] sequence = new int[length];
+			System.arraycopy(mNextSequence, 0, sequence, 0, mNextSequence.length);
+			mNextSequence = sequence;
+			int[] counts = new int[length];
+			System.arraycopy(mSampleCounts, 0, counts, 0, mSampleCounts.length);
+			mSampleCounts = counts;
+			int[] dropped = new int[length];
+			System.arraycopy(mDroppedCounts, 0, dropped, 0, mDroppedCounts.length);
+			mDroppedCounts = dropped;
+			SampleStatistics[] statistics = new SampleStatistics[length];
+			System.arraycopy(mStatistics, 0, statistics, 0, mStatistics.length);
+			mStatistics = statistics;
+			IntervalMeter[] meters = new IntervalMeter[length];
+			System.arraycopy(mMeters, 0, meters, 0, mMeters.length);
+			mMeters = meters;
+		}
+		ChunkPool free = new ChunkPool(mChunksPerSensor);
+		for (int i = 1; i < mChunksPerSensor; i++) {
+			free.add(new SampleChunk(sensorType, componentIndices, mChunkSize));
+		}
+		mFreeChunks[sensorType] = free;
+		mStatistics[sensorType] = new SampleStatistics(sensorType, componentIndices);
+		mMeters[sensorType] = new IntervalMeter();
+		mCurrentChunks[sensorType] = new SampleChunk(sensorType, componentIndices, mChunkSize);
+		mCurrentChunks[sensorType].reset(mNextSequence[sensorType]++);
+		mMemorySize += (long) mChunksPerSensor * mChunkSize * (8 + 4 * componentIndices.length);
+
+		int[] types = new int[mSensorTypes.length + 1];
+		System.arraycopy(mSensorTypes, 0, types, 0, mSensorTypes.length);
+		types[mSensorTypes.length] = sensorType;
+		mSensorTypes = types;
+	}
+
+	/** Starts the writer thread. */
+	public void start() {
+		mFilledChunks = new ArrayBlockingQueue<SampleChunk>(mSensorTypes.length * mChunksPerSensor + 1);
+		mStarted = true;
+		mWriter.start();
+	}
+
+	/** Records one sensor event. Events from sensors that were not added are ignored. */
+	public void append(int sensorType, long timestamp, float[] values) {
+		if (sensorType >= mCurrentChunks.length) {
+			return;
+		}
+		IntervalMeter meter = mMeters[sensorType];
+		if (meter == null) {
+			return;	// not recorded
+		}
+		meter.add(timestamp);
+		SampleChunk chunk = mCurrentChunks[sensorType];
+		if (chunk == null) {
+			chunk = takeFreeChunk(sensorType);
+			if (chunk == null) {
+				mDroppedCounts[sensorType]++;
+				return;
+			}
+		}
+		chunk.append(timestamp, values);
+		mSampleCounts[sensorType]++;
+		if (chunk.isFull()) {
+			mFilledChunks.add(chunk);
+			int backlog = mFilledChunks.size();
+			if (backlog > mBacklogHighWater) {
+				mBacklogHighWater = backlog;
+			}
+			mCurrentChunks[sensorType] = takeFreeChunk(sensorType);
+		}
+	}
+
+	private SampleChunk takeFreeChunk(int sensorType) {
+		SampleChunk chunk = mFreeChunks[sensorType].poll();
+		if (chunk != null) {
+			chunk.reset(mNextSequence[sensorType]++);
+		}
+		mCurrentChunks[sensorType] = chunk;
+		return chunk;
+	}
+
+	/**
+	 * Queues the partially filled chunks of all sensors for writing, so everything recorded
+	 * so far reaches the sink. Recording can continue afterwards.
+	 */
+	public void flush() {
+		if (!mStarted) {
+			return;
+		}
+		for (int sensorType : mSensorTypes) {
+			SampleChunk chunk = mCurrentChunks[sensorType];
+			if (chunk != null && chunk.getCount() > 0) {
+				mFilledChunks.add(chunk);
+				takeFreeChunk(sensorType);
+			}
+		}
+	}
+
+	/**
+	 * Flushes, then waits for the writer to write all queued chunks and stops it.
+	 * @throws IOException if any chunk could not be written
+	 */
+	public void stop() throws IOException {
+		flush();
+		if (mStarted) {
+			mWriter.finish();
+			try {
+				mWriter.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (mWriteError != null) {
+			throw mWriteError;
+		}
+	}
+
+	/* status */
+
+	public int[] getSensorTypes() {
+		return mSensorTypes.clone();
+	}
+
+	/** Number of samples recorded for a sensor. */
+	public int getSampleCount(int sensorType) {
+		return sensorType < mSampleCounts.length ? mSampleCounts[sensorType] : 0;
+	}
+
+	/** Number of samples of a sensor dropped because the writer fell behind. */
+	public int getDroppedCount(int sensorType) {
+		return sensorType < mDroppedCounts.length ? mDroppedCounts[sensorType] : 0;
+	}
+
+	/**
+	 * Statistics of the samples of a sensor that were written, or null if the sensor is not
+	 * recorded. Only complete, and only safe to read, after stop().
+	 */
+	public SampleStatistics getStatistics(int sensorType) {
+		return sensorType < mStatistics.length ? mStatistics[sensorType] : null;
+	}
+
+	/** Rate and jitter of the events of a sensor as they are appended, or null if the sensor is not recorded. */
+	public IntervalMeter getIntervalMeter(int sensorType) {
+		return sensorType < mMeters.length ? mMeters[sensorType] : null;
+	}
+
+	/** The error that stopped the writing, or null while chunks are being written. */
+	public IOException getWriteError() {
+		return mWriteError;
+	}
+
+	/** Number of chunks handed to the sink so far. */
+	public long getChunksWritten() {
+		return mChunksWritten;
+	}
+
+	/** Largest number of full chunks that were waiting for the writer at once. */
+	public int getBacklogHighWaterMark() {
+		return mBacklogHighWater;
+	}
+
+	/** Bytes taken by the preallocated chunks of all sensors. */
+	public long getMemorySize() {
+		return mMemorySize;
+	}
+
+	/** Drains the queue of filled chunks into the sink and returns them to their pools. */
+	private class WriterThread extends Thread {
+		private final SampleChunk mEndMarker = new SampleChunk(0, new int[0], 1);
+
+		WriterThread() {
+			super("StreamingRecorder writer");
+		}
+
+		void finish() {
+			mFilledChunks.add(mEndMarker);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				SampleChunk chunk;
+				try {
+					chunk = mFilledChunks.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (chunk == mEndMarker) {
+					return;
+				}
+				if (mWriteError == null) {
+					try {
+						mSink.writeChunk(chunk);
+						mStatistics[chunk.getSensorType()].add(chunk);
+						mChunksWritten++;
+					} catch (IOException e) {
+						fail(e);
+					} catch (RuntimeException e) {
+						fail(new IOException("Could not write chunk: " + e.getMessage()));
+					}
+				}
+				mFreeChunks[chunk.getSensorType()].offer(chunk);
+			}
+		}
+
+		private void fail(IOException e) {
+			mWriteError = e;
+			if (mErrorListener != null) {
+				mErrorListener.onWriteError(e);
+			}
+		}
+	}
+}
@@ -7,17 +7,8 @@ import android.os.Bundle;
 import android.widget.ArrayAdapter;
 import android.widget.ListAdapter;
 import android.widget.ListView;
-
-//for hardware
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
-//end for hardware
-
-//for simulator
-//import org.openintents.sensorsimulator.hardware.Sensor;
-//import org.openintents.sensorsimulator.hardware.SensorEvent;
-//import org.openintents.sensorsimulator.hardware.SensorEventListener;
-import org.openintents.sensorsimulator.hardware.SensorManagerSimulator;
 
 public class SupportedSensorListActivity extends ListActivity {
 	private SensorManager mSensorManager;
@@ -0,0 +1,98 @@
+package edu.stanford.tltl;
+
+import java.util.Random;
+
+/**
+ * SensorSource that generates events for the standard sensor types (Sensor.TYPE_ACCELEROMETER
+ * up to Sensor.TYPE_AMBIENT_TEMPERATURE) at exactly the period asked for: a value around a
+ * typical resting reading of the sensor per component, with a slow sine wave and gaussian
+ * noise on top, so the data looks and compresses like real readings. A sensor registered
+ * for the fastest rate runs every FASTEST_PERIOD_US.
+ *
+ * The noise is seeded with the sensor type, so a run can be repeated exactly. Generating an
+ * event does not allocate.
+ *
+ * @author leehsueh
+ *
+ */
+public class SyntheticSensorSource extends ScheduledSensorSource {
+	public static final int FASTEST_PERIOD_US = 1000;	// 1 kHz
+	public static final int MAX_SENSOR_TYPE = 13;
+
+	/* per sensor type: values per event, resting value of each, sine amplitude, noise */
+	private static final int[] VALUE_COUNTS = { 0, 3, 3, 3, 3, 1, 1, 1, 1, 3, 3, 3, 1, 1 };
+	private static final float[][] OFFSETS = {
+		{},
+		{ 0.2f, 0.1f, 9.81f },	// accelerometer, m/s^2
+		{ 22f, -5f, -40f },	// magnetic field, uT
+		{ 90f, -2f, 1f },	// orientation, degrees
+		{ 0f, 0f, 0f },	// gyroscope, rad/s
+		{ 300f },	// light, lx
+		{ 1013.25f },	// pressure, hPa
+		{ 22f },	// temperature, C
+		{ 5f },	// proximity, cm
+		{ 0.2f, 0.1f, 9.8f },	// gravity, m/s^2
+		{ 0f, 0f, 0f },	// linear acceleration, m/s^2
+		{ 0.1f, 0.2f, 0.7f },	// rotation vector
+		{ 45f },	// relative humidity, %
+		{ 21f }	// ambient temperature, C
+	};
+	private static final float[] AMPLITUDES = { 0f, 0.5f, 2f, 5f, 0.2f, 50f, 0.5f, 0.5f, 0f, 0.1f, 0.5f, 0.05f, 2f, 0.5f };
+	private static final float[] NOISE = { 0f, 0.05f, 0.3f, 0.5f, 0.01f, 5f, 0.02f, 0.05f, 0f, 0.01f, 0.05f, 0.001f, 0.1f, 0.05f };
+	private static final double WAVE_HZ = 0.5;
+
+	public SyntheticSensorSource(SensorEventRing.Consumer consumer) {
+		super(consumer);
+	}
+
+	/** Number of values in the events of a sensor type, as in SensorEvent.values; 0 if it is not generated. */
+	public static int getValueCount(int sensorType) {
+		return sensorType > 0 && sensorType <= MAX_SENSOR_TYPE ? VALUE_COUNTS[sensorType] : 0;
+	}
+
+	@Override
+	public boolean hasSensor(int sensorType) {
+		return sensorType > 0 && sensorType <= MAX_SENSOR_TYPE;
+	}
+
+	@Override
+	protected Channel createChannel(int sensorType, int periodUs) {
+		if (!hasSensor(sensorType)) {
+			return null;
+		}
+		return new Generator(sensorType, (periodUs > 0 ? periodUs : FASTEST_PERIOD_US) * 1000L);
+	}
+
+	private static class Generator extends Channel {
+		private final float[] mOffsets;
+		private final float mAmplitude, mNoise;
+		private final long mPeriodNanos;
+		private final Random mRandom;
+		private long mStartTime;
+
+		Generator(int sensorType, long periodNanos) {
+			super(sensorType, VALUE_COUNTS[sensorType]);
+			mOffsets = OFFSETS[sensorType];
+			mAmplitude = AMPLITUDES[sensorType];
+			mNoise = NOISE[sensorType];
+			mPeriodNanos = periodNanos;
+			mRandom = new Random(sensorType);
+		}
+
+		@Override
+		protected long start(long now) {
+			mStartTime = now;
+			return now + mPeriodNanos;
+		}
+
+		@Override
+		protected long next(long time, float[] values) {
+			double phase = 2 * Math.PI * WAVE_HZ * ((time - mStartTime) / 1e9);
+			for (int i = 0; i < values.length; i++) {
+				values[i] = (float) (mOffsets[i] + mAmplitude * Math.sin(phase + i)
+						+ mNoise * mRandom.nextGaussian());
+			}
+			return time + mPeriodNanos;
+		}
+	}
+}
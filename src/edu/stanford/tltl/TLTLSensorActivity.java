@@ -2,40 +2,96 @@ package edu.stanford.tltl;
 
 
 import android.app.Activity;
-
-// for hardware
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-// end for hardware
-
-// for simulator
-//import org.openintents.sensorsimulator.hardware.Sensor;
-//import org.openintents.sensorsimulator.hardware.SensorEvent;
-//import org.openintents.sensorsimulator.hardware.SensorEventListener;
-import org.openintents.sensorsimulator.hardware.SensorManagerSimulator;
-// end for simulator
-
+import android.os.IBinder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
 import android.widget.TextView;
 
 /**
  * This class describes the live outputs view.
- * Some commented code is for using the simulator instead of the hardware, if
- * there is no physical device to test on (MUCh easier to just always test on a device)
+ * To try it without a device, or with a known input, switch the sensor input on the main
+ * menu to synthetic or replayed events (see SensorAcquisitionService).
+ * 
+ * Sensor events come from SensorAcquisitionService, which copies them into a SensorEventRing
+ * on its sensor thread. Once per frame (FRAME_INTERVAL_MS) the UI thread drains the ring into a
+ * snapshot holding only the latest value of each sensor component, then redraws the readouts
+ * whose text changed. Numbers are formatted with FloatFormat into per-readout char buffers, so
+ * no strings are allocated however fast the sensors report.
  * @author leehsueh
  *
  */
-public class TLTLSensorActivity extends Activity implements SensorEventListener {	//, org.openintents.sensorsimulator.hardware.SensorEventListener {
-	boolean mUserSimulator = false;
+public class TLTLSensorActivity extends Activity {
 	int mSensorSamplingRate = SensorManager.SENSOR_DELAY_UI;
+	// about one display frame at 60 Hz; Choreographer frame callbacks need API 16
+	static final long FRAME_INTERVAL_MS = 16;
+	static final int DECIMALS = 4;
+	static final int MAX_SENSOR_TYPE = 16;
+	static final int MAX_COMPONENTS = 3;
+	
+	// sensor thread -> UI thread
+	private final SensorEventRing mEventRing = new SensorEventRing();
+	private final Handler mHandler = new Handler();
+	
+	// latest value of each component, indexed by sensorType * MAX_COMPONENTS + component
+	private final float[] mLatestValues = new float[MAX_SENSOR_TYPE * MAX_COMPONENTS];
+	private final boolean[] mChanged = new boolean[MAX_SENSOR_TYPE];
+	private long mEventsReceived = 0;
+	private long mFramesRendered = 0;
+	
+	// readouts indexed by sensor type, then component, each with its own text buffer
+	private final TextView[][] mReadouts = new TextView[MAX_SENSOR_TYPE][];
+	private final char[][][] mReadoutText = new char[MAX_SENSOR_TYPE][][];
+	private final int[][] mReadoutLength = new int[MAX_SENSOR_TYPE][];
+	private final char[] mFormatBuffer = new char[FloatFormat.MAX_LENGTH];
+	
+	private final SensorEventRing.Consumer mSnapshotConsumer = new SensorEventRing.Consumer() {
+		@Override
+		public void onSensorEvent(int sensorType, long timestamp, float[] values) {
+			mEventsReceived++;
+			if (sensorType >= MAX_SENSOR_TYPE) {
+				return;
+			}
+			System.arraycopy(values, 0, mLatestValues, sensorType * MAX_COMPONENTS,
+					Math.min(values.length, MAX_COMPONENTS));
+			mChanged[sensorType] = true;
+		}
+	};
+	private final Runnable mFrameRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mEventRing.drain(mSnapshotConsumer);
+			if (renderReadouts()) {
+				mFramesRendered++;
+			}
+			mHandler.postDelayed(this, FRAME_INTERVAL_MS);
+		}
+	};
 
-	// for simulator
-	SensorManagerSimulator mSensorManagerSimulator = null;
-
-	// for hardware
-	SensorManager mSensorManager = null;
+	SensorAcquisitionService mAcquisition = null;
+	SensorAcquisitionService.Subscription mSubscription = null;
+	boolean mResumed = false;
+	
+	private final ServiceConnection mConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			mAcquisition = ((SensorAcquisitionService.LocalBinder) binder).getService();
+			if (mResumed && mSubscription == null) {
+				subscribe();
+			}
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mAcquisition = null;
+			mSubscription = null;
+		}
+	};
 	
 	// UI components
 	TextView tv_xAccel, tv_yAccel, tv_zAccel;	// accelerometer
@@ -58,14 +114,7 @@ public class TLTLSensorActivity extends Activity implements SensorEventListener
 			mSensorSamplingRate = extras.getInt(MainMenuActivity.RATE_KEY);
 		}
 
-		// set up the sensor manager
-		if (mUserSimulator) {
-			mSensorManagerSimulator = SensorManagerSimulator.getSystemService(
-					this, SENSOR_SERVICE);
-			mSensorManagerSimulator.connectSimulator();
-		} else {
-			mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-		}
+		bindService(new Intent(this, SensorAcquisitionService.class), mConnection, BIND_AUTO_CREATE);
 		
 		// get references to UI components
 		tv_xAccel = (TextView) findViewById(R.id.xAccel);
@@ -91,149 +140,116 @@ public class TLTLSensorActivity extends Activity implements SensorEventListener
 		tv_light = (TextView) findViewById(R.id.light);
 		tv_proximity = (TextView) findViewById(R.id.proximity);
 		tv_humidity = (TextView) findViewById(R.id.humidity);
-
+		
+//		addReadouts(Sensor.TYPE_GRAVITY, tv_xGravity, tv_yGravity, tv_zGravity);
+//		addReadouts(Sensor.TYPE_LINEAR_ACCELERATION, tv_xLinAccel, tv_yLinAccel, tv_zLinAccel);
+//		addReadouts(Sensor.TYPE_ROTATION_VECTOR, tv_xRotVec, tv_yRotVec, tv_zRotVec);
+		addReadouts(Sensor.TYPE_ACCELEROMETER, tv_xAccel, tv_yAccel, tv_zAccel);
+		addReadouts(Sensor.TYPE_GYROSCOPE, tv_xGyro, tv_yGyro, tv_zGyro);
+		addReadouts(Sensor.TYPE_MAGNETIC_FIELD, tv_xMag, tv_yMag, tv_zMag);
+		addReadouts(Sensor.TYPE_PRESSURE, tv_pressure);
+		addReadouts(Sensor.TYPE_TEMPERATURE, tv_temperature);
+		addReadouts(Sensor.TYPE_LIGHT, tv_light);
+		addReadouts(Sensor.TYPE_PROXIMITY, tv_proximity);
+	}
+	
+	private void addReadouts(int sensorType, TextView... views) {
+		mReadouts[sensorType] = views;
+		mReadoutText[sensorType] = new char[views.length][FloatFormat.MAX_LENGTH];
+		mReadoutLength[sensorType] = new int[views.length];
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
-		
-		if (mUserSimulator) {
-			int[] sensorTypes = {
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_ACCELEROMETER,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_GRAVITY,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_GYROSCOPE,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_LINEAR_ACCELERATION,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_ROTATION_VECTOR,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_MAGNETIC_FIELD,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_TEMPERATURE,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_PRESSURE,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_PROXIMITY,
-					org.openintents.sensorsimulator.hardware.Sensor.TYPE_LIGHT
-			};
-			
-			for (int sensorType : sensorTypes) {
-				org.openintents.sensorsimulator.hardware.Sensor s = mSensorManagerSimulator.getDefaultSensor(sensorType);
-				if (s != null) {
-					boolean supported = mSensorManagerSimulator.registerListener(
-							(org.openintents.sensorsimulator.hardware.SensorEventListener)this,
-							s, mSensorSamplingRate);
-					if (!supported) {
-						System.out.println("Sensor " + sensorType + " unsupported!");
-					}
-				}
-			}
-		} else {
-			int[] sensorTypes = {
-					Sensor.TYPE_ACCELEROMETER,
-					Sensor.TYPE_GYROSCOPE,
-					Sensor.TYPE_MAGNETIC_FIELD,
-					Sensor.TYPE_TEMPERATURE,
-					Sensor.TYPE_PRESSURE,
-					Sensor.TYPE_PROXIMITY,
-					Sensor.TYPE_LIGHT
-			};
-			for (int sensorType : sensorTypes) {
-				Sensor s = mSensorManager.getDefaultSensor(sensorType);
-				if (s != null) {
-					mSensorManager.registerListener(this,s, mSensorSamplingRate);
-				}
-			}
-					
+		mResumed = true;
+		if (mAcquisition != null && mSubscription == null) {
+			subscribe();
 		}
+		mHandler.removeCallbacks(mFrameRunnable);
+		mHandler.post(mFrameRunnable);
+	}
+	
+	private void subscribe() {
+		int[] sensorTypes = {
+				Sensor.TYPE_ACCELEROMETER,
+				Sensor.TYPE_GYROSCOPE,
+				Sensor.TYPE_MAGNETIC_FIELD,
+				Sensor.TYPE_TEMPERATURE,
+				Sensor.TYPE_PRESSURE,
+				Sensor.TYPE_PROXIMITY,
+				Sensor.TYPE_LIGHT
+		};
+		mSubscription = mAcquisition.subscribe(sensorTypes, mSensorSamplingRate, mEventRing);
 	}
 
 	@Override
 	protected void onStop() {
 		super.onStop();
-		if (mUserSimulator) {
-			mSensorManagerSimulator.unregisterListener((org.openintents.sensorsimulator.hardware.SensorEventListener)this);
-		} else {
-			mSensorManager.unregisterListener(this);
+		mHandler.removeCallbacks(mFrameRunnable);
+		Log.v(MainMenuActivity.LOG_TAG, "Live view: " + mEventsReceived + " events received, "
+				+ mFramesRendered + " frames rendered");
+		mResumed = false;
+		if (mSubscription != null) {
+			mAcquisition.unsubscribe(mSubscription);
+			mSubscription = null;
 		}
 	}
-
+	
 	@Override
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// TODO Auto-generated method stub
-
+	protected void onDestroy() {
+		super.onDestroy();
+		unbindService(mConnection);
 	}
 
-	@Override
-	public void onSensorChanged(SensorEvent event) {
-		synchronized (this) {
-			int sensorType = event.sensor.getType();
-			updateSensorValues(sensorType, event.values);
+	/** Number of sensor events drained from the ring since the activity was created. */
+	public long getEventsReceived() {
+		return mEventsReceived;
+	}
+	
+	/** Number of frames in which at least one readout was redrawn. */
+	public long getFramesRendered() {
+		return mFramesRendered;
+	}
+	
+	/**
+	 * Redraws the readouts of sensors that reported since the last frame. A readout whose
+	 * formatted text did not change is left alone, so it is not laid out again.
+	 * @return true if any readout was redrawn
+	 */
+	private boolean renderReadouts() {
+		boolean rendered = false;
+		for (int sensorType = 0; sensorType < MAX_SENSOR_TYPE; sensorType++) {
+			if (!mChanged[sensorType]) {
+				continue;
+			}
+			mChanged[sensorType] = false;
+			TextView[] views = mReadouts[sensorType];
+			if (views == null) {
+				continue;
+			}
+			for (int i = 0; i < views.length; i++) {
+				int length = FloatFormat.format(mLatestValues[sensorType * MAX_COMPONENTS + i],
+						DECIMALS, mFormatBuffer, 0);
+				char[] text = mReadoutText[sensorType][i];
+				if (length == mReadoutLength[sensorType][i] && sameText(mFormatBuffer, text, length)) {
+					continue;
+				}
+				System.arraycopy(mFormatBuffer, 0, text, 0, length);
+				mReadoutLength[sensorType][i] = length;
+				views[i].setText(text, 0, length);
+				rendered = true;
+			}
 		}
+		return rendered;
 	}
-
-//	@Override
-//	/**
-//	 * onAccuracyChanged override for the simulator event listener
-//	 */
-//	public void onAccuracyChanged(
-//			org.openintents.sensorsimulator.hardware.Sensor sensor, int arg1) {
-//		// TODO Auto-generated method stub
-//		
-//	}
-
-//	@Override
-//	/**
-//	 * onSensorChanged override for the simulator event listener
-//	 */
-//	public void onSensorChanged(
-//			org.openintents.sensorsimulator.hardware.SensorEvent event) {
-//		synchronized (this) {
-//			int sensorType = event.type;
-//			updateSensorValues(sensorType, event.values);
-//		}
-//		
-//	}
 	
-	private void updateSensorValues(int sensorType, float[] values) {
-		switch (sensorType) {
-//		case Sensor.TYPE_GRAVITY:
-//			tv_xGravity.setText(Float.toString(values[0]));
-//			tv_yGravity.setText(Float.toString(values[1]));
-//			tv_zGravity.setText(Float.toString(values[2]));
-//			break;
-		case Sensor.TYPE_ACCELEROMETER:
-			tv_xAccel.setText(Float.toString(values[0]));
-			tv_yAccel.setText(Float.toString(values[1]));
-			tv_zAccel.setText(Float.toString(values[2]));
-			break;
-//		case Sensor.TYPE_LINEAR_ACCELERATION:
-//			tv_xLinAccel.setText(Float.toString(values[0]));
-//			tv_yLinAccel.setText(Float.toString(values[1]));
-//			tv_zLinAccel.setText(Float.toString(values[2]));
-//			break;
-//		case Sensor.TYPE_ROTATION_VECTOR:
-//			tv_xRotVec.setText(Float.toString(values[0]));
-//			tv_yRotVec.setText(Float.toString(values[1]));
-//			tv_zRotVec.setText(Float.toString(values[2]));
-//			break;
-		case Sensor.TYPE_GYROSCOPE:
-			tv_xGyro.setText(Float.toString(values[0]));
-			tv_yGyro.setText(Float.toString(values[1]));
-			tv_zGyro.setText(Float.toString(values[2]));
-			break;
-		case Sensor.TYPE_MAGNETIC_FIELD:
-			tv_xMag.setText(Float.toString(values[0]));
-			tv_yMag.setText(Float.toString(values[1]));
-			tv_zMag.setText(Float.toString(values[2]));
-			break;
-		case Sensor.TYPE_PRESSURE:
-			tv_pressure.setText(Float.toString(values[0]));
-			break;
-		case Sensor.TYPE_TEMPERATURE:
-			tv_temperature.setText(Float.toString(values[0]));
-			break;
-		case Sensor.TYPE_LIGHT:
-			tv_light.setText(Float.toString(values[0]));
-			break;
-		case Sensor.TYPE_PROXIMITY:
-			tv_proximity.setText(Float.toString(values[0]));
-			break;
+	private static boolean sameText(char[] a, char[] b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
 		}
+		return true;
 	}
 }